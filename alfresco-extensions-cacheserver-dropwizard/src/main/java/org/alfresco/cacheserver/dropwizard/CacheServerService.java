@@ -7,12 +7,15 @@
  */
 package org.alfresco.cacheserver.dropwizard;
 
+import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 
 import org.alfresco.service.common.dropwizard.AbstractSpringDropwizardService;
 import org.alfresco.service.common.dropwizard.SpringDropwizardConfiguration;
 import org.apache.log4j.Logger;
+import org.sglover.alfrescoextensions.common.Metrics;
 
+import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.servlets.MetricsServlet;
 
 /**
@@ -43,6 +46,16 @@ public class CacheServerService extends AbstractSpringDropwizardService<SpringDr
         this.isRequestResponseLogged = true;
     }
 
+    @Override
+    public void initialize(Bootstrap<SpringDropwizardConfiguration> bootstrap)
+    {
+        // Dropwizard's registry is the one shared by the cache server's beans (the metricRegistry bean),
+        // so that their metrics are reported with Dropwizard's. It must be added before the Spring
+        // context is started
+        SharedMetricRegistries.add(Metrics.REGISTRY_NAME, bootstrap.getMetricRegistry());
+        super.initialize(bootstrap);
+    }
+
     @Override
     public void setupEnvironment(SpringDropwizardConfiguration configuration, Environment environment)
     {
@@ -53,6 +66,8 @@ public class CacheServerService extends AbstractSpringDropwizardService<SpringDr
                 EnvironmentType.HEALTH_CHECK, "cacheHealth");
         addEnvironmentItemFromSpringBean(environment,
                 EnvironmentType.RESOURCE, "cacheResource");
+        environment.getApplicationContext().setAttribute(MetricsServlet.METRICS_REGISTRY,
+                Metrics.getSharedRegistry());
         addServlet(environment, MetricsServlet.class, URL_PREFIX + "/metrics");
     }
 }
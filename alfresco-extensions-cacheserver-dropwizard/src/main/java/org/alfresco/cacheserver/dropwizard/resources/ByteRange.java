@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver.dropwizard.resources;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * An inclusive byte range of a representation, as requested by an RFC 7233 Range header.
+ *
+ * @author sglover
+ *
+ */
+public class ByteRange
+{
+    // more ranges than this in one request is treated as an attempt at abuse and the header is ignored
+    public static final int MAX_RANGES = 64;
+
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart()
+    {
+        return start;
+    }
+
+    public long getEnd()
+    {
+        return end;
+    }
+
+    public long getLength()
+    {
+        return end - start + 1;
+    }
+
+    public String getContentRange(long size)
+    {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * Parses a Range header value against a representation of the given size.
+     *
+     * @return the satisfiable ranges, in the order requested, empty if none of them are satisfiable, or
+     * null if the header is absent, malformed, not a byte range or has too many ranges, in which case the
+     * header should be ignored
+     */
+    public static List<ByteRange> parse(String header, long size)
+    {
+        if(header == null)
+        {
+            return null;
+        }
+
+        header = header.trim();
+        if(!header.startsWith("bytes="))
+        {
+            return null;
+        }
+
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if(specs.length > MAX_RANGES)
+        {
+            return null;
+        }
+
+        List<ByteRange> ranges = new LinkedList<>();
+
+        try
+        {
+            for(String spec : specs)
+            {
+                spec = spec.trim();
+                int idx = spec.indexOf('-');
+                if(idx == -1)
+                {
+                    return null;
+                }
+
+                String first = spec.substring(0, idx).trim();
+                String last = spec.substring(idx + 1).trim();
+
+                long start;
+                long end;
+                if(first.isEmpty())
+                {
+                    // suffix range, the last n bytes
+                    if(last.isEmpty())
+                    {
+                        return null;
+                    }
+                    long suffixLength = Long.parseLong(last);
+                    if(suffixLength < 0)
+                    {
+                        return null;
+                    }
+                    if(suffixLength == 0 || size == 0)
+                    {
+                        continue;
+                    }
+                    start = Math.max(0, size - suffixLength);
+                    end = size - 1;
+                }
+                else
+                {
+                    start = Long.parseLong(first);
+                    end = (last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last));
+                    if(start < 0 || end < start)
+                    {
+                        return null;
+                    }
+                    if(start >= size)
+                    {
+                        continue;
+                    }
+                    end = Math.min(end, size - 1);
+                }
+
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            return null;
+        }
+
+        return ranges;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ByteRange [start=" + start + ", end=" + end + "]";
+    }
+}
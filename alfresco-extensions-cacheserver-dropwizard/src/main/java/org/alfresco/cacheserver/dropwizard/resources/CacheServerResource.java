@@ -9,36 +9,51 @@ package org.alfresco.cacheserver.dropwizard.resources;
 
 import io.dropwizard.auth.Auth;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.alfresco.cacheserver.UserContext;
-import org.alfresco.checksum.ChecksumService;
-import org.alfresco.checksum.NodeChecksums;
 import org.alfresco.contentstore.patch.PatchService;
+import org.alfresco.contentstore.patch.PatchStreamEncoding;
 import org.alfresco.extensions.common.ContentReader;
 import org.alfresco.services.ContentGetter;
 import org.apache.log4j.Logger;
+import org.sglover.alfrescoextensions.common.Digests;
+import org.sglover.alfrescoextensions.common.MimeType;
+import org.sglover.alfrescoextensions.common.Node;
+import org.sglover.checksum.ChecksumService;
+import org.sglover.checksum.NodeChecksums;
+import org.sglover.checksum.NodeChecksumsCodec;
 import org.springframework.security.core.userdetails.UserDetails;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.sun.jersey.multipart.MultiPart;
-import com.sun.jersey.multipart.MultiPartMediaTypes;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * JAX-RS / DropWizard Resource exposing the Synchronization service API over REST. 
@@ -48,6 +63,10 @@ public class CacheServerResource
 {
 	private static final Logger LOGGER = Logger.getLogger(CacheServerResource.class.getName());
 
+	private static final int HTTP_PARTIAL_CONTENT = 206;
+	private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+	private static final String PROTOBUF_TYPE = "application/x-protobuf";
+
 	private ContentGetter localContentGetter;
 	private ChecksumService checksumService;
 	private PatchService patchService;
@@ -138,17 +157,147 @@ public class CacheServerResource
 	    }
 	}
 
+    /*
+     * Copies length bytes from the current position of src.
+     */
+    private void copyRange(final SeekableByteChannel src, final WritableByteChannel dest, long length) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+        while(length > 0)
+        {
+            buffer.clear();
+            if(buffer.remaining() > length)
+            {
+                buffer.limit((int)length);
+            }
+            int n = src.read(buffer);
+            if(n == -1)
+            {
+                throw new EOFException("Content ended " + length + " bytes before the end of the range");
+            }
+            buffer.flip();
+            while(buffer.hasRemaining())
+            {
+                dest.write(buffer);
+            }
+            length -= n;
+        }
+    }
+
+    private void copyRange(final SeekableByteChannel src, final WritableByteChannel dest, ByteRange range) throws IOException
+    {
+        if(src instanceof FileChannel)
+        {
+            FileChannel fileChannel = (FileChannel)src;
+            long position = range.getStart();
+            long end = range.getEnd() + 1;
+            while(position < end)
+            {
+                long n = fileChannel.transferTo(position, end - position, dest);
+                if(n <= 0)
+                {
+                    throw new EOFException("Content ended at " + position + " before the end of the range");
+                }
+                position += n;
+            }
+        }
+        else
+        {
+            src.position(range.getStart());
+            copyRange(src, dest, range.getLength());
+        }
+    }
+
+    private void copyAll(final ReadableByteChannel src, final WritableByteChannel dest) throws IOException
+    {
+        if(src instanceof FileChannel)
+        {
+            FileChannel fileChannel = (FileChannel)src;
+            long size = fileChannel.size();
+            long position = 0;
+            while(position < size)
+            {
+                // 0 if the file has been truncated, which would otherwise loop forever
+                long n = fileChannel.transferTo(position, size - position, dest);
+                if(n <= 0)
+                {
+                    throw new EOFException("Content ended at " + position + " of " + size + " bytes");
+                }
+                position += n;
+            }
+        }
+        else
+        {
+            fastChannelCopy(src, dest);
+        }
+    }
+
+    /*
+     * A strong entity tag for a node version, the root digest of its stored block checksums, or null
+     * if there are none.
+     */
+    private String getETag(String nodeId, long nodeVersion)
+    {
+        String etag = null;
+
+        NodeChecksums checksums = checksumService.getChecksums(nodeId, nodeVersion);
+        if(checksums != null && checksums.size() > 0)
+        {
+            etag = "\"" + checksums.getRootDigest() + "\"";
+        }
+
+        return etag;
+    }
+
+    // If-None-Match uses weak comparison
+    private boolean matches(String header, String etag)
+    {
+        if(header != null && etag != null)
+        {
+            for(String tag : header.split(","))
+            {
+                tag = tag.trim();
+                if(tag.startsWith("W/"))
+                {
+                    tag = tag.substring(2);
+                }
+                if(tag.equals("*") || tag.equals(etag))
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    // If-Range uses strong comparison (RFC 7233 section 3.2): a single entity tag that must not be weak.
+    // A date never matches, there's no Last-Modified to compare it with
+    private boolean matchesStrongly(String header, String etag)
+    {
+        if(header != null && etag != null)
+        {
+            String tag = header.trim();
+            return !tag.startsWith("W/") && tag.equals(etag);
+        }
+
+        return false;
+    }
+
     @Path("/contentByNodeId/{nodeId}/{nodeVersion}")
     @GET
     public Response contentByNodeId(
     		@PathParam("nodeId") String nodeId,
     		@PathParam("nodeVersion") String nodeVersion,
+    		@HeaderParam("Range") String rangeHeader,
+    		@HeaderParam("If-Range") String ifRange,
+    		@HeaderParam("If-None-Match") String ifNoneMatch,
             @Auth UserDetails user,
     		@Context final HttpServletResponse httpResponse)
     {
         try
         {
-            if (LOGGER.isDebugEnabled()) LOGGER.debug("nodeId = " + nodeId);
+            if (LOGGER.isDebugEnabled()) LOGGER.debug("nodeId = " + nodeId + ", range = " + rangeHeader);
 
             if(nodeId == null || nodeVersion == null)
             {
@@ -162,29 +311,95 @@ public class CacheServerResource
 	            	ContentReader content = localContentGetter.getContentByNodeId(nodeId, nodeVersion);
 	            	if(content != null)
 	            	{
-	            	    ReadableByteChannel inputChannel = content.getChannel();
-		            	String mimeType = content.getMimeType();
+		            	// only content that's here can be not modified
+		            	final String etag = getETag(nodeId, Long.valueOf(nodeVersion));
+		            	if(etag != null && ifNoneMatch != null && matches(ifNoneMatch, etag))
+		            	{
+		            	    return Response.notModified(etag).header("Accept-Ranges", "bytes").build();
+		            	}
+
+		            	final String mimeType = content.getMimeType();
+		            	final long size = content.getSize();
 
-		            	StreamingOutput streamer = new StreamingOutput()
+		            	// an If-Range that doesn't match means the client's partial copy is stale, so
+		            	// send all of it
+		            	final List<ByteRange> ranges = (ifRange == null || matchesStrongly(ifRange, etag)
+		            	        ? ByteRange.parse(rangeHeader, size) : null);
+		            	if(ranges != null && ranges.isEmpty())
 		            	{
-		                    @Override
-		                    public void write(final OutputStream output) throws IOException, WebApplicationException
-		                    {
-		                        final WritableByteChannel outputChannel = Channels.newChannel(output);
-	                            try
-	                            {
-	                                fastChannelCopy(inputChannel, outputChannel);
-//		                            inputChannel.read(outputChannel);
-		                        }
-	                            finally
-		                        {
-		                            // closing the channels
-		                            inputChannel.close();
-		                            outputChannel.close();
-		                        }
-		                    }
-		                };
-		                return Response.ok(streamer).type(mimeType).build();
+		            	    return Response.status(HTTP_REQUESTED_RANGE_NOT_SATISFIABLE)
+		            	            .header("Content-Range", "bytes */" + size)
+		            	            .build();
+		            	}
+
+	            	    final ReadableByteChannel inputChannel = content.getChannel();
+
+		            	// ranges are only served from channels that can seek to them
+		            	if(ranges == null || !(inputChannel instanceof SeekableByteChannel))
+		            	{
+		            	    return fullResponse(inputChannel, mimeType, size, etag);
+		            	}
+		            	else if(ranges.size() == 1)
+		            	{
+		            	    final ByteRange range = ranges.get(0);
+		            	    StreamingOutput streamer = new StreamingOutput()
+		            	    {
+		            	        @Override
+		            	        public void write(final OutputStream output) throws IOException, WebApplicationException
+		            	        {
+		            	            final WritableByteChannel outputChannel = Channels.newChannel(output);
+		            	            try
+		            	            {
+		            	                copyRange((SeekableByteChannel)inputChannel, outputChannel, range);
+		            	            }
+		            	            finally
+		            	            {
+		            	                inputChannel.close();
+		            	                outputChannel.close();
+		            	            }
+		            	        }
+		            	    };
+		            	    return Response.status(HTTP_PARTIAL_CONTENT).entity(streamer).type(mimeType)
+		            	            .header("Accept-Ranges", "bytes")
+		            	            .header("Content-Range", range.getContentRange(size))
+		            	            .header("Content-Length", range.getLength())
+		            	            .tag(etag != null ? EntityTag.valueOf(etag) : null)
+		            	            .build();
+		            	}
+		            	else
+		            	{
+		            	    final String boundary = UUID.randomUUID().toString();
+		            	    StreamingOutput streamer = new StreamingOutput()
+		            	    {
+		            	        @Override
+		            	        public void write(final OutputStream output) throws IOException, WebApplicationException
+		            	        {
+		            	            final WritableByteChannel outputChannel = Channels.newChannel(output);
+		            	            try
+		            	            {
+		            	                for(ByteRange range : ranges)
+		            	                {
+		            	                    String partHeaders = "\r\n--" + boundary + "\r\n"
+		            	                            + "Content-Type: " + mimeType + "\r\n"
+		            	                            + "Content-Range: " + range.getContentRange(size) + "\r\n\r\n";
+		            	                    output.write(partHeaders.getBytes(StandardCharsets.US_ASCII));
+		            	                    copyRange((SeekableByteChannel)inputChannel, outputChannel, range);
+		            	                }
+		            	                output.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		            	            }
+		            	            finally
+		            	            {
+		            	                inputChannel.close();
+		            	                outputChannel.close();
+		            	            }
+		            	        }
+		            	    };
+		            	    return Response.status(HTTP_PARTIAL_CONTENT).entity(streamer)
+		            	            .type("multipart/byteranges; boundary=" + boundary)
+		            	            .header("Accept-Ranges", "bytes")
+		            	            .tag(etag != null ? EntityTag.valueOf(etag) : null)
+		            	            .build();
+		            	}
 	            	}
 	            	else
 	            	{
@@ -204,11 +419,51 @@ public class CacheServerResource
         }
     }
 
+    private Response fullResponse(final ReadableByteChannel inputChannel, String mimeType, long size, String etag)
+    {
+        StreamingOutput streamer = new StreamingOutput()
+        {
+            @Override
+            public void write(final OutputStream output) throws IOException, WebApplicationException
+            {
+                final WritableByteChannel outputChannel = Channels.newChannel(output);
+                try
+                {
+                    // the container only gives us an OutputStream, so a file's transferTo can't use
+                    // sendfile here, it copies through a buffer like any other channel
+                    copyAll(inputChannel, outputChannel);
+                }
+                finally
+                {
+                    // closing the channels
+                    inputChannel.close();
+                    outputChannel.close();
+                }
+            }
+        };
+
+        ResponseBuilder builder = Response.ok(streamer).type(mimeType).header("Accept-Ranges", "bytes");
+        if(size >= 0)
+        {
+            builder.header("Content-Length", size);
+        }
+        if(etag != null)
+        {
+            builder.tag(EntityTag.valueOf(etag));
+        }
+        return builder.build();
+    }
+
+    /*
+     * The patch from the previous version of the node to nodeInternalVersion, streamed as it is generated
+     * as length-delimited PatchDocument protocol buffers, lz4 or gzip framed if the client accepts them.
+     */
     @Path("/patch/{nodeId}/{nodeInternalVersion}")
     @GET
-    @Produces(MediaType.MULTIPART_FORM_DATA)
+    @Produces(PROTOBUF_TYPE)
     public Response getPatch(@PathParam("nodeId") String nodeId,
 		@PathParam("nodeInternalVersion") String nodeInternalVersionStr,
+		@HeaderParam("Accept-Encoding") String acceptEncoding,
         @Auth UserDetails user,
 		@Context final HttpServletResponse httpResponse)
 	{
@@ -227,10 +482,37 @@ public class CacheServerResource
 	            UserContext.setUser(user);
 	            try
 	            {
-	            	MultiPart entity = patchService.getPatchEntity(nodeId, nodeInternalVersion);
-	            	if(entity != null)
+	            	NodeChecksums checksums = checksumService.getChecksums(nodeId, nodeInternalVersion - 1);
+	            	ContentReader content = (checksums != null
+	            	        ? localContentGetter.getContentByNodeId(nodeId, nodeInternalVersion) : null);
+	            	if(content != null)
 	            	{
-		                return Response.ok(entity, MultiPartMediaTypes.MULTIPART_MIXED_TYPE).build();
+	            	    MimeType mimeType = MimeType.INSTANCES.get(content.getMimeType());
+	            	    final Node node = Node.build().nodeId(nodeId).nodeVersion(nodeInternalVersion)
+	            	            .mimeType(mimeType != null ? mimeType : MimeType.OCTET_STREAM);
+	            	    final NodeChecksums previousChecksums = checksums;
+	            	    final ReadableByteChannel inputChannel = content.getChannel();
+	            	    final PatchStreamEncoding encoding = PatchStreamEncoding.fromAcceptEncoding(acceptEncoding);
+
+	            	    StreamingOutput streamer = new StreamingOutput()
+	            	    {
+	            	        @Override
+	            	        public void write(final OutputStream output) throws IOException, WebApplicationException
+	            	        {
+	            	            try(InputStream in = Channels.newInputStream(inputChannel))
+	            	            {
+	            	                patchService.writePatchStream(node, previousChecksums, in, output, encoding);
+	            	            }
+	            	        }
+	            	    };
+
+	            	    ResponseBuilder builder = Response.ok(streamer).type(PROTOBUF_TYPE)
+	            	            .header("Vary", "Accept-Encoding");
+	            	    if(encoding != PatchStreamEncoding.IDENTITY)
+	            	    {
+	            	        builder.header("Content-Encoding", encoding.getContentEncoding());
+	            	    }
+	            	    return builder.build();
 	            	}
 	            	else
 	            	{
@@ -250,11 +532,49 @@ public class CacheServerResource
 	    }
     }
 
+    /*
+     * Strong digests are held as binary throughout the checksum pipeline, they're only hex encoded here.
+     */
+    private ObjectNode toJSON(NodeChecksums checksums)
+    {
+        ObjectNode json = mapper.createObjectNode();
+        json.put("nodeId", checksums.getNodeId());
+        json.put("nodeInternalId", checksums.getNodeInternalId());
+        json.put("nodeVersion", checksums.getNodeVersion());
+        json.put("versionLabel", checksums.getVersionLabel());
+        json.put("blockSize", checksums.getBlockSize());
+        json.put("numBlocks", checksums.getNumBlocks());
+        json.put("algorithm", checksums.getAlgorithm().name());
+
+        ObjectNode checksumsByHash = json.putObject("checksums");
+        ArrayNode checksumsJSON = null;
+        for(int position = 0; position < checksums.size(); position++)
+        {
+            int row = checksums.getRowByHash(position);
+            int hash = checksums.getHash(row);
+            if(position == 0 || checksums.getHash(checksums.getRowByHash(position - 1)) != hash)
+            {
+                checksumsJSON = checksumsByHash.putArray(String.valueOf(hash));
+            }
+
+            ObjectNode checksumJSON = checksumsJSON.addObject();
+            checksumJSON.put("blockIndex", checksums.getBlockIndex(row));
+            checksumJSON.put("start", checksums.getStart(row));
+            checksumJSON.put("end", checksums.getEnd(row));
+            checksumJSON.put("hash", hash);
+            checksumJSON.put("adler32", checksums.getAdler32(row));
+            checksumJSON.put("digest", Digests.toHex(checksums.getDigestHi(row), checksums.getDigestLo(row)));
+        }
+
+        return json;
+    }
+
     @Path("/checksums/{nodeId}/{nodeVersion}")
     @GET
     public Response checksums(
     		@PathParam("nodeId") String nodeId,
     		@PathParam("nodeVersion") Long nodeVersion,
+    		@HeaderParam("Accept") String accept,
             @Auth UserDetails user,
     		@Context final HttpServletResponse httpResponse)
     {
@@ -271,11 +591,28 @@ public class CacheServerResource
                 UserContext.setUser(user);
                 try
                 {
-	            	NodeChecksums checksums = checksumService.getChecksums(nodeId, nodeVersion);
-	            	if(checksums != null)
+	            	final NodeChecksums checksums = checksumService.getChecksums(nodeId, nodeVersion);
+	            	if(checksums != null && accept != null && accept.contains(NodeChecksumsCodec.MEDIA_TYPE))
+	            	{
+	            	    // cache servers get checksums in the compact binary encoding
+	            	    StreamingOutput streamer = new StreamingOutput()
+	            	    {
+	            	        @Override
+	            	        public void write(final OutputStream output) throws IOException, WebApplicationException
+	            	        {
+	            	            NodeChecksumsCodec.write(checksums, output);
+	            	        }
+	            	    };
+	            	    return Response.ok(streamer).type(NodeChecksumsCodec.MEDIA_TYPE)
+	            	            .header("Vary", "Accept")
+	            	            .build();
+	            	}
+	            	else if(checksums != null)
 	            	{
-	            		String json = mapper.writeValueAsString(checksums);
-		                return Response.ok(json).type(MediaType.APPLICATION_JSON).build();
+	            		String json = mapper.writeValueAsString(toJSON(checksums));
+		                return Response.ok(json).type(MediaType.APPLICATION_JSON)
+		                        .header("Vary", "Accept")
+		                        .build();
 	            	}
 	            	else
 	            	{
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver.dropwizard.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class ByteRangeTest
+{
+    private void assertRange(ByteRange range, long start, long end)
+    {
+        assertEquals(start, range.getStart());
+        assertEquals(end, range.getEnd());
+        assertEquals(end - start + 1, range.getLength());
+    }
+
+    private void assertRanges(String header, long size, long... startsAndEnds)
+    {
+        List<ByteRange> ranges = ByteRange.parse(header, size);
+        assertNotNull(header, ranges);
+        assertEquals(header, startsAndEnds.length / 2, ranges.size());
+        for(int i = 0; i < ranges.size(); i++)
+        {
+            assertRange(ranges.get(i), startsAndEnds[2 * i], startsAndEnds[2 * i + 1]);
+        }
+    }
+
+    @Test
+    public void testRanges() throws Exception
+    {
+        assertRanges("bytes=0-99", 1000, 0, 99);
+        assertRanges(" bytes=10-10", 1000, 10, 10);
+        assertRanges("bytes=0-0, 500-599 ,998-", 1000, 0, 0, 500, 599, 998, 999);
+        // in the order requested, overlapping or not
+        assertRanges("bytes=500-599,0-99,50-149", 1000, 500, 599, 0, 99, 50, 149);
+        assertEquals("bytes 500-599/1000", ByteRange.parse("bytes=500-599", 1000).get(0).getContentRange(1000));
+    }
+
+    @Test
+    public void testSuffixRanges() throws Exception
+    {
+        assertRanges("bytes=-100", 1000, 900, 999);
+        assertRanges("bytes=-1", 1000, 999, 999);
+        // longer than the content is all of it
+        assertRanges("bytes=-5000", 1000, 0, 999);
+    }
+
+    @Test
+    public void testOpenEndedRanges() throws Exception
+    {
+        assertRanges("bytes=0-", 1000, 0, 999);
+        assertRanges("bytes=999-", 1000, 999, 999);
+    }
+
+    @Test
+    public void testOverlongRanges() throws Exception
+    {
+        // the end is truncated to the end of the content
+        assertRanges("bytes=900-1999", 1000, 900, 999);
+        assertRanges("bytes=0-" + Long.MAX_VALUE, 1000, 0, 999);
+    }
+
+    @Test
+    public void testIgnored() throws Exception
+    {
+        // the header is ignored (null) rather than unsatisfiable (empty)
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("", 1000));
+        assertNull(ByteRange.parse("items=0-99", 1000));
+        assertNull(ByteRange.parse("bytes=", 1000));
+        assertNull(ByteRange.parse("bytes=100", 1000));
+        assertNull(ByteRange.parse("bytes=-", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+        assertNull(ByteRange.parse("bytes=0-99,x", 1000));
+        assertNull(ByteRange.parse("bytes=--1", 1000));
+        assertNull(ByteRange.parse("bytes=99999999999999999999-", 1000));
+        // reversed ends
+        assertNull(ByteRange.parse("bytes=100-99", 1000));
+        assertNull(ByteRange.parse("bytes=0-99,200-150", 1000));
+    }
+
+    @Test
+    public void testTooManyRanges() throws Exception
+    {
+        StringBuilder sb = new StringBuilder("bytes=0-0");
+        for(int i = 1; i < ByteRange.MAX_RANGES; i++)
+        {
+            sb.append(",").append(i).append("-").append(i);
+        }
+        List<ByteRange> ranges = ByteRange.parse(sb.toString(), 1000);
+        assertNotNull(ranges);
+        assertEquals(ByteRange.MAX_RANGES, ranges.size());
+
+        sb.append(",").append(ByteRange.MAX_RANGES).append("-").append(ByteRange.MAX_RANGES);
+        assertNull(ByteRange.parse(sb.toString(), 1000));
+    }
+
+    @Test
+    public void testUnsatisfiable() throws Exception
+    {
+        // none of the ranges overlap the content
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=1000-1999,5000-6000", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-100", 0).isEmpty());
+
+        // unless some of them do, then the others are dropped
+        assertRanges("bytes=1000-1999,0-9", 1000, 0, 9);
+    }
+}
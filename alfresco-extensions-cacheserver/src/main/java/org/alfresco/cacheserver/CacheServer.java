@@ -7,19 +7,23 @@
  */
 package org.alfresco.cacheserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
-import java.util.List;
-
-import javax.mail.BodyPart;
-import javax.mail.MessagingException;
-import javax.mail.internet.MimeMultipart;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import org.alfresco.cacheserver.content.ContentUpdater;
 import org.alfresco.cacheserver.content.ContentUpdater.OperationType;
 import org.alfresco.cacheserver.dao.WebsocketDAO;
 import org.alfresco.cacheserver.dao.data.Registration;
+import org.alfresco.cacheserver.http.CacheHttpClient;
+import org.alfresco.cacheserver.http.ContentResponse;
+import org.alfresco.cacheserver.peers.CachePeer;
+import org.alfresco.cacheserver.peers.CacheServerRing;
+import org.alfresco.cacheserver.peers.PeerContentReader;
 import org.alfresco.contentstore.AbstractContentStore;
 import org.alfresco.contentstore.ContentReader;
 import org.alfresco.contentstore.dao.ContentDAO;
@@ -29,14 +33,10 @@ import org.alfresco.services.ContentGetter;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.sglover.alfrescoextensions.common.MimeType;
 import org.sglover.alfrescoextensions.common.Node;
-import org.sglover.checksum.Patch;
-
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.client.config.ClientConfig;
-import com.sun.jersey.api.client.config.DefaultClientConfig;
-import com.sun.jersey.api.json.JSONConfiguration;
+import org.sglover.alfrescoextensions.common.scheduler.WorkPriority;
+import org.sglover.alfrescoextensions.common.scheduler.WorkScheduler;
 
 /**
  * 
@@ -53,6 +53,20 @@ public class CacheServer
     private AlfrescoApi alfrescoApi;
     private ContentUpdater contentUpdater;
     private WebsocketDAO webSocketDAO;
+    private WorkScheduler workScheduler;
+    private CacheServerRing cacheServerRing;
+    private CacheHttpClient cacheHttpClient;
+    private String peerUsername;
+    private String peerPassword;
+
+    // if true, content owned by another cache server is passed through from it rather than stored
+    private boolean ownerOnlyStorage = false;
+
+    // if true, a miss waits for the content to be fetched from the repository and returns it
+    private boolean readThrough = true;
+
+    // shared by concurrent misses for the same node version
+    private final ContentFetches fetches = new ContentFetches();
 
     public CacheServer(ContentDAO contentDAO, AbstractContentStore contentStore,
             AlfrescoApi alfrescoApi, ContentGetter localContentGetter,
@@ -67,6 +81,168 @@ public class CacheServer
         this.webSocketDAO = webSocketDAO;
     }
 
+    public void setReadThrough(boolean readThrough)
+    {
+        this.readThrough = readThrough;
+    }
+
+    /**
+     * If set, repository content updates are fetched by the scheduler's fetch stage rather than by the
+     * caller, which is held up while the stage's queue is full.
+     */
+    public void setWorkScheduler(WorkScheduler workScheduler)
+    {
+        this.workScheduler = workScheduler;
+    }
+
+    /**
+     * If set, together with the cache http client, a miss is fetched from the cache server that owns the
+     * node in the ring, if that isn't this one, before falling back to the repository.
+     */
+    public void setCacheServerRing(CacheServerRing cacheServerRing)
+    {
+        this.cacheServerRing = cacheServerRing;
+    }
+
+    public void setCacheHttpClient(CacheHttpClient cacheHttpClient)
+    {
+        this.cacheHttpClient = cacheHttpClient;
+    }
+
+    public void setPeerUsername(String peerUsername)
+    {
+        this.peerUsername = peerUsername;
+    }
+
+    public void setPeerPassword(String peerPassword)
+    {
+        this.peerPassword = peerPassword;
+    }
+
+    /**
+     * If true, only the owner of a node keeps a copy of its content: repository updates of nodes owned
+     * by other cache servers are ignored, and misses for them are passed through from the owner. A
+     * miss that the owner can't serve is still fetched from the repository and stored here.
+     */
+    public void setOwnerOnlyStorage(boolean ownerOnlyStorage)
+    {
+        this.ownerOnlyStorage = ownerOnlyStorage;
+    }
+
+    /*
+     * @return the cache server that owns the node, or null if it's this one or there are no peers
+     */
+    private CachePeer getPeerOwner(String nodeId)
+    {
+        CachePeer owner = null;
+        if (cacheServerRing != null && cacheHttpClient != null)
+        {
+            owner = cacheServerRing.getOwner(nodeId);
+            if (cacheServerRing.isLocal(owner))
+            {
+                owner = null;
+            }
+        }
+        return owner;
+    }
+
+    /*
+     * Gets the node version's content from a peer into a temporary file.
+     *
+     * @return a reader for the content, or null if the peer doesn't have it or can't be reached, in
+     * which case the failure is recorded in the ring
+     */
+    private PeerContentReader fetchFromPeer(CachePeer peer, String nodeId,
+            long nodeVersion) throws IOException
+    {
+        PeerContentReader content = null;
+
+        File file = File.createTempFile("peer", ".bin");
+        try
+        {
+            ContentResponse response = null;
+            try (FileChannel out = FileChannel.open(file.toPath(),
+                    StandardOpenOption.WRITE))
+            {
+                response = cacheHttpClient.getContent(peer.getHostname(),
+                        peer.getPort(), peerUsername, peerPassword, nodeId,
+                        String.valueOf(nodeVersion), out);
+            }
+            cacheServerRing.peerSucceeded(peer);
+
+            if (response != null)
+            {
+                MimeType mimeType = (response.getMimeType() != null
+                        ? MimeType.INSTANCES.get(response.getMimeType()) : null);
+                if (mimeType == null)
+                {
+                    mimeType = MimeType.OCTET_STREAM;
+                }
+                Node node = Node.build().nodeId(nodeId).nodeVersion(nodeVersion)
+                        .mimeType(mimeType);
+                content = new PeerContentReader(node, file, mimeType,
+                        response.getSize());
+            }
+            else
+            {
+                logger.debug("Cache server " + peer + " has no content for "
+                        + nodeId + ";" + nodeVersion);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to get " + nodeId + ";" + nodeVersion
+                    + " from cache server " + peer, e);
+            cacheServerRing.peerFailed(peer);
+        }
+        finally
+        {
+            if (content == null)
+            {
+                file.delete();
+            }
+        }
+
+        return content;
+    }
+
+    /*
+     * @return true if the content was copied from the peer into the local content store
+     */
+    private boolean copyFromPeer(CachePeer peer, String nodeId, long nodeVersion)
+            throws IOException
+    {
+        boolean copied = false;
+
+        PeerContentReader content = fetchFromPeer(peer, nodeId, nodeVersion);
+        if (content != null)
+        {
+            // closing the stream deletes the temporary file
+            try (InputStream in = content.getStream())
+            {
+                contentStore.getWriter(content.getNode()).writeStream(in);
+            }
+            copied = true;
+        }
+
+        return copied;
+    }
+
+    private void updateContent(Node node, String expectedMimeType, Long expectedSize)
+            throws IOException
+    {
+        try
+        {
+            contentUpdater.updateContent(node, OperationType.Async,
+                    OperationType.Async, WorkPriority.BULK, expectedMimeType,
+                    expectedSize);
+        }
+        catch (CmisObjectNotFoundException e)
+        {
+            logger.warn("Node " + node + " not found");
+        }
+    }
+
     public void register(String ipAddress, String username)
     {
         Registration registration = new Registration(ipAddress, username);
@@ -88,18 +264,33 @@ public class CacheServer
                 logger.warn("Ignoring " + node.getNodeId()
                         + " with null nodeVersion");
             }
+            else if (ownerOnlyStorage && getPeerOwner(node.getNodeId()) != null)
+            {
+                logger.debug("Ignoring " + node + ", owned by another cache server");
+            }
+            else if (workScheduler != null)
+            {
+                workScheduler.execute(WorkScheduler.FETCH, WorkPriority.BULK,
+                        new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                try
+                                {
+                                    updateContent(node, expectedMimeType,
+                                            expectedSize);
+                                }
+                                catch (IOException e)
+                                {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                        });
+            }
             else
             {
-                try
-                {
-                    contentUpdater.updateContent(node, OperationType.Async,
-                            OperationType.Async, expectedMimeType,
-                            expectedSize);
-                }
-                catch (CmisObjectNotFoundException e)
-                {
-                    logger.warn("Node " + node + " not found");
-                }
+                updateContent(node, expectedMimeType, expectedSize);
             }
         }
     }
@@ -147,6 +338,8 @@ public class CacheServer
                 {
                     contentStore.remove(contentPath);
                 }
+
+                contentStore.invalidateNode(nodeId);
             }
         }
     }
@@ -211,103 +404,104 @@ public class CacheServer
      * return content; }
      */
 
-    public ContentReader getByNodeId(String nodeId, long nodeVersion,
-            boolean asyncChecksums) throws IOException
+    /*
+     * Fetches the node version's content from the peer, if there is one, or else the repository into
+     * the local content store, unless a fetch of it is already in progress, in which case that fetch
+     * is waited for if waitForFetch is true.
+     */
+    private void fetchContent(final String nodeId, final long nodeVersion,
+            boolean waitForFetch, final CachePeer peer) throws IOException
     {
-        ContentReader content = localContentGetter.getContentByNodeId(nodeId,
-                nodeVersion);
-        if (content == null)
+        String key = nodeId + ";" + nodeVersion;
+        Callable<Void> fetch = new Callable<Void>()
         {
-            try
+            @Override
+            public Void call() throws Exception
             {
+                if (peer != null && copyFromPeer(peer, nodeId, nodeVersion))
+                {
+                    return null;
+                }
+
                 // lazily get the content from the repo
                 String nodePath = alfrescoApi
                         .getPrimaryNodePathForNodeId(nodeId, nodeVersion);
                 Node node = Node.build().nodeId(nodeId).nodeVersion(nodeVersion)
                         .nodePath(nodePath);
+                // a client is waiting for this node, so its work goes ahead of bulk updates
                 contentUpdater.updateContent(node, OperationType.Async,
-                        OperationType.Async, null, null);
+                        OperationType.Async, WorkPriority.INTERACTIVE, null,
+                        null);
+                return null;
             }
-            catch (CmisObjectNotFoundException e)
+        };
+
+        try
+        {
+            fetches.fetch(key, fetch, waitForFetch);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + key, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof CmisObjectNotFoundException)
             {
                 logger.warn(
                         "Node " + nodeId + ";" + nodeVersion + " not found");
             }
+            else if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            else
+            {
+                throw new IOException(cause);
+            }
         }
-
-        return content;
     }
 
-    // private PatchDocument getChecksums(String contentUrl) throws IOException
-    // {
-    // NodeChecksums checksums = checksumService.getChecksums(contentUrl);
-    //
-    // // TODO buf size
-    // FileChannel inChannel = contentStore.getChannel(contentUrl);
-    // ByteBuffer buffer = ByteBuffer.allocate(1024*100);
-    // inChannel.read(buffer);
-    // try
-    // {
-    // PatchDocument patchDoc = checksumService.createPatchDocument(checksums,
-    // buffer);
-    // return patchDoc;
-    // }
-    // finally
-    // {
-    // inChannel.close();
-    // }
-    // }
-    //
-    // public MultiPart getChecksums(String nodeId, String nodeVersion) throws
-    // IOException
-    // {
-    // NodeInfo nodeInfo = contentDAO.getByNodeId(nodeId, nodeVersion, true);
-    // String contentPath = nodeInfo.getContentPath();
-    // PatchDocument patchDocument = getChecksums(contentPath);
-    // MultipartBuilder multipartBuilder = new MultipartBuilder();
-    // for(Patch patch : patchDocument.getPatches())
-    // {
-    // int lastMatchIndex = patch.getLastMatchIndex();
-    // int size = patch.getSize();
-    // InputStream is = new ByteArrayInputStream(patch.getBuffer());
-    // multipartBuilder.add(lastMatchIndex, size, is);
-    // }
-    //
-    // return multipartBuilder.getMultiPart();
-    // }
-
-    public List<Patch> getPatches(String host, int port, String nodeId,
-            long nodeVersion) throws MessagingException, IOException
+    /**
+     * Gets a node version's content from the local content store. On a miss the content is fetched from
+     * the cache server that owns it or, failing that, the repository, once however many requests miss
+     * concurrently. In read through mode the requests wait for the fetch and are served the fetched
+     * content; otherwise null is returned. In owner only storage mode, content owned by another cache
+     * server is passed through from it for each request.
+     */
+    public ContentReader getByNodeId(String nodeId, long nodeVersion,
+            boolean asyncChecksums) throws IOException
     {
-        List<Patch> patches = new LinkedList<>();
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("/patch/");
-        sb.append(nodeId);
-        sb.append("/");
-        sb.append(nodeVersion);
-        String url = sb.toString();
-
-        final ClientConfig config = new DefaultClientConfig();
-        config.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING,
-                Boolean.TRUE);
-        final Client client = Client.create(config);
-
-        final WebResource resource = client.resource(url);
-        final MimeMultipart response = resource.get(MimeMultipart.class);
-
-        // This will iterate the individual parts of the multipart response
-        for (int i = 0; i < response.getCount(); i++)
+        ContentReader content = localContentGetter.getContentByNodeId(nodeId,
+                nodeVersion);
+        CachePeer owner = null;
+        if (content == null)
         {
-            final BodyPart part = response.getBodyPart(i);
-            System.out.printf(
-                    "Embedded Body Part [Mime Type: %s, Length: %s]\n",
-                    part.getContentType(), part.getSize());
-            InputStream in = part.getInputStream();
-            // Patch patch = new Patch();
-            // patches.add(patch);
+            owner = getPeerOwner(nodeId);
+            if (owner != null && ownerOnlyStorage)
+            {
+                content = fetchFromPeer(owner, nodeId, nodeVersion);
+                // if the owner doesn't have it either, get it from the repository
+                owner = null;
+            }
         }
+        if (content == null)
+        {
+            fetchContent(nodeId, nodeVersion, readThrough, owner);
 
-        return patches;
+            if (readThrough)
+            {
+                content = localContentGetter.getContentByNodeId(nodeId,
+                        nodeVersion);
+            }
+        }
+
+        return content;
     }
 }
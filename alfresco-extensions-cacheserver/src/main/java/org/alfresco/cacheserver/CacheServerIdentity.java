@@ -7,12 +7,15 @@
  */
 package org.alfresco.cacheserver;
 
+import org.sglover.alfrescoextensions.common.identity.ServerIdentity;
+
 /**
- * 
+ * A cache server's identity, which is also the server identity of the content store DAOs.
+ *
  * @author sglover
  *
  */
-public interface CacheServerIdentity
+public interface CacheServerIdentity extends ServerIdentity
 {
 	String getHostname();
 	int getPort();
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Content fetches in progress, keyed by node id and version, so that concurrent misses for the same
+ * node version share one fetch. A fetch is forgotten as soon as it completes, whether or not it
+ * succeeded, so later misses start a new one, by which time the content is usually local.
+ *
+ * @author sglover
+ *
+ */
+class ContentFetches
+{
+    private final ConcurrentMap<String, FutureTask<Void>> fetches = new ConcurrentHashMap<>();
+
+    /*
+     * Runs the fetch on the caller's thread, unless a fetch for the key is already in progress, in
+     * which case that one is waited for if waitForFetch is true.
+     *
+     * @throws ExecutionException if the fetch that was run or waited for failed
+     */
+    void fetch(String key, Callable<Void> callable, boolean waitForFetch)
+            throws InterruptedException, ExecutionException
+    {
+        FutureTask<Void> fetch = new FutureTask<>(callable);
+        FutureTask<Void> inProgress = fetches.putIfAbsent(key, fetch);
+        if (inProgress == null)
+        {
+            try
+            {
+                fetch.run();
+            }
+            finally
+            {
+                fetches.remove(key, fetch);
+            }
+        }
+        else if (waitForFetch)
+        {
+            fetch = inProgress;
+        }
+        else
+        {
+            return;
+        }
+
+        fetch.get();
+    }
+
+    boolean isInProgress(String key)
+    {
+        return fetches.containsKey(key);
+    }
+
+    int getNumInProgress()
+    {
+        return fetches.size();
+    }
+}
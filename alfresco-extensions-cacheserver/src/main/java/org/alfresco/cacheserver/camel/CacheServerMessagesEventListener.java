@@ -9,22 +9,26 @@ package org.alfresco.cacheserver.camel;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 import javax.mail.MessagingException;
 
 import org.alfresco.cacheserver.CacheServerIdentity;
 import org.alfresco.cacheserver.content.ContentUpdater;
 import org.alfresco.cacheserver.content.ContentUpdater.OperationType;
+import org.alfresco.cacheserver.events.CacheServerHeartbeatEvent;
 import org.alfresco.cacheserver.events.ContentAvailableEvent;
 import org.alfresco.cacheserver.http.AuthenticationException;
 import org.alfresco.cacheserver.http.CacheHttpClient;
 import org.alfresco.cacheserver.http.HttpCallback;
+import org.alfresco.cacheserver.peers.CacheServerRing;
 import org.alfresco.contentstore.AbstractContentStore;
 import org.alfresco.contentstore.dao.ContentDAO;
 import org.alfresco.contentstore.dao.NodeInfo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sglover.alfrescoextensions.common.Node;
+import org.sglover.checksum.MerkleTree.BlockRange;
 import org.sglover.checksum.NodeChecksums;
 import org.sglover.checksum.PatchDocument;
 import org.sglover.checksum.dao.ChecksumDAO;
@@ -45,6 +49,10 @@ public class CacheServerMessagesEventListener
 	private ContentDAO contentDAO;
 	private AbstractContentStore contentStore;
 	private ContentUpdater contentUpdater;
+	private CacheServerRing cacheServerRing;
+	private boolean ownerOnlyStorage = false;
+	private String peerUsername;
+	private String peerPassword;
 
 	public CacheServerMessagesEventListener(CacheHttpClient cacheHttpClient,
 			CacheServerIdentity cacheServerIdentity, ChecksumDAO checksumsDAO,
@@ -57,9 +65,44 @@ public class CacheServerMessagesEventListener
 		this.contentUpdater = contentUpdater;
 	}
 
+	/**
+	 * The ring is kept up to date with the cache servers that send heartbeats or announce content.
+	 */
+	public void setCacheServerRing(CacheServerRing cacheServerRing)
+	{
+		this.cacheServerRing = cacheServerRing;
+	}
+
+	/**
+	 * If true, content announced by other cache servers is only copied here if this cache server owns it.
+	 */
+	public void setOwnerOnlyStorage(boolean ownerOnlyStorage)
+	{
+		this.ownerOnlyStorage = ownerOnlyStorage;
+	}
+
+	public void setPeerUsername(String peerUsername)
+	{
+		this.peerUsername = peerUsername;
+	}
+
+	public void setPeerPassword(String peerPassword)
+	{
+		this.peerPassword = peerPassword;
+	}
+
 	public void onMessage(Object message) throws IOException, AuthenticationException, MessagingException
 	{
-		if(message instanceof ContentAvailableEvent)
+		if(message instanceof CacheServerHeartbeatEvent)
+		{
+			CacheServerHeartbeatEvent heartbeat = (CacheServerHeartbeatEvent)message;
+			if(cacheServerRing != null)
+			{
+				// the ring ignores this cache server's own heartbeats
+				cacheServerRing.peerSeen(heartbeat.getCacheServerId(), heartbeat.getHostname(), heartbeat.getPort());
+			}
+		}
+		else if(message instanceof ContentAvailableEvent)
 		{
 			final ContentAvailableEvent contentAvailableEvent = (ContentAvailableEvent)message;
 
@@ -73,6 +116,15 @@ public class CacheServerMessagesEventListener
 			final String hostname = contentAvailableEvent.getHostname();
 			final int port = contentAvailableEvent.getPort();
 
+			if(cacheServerRing != null)
+			{
+				cacheServerRing.peerSeen(cacheServerId, hostname, port);
+				if(ownerOnlyStorage && !cacheServerRing.isLocalOwner(node.getNodeId()))
+				{
+					return;
+				}
+			}
+
 			logger.debug("Getting content for node " + node
 					+ " from cache server "
 					+ hostname + ":" + port
@@ -95,19 +147,41 @@ public class CacheServerMessagesEventListener
 					}
 				}
 			};
-			cacheHttpClient.getNodeById(hostname, port, "admin", "admin", node.getNodeId(),
+			cacheHttpClient.getNodeById(hostname, port, peerUsername, peerPassword, node.getNodeId(),
 					node.getVersionLabel(), callback);
 			NodeInfo nodeInfo = contentDAO.getByNodeId(node.getNodeId(), node.getVersionLabel(), true);
 			String contentPath = nodeInfo.getContentPath();
 
-			final NodeChecksums checksums = contentAvailableEvent.getChecksums();
-
-			checksumsDAO.saveChecksums(checksums);
-
 		    String nodeId = contentAvailableEvent.getNode().getNodeId();
 		    long nodeVersion = contentAvailableEvent.getNode().getNodeVersion();
 
-			PatchDocument patchDocument = cacheHttpClient.getPatches(hostname, port, "admin", "admin", 
+			// the event only summarises the checksums, get them if they aren't the ones we have
+			String checksumsDigest = contentAvailableEvent.getChecksumsDigest();
+			NodeChecksums localChecksums = checksumsDAO.getChecksums(nodeId, nodeVersion);
+			NodeChecksums checksums = localChecksums;
+			if(checksumsDigest != null && (checksums == null || !checksumsDigest.equals(checksums.getRootDigest())))
+			{
+				checksums = cacheHttpClient.getChecksums(hostname, port, peerUsername, peerPassword, nodeId, nodeVersion);
+				if(checksums != null)
+				{
+					checksumsDAO.saveChecksums(checksums);
+				}
+			}
+
+			if(localChecksums != null && checksums != null)
+			{
+				// compare the trees top down, only blocks under subtrees that differ need patching
+				List<BlockRange> divergent = localChecksums.getMerkleTree().diff(checksums.getMerkleTree());
+				if(divergent.isEmpty())
+				{
+					logger.debug("Content for node " + node + " is the same as cache server " + cacheServerId + "'s");
+					return;
+				}
+				logger.debug("Blocks " + divergent + " of node " + node + " differ from cache server "
+						+ cacheServerId + "'s");
+			}
+
+			PatchDocument patchDocument = cacheHttpClient.getPatches(hostname, port, peerUsername, peerPassword,
 					nodeId, nodeVersion);
 			contentStore.applyPatch(patchDocument, contentPath);
 		}
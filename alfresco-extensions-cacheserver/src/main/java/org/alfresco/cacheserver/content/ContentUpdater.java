@@ -11,6 +11,7 @@ import java.io.IOException;
 
 import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
 import org.sglover.alfrescoextensions.common.Node;
+import org.sglover.alfrescoextensions.common.scheduler.WorkPriority;
 
 /**
  * 
@@ -27,6 +28,13 @@ public interface ContentUpdater
     void updateContent(Node node, OperationType checksums, OperationType transforms,
             final String expectedMimeType,
             final Long expectedSize) throws IOException, CmisObjectNotFoundException;
+
+    /**
+     * As above, with the checksum, transform and entity work scheduled at the given priority.
+     */
+    void updateContent(Node node, OperationType checksums, OperationType transforms,
+            WorkPriority priority, final String expectedMimeType,
+            final Long expectedSize) throws IOException, CmisObjectNotFoundException;
 //    String updateContent(Node node, boolean asyncChecksums, String expectedMimeType, Long expectedSize)
 //            throws IOException, CmisObjectNotFoundException;
 //    String updateContent(Node node, Content content, boolean asyncChecksums) throws IOException;
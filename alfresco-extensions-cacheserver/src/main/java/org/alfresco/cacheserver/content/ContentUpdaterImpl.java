@@ -10,8 +10,6 @@ package org.alfresco.cacheserver.content;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.alfresco.cacheserver.CacheServer;
 import org.alfresco.cacheserver.messages.MessagesService;
@@ -30,6 +28,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sglover.alfrescoextensions.common.MimeType;
 import org.sglover.alfrescoextensions.common.Node;
+import org.sglover.alfrescoextensions.common.scheduler.WorkPriority;
+import org.sglover.alfrescoextensions.common.scheduler.WorkScheduler;
 import org.sglover.checksum.ChecksumService;
 import org.sglover.checksum.NodeChecksums;
 import org.sglover.entities.EntitiesService;
@@ -47,7 +47,7 @@ public class ContentUpdaterImpl implements ContentUpdater
     private EntitiesService entitiesService;
     private AbstractContentStore contentStore;
     private ContentDAO contentDAO;
-    private ExecutorService executors = Executors.newFixedThreadPool(10);
+    private WorkScheduler workScheduler;
     private MessagesService messagingService;
     private ChecksumService checksumService;
     private TransformService transformService;
@@ -67,6 +67,20 @@ public class ContentUpdaterImpl implements ContentUpdater
         this.transformService = transformService;
     }
 
+    public void setWorkScheduler(WorkScheduler workScheduler)
+    {
+        this.workScheduler = workScheduler;
+    }
+
+    private synchronized WorkScheduler getWorkScheduler()
+    {
+        if(workScheduler == null)
+        {
+            workScheduler = WorkScheduler.withDefaultStages();
+        }
+        return workScheduler;
+    }
+
     private NodeChecksums extractChecksums(final Node node, final ContentReader content, final String contentPath)
     {
         NodeChecksums checksums = checksumService.extractChecksums(node, contentPath);
@@ -75,9 +89,10 @@ public class ContentUpdaterImpl implements ContentUpdater
         return checksums;
     }
 
-    private void extractChecksumsAsync(final Node node, final ContentReader content, final String contentPath)
+    private void extractChecksumsAsync(final Node node, final ContentReader content, final String contentPath,
+            WorkPriority priority)
     {
-        executors.submit(new Runnable()
+        getWorkScheduler().executeOrRun(WorkScheduler.CHECKSUM, priority, new Runnable()
         {
             @Override
             public void run()
@@ -87,10 +102,63 @@ public class ContentUpdaterImpl implements ContentUpdater
         });
     }
 
+    private void transformToTextAsync(final String contentPath, final MimeType mimeType,
+            final TransformationCallback callback, WorkPriority priority)
+    {
+        getWorkScheduler().executeOrRun(WorkScheduler.TRANSFORM, priority, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    transformService.transformToText(contentPath, mimeType, callback);
+                }
+                catch(IOException e)
+                {
+                    callback.onError(null, e);
+                }
+            }
+        });
+    }
+
+    private void getEntitiesAsync(final Node node, WorkPriority priority)
+    {
+        getWorkScheduler().executeOrRun(WorkScheduler.NLP, priority, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    entitiesService.getEntities(node);
+                }
+                catch(Exception e)
+                {
+                    logger.error("Entity extraction failed for " + node, e);
+                }
+            }
+        });
+    }
+
     @Override
     public void updateContent(Node node, OperationType checksums, OperationType transforms,
             final String expectedMimeType,
             final Long expectedSize) throws IOException, CmisObjectNotFoundException
+    {
+        updateContent(node, checksums, transforms, WorkPriority.BULK, expectedMimeType, expectedSize);
+    }
+
+    /**
+     * Asynchronous checksum, transform and entity work is done by the stages of the work scheduler at
+     * the given priority. The stages' queues are bounded, so this blocks while they are full and does
+     * the work on the calling thread if they stay full: the content has been stored by then, so the work
+     * would otherwise be lost.
+     */
+    @Override
+    public void updateContent(Node node, final OperationType checksums, final OperationType transforms,
+            final WorkPriority priority, final String expectedMimeType,
+            final Long expectedSize) throws IOException, CmisObjectNotFoundException
     {
         ContentReader content = remoteContentGetter.getContentByNodeId(node.getNodeId(), node.getVersionLabel());
         if(content != null)
@@ -118,7 +186,7 @@ public class ContentUpdaterImpl implements ContentUpdater
             {
             case Async:
             {
-                extractChecksumsAsync(node, content, contentPath);
+                extractChecksumsAsync(node, content, contentPath, priority);
                 break;
             }
             case Sync:
@@ -163,7 +231,14 @@ public class ContentUpdaterImpl implements ContentUpdater
                             nodeInfo.setPrimary(false);
                             contentDAO.updateNode(nodeInfo);
 
-                            entitiesService.getEntities(node);
+                            if(transforms == OperationType.Async)
+                            {
+                                getEntitiesAsync(node, priority);
+                            }
+                            else
+                            {
+                                entitiesService.getEntities(node);
+                            }
                         }
                     }
                     catch(Exception e)
@@ -185,7 +260,7 @@ public class ContentUpdaterImpl implements ContentUpdater
             {
             case Async:
             {
-                transformService.transformToTextAsync(contentPath, mt, callback);
+                transformToTextAsync(contentPath, mt, callback, priority);
                 break;
             }
             case Sync:
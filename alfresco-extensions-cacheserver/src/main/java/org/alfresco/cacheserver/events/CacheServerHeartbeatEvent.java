@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver.events;
+
+import java.io.Serializable;
+
+/**
+ * Announces periodically that a cache server is live and where it can be reached, so that other
+ * cache servers have it in their rings whether or not it has announced any content.
+ * 
+ * @author sglover
+ *
+ */
+public class CacheServerHeartbeatEvent implements Serializable
+{
+	private static final long serialVersionUID = -3471896275209174329L;
+
+	private String cacheServerId;
+	private String hostname;
+	private int port;
+
+	public CacheServerHeartbeatEvent()
+	{
+	}
+
+	public CacheServerHeartbeatEvent(String cacheServerId, String hostname, int port)
+	{
+		super();
+		this.cacheServerId = cacheServerId;
+		this.hostname = hostname;
+		this.port = port;
+	}
+
+	public String getCacheServerId()
+	{
+		return cacheServerId;
+	}
+
+	public void setCacheServerId(String cacheServerId)
+	{
+		this.cacheServerId = cacheServerId;
+	}
+
+	public String getHostname()
+	{
+		return hostname;
+	}
+
+	public void setHostname(String hostname)
+	{
+		this.hostname = hostname;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public void setPort(int port)
+	{
+		this.port = port;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CacheServerHeartbeatEvent [cacheServerId=" + cacheServerId + ", hostname=" + hostname
+				+ ", port=" + port + "]";
+	}
+}
@@ -10,9 +10,12 @@ package org.alfresco.cacheserver.events;
 import java.io.Serializable;
 
 import org.sglover.alfrescoextensions.common.Node;
-import org.sglover.checksum.NodeChecksums;
 
 /**
+ * Announces that a cache server has a node's content. The block checksums of the content aren't
+ * carried, they can run to megabytes for a large node. Instead the event summarises them, and
+ * consumers that need them and don't have the same ones (by root digest) get them from the
+ * announcing cache server's checksums endpoint.
  * 
  * @author sglover
  *
@@ -27,14 +30,16 @@ public class ContentAvailableEvent implements Serializable
 	private long size;
 	private String hostname;
 	private int port;
-	private NodeChecksums checksums;
+	private int blockSize;
+	private long numBlocks;
+	private String checksumsDigest;
 
 	public ContentAvailableEvent()
 	{
 	}
 
 	public ContentAvailableEvent(String cacheServerId, Node node, String mimeType, long size, String hostname, int port,
-	        NodeChecksums checksums)
+	        int blockSize, long numBlocks, String checksumsDigest)
     {
 	    super();
 	    this.cacheServerId = cacheServerId;
@@ -43,17 +48,42 @@ public class ContentAvailableEvent implements Serializable
 	    this.size = size;
 	    this.hostname = hostname;
 	    this.port = port;
-	    this.checksums = checksums;
+	    this.blockSize = blockSize;
+	    this.numBlocks = numBlocks;
+	    this.checksumsDigest = checksumsDigest;
     }
 
-    public NodeChecksums getChecksums()
+    public int getBlockSize()
     {
-        return checksums;
+        return blockSize;
     }
 
-    public void setChecksums(NodeChecksums checksums)
+    public void setBlockSize(int blockSize)
     {
-        this.checksums = checksums;
+        this.blockSize = blockSize;
+    }
+
+    public long getNumBlocks()
+    {
+        return numBlocks;
+    }
+
+    public void setNumBlocks(long numBlocks)
+    {
+        this.numBlocks = numBlocks;
+    }
+
+    /**
+     * @return the root digest of the content's checksums, see NodeChecksums.getRootDigest
+     */
+    public String getChecksumsDigest()
+    {
+        return checksumsDigest;
+    }
+
+    public void setChecksumsDigest(String checksumsDigest)
+    {
+        this.checksumsDigest = checksumsDigest;
     }
 
     public Node getNode()
@@ -127,6 +157,7 @@ public class ContentAvailableEvent implements Serializable
 	    return "ContentAvailableEvent [cacheServerId=" + cacheServerId
 	            + ", node=" + node
 	            + ", mimeType=" + mimeType + ", size=" + size + ", hostname="
-	            + hostname + ", port=" + port + "]";
+	            + hostname + ", port=" + port + ", blockSize=" + blockSize
+	            + ", numBlocks=" + numBlocks + ", checksumsDigest=" + checksumsDigest + "]";
     }
 }
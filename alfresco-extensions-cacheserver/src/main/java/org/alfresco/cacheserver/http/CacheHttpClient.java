@@ -1,31 +1,48 @@
 /*
  * Copyright 2015 Alfresco Software, Ltd.  All rights reserved.
  *
- * License rights for this program may be obtained from Alfresco Software, Ltd. 
- * pursuant to a written agreement and any use of this program without such an 
- * agreement is prohibited. 
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
  */
 package org.alfresco.cacheserver.http;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
-
-import javax.mail.MessagingException;
-//import javax.mail.MessagingException;
-//import javax.mail.internet.MimeMultipart;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
 import javax.net.ssl.SSLException;
 
 import org.alfresco.contentstore.patch.PatchService;
+import org.alfresco.contentstore.patch.PatchStreamEncoding;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
@@ -44,20 +61,40 @@ import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.sglover.alfrescoextensions.common.Metrics;
+import org.sglover.alfrescoextensions.common.Node;
+import org.sglover.checksum.NodeChecksums;
+import org.sglover.checksum.NodeChecksumsCodec;
 import org.sglover.checksum.PatchDocument;
+import org.sglover.checksum.PatchDocumentImpl;
 
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.client.config.ClientConfig;
-import com.sun.jersey.api.client.config.DefaultClientConfig;
-import com.sun.jersey.api.json.JSONConfiguration;
-import com.sun.jersey.multipart.MultiPart;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
 /**
- * 
+ * Http client for getting content and patches from other cache servers.
+ *
+ * Requests share one client and a pool of keep-alive connections, bounded per cache server, so that
+ * concurrent requests to a cache server reuse its connections rather than connecting for each. The
+ * async methods run requests on the client's executor, so a caller (e.g. a cache server warming from
+ * a peer) can have as many requests in flight as there are pooled connections; requests beyond that
+ * are queued, up to a bound, and wait for a connection.
+ *
+ * Responses are decompressed as usual, except for patches: their Content-Encoding is the patch
+ * stream's framing (which may be LZ4), decoded by the patch service.
+ *
+ * Pool utilisation, connection reuse, request latency and response sizes are recorded in the metric
+ * registry.
+ *
  * @author sglover
  *
  */
@@ -65,15 +102,177 @@ public class CacheHttpClient
 {
     private static final Log logger = LogFactory.getLog(CacheHttpClient.class);
 
+    private static final String API_PATH = "/alfresco/api/-default-/private/alfresco/versions/1";
+
     private PatchService patchService;
 
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private ExecutorService executor;
+
+    private int socketTimeoutMs = 1000;
+    private int connectTimeoutMs = 1000;
+    // how long a request waits for a pooled connection
+    private int connectionRequestTimeoutMs = 30000;
+
+    private MetricRegistry metrics = Metrics.getSharedRegistry();
+    private Timer requests;
+    private Histogram responseBytes;
+    private Counter newConnections;
+    private Counter reusedConnections;
+    private Counter failures;
+
     public CacheHttpClient(PatchService patchService)
+    {
+        this(patchService, 50, 10, 1000);
+    }
+
+    /**
+     * @param maxQueuedRequests the number of async requests that can wait for a thread, beyond which
+     * they are rejected
+     */
+    public CacheHttpClient(PatchService patchService, int maxConnections, int maxConnectionsPerCacheServer,
+            int maxQueuedRequests)
     {
         super();
         this.patchService = patchService;
+
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerCacheServer);
+        this.httpClient = buildHttpClient();
+
+        // a thread per pooled connection, more would only wait for connections
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(maxQueuedRequests), new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "CacheHttpClient-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        threadPool.allowCoreThreadTimeOut(true);
+        this.executor = threadPool;
+
+        registerMetrics();
+    }
+
+    /**
+     * Runs async requests on the given executor, e.g. the work scheduler's fetch stage, rather than the
+     * client's own threads.
+     */
+    public void setExecutorService(ExecutorService executor)
+    {
+        this.executor.shutdown();
+        this.executor = executor;
+    }
+
+    /**
+     * Records the client's metrics in the given registry rather than the shared one.
+     */
+    public void setMetricRegistry(MetricRegistry metrics)
+    {
+        this.metrics = metrics;
+        registerMetrics();
+    }
+
+    public MetricRegistry getMetricRegistry()
+    {
+        return metrics;
+    }
+
+    public void setSocketTimeoutMs(int socketTimeoutMs)
+    {
+        this.socketTimeoutMs = socketTimeoutMs;
+    }
+
+    public void setConnectTimeoutMs(int connectTimeoutMs)
+    {
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    public void setConnectionRequestTimeoutMs(int connectionRequestTimeoutMs)
+    {
+        this.connectionRequestTimeoutMs = connectionRequestTimeoutMs;
+    }
+
+    /**
+     * Registers the gauge, replacing any registered under the same name, e.g. by a client that was
+     * given the same registry. MetricRegistry#register throws if the name is taken.
+     */
+    private void register(String name, Gauge<?> gauge)
+    {
+        metrics.remove(name);
+        metrics.register(name, gauge);
+    }
+
+    private void registerMetrics()
+    {
+        this.requests = metrics.timer(MetricRegistry.name(CacheHttpClient.class, "requests"));
+        this.responseBytes = metrics.histogram(MetricRegistry.name(CacheHttpClient.class, "responseBytes"));
+        this.newConnections = metrics.counter(MetricRegistry.name(CacheHttpClient.class, "newConnections"));
+        this.reusedConnections = metrics.counter(MetricRegistry.name(CacheHttpClient.class, "reusedConnections"));
+        this.failures = metrics.counter(MetricRegistry.name(CacheHttpClient.class, "failures"));
+
+        register(MetricRegistry.name(CacheHttpClient.class, "pool", "leased"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return connectionManager.getTotalStats().getLeased();
+            }
+        });
+        register(MetricRegistry.name(CacheHttpClient.class, "pool", "available"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return connectionManager.getTotalStats().getAvailable();
+            }
+        });
+        register(MetricRegistry.name(CacheHttpClient.class, "pool", "pending"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return connectionManager.getTotalStats().getPending();
+            }
+        });
+        register(MetricRegistry.name(CacheHttpClient.class, "pool", "utilisation"), new Gauge<Double>()
+        {
+            @Override
+            public Double getValue()
+            {
+                PoolStats stats = connectionManager.getTotalStats();
+                return stats.getMax() > 0 ? (double)stats.getLeased() / stats.getMax() : 0.0;
+            }
+        });
     }
 
-    private CloseableHttpClient getHttpClient(HttpHost target, HttpClientContext localContext, String username, String password)
+    public PoolStats getPoolStats()
+    {
+        return connectionManager.getTotalStats();
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        executor.shutdown();
+        try
+        {
+            httpClient.close();
+        }
+        catch(IOException e)
+        {
+            logger.warn("Failed to close http client", e);
+        }
+    }
+
+    private CloseableHttpClient buildHttpClient()
     {
     	ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
 
@@ -92,15 +291,8 @@ public class CacheHttpClient
     	                }
     	            }
     	        }
-    	        HttpHost target = (HttpHost) context.getAttribute(
-    	                HttpClientContext.HTTP_TARGET_HOST);
-    	        if ("www.naughty-server.com".equalsIgnoreCase(target.getHostName())) {
-    	            // Keep alive for 5 seconds only
-    	            return 5 * 1000;
-    	        } else {
-    	            // otherwise keep alive for 30 seconds
-    	            return 30 * 1000;
-    	        }
+    	        // otherwise keep alive for 30 seconds
+    	        return 30 * 1000;
     	    }
 
     	};
@@ -142,195 +334,375 @@ public class CacheHttpClient
             }
         };
 
-    	CredentialsProvider credsProvider = new BasicCredentialsProvider();
-        credsProvider.setCredentials(
-                new AuthScope(target.getHostName(), target.getPort()),
-                new UsernamePasswordCredentials(username, password));
         RequestConfig defaultRequestConfig = RequestConfig.custom()
                 .setCookieSpec(CookieSpecs.DEFAULT)
                 .setExpectContinueEnabled(true)
-//                .setStaleConnectionCheckEnabled(true)
                 .setTargetPreferredAuthSchemes(Arrays.asList(AuthSchemes.BASIC))
                 .setProxyPreferredAuthSchemes(Arrays.asList(AuthSchemes.BASIC))
                 .build();
         CloseableHttpClient httpclient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
         		.setDefaultRequestConfig(defaultRequestConfig)
-                .setDefaultCredentialsProvider(credsProvider)
                 .setKeepAliveStrategy(keepAliveStrategy)
                 .setRetryHandler(retryHandler)
                 .build();
         return httpclient;
     }
 
-    public void getNodeById(String hostname, int port, String username, String password,
-    		String nodeId, String nodeVersion, HttpCallback callback) throws IOException
+    /*
+     * Credentials are per request, the client and its connections are shared by all cache servers.
+     */
+    private HttpClientContext getContext(HttpHost target, String username, String password)
     {
-    	HttpHost target = new HttpHost(hostname, port, "http");
+        CredentialsProvider credsProvider = new BasicCredentialsProvider();
+        credsProvider.setCredentials(
+                new AuthScope(target.getHostName(), target.getPort()),
+                new UsernamePasswordCredentials(username, password));
 
-    	// Create AuthCache instance
+        // pre-emptive basic auth, saves a round trip per request
         AuthCache authCache = new BasicAuthCache();
-        // Generate BASIC scheme object and add it to the local
-        // auth cache
-        BasicScheme basicAuth = new BasicScheme();
-        authCache.put(target, basicAuth);
-        // Add AuthCache to the execution context
+        authCache.put(target, new BasicScheme());
+
         HttpClientContext localContext = HttpClientContext.create();
+        localContext.setCredentialsProvider(credsProvider);
         localContext.setAuthCache(authCache);
+        return localContext;
+    }
 
-    	CloseableHttpClient httpClient = getHttpClient(target, localContext, username, password);
+    private interface ResponseHandler<T>
+    {
+        T handle(HttpResponse response) throws IOException;
+    }
+
+    private <T> T execute(String hostname, int port, String username, String password, HttpGet httpGet,
+            ResponseHandler<T> handler) throws IOException
+    {
+        return execute(hostname, port, username, password, httpGet, true, handler);
+    }
+
+    /**
+     * @param decompress whether to decode the response's Content-Encoding, false to pass the body on
+     * as it was sent
+     */
+    private <T> T execute(String hostname, int port, String username, String password, HttpGet httpGet,
+            boolean decompress, ResponseHandler<T> handler) throws IOException
+    {
+        HttpHost target = new HttpHost(hostname, port, "http");
+        HttpClientContext localContext = getContext(target, username, password);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setSocketTimeout(socketTimeoutMs)
+                .setConnectTimeout(connectTimeoutMs)
+                .setConnectionRequestTimeout(connectionRequestTimeoutMs)
+                .setDecompressionEnabled(decompress)
+                .build();
+        httpGet.setConfig(requestConfig);
+
+        logger.debug("Executing request " + httpGet.getRequestLine());
+
+        Timer.Context timer = requests.time();
         try
         {
-            RequestConfig requestConfig = RequestConfig.custom()
-                    .setSocketTimeout(1000)
-                    .setConnectTimeout(1000)
-                    .build();
-
-    		String uri = "http://"
-    				+ hostname
-    				+ ":"
-    				+ port
-    				+ "/alfresco/api/-default-/private/alfresco/versions/1/contentByNodeId/"
-    				+ nodeId
-    				+ "/"
-    				+ nodeVersion;
-            HttpGet httpGet = new HttpGet(uri);
-            httpGet.setHeader("Content-Type", "text/plain");
-            httpGet.setConfig(requestConfig);
-
-
-
-            System.out.println("Executing request " + httpGet.getRequestLine());
             CloseableHttpResponse response = httpClient.execute(target, httpGet, localContext);
             try
             {
-            	callback.execute(response.getEntity().getContent());
-//                EntityUtils.consume(response.getEntity());
-            } 
+                recordConnection(localContext);
+                return handler.handle(response);
+            }
             finally
             {
+                // the connection goes back to the pool if the response was read to the end, otherwise
+                // it's closed
                 response.close();
             }
         }
-        finally 
+        catch(IOException | RuntimeException e)
         {
-            httpClient.close();
+            failures.inc();
+            throw e;
+        }
+        finally
+        {
+            timer.stop();
         }
     }
 
-/*    public List<Patch> getPatches(String hostname, int port, String username, String password,
-    		String nodeId, long nodeVersion, HttpCallback callback) throws IOException, MessagingException
+    private void recordConnection(HttpClientContext localContext)
     {
-		final ClientConfig config = new DefaultClientConfig();
-		config.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING,
-				Boolean.TRUE);
-		final Client client = Client.create(config);
-		client.addFilter(new HTTPBasicAuthFilter(username, password));
-
-		String uri = "http://"
-				+ hostname
-				+ ":"
-				+ port
-				+ "/alfresco/api/-default-/private/alfresco/versions/1/patch/"
-				+ nodeId
-				+ "/"
-				+ nodeVersion;
-
-		List<Patch> patches = new LinkedList<>();
-
-		final WebResource resource = client.resource(uri);
-
-//		final HttpEntity response = resource.get(HttpEntity.class);
-
-//		EntityUtils.
-		final MimeMultipart response = resource.get(MimeMultipart.class);
-		// This will iterate the individual parts of the multipart response
-		for (int i = 0; i < response.getCount(); i++)
-		{
-		    final BodyPart part = response.getBodyPart(i);
-
-			int lastMatchIndex = (Integer)part.getContent();
-			int size = (Integer)part.getContent();
-			InputStream is = part.getInputStream();
-			Patch patch = new Patch(lastMatchIndex, size, is);
-			patches.add(patch);
-
-//		    System.out.printf(
-//		            "Embedded Body Part [Mime Type: %s, Length: %s]\n",
-//		            part.getContentType(), part.getSize());
-		}
-
-		return patches;
-
-//    	HttpHost target = new HttpHost(hostname, port, "http");
-//
-//    	// Create AuthCache instance
-//        AuthCache authCache = new BasicAuthCache();
-//        // Generate BASIC scheme object and add it to the local
-//        // auth cache
-//        BasicScheme basicAuth = new BasicScheme();
-//        authCache.put(target, basicAuth);
-//        // Add AuthCache to the execution context
-//        HttpClientContext localContext = HttpClientContext.create();
-//        localContext.setAuthCache(authCache);
-//
-//    	CloseableHttpClient httpClient = getHttpClient(target, localContext, username, password);
-//        try
-//        {
-//            RequestConfig requestConfig = RequestConfig.custom()
-//                    .setSocketTimeout(1000)
-//                    .setConnectTimeout(1000)
-//                    .build();
-//
-//    		String uri = "http://"
-//    				+ hostname
-//    				+ ":"
-//    				+ port
-//    				+ "/alfresco/api/-default-/private/alfresco/versions/1/patch/"
-//    				+ nodeId
-//    				+ "/"
-//    				+ nodeVersion;
-//            HttpGet httpGet = new HttpGet(uri);
-//            httpGet.setHeader("Content-Type", "text/plain");
-//            httpGet.setConfig(requestConfig);
-//
-//            System.out.println("Executing request " + httpGet.getRequestLine());
-//            CloseableHttpResponse response = httpClient.execute(target, httpGet, localContext);
-//            try
-//            {
-//            	callback.execute(response.getEntity().getContent());
-////                EntityUtils.consume(response.getEntity());
-//            } 
-//            finally
-//            {
-//                response.close();
-//            }
-//        }
-//        finally 
-//        {
-//            httpClient.close();
-//        }
-    }*/
+        try
+        {
+            HttpConnection connection = localContext.getConnection();
+            if(connection != null)
+            {
+                // this request is counted, so more than one means the connection has been used before
+                if(connection.getMetrics().getRequestCount() > 1)
+                {
+                    reusedConnections.inc();
+                }
+                else
+                {
+                    newConnections.inc();
+                }
+            }
+        }
+        catch(RuntimeException e)
+        {
+            // the connection has already been released
+        }
+    }
+
+    private HttpGet contentRequest(String nodeId, String nodeVersion, String hostname, int port)
+    {
+        String uri = "http://"
+                + hostname
+                + ":"
+                + port
+                + API_PATH
+                + "/contentByNodeId/"
+                + nodeId
+                + "/"
+                + nodeVersion;
+        HttpGet httpGet = new HttpGet(uri);
+        httpGet.setHeader("Content-Type", "text/plain");
+        return httpGet;
+    }
+
+    public void getNodeById(String hostname, int port, String username, String password,
+    		String nodeId, String nodeVersion, final HttpCallback callback) throws IOException
+    {
+        HttpGet httpGet = contentRequest(nodeId, nodeVersion, hostname, port);
+        execute(hostname, port, username, password, httpGet, new ResponseHandler<Void>()
+        {
+            @Override
+            public Void handle(HttpResponse response) throws IOException
+            {
+                HttpEntity entity = response.getEntity();
+                if(entity != null)
+                {
+                    responseBytes.update(entity.getContentLength());
+                    callback.execute(entity.getContent());
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Streams the node version's content from a cache server to out.
+     *
+     * @return the number of bytes written, or -1 if the cache server has no content for the node version
+     */
+    public long getNodeById(String hostname, int port, String username, String password,
+            String nodeId, String nodeVersion, WritableByteChannel out) throws IOException
+    {
+        ContentResponse content = getContent(hostname, port, username, password, nodeId, nodeVersion, out);
+        return (content != null ? content.getSize() : -1l);
+    }
+
+    /**
+     * Streams the node version's content from a cache server to out.
+     *
+     * @return the content's mime type and size, or null if the cache server has no content for the
+     * node version
+     */
+    public ContentResponse getContent(String hostname, int port, String username, String password,
+            final String nodeId, final String nodeVersion, final WritableByteChannel out) throws IOException
+    {
+        HttpGet httpGet = contentRequest(nodeId, nodeVersion, hostname, port);
+        return execute(hostname, port, username, password, httpGet, new ResponseHandler<ContentResponse>()
+        {
+            @Override
+            public ContentResponse handle(HttpResponse response) throws IOException
+            {
+                int status = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+                if(status == HttpStatus.SC_OK && entity != null)
+                {
+                    long total = 0;
+                    try(ReadableByteChannel in = Channels.newChannel(entity.getContent()))
+                    {
+                        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                        while(in.read(buffer) != -1)
+                        {
+                            buffer.flip();
+                            while(buffer.hasRemaining())
+                            {
+                                total += out.write(buffer);
+                            }
+                            buffer.clear();
+                        }
+                    }
+                    responseBytes.update(total);
+
+                    String mimeType = null;
+                    Header contentType = entity.getContentType();
+                    if(contentType != null)
+                    {
+                        mimeType = contentType.getValue().split(";")[0].trim();
+                    }
+                    return new ContentResponse(mimeType, total);
+                }
+                else if(status == HttpStatus.SC_NO_CONTENT || status == HttpStatus.SC_NOT_FOUND)
+                {
+                    EntityUtils.consume(entity);
+                    return null;
+                }
+                else
+                {
+                    throw new IOException("Getting content for node " + nodeId + ";" + nodeVersion
+                            + " from " + hostname + ":" + port + " failed: " + response.getStatusLine());
+                }
+            }
+        });
+    }
+
+    /**
+     * As getNodeById, on the client's executor. Out is written to by the executor's thread.
+     *
+     * @throws RejectedExecutionException if too many async requests are queued
+     */
+    public Future<Long> getNodeByIdAsync(final String hostname, final int port, final String username,
+            final String password, final String nodeId, final String nodeVersion, final WritableByteChannel out)
+    {
+        return executor.submit(new Callable<Long>()
+        {
+            @Override
+            public Long call() throws Exception
+            {
+                return getNodeById(hostname, port, username, password, nodeId, nodeVersion, out);
+            }
+        });
+    }
 
 	public PatchDocument getPatches(String hostname, int port, String username, String password,
-			String nodeId, long nodeVersion) throws MessagingException, IOException
+			String nodeId, long nodeVersion) throws IOException
+	{
+		PatchDocumentImpl patchDocument = new PatchDocumentImpl();
+		patchDocument.setNode(Node.build().nodeId(nodeId).nodeVersion(nodeVersion));
+		getPatches(hostname, port, username, password, nodeId, nodeVersion, patchDocument);
+		return patchDocument;
+	}
+
+	/**
+	 * Reads the patch for the node version from another cache server into patchDocument as it is
+	 * streamed, so the patch document can apply it as it arrives rather than holding all of it.
+	 */
+	public void getPatches(final String hostname, final int port, String username, String password,
+			final String nodeId, final long nodeVersion, final PatchDocument patchDocument) throws IOException
 	{
 		StringBuilder sb = new StringBuilder("http://");
 		sb.append(hostname);
 		sb.append(":");
 		sb.append(port);
-		sb.append("/alfresco/api/-default-/private/alfresco/versions/1/patch/");
+		sb.append(API_PATH);
+		sb.append("/patch/");
 		sb.append(nodeId);
 		sb.append("/");
 		sb.append(nodeVersion);
-		String url = sb.toString();
+		HttpGet httpGet = new HttpGet(sb.toString());
+		httpGet.setHeader("Accept", "application/x-protobuf");
+		httpGet.setHeader("Accept-Encoding", PatchStreamEncoding.LZ4.getContentEncoding() + ", "
+				+ PatchStreamEncoding.GZIP.getContentEncoding());
 
-		final ClientConfig config = new DefaultClientConfig();
-		config.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING,
-				Boolean.TRUE);
-		final Client client = Client.create(config);
+		// the patch stream's framing is decoded by the patch service
+		execute(hostname, port, username, password, httpGet, false, new ResponseHandler<Void>()
+		{
+			@Override
+			public Void handle(HttpResponse response) throws IOException
+			{
+				int status = response.getStatusLine().getStatusCode();
+				HttpEntity entity = response.getEntity();
+				if(status == HttpStatus.SC_OK && entity != null)
+				{
+					Header contentEncoding = response.getFirstHeader("Content-Encoding");
+					PatchStreamEncoding encoding = PatchStreamEncoding.fromContentEncoding(
+							contentEncoding != null ? contentEncoding.getValue() : null);
+					try(InputStream in = entity.getContent())
+					{
+						patchService.readPatchStream(in, encoding, patchDocument);
+					}
+				}
+				else if(status == HttpStatus.SC_NO_CONTENT)
+				{
+					EntityUtils.consume(entity);
+					logger.debug("No patch for node " + nodeId + ";" + nodeVersion + " from " + hostname + ":" + port);
+				}
+				else
+				{
+					throw new IOException("Getting patch for node " + nodeId + ";" + nodeVersion + " from "
+							+ hostname + ":" + port + " failed: " + response.getStatusLine());
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Gets the block checksums of a node version from another cache server, in their compact binary
+	 * encoding.
+	 *
+	 * @return the checksums, or null if the cache server has none for the node version
+	 */
+	public NodeChecksums getChecksums(final String hostname, final int port, String username, String password,
+			final String nodeId, final long nodeVersion) throws IOException
+	{
+		StringBuilder sb = new StringBuilder("http://");
+		sb.append(hostname);
+		sb.append(":");
+		sb.append(port);
+		sb.append(API_PATH);
+		sb.append("/checksums/");
+		sb.append(nodeId);
+		sb.append("/");
+		sb.append(nodeVersion);
+		HttpGet httpGet = new HttpGet(sb.toString());
+		httpGet.setHeader("Accept", NodeChecksumsCodec.MEDIA_TYPE);
 
-		final WebResource resource = client.resource(url);
-		final MultiPart response = resource.get(MultiPart.class);
-		return patchService.getPatch(response);
+		return execute(hostname, port, username, password, httpGet, new ResponseHandler<NodeChecksums>()
+		{
+			@Override
+			public NodeChecksums handle(HttpResponse response) throws IOException
+			{
+				NodeChecksums checksums = null;
+				int status = response.getStatusLine().getStatusCode();
+				HttpEntity entity = response.getEntity();
+				if(status == HttpStatus.SC_OK && entity != null)
+				{
+					try(InputStream in = entity.getContent())
+					{
+						checksums = NodeChecksumsCodec.read(in);
+					}
+				}
+				else if(status == HttpStatus.SC_NO_CONTENT || status == HttpStatus.SC_NOT_FOUND)
+				{
+					EntityUtils.consume(entity);
+				}
+				else
+				{
+					throw new IOException("Getting checksums for node " + nodeId + ";" + nodeVersion + " from "
+							+ hostname + ":" + port + " failed: " + response.getStatusLine());
+				}
+				return checksums;
+			}
+		});
 	}
+
+    /**
+     * As getPatches, on the client's executor. The patch document is added to by the executor's thread.
+     *
+     * @throws RejectedExecutionException if too many async requests are queued
+     */
+    public Future<PatchDocument> getPatchesAsync(final String hostname, final int port, final String username,
+            final String password, final String nodeId, final long nodeVersion, final PatchDocument patchDocument)
+    {
+        return executor.submit(new Callable<PatchDocument>()
+        {
+            @Override
+            public PatchDocument call() throws Exception
+            {
+                getPatches(hostname, port, username, password, nodeId, nodeVersion, patchDocument);
+                return patchDocument;
+            }
+        });
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver.http;
+
+/**
+ * What a cache server said about the content it sent.
+ *
+ * @author sglover
+ *
+ */
+public class ContentResponse
+{
+    private final String mimeType;
+    private final long size;
+
+    public ContentResponse(String mimeType, long size)
+    {
+        this.mimeType = mimeType;
+        this.size = size;
+    }
+
+    /**
+     * @return the content's mime type without parameters, or null if the cache server didn't say
+     */
+    public String getMimeType()
+    {
+        return mimeType;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+}
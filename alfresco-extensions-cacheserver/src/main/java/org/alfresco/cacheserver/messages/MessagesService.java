@@ -19,5 +19,6 @@ public interface MessagesService
 {
 	void sendContentAvailableMessage(Node node, String mimeType,
 			long size, String contentPath, NodeChecksums checksums);
+	void sendHeartbeatMessage();
 //	void sendChecksumsAvailableMessage(String contentUrl, NodeChecksums checksums);
 }
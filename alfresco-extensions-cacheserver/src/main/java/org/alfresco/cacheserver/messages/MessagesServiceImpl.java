@@ -8,6 +8,7 @@
 package org.alfresco.cacheserver.messages;
 
 import org.alfresco.cacheserver.CacheServerIdentity;
+import org.alfresco.cacheserver.events.CacheServerHeartbeatEvent;
 import org.alfresco.cacheserver.events.ContentAvailableEvent;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,8 +43,26 @@ public class MessagesServiceImpl implements MessagesService
 			String cacheServerId = cacheServerIdentity.getId();
 			String hostname = cacheServerIdentity.getHostname();
 			int port = cacheServerIdentity.getPort();
-			ContentAvailableEvent event = new ContentAvailableEvent(cacheServerId, node,
-					mimeType, size, hostname, port, checksums);
+			// a summary of the checksums rather than the checksums, which consumers get if they need them
+			ContentAvailableEvent event = (checksums != null
+					? new ContentAvailableEvent(cacheServerId, node, mimeType, size, hostname, port,
+							checksums.getBlockSize(), checksums.getNumBlocks(), checksums.getRootDigest())
+					: new ContentAvailableEvent(cacheServerId, node, mimeType, size, hostname, port,
+							0, 0, null));
+
+			logger.debug("Sending event: " + event);
+
+			messageProducer.send(event);
+		}
+	}
+
+	@Override
+	public void sendHeartbeatMessage()
+	{
+		if(messageProducer != null)
+		{
+			CacheServerHeartbeatEvent event = new CacheServerHeartbeatEvent(cacheServerIdentity.getId(),
+					cacheServerIdentity.getHostname(), cacheServerIdentity.getPort());
 
 			logger.debug("Sending event: " + event);
 
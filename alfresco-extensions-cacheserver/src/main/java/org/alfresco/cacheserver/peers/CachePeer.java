@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver.peers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache server in the ring, as last announced.
+ *
+ * @author sglover
+ *
+ */
+public class CachePeer
+{
+    private final String id;
+    private final String hostname;
+    private final int port;
+    private volatile long lastSeen;
+    // consecutive failed fetches
+    private final AtomicInteger failures = new AtomicInteger(0);
+
+    public CachePeer(String id, String hostname, int port, long lastSeen)
+    {
+        this.id = id;
+        this.hostname = hostname;
+        this.port = port;
+        this.lastSeen = lastSeen;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public String getHostname()
+    {
+        return hostname;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public long getLastSeen()
+    {
+        return lastSeen;
+    }
+
+    void seen(long time)
+    {
+        this.lastSeen = Math.max(lastSeen, time);
+    }
+
+    int getFailures()
+    {
+        return failures.get();
+    }
+
+    int failed()
+    {
+        return failures.incrementAndGet();
+    }
+
+    void succeeded()
+    {
+        failures.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CachePeer [id=" + id + ", hostname=" + hostname + ", port=" + port
+                + ", lastSeen=" + lastSeen + "]";
+    }
+}
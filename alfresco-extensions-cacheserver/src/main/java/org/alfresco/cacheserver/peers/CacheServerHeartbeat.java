@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver.peers;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.cacheserver.messages.MessagesService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sends this cache server's heartbeat every interval, starting as soon as it is started, so that the
+ * other cache servers add it to their rings and keep it there whether or not it announces content.
+ * The interval should be well under the rings' peer ttl.
+ *
+ * @author sglover
+ *
+ */
+public class CacheServerHeartbeat
+{
+    private static Log logger = LogFactory.getLog(CacheServerHeartbeat.class);
+
+    private final MessagesService messagesService;
+    private long intervalMs = 60 * 1000;
+    private ScheduledExecutorService scheduler;
+
+    public CacheServerHeartbeat(MessagesService messagesService)
+    {
+        this.messagesService = messagesService;
+    }
+
+    public void setIntervalMs(long intervalMs)
+    {
+        this.intervalMs = intervalMs;
+    }
+
+    public void start()
+    {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "CacheServerHeartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    messagesService.sendHeartbeatMessage();
+                }
+                catch(Exception e)
+                {
+                    // keep beating, a failure would otherwise cancel the schedule
+                    logger.warn("Failed to send heartbeat", e);
+                }
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown()
+    {
+        if(scheduler != null)
+        {
+            scheduler.shutdownNow();
+        }
+    }
+}
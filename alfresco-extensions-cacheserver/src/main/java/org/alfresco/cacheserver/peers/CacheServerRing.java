@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver.peers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.alfresco.cacheserver.CacheServerIdentity;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A consistent hash ring of the live cache servers, this one included, that says which of them owns
+ * a node's content. Cache servers join the ring when they are seen to send a heartbeat (see
+ * {@link CacheServerHeartbeat}) or announce content and leave it when they haven't been seen for the
+ * peer ttl, or when a number of fetches from them in a row fail, so that each
+ * server's view converges on the same owners without any coordination. Each server is placed on the
+ * ring at a number of virtual points so that nodes are spread evenly, and only about 1/n of the nodes
+ * change owner when a server joins or leaves.
+ *
+ * @author sglover
+ *
+ */
+public class CacheServerRing
+{
+    private static Log logger = LogFactory.getLog(CacheServerRing.class);
+
+    private final CachePeer local;
+    private final Map<String, CachePeer> peers = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, String> ring = new ConcurrentSkipListMap<>();
+
+    private int virtualNodes = 64;
+    private long peerTtlMs = 3 * 60 * 1000;
+    private int maxPeerFailures = 3;
+
+    public CacheServerRing(CacheServerIdentity cacheServerIdentity)
+    {
+        this.local = new CachePeer(cacheServerIdentity.getId(), cacheServerIdentity.getHostname(),
+                cacheServerIdentity.getPort(), Long.MAX_VALUE);
+        add(local);
+    }
+
+    /**
+     * Should be the same for all cache servers, otherwise they will disagree about owners.
+     */
+    public synchronized void setVirtualNodes(int virtualNodes)
+    {
+        if(virtualNodes < 1)
+        {
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        }
+        for(CachePeer peer : peers.values())
+        {
+            unplace(peer.getId());
+        }
+        this.virtualNodes = virtualNodes;
+        for(CachePeer peer : peers.values())
+        {
+            place(peer.getId());
+        }
+    }
+
+    /**
+     * How long a cache server stays in the ring after it was last seen. This should be a few heartbeat
+     * intervals, so that a cache server isn't dropped for one late heartbeat.
+     */
+    public void setPeerTtlMs(long peerTtlMs)
+    {
+        this.peerTtlMs = peerTtlMs;
+    }
+
+    /**
+     * How many fetches from a cache server in a row must fail before it's taken out of the ring, so
+     * that one timeout or reset connection doesn't move its nodes to other servers.
+     */
+    public void setMaxPeerFailures(int maxPeerFailures)
+    {
+        if(maxPeerFailures < 1)
+        {
+            throw new IllegalArgumentException("maxPeerFailures must be at least 1");
+        }
+        this.maxPeerFailures = maxPeerFailures;
+    }
+
+    // not static so that tests can force collisions
+    long hash(String key)
+    {
+        try
+        {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for(int i = 0; i < 8; i++)
+            {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void place(String id)
+    {
+        for(int i = 0; i < virtualNodes; i++)
+        {
+            // on a collision the lower id wins, so every server places the same one
+            long point = hash(id + "#" + i);
+            String existing = ring.get(point);
+            if(existing == null || id.compareTo(existing) < 0)
+            {
+                ring.put(point, id);
+            }
+        }
+    }
+
+    private void unplace(String id)
+    {
+        for(int i = 0; i < virtualNodes; i++)
+        {
+            ring.remove(hash(id + "#" + i), id);
+        }
+    }
+
+    private synchronized void add(CachePeer peer)
+    {
+        CachePeer existing = peers.put(peer.getId(), peer);
+        if(existing == null)
+        {
+            place(peer.getId());
+            logger.info("Cache server " + peer + " joined the ring");
+        }
+    }
+
+    private synchronized void remove(CachePeer peer, String reason)
+    {
+        if(peer != local && peers.remove(peer.getId(), peer))
+        {
+            unplace(peer.getId());
+            // put back any of the remaining servers' points that collided with the removed server's
+            for(String id : peers.keySet())
+            {
+                place(id);
+            }
+            logger.info("Cache server " + peer + " left the ring, " + reason);
+        }
+    }
+
+    /**
+     * Records that a cache server is live, adding it to the ring if it isn't already there.
+     */
+    public void peerSeen(String id, String hostname, int port)
+    {
+        if(id == null || id.equals(local.getId()))
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        CachePeer peer = peers.get(id);
+        if(peer != null && peer.getHostname().equals(hostname) && peer.getPort() == port)
+        {
+            peer.seen(now);
+        }
+        else
+        {
+            // new, or its address has changed
+            add(new CachePeer(id, hostname, port, now));
+        }
+    }
+
+    /**
+     * Records that a fetch from a cache server failed. Once maxPeerFailures fetches in a row have failed
+     * it is taken out of the ring, it rejoins the next time it is seen.
+     */
+    public void peerFailed(CachePeer peer)
+    {
+        int failures = peer.failed();
+        if(failures >= maxPeerFailures)
+        {
+            remove(peer, "after " + failures + " failed fetches");
+        }
+        else
+        {
+            logger.debug("Fetch from cache server " + peer + " failed, " + failures + " of " + maxPeerFailures);
+        }
+    }
+
+    /**
+     * Records that a fetch from a cache server succeeded, resetting its failures.
+     */
+    public void peerSucceeded(CachePeer peer)
+    {
+        peer.succeeded();
+    }
+
+    /**
+     * Removes the cache servers that haven't been seen for the peer ttl.
+     */
+    public void expire()
+    {
+        long cutoff = System.currentTimeMillis() - peerTtlMs;
+        for(CachePeer peer : peers.values())
+        {
+            if(peer.getLastSeen() < cutoff)
+            {
+                remove(peer, "not seen since " + peer.getLastSeen());
+            }
+        }
+    }
+
+    /**
+     * @return the cache server that owns the node's content, this one if there are no others
+     */
+    public CachePeer getOwner(String nodeId)
+    {
+        expire();
+
+        long point = hash(nodeId);
+        while(true)
+        {
+            Map.Entry<Long, String> entry = ring.ceilingEntry(point);
+            if(entry == null)
+            {
+                entry = ring.firstEntry();
+            }
+            // the local server's points are always in the ring
+            CachePeer owner = peers.get(entry.getValue());
+            if(owner != null)
+            {
+                return owner;
+            }
+            // removed since it was looked up, try again
+        }
+    }
+
+    public boolean isLocal(CachePeer peer)
+    {
+        return peer == local;
+    }
+
+    public boolean isLocalOwner(String nodeId)
+    {
+        return isLocal(getOwner(nodeId));
+    }
+
+    public CachePeer getLocal()
+    {
+        return local;
+    }
+
+    public List<CachePeer> getPeers()
+    {
+        expire();
+        return new ArrayList<>(peers.values());
+    }
+}
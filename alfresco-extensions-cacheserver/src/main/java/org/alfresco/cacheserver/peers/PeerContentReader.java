@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver.peers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.alfresco.contentstore.AbstractContentReader;
+import org.alfresco.contentstore.ContentStore;
+import org.sglover.alfrescoextensions.common.MimeType;
+import org.sglover.alfrescoextensions.common.Node;
+
+/**
+ * Reads content fetched from the cache server that owns it, which isn't kept in this server's content
+ * store. The content can be read once, after which its temporary file is deleted.
+ *
+ * @author sglover
+ *
+ */
+public class PeerContentReader extends AbstractContentReader
+{
+    private final File file;
+    private final MimeType mimeType;
+    private final long size;
+
+    public PeerContentReader(Node node, File file, MimeType mimeType, long size)
+    {
+        super(node);
+        this.file = file;
+        this.mimeType = mimeType;
+        this.size = size;
+    }
+
+    @Override
+    public ContentStore getStore()
+    {
+        return null;
+    }
+
+    @Override
+    public ReadableByteChannel getChannel() throws IOException
+    {
+        // seekable, so ranges can be served from it
+        return Files.newByteChannel(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    @Override
+    public InputStream getStream() throws IOException
+    {
+        return Channels.newInputStream(getChannel());
+    }
+
+    @Override
+    public Reader getReader() throws IOException
+    {
+        return new InputStreamReader(getStream(), "UTF-8");
+    }
+
+    @Override
+    public MimeType getMimeType()
+    {
+        return mimeType;
+    }
+
+    @Override
+    public Long getSize()
+    {
+        return size;
+    }
+}
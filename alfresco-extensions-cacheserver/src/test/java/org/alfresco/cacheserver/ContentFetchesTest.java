@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class ContentFetchesTest
+{
+    private static final String KEY = "node1;1";
+
+    private ContentFetches fetches;
+    // the number of updateContent calls
+    private AtomicInteger numUpdates;
+    private CountDownLatch release;
+    private volatile Exception failure;
+
+    @Before
+    public void before()
+    {
+        this.fetches = new ContentFetches();
+        this.numUpdates = new AtomicInteger(0);
+        this.release = new CountDownLatch(1);
+        this.failure = null;
+    }
+
+    private Callable<Void> updateContent()
+    {
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                numUpdates.incrementAndGet();
+                release.await(10, TimeUnit.SECONDS);
+                if(failure != null)
+                {
+                    throw failure;
+                }
+                return null;
+            }
+        };
+    }
+
+    private class Miss extends Thread
+    {
+        private final String key;
+        private final boolean waitForFetch;
+        private volatile Throwable error;
+        private volatile boolean done;
+
+        Miss(String key, boolean waitForFetch)
+        {
+            this.key = key;
+            this.waitForFetch = waitForFetch;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                fetches.fetch(key, updateContent(), waitForFetch);
+            }
+            catch(ExecutionException e)
+            {
+                error = e.getCause();
+            }
+            catch(InterruptedException e)
+            {
+                error = e;
+            }
+            done = true;
+        }
+    }
+
+    private void waitUntilBlocked(Thread thread) throws InterruptedException
+    {
+        for(int i = 0; i < 500 && thread.getState() != Thread.State.WAITING
+                && thread.getState() != Thread.State.TIMED_WAITING; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(thread.isAlive());
+    }
+
+    // one miss fetching, the others waiting for it
+    private List<Miss> concurrentMisses(int numMisses) throws InterruptedException
+    {
+        List<Miss> misses = new ArrayList<>();
+        for(int i = 0; i < numMisses; i++)
+        {
+            Miss miss = new Miss(KEY, true);
+            miss.start();
+            waitUntilBlocked(miss);
+            assertTrue(fetches.isInProgress(KEY));
+            misses.add(miss);
+        }
+        return misses;
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneFetch() throws Exception
+    {
+        List<Miss> misses = concurrentMisses(8);
+        assertEquals(1, numUpdates.get());
+
+        release.countDown();
+        for(Miss miss : misses)
+        {
+            miss.join(5000);
+            assertTrue(miss.done);
+            assertEquals(null, miss.error);
+        }
+        assertEquals(1, numUpdates.get());
+
+        // the fetch is forgotten once it's done, a later miss fetches again
+        assertFalse(fetches.isInProgress(KEY));
+        assertEquals(0, fetches.getNumInProgress());
+        fetches.fetch(KEY, updateContent(), true);
+        assertEquals(2, numUpdates.get());
+        assertEquals(0, fetches.getNumInProgress());
+    }
+
+    @Test
+    public void testFailurePropagatesToWaiters() throws Exception
+    {
+        this.failure = new IOException("Repository unavailable");
+        List<Miss> misses = concurrentMisses(4);
+
+        release.countDown();
+        for(Miss miss : misses)
+        {
+            miss.join(5000);
+            assertTrue(miss.done);
+            assertSame(failure, miss.error);
+        }
+        assertEquals(1, numUpdates.get());
+
+        // a failed fetch is forgotten too, so the next miss retries
+        assertEquals(0, fetches.getNumInProgress());
+        this.failure = null;
+        fetches.fetch(KEY, updateContent(), true);
+        assertEquals(2, numUpdates.get());
+    }
+
+    @Test
+    public void testMissWithoutWaiting() throws Exception
+    {
+        List<Miss> misses = concurrentMisses(1);
+
+        // returns straight away, without a second fetch
+        fetches.fetch(KEY, updateContent(), false);
+        assertEquals(1, numUpdates.get());
+        assertTrue(fetches.isInProgress(KEY));
+
+        // other node versions are fetched separately
+        Miss other = new Miss("node1;2", true);
+        other.start();
+        waitUntilBlocked(other);
+        assertEquals(2, numUpdates.get());
+        assertEquals(2, fetches.getNumInProgress());
+
+        release.countDown();
+        misses.get(0).join(5000);
+        other.join(5000);
+        assertTrue(other.done);
+        assertEquals(null, other.error);
+        assertEquals(0, fetches.getNumInProgress());
+    }
+
+    @Test
+    public void testFetchRunsOnCallersThread() throws Exception
+    {
+        final Thread caller = Thread.currentThread();
+        release.countDown();
+        fetches.fetch(KEY, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                assertSame(caller, Thread.currentThread());
+                return null;
+            }
+        }, true);
+
+        try
+        {
+            fetches.fetch(KEY, new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    throw new IllegalStateException();
+                }
+            }, false);
+            fail();
+        }
+        catch(ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
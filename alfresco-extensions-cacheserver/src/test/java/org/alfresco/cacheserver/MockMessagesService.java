@@ -27,4 +27,9 @@ public class MockMessagesService implements MessagesService
         
     }
 
+    @Override
+    public void sendHeartbeatMessage()
+    {
+    }
+
 }
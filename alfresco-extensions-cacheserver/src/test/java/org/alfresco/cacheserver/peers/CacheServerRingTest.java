@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.cacheserver.peers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.cacheserver.CacheServerIdentity;
+import org.junit.Test;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class CacheServerRingTest
+{
+    private static final int NUM_NODES = 2000;
+
+    private static CacheServerIdentity identity(final String id)
+    {
+        return new CacheServerIdentity()
+        {
+            @Override
+            public String getHostname()
+            {
+                return id + ".example.com";
+            }
+
+            @Override
+            public int getPort()
+            {
+                return 8080;
+            }
+
+            @Override
+            public String getId()
+            {
+                return id;
+            }
+        };
+    }
+
+    /*
+     * Only 4 points on the ring, so servers' virtual nodes collide
+     */
+    private static class CollidingRing extends CacheServerRing
+    {
+        CollidingRing(String id)
+        {
+            super(identity(id));
+        }
+
+        @Override
+        long hash(String key)
+        {
+            return super.hash(key) & 3;
+        }
+    }
+
+    private void seen(CacheServerRing ring, String... ids)
+    {
+        for(String id : ids)
+        {
+            ring.peerSeen(id, id + ".example.com", 8080);
+        }
+    }
+
+    private Map<String, String> owners(CacheServerRing ring)
+    {
+        Map<String, String> owners = new HashMap<>();
+        for(int i = 0; i < NUM_NODES; i++)
+        {
+            String nodeId = "node" + i;
+            owners.put(nodeId, ring.getOwner(nodeId).getId());
+        }
+        return owners;
+    }
+
+    private CachePeer getPeer(CacheServerRing ring, String id)
+    {
+        for(CachePeer peer : ring.getPeers())
+        {
+            if(peer.getId().equals(id))
+            {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testOwnersStableAsPeersJoinAndLeave() throws Exception
+    {
+        CacheServerRing ring = new CacheServerRing(identity("a"));
+        seen(ring, "b", "c", "d", "e");
+        Map<String, String> before = owners(ring);
+        assertEquals(5, new HashSet<>(before.values()).size());
+
+        // nodes that change owner when a server joins move to it, about 1/n of them
+        seen(ring, "f");
+        Map<String, String> joined = owners(ring);
+        int moved = 0;
+        for(Map.Entry<String, String> entry : joined.entrySet())
+        {
+            if(!entry.getValue().equals(before.get(entry.getKey())))
+            {
+                assertEquals("f", entry.getValue());
+                moved++;
+            }
+        }
+        assertTrue(String.valueOf(moved), moved > NUM_NODES / 20 && moved < NUM_NODES / 3);
+
+        // and back when it leaves
+        ring.peerFailed(getPeer(ring, "f"));
+        ring.peerFailed(getPeer(ring, "f"));
+        ring.peerFailed(getPeer(ring, "f"));
+        assertEquals(before, owners(ring));
+
+        // only the nodes of a server that leaves change owner
+        ring.setMaxPeerFailures(1);
+        ring.peerFailed(getPeer(ring, "c"));
+        Map<String, String> left = owners(ring);
+        for(Map.Entry<String, String> entry : left.entrySet())
+        {
+            String owner = before.get(entry.getKey());
+            if(owner.equals("c"))
+            {
+                assertTrue(!entry.getValue().equals("c"));
+            }
+            else
+            {
+                assertEquals(owner, entry.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testOwnersAgree() throws Exception
+    {
+        // servers that have seen the same peers in any order agree on owners
+        CacheServerRing ring1 = new CacheServerRing(identity("a"));
+        seen(ring1, "b", "c", "d");
+        CacheServerRing ring2 = new CacheServerRing(identity("c"));
+        seen(ring2, "d", "b", "a");
+        assertEquals(owners(ring1), owners(ring2));
+    }
+
+    @Test
+    public void testCollisions() throws Exception
+    {
+        CacheServerRing ring1 = new CollidingRing("a");
+        ring1.setVirtualNodes(8);
+        seen(ring1, "b", "c", "d");
+        CacheServerRing ring2 = new CollidingRing("d");
+        ring2.setVirtualNodes(8);
+        seen(ring2, "c", "b", "a");
+
+        // the lower id wins each point whatever order the servers joined in
+        Map<String, String> owners = owners(ring1);
+        assertEquals(owners, owners(ring2));
+        Set<String> ownerIds = new HashSet<>(owners.values());
+        assertTrue(ownerIds.contains("a"));
+        assertTrue(ownerIds.size() <= 4);
+
+        // points a won are taken by the others once it's gone
+        ring2.setMaxPeerFailures(1);
+        ring2.peerFailed(getPeer(ring2, "a"));
+        CacheServerRing ring3 = new CollidingRing("d");
+        ring3.setVirtualNodes(8);
+        seen(ring3, "b", "c");
+        assertEquals(owners(ring3), owners(ring2));
+        assertTrue(!owners(ring2).containsValue("a"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception
+    {
+        CacheServerRing ring = new CacheServerRing(identity("a"));
+        ring.setPeerTtlMs(200);
+        seen(ring, "b", "c");
+        assertEquals(3, ring.getPeers().size());
+
+        Thread.sleep(120);
+        seen(ring, "b");
+        Thread.sleep(120);
+
+        // c hasn't been seen for the ttl
+        assertEquals(2, ring.getPeers().size());
+        assertNotNull(getPeer(ring, "b"));
+        assertEquals(null, getPeer(ring, "c"));
+        assertTrue(!owners(ring).containsValue("c"));
+
+        // the local server never expires
+        Thread.sleep(250);
+        assertEquals(1, ring.getPeers().size());
+        assertSame(ring.getLocal(), ring.getOwner("node1"));
+        assertTrue(ring.isLocalOwner("node2"));
+
+        // and expired servers rejoin when they're seen
+        seen(ring, "c");
+        assertNotNull(getPeer(ring, "c"));
+    }
+
+    @Test
+    public void testSetVirtualNodes() throws Exception
+    {
+        CacheServerRing ring = new CacheServerRing(identity("a"));
+        seen(ring, "b", "c", "d");
+        Map<String, String> before = owners(ring);
+
+        // the servers are placed again at the new number of points, as if they had been from the start
+        ring.setVirtualNodes(7);
+        CacheServerRing expected = new CacheServerRing(identity("a"));
+        expected.setVirtualNodes(7);
+        seen(expected, "b", "c", "d");
+        Map<String, String> after = owners(ring);
+        assertEquals(owners(expected), after);
+        assertTrue(!before.equals(after));
+
+        ring.setVirtualNodes(64);
+        assertEquals(before, owners(ring));
+    }
+
+    @Test
+    public void testPeerFailures() throws Exception
+    {
+        CacheServerRing ring = new CacheServerRing(identity("a"));
+        seen(ring, "b");
+        CachePeer b = getPeer(ring, "b");
+
+        // a success resets the failures
+        ring.peerFailed(b);
+        ring.peerFailed(b);
+        ring.peerSucceeded(b);
+        ring.peerFailed(b);
+        ring.peerFailed(b);
+        assertSame(b, getPeer(ring, "b"));
+
+        ring.peerFailed(b);
+        assertEquals(null, getPeer(ring, "b"));
+        assertEquals(1, ring.getPeers().size());
+
+        // it rejoins with no failures
+        seen(ring, "b");
+        assertEquals(0, getPeer(ring, "b").getFailures());
+    }
+}
@@ -8,8 +8,6 @@
 package org.sglover.checksum;
 
 import java.nio.ByteBuffer;
-import java.security.NoSuchAlgorithmException;
-import java.util.List;
 
 import org.sglover.alfrescoextensions.common.Hasher;
 
@@ -28,6 +26,16 @@ public class Adler32
     private int adler32;
     private int hash;
     private Hasher hasher;
+    private long[] digest = new long[2];
+
+    // unreduced sums for the current window, kept so that the window can be rolled
+    // forwards one byte at a time. rawB wraps exactly as the full computation does.
+    private int rawA;
+    private int rawB;
+
+    // extents of the current window (inclusive)
+    private int start;
+    private int end;
 
     public Adler32(Hasher hasher)
     {
@@ -47,40 +55,105 @@ public class Adler32
 
     private void init(ByteBuffer data, int offset, int end)
     {
-        a = 0;
-        b = 0;
-
         // adjust the end to make sure we don't exceed the extents of the data.
         if (end >= data.limit())
         {
             end = data.limit() - 1;
         }
 
+        int rawA = 0;
+        int rawB = 0;
+
         for (int i = offset; i <= end; i++)
         {
-            a += data.get(i);
-            b += a;
+            rawA += data.get(i);
+            rawB += rawA;
         }
 
-        a %= 65536; // 65536 = 2^16, used for M in the tridgell equation
-        b %= 65536;
+        this.rawA = rawA;
+        this.rawB = rawB;
+        this.start = offset;
+        this.end = end;
+
+        computeChecksum();
+    }
+
+    private void computeChecksum()
+    {
+        a = rawA % 65536; // 65536 = 2^16, used for M in the tridgell equation
+        b = rawB % 65536;
 
         this.adler32 = ((b << 16) | a) >>> 0;
         this.hash = hash16(adler32);
     }
 
+    /**
+     * Slide the window one byte to the right, dropping the byte at the old start
+     * and adding the byte at the new end.
+     */
+    private void rollingChecksum(ByteBuffer data, int offset, int end)
+    {
+        int windowSize = end - offset + 1;
+        byte out = data.get(offset - 1);
+        byte in = data.get(end);
+
+        rawA = rawA - out + in;
+        rawB = rawB - windowSize * out + rawA;
+        this.start = offset;
+        this.end = end;
+
+        computeChecksum();
+    }
+
+    /**
+     * Drop the first byte of the window without adding a new one. Used for the
+     * final, non-aligned block at the end of the data where the window shrinks.
+     */
+    private void shrinkingChecksum(ByteBuffer data, int offset)
+    {
+        int windowSize = end - start + 1;
+        byte out = data.get(offset - 1);
+
+        rawA = rawA - out;
+        rawB = rawB - windowSize * out;
+        this.start = offset;
+
+        computeChecksum();
+    }
+
+    /**
+     * Computes the checksum of data[offset..end] from scratch, so that one instance can be reused
+     * for many blocks.
+     */
+    public void checksum(ByteBuffer data, int offset, int end)
+    {
+        init(data, offset, end);
+        initialized = true;
+    }
+
     private void update(ByteBuffer data, int offset, int end)
     {
-        if(initialized)
+        if (end >= data.limit())
         {
-            init(data, offset, end);
-//            rollingChecksum(data, offset, end);
+            end = data.limit() - 1;
         }
-        else
+
+        if(initialized && offset == this.start + 1 && end >= offset)
         {
-            init(data, offset, end);
-            initialized = true;
+            if(end == this.end + 1)
+            {
+                rollingChecksum(data, offset, end);
+                return;
+            }
+            else if(end == this.end)
+            {
+                shrinkingChecksum(data, offset);
+                return;
+            }
         }
+
+        init(data, offset, end);
+        initialized = true;
     }
 
     public int getA()
@@ -108,16 +181,6 @@ public class Adler32
         return num % 65536;
     }
 
-    private void rollingChecksum(ByteBuffer data, int offset, int end)
-    {
-        byte temp = data.get(offset - 1); // this is the first byte used in the
-                                          // previous iteration
-        this.a = (this.a - temp + data.get(end)) % 65536;
-        this.b = (this.b - ((end - offset + 1) * temp) + a) % 65536;
-        this.adler32 = (b << 16) | a;
-        this.hash = hash16(adler32);
-    }
-
 //    private String getHash(ByteBuffer bytes, int start, int end, String hashType)
 //            throws NoSuchAlgorithmException
 //    {
@@ -148,38 +211,42 @@ public class Adler32
 //        return getHash(bytes, start, end, "MD5");
 //    }
 
+    /**
+     * Looks for a block in documentChecksums matching the window [start, end] of data.
+     * 
+     * If the window is the previous window moved one byte to the right (or shrunk from
+     * the left at the end of the data) the weak checksum is rolled forwards in constant
+     * time rather than recomputed. Callers that move or refill the underlying data must
+     * call {@link #reset()} first.
+     */
     public int checkMatch(int lastMatchIndex, NodeChecksums documentChecksums, ByteBuffer data, int start, int end)
     {
         update(data, start, end);
 
-        List<Checksum> checksums = documentChecksums.getChecksums(getHash());
-        if (checksums == null)
-        {
-            return -1;
-        }
+        boolean digestComputed = false;
 
-        for (Checksum checksum : checksums)
+        for (int position = documentChecksums.firstByHash(getHash()); position != -1;
+                position = documentChecksums.nextByHash(position))
         {
+            int row = documentChecksums.getRowByHash(position);
+            int blockIndex = documentChecksums.getBlockIndex(row);
+
             // compare adler32sum
-            if (checksum.getBlockIndex() >= lastMatchIndex && checksum.getAdler32() == getAdler32())
+            if (blockIndex >= lastMatchIndex && documentChecksums.getAdler32(row) == getAdler32())
             {
-                // do strong comparison
-                try
+                // do strong comparison, computing the digest of the window at most once
+                // using the algorithm the checksums were created with
+                if (!digestComputed)
                 {
-                    data.mark();
-                    String md5sum1 = hasher.md5(data, start, end);
-                    data.reset();
-                    String md5sum2 = checksum.getMd5();
-                    if (md5sum1.equals(md5sum2))
-                    {
-                        return checksum.getBlockIndex(); // match found, return
-                                                         // the matched block
-                                                         // index
-                    }
+                    hasher.hash(documentChecksums.getAlgorithm(), data, start, end, digest);
+                    digestComputed = true;
                 }
-                catch (NoSuchAlgorithmException e)
+
+                if (documentChecksums.digestEquals(row, digest[0], digest[1]))
                 {
-                    throw new RuntimeException(e);
+                    return blockIndex; // match found, return
+                                                     // the matched block
+                                                     // index
                 }
             }
         }
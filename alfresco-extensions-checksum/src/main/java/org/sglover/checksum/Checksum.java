@@ -9,6 +9,8 @@ package org.sglover.checksum;
 
 import java.io.Serializable;
 
+import org.sglover.alfrescoextensions.common.Digests;
+
 /**
  * 
  * @author sglover
@@ -23,16 +25,20 @@ public class Checksum implements Serializable
     private long end;
     private int hash;
     private int adler32;
-    private String md5;
 
-    public Checksum(int blockIndex, long start, long end, int hash, int adler32, String md5)
+    // 128 bit strong digest of the block
+    private long digestHi;
+    private long digestLo;
+
+    public Checksum(int blockIndex, long start, long end, int hash, int adler32, long digestHi, long digestLo)
     {
         super();
         this.blockIndex = blockIndex;
         this.start = start;
         this.end = end;
         this.adler32 = adler32;
-        this.md5 = md5;
+        this.digestHi = digestHi;
+        this.digestLo = digestLo;
         this.hash = hash;
     }
 
@@ -56,9 +62,10 @@ public class Checksum implements Serializable
         this.adler32 = adler32;
     }
 
-    public void setMd5(String md5)
+    public void setDigest(long digestHi, long digestLo)
     {
-        this.md5 = md5;
+        this.digestHi = digestHi;
+        this.digestLo = digestLo;
     }
 
     public int getAdler32()
@@ -66,9 +73,19 @@ public class Checksum implements Serializable
         return adler32;
     }
 
-    public String getMd5()
+    public long getDigestHi()
+    {
+        return digestHi;
+    }
+
+    public long getDigestLo()
+    {
+        return digestLo;
+    }
+
+    public boolean digestEquals(long digestHi, long digestLo)
     {
-        return md5;
+        return this.digestHi == digestHi && this.digestLo == digestLo;
     }
 
     public long getStart()
@@ -86,6 +103,6 @@ public class Checksum implements Serializable
     {
         return "Checksum [blockIndex=" + blockIndex + ", start=" + start
                 + ", end=" + end + ", hash=" + hash + ", adler32=" + adler32
-                + ", md5=" + md5 + "]";
+                + ", digest=" + Digests.toHex(digestHi, digestLo) + "]";
     }
 }
@@ -26,6 +26,13 @@ public interface ChecksumService
 
     NodeChecksums extractChecksums(Node node, InputStream in);
 
+    /**
+     * Checksums the content of a local file, memory mapping it and computing block checksums in parallel.
+     */
+    NodeChecksums getChecksums(Node node, String contentPath);
+
+    NodeChecksums extractChecksums(Node node, String contentPath);
+
     NodeChecksums getChecksums(String nodeId, long nodeVersion);
 
 //    void updatePatchDocument(PatchDocument patchDocument, NodeChecksums checksums, ReadableByteChannel channel) throws IOException;
@@ -10,16 +10,25 @@ package org.sglover.checksum;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
 import org.sglover.alfrescoextensions.common.Hasher;
 import org.sglover.alfrescoextensions.common.Node;
 import org.sglover.checksum.dao.ChecksumDAO;
@@ -42,7 +51,12 @@ public class ChecksumServiceImpl implements ChecksumService
     private ChecksumDAO checksumDAO;
 
     private ExecutorService executors = Executors.newFixedThreadPool(10);
+    // the default executor is shut down with this service, one that is set belongs to whoever set it
+    private boolean ownsExecutors = true;
+    private ForkJoinPool forkJoinPool = new ForkJoinPool();
     private int blockSize = 1024 * 10;
+    // blocks checksummed by a single task when checksumming a file in parallel
+    private int blocksPerTask = 1024;
 
     @Autowired
     private Hasher hasher;
@@ -63,11 +77,39 @@ public class ChecksumServiceImpl implements ChecksumService
     {
     }
 
+    @PreDestroy
+    public void shutdown()
+    {
+        forkJoinPool.shutdown();
+        if(ownsExecutors)
+        {
+            executors.shutdown();
+        }
+    }
+
     public void setBlockSize(int blockSize)
     {
         this.blockSize = blockSize;
     }
 
+    public void setBlocksPerTask(int blocksPerTask)
+    {
+        this.blocksPerTask = blocksPerTask;
+    }
+
+    /**
+     * The executor for asynchronous checksum extraction, e.g. a stage of the shared work scheduler.
+     */
+    public void setExecutorService(ExecutorService executors)
+    {
+        if(ownsExecutors)
+        {
+            this.executors.shutdown();
+            this.ownsExecutors = false;
+        }
+        this.executors = executors;
+    }
+
     public ChecksumServiceImpl(ChecksumDAO checksumDAO)
     {
         this.checksumDAO = checksumDAO;
@@ -417,68 +459,200 @@ public class ChecksumServiceImpl implements ChecksumService
         });
     }
 
+    private NodeChecksums newNodeChecksums(Node node, HashAlgorithm algorithm)
+    {
+        NodeChecksums documentChecksums = new NodeChecksums(node.getNodeId(), node.getNodeInternalId(),
+                node.getNodeVersion(), node.getVersionLabel(), blockSize);
+        documentChecksums.setAlgorithm(algorithm);
+        return documentChecksums;
+    }
+
+    // read until the buffer is full or the end of the stream is reached
+    private void fill(ReadableByteChannel channel, ByteBuffer data) throws IOException
+    {
+        while(data.hasRemaining())
+        {
+            if(channel.read(data) < 0)
+            {
+                break;
+            }
+        }
+    }
+
     @Override
     public NodeChecksums getChecksums(final Node node, final InputStream in)
     {
-        final String nodeId = node.getNodeId();
-        final Long nodeVersion = node.getNodeVersion();
-        final Long nodeInternalId = node.getNodeInternalId();
-        final String versionLabel = node.getVersionLabel();
-        int x = 0;
-
-        NodeChecksums documentChecksums = new NodeChecksums(nodeId, nodeInternalId,
-                nodeVersion, versionLabel, blockSize);
+        HashAlgorithm algorithm = hasher.getAlgorithm();
+        NodeChecksums documentChecksums = newNodeChecksums(node, algorithm);
 
         try(ReadableByteChannel fc = getChannel(in))
         {
             ByteBuffer data = ByteBuffer.allocate(blockSize*20);
-            int bytesRead = -1;
+            Adler32 adler32 = new Adler32(hasher);
+            long[] digest = new long[2];
+            long offset = 0;
             int blockNum = 1; // starts at 1
 
             do
             {
-                bytesRead = fc.read(data);
-                if(bytesRead > 0)
+                // blocks must line up across reads, so only short read at the end of the stream
+                data.clear();
+                fill(fc, data);
+                data.flip();
+
+                // spin through the data and create checksums for each block
+                for (int start = 0; start < data.limit(); start += blockSize)
                 {
-                    x += bytesRead;
+                    int end = Math.min(start + blockSize, data.limit()) - 1;
+
+                    // calculate the adler32 checksum
+                    adler32.checksum(data, start, end);
+
+                    // calculate the strong checksum
+                    hasher.hash(algorithm, data, start, end, digest);
+
+                    documentChecksums.addChecksum(blockNum, offset + start, offset + end, adler32.getHash(),
+                            adler32.getAdler32(), digest[0], digest[1]);
+
+                    blockNum++;
+                }
+
+                offset += data.limit();
+            }
+            while(data.limit() == data.capacity());
+
+            documentChecksums.setNumBlocks(blockNum - 1);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        return documentChecksums;
+    }
+
+    /**
+     * Checksums the blocks [fromBlock, toBlock) of a file, splitting the range in two until it is small enough
+     * to map and checksum directly. Results are written to the block's slot in the arrays so that they can be
+     * assembled in block order afterwards.
+     */
+    private class MappedChecksumsTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 3618393358934554862L;
+
+        private final FileChannel channel;
+        private final long size;
+        private final HashAlgorithm algorithm;
+        private final int fromBlock;
+        private final int toBlock;
+        private final int[] hashes;
+        private final int[] adler32s;
+        private final long[] digestHis;
+        private final long[] digestLos;
+
+        MappedChecksumsTask(FileChannel channel, long size, HashAlgorithm algorithm, int fromBlock, int toBlock,
+                int[] hashes, int[] adler32s, long[] digestHis, long[] digestLos)
+        {
+            this.channel = channel;
+            this.size = size;
+            this.algorithm = algorithm;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+            this.hashes = hashes;
+            this.adler32s = adler32s;
+            this.digestHis = digestHis;
+            this.digestLos = digestLos;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(toBlock - fromBlock > blocksPerTask)
+            {
+                int mid = (fromBlock + toBlock) >>> 1;
+                invokeAll(new MappedChecksumsTask(channel, size, algorithm, fromBlock, mid,
+                                hashes, adler32s, digestHis, digestLos),
+                        new MappedChecksumsTask(channel, size, algorithm, mid, toBlock,
+                                hashes, adler32s, digestHis, digestLos));
+            }
+            else
+            {
+                long regionStart = (long)fromBlock * blockSize;
+                long regionEnd = Math.min((long)toBlock * blockSize, size);
 
-                    data.flip();
+                try
+                {
+                    MappedByteBuffer data = channel.map(MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+                    Adler32 adler32 = new Adler32(hasher);
+                    long[] digest = new long[2];
 
-                    long numBlocks = data.limit() / blockSize + (data.limit() % blockSize > 0 ? 1 : 0);
-    
-                    // spin through the data and create checksums for each block
-                    for (int i = 0; i < numBlocks; i++)
+                    for(int i = fromBlock; i < toBlock; i++)
                     {
-                        int start = i * blockSize;
-                        int end = start + blockSize - 1;
-
-                        if (end >= data.limit())
-                        {
-                            end = data.limit() - 1;
-                        }
-
-                        // calculate the adler32 checksum
-                        Adler32 adlerInfo = new Adler32(data, start, end, hasher);
-
-                        // calculate the full md5 checksum
-                        String md5sum = hasher.md5(data, start, end);
-                        Checksum checksum = new Checksum(blockNum, start, end, adlerInfo.getHash(),
-                                adlerInfo.getAdler32(), md5sum);
-                        if(blockNum < 2)
-                        {
-                            System.out.println(checksum);
-                        }
-                        documentChecksums.addChecksum(checksum);
-
-                        blockNum++;
-                    }
+                        int start = (int)((long)i * blockSize - regionStart);
+                        int end = Math.min(start + blockSize, data.limit()) - 1;
+
+                        adler32.checksum(data, start, end);
+                        hasher.hash(algorithm, data, start, end, digest);
 
-                    data.clear();
+                        hashes[i] = adler32.getHash();
+                        adler32s[i] = adler32.getAdler32();
+                        digestHis[i] = digest[0];
+                        digestLos[i] = digest[1];
+                    }
+                }
+                catch(IOException e)
+                {
+                    throw new RuntimeException(e);
                 }
             }
-            while(bytesRead > 0);
         }
-        catch (NoSuchAlgorithmException | IOException e)
+    }
+
+    /**
+     * Memory maps the file and checksums its blocks in parallel. The result is the same as for
+     * {@link #getChecksums(Node, InputStream)} on the file's content.
+     */
+    @Override
+    public NodeChecksums getChecksums(final Node node, final String contentPath)
+    {
+        HashAlgorithm algorithm = hasher.getAlgorithm();
+        NodeChecksums documentChecksums = newNodeChecksums(node, algorithm);
+
+        try(FileChannel channel = FileChannel.open(Paths.get(contentPath), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            long numBlocks = size / blockSize + (size % blockSize > 0 ? 1 : 0);
+            if(numBlocks > Integer.MAX_VALUE)
+            {
+                throw new IllegalArgumentException("Too many blocks in " + contentPath + ", size " + size);
+            }
+
+            int[] hashes = new int[(int)numBlocks];
+            int[] adler32s = new int[(int)numBlocks];
+            long[] digestHis = new long[(int)numBlocks];
+            long[] digestLos = new long[(int)numBlocks];
+
+            MappedChecksumsTask task = new MappedChecksumsTask(channel, size, algorithm, 0, (int)numBlocks,
+                    hashes, adler32s, digestHis, digestLos);
+            if(numBlocks <= blocksPerTask)
+            {
+                // not worth handing off
+                task.compute();
+            }
+            else
+            {
+                forkJoinPool.invoke(task);
+            }
+
+            documentChecksums.setNumBlocks(numBlocks);
+            for(int i = 0; i < numBlocks; i++)
+            {
+                long start = (long)i * blockSize;
+                long end = Math.min(start + blockSize, size) - 1;
+                documentChecksums.addChecksum(i + 1, start, end, hashes[i], adler32s[i], digestHis[i], digestLos[i]);
+            }
+        }
+        catch (IOException e)
         {
             throw new RuntimeException(e);
         }
@@ -486,10 +660,21 @@ public class ChecksumServiceImpl implements ChecksumService
         return documentChecksums;
     }
 
+    @Override
+    public NodeChecksums extractChecksums(final Node node, final String contentPath)
+    {
+        NodeChecksums documentChecksums = getChecksums(node, contentPath);
+        // the tree is stored with the checksums
+        documentChecksums.getMerkleTree();
+        saveChecksums(documentChecksums);
+        return documentChecksums;
+    }
+
     @Override
     public NodeChecksums extractChecksums(final Node node, final InputStream in)
     {
         NodeChecksums documentChecksums = getChecksums(node, in);
+        documentChecksums.getMerkleTree();
         saveChecksums(documentChecksums);
         return documentChecksums;
     }
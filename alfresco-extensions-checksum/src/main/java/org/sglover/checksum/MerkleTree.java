@@ -0,0 +1,421 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.checksum;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sglover.alfrescoextensions.common.Digests;
+
+/**
+ * A binary hash tree over the strong digests of a node's blocks, in block order. Level 0 holds the
+ * block digests and each node above is the MD5 of its two children, or its child if it only has one,
+ * so the node at position i of level k covers blocks [i * 2^k, (i + 1) * 2^k) whatever the number of
+ * blocks. Two versions of a node (or two copies of one version) are the same if their roots are, and
+ * where they differ {@link #diff(MerkleTree)} finds the blocks that do by descending only into
+ * subtrees whose digests differ.
+ *
+ * Digests are held as two longs (high and low 64 bits) per node, in an array per level.
+ *
+ * @author sglover
+ *
+ */
+public class MerkleTree implements Serializable
+{
+    private static final long serialVersionUID = -3504011432311305640L;
+
+    // block index of the first leaf, blocks are consecutive from it
+    private final int firstBlockIndex;
+    private final long[][] digestHis;
+    private final long[][] digestLos;
+
+    /**
+     * A range of blocks, by block index, inclusive.
+     */
+    public static class BlockRange
+    {
+        private final int startBlockIndex;
+        private final int endBlockIndex;
+
+        public BlockRange(int startBlockIndex, int endBlockIndex)
+        {
+            this.startBlockIndex = startBlockIndex;
+            this.endBlockIndex = endBlockIndex;
+        }
+
+        public int getStartBlockIndex()
+        {
+            return startBlockIndex;
+        }
+
+        public int getEndBlockIndex()
+        {
+            return endBlockIndex;
+        }
+
+        public int getNumBlocks()
+        {
+            return endBlockIndex - startBlockIndex + 1;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "BlockRange [" + startBlockIndex + ", " + endBlockIndex + "]";
+        }
+    }
+
+    private MerkleTree(int firstBlockIndex, long[][] digestHis, long[][] digestLos)
+    {
+        this.firstBlockIndex = firstBlockIndex;
+        this.digestHis = digestHis;
+        this.digestLos = digestLos;
+    }
+
+    private static int numLevels(int numLeaves)
+    {
+        int levels = 1;
+        for(int n = numLeaves; n > 1; n = (n + 1) / 2)
+        {
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Builds the tree over the checksums' strong digests.
+     */
+    public static MerkleTree build(NodeChecksums checksums)
+    {
+        int[] rows = checksums.getRowsInBlockOrder();
+        int numLeaves = rows.length;
+        long[] leafHis = new long[numLeaves];
+        long[] leafLos = new long[numLeaves];
+        for(int i = 0; i < numLeaves; i++)
+        {
+            leafHis[i] = checksums.getDigestHi(rows[i]);
+            leafLos[i] = checksums.getDigestLo(rows[i]);
+        }
+        int firstBlockIndex = (numLeaves > 0 ? checksums.getBlockIndex(rows[0]) : 0);
+        return build(firstBlockIndex, leafHis, leafLos);
+    }
+
+    /**
+     * Builds the tree over the given leaf digests, the digests of consecutive blocks starting with
+     * firstBlockIndex.
+     */
+    public static MerkleTree build(int firstBlockIndex, long[] leafHis, long[] leafLos)
+    {
+        int numLevels = numLevels(leafHis.length);
+        long[][] digestHis = new long[numLevels][];
+        long[][] digestLos = new long[numLevels][];
+        digestHis[0] = leafHis;
+        digestLos[0] = leafLos;
+
+        MessageDigest md = newDigest();
+        ByteBuffer children = ByteBuffer.allocate(32);
+        long[] digest = new long[2];
+        for(int level = 1; level < numLevels; level++)
+        {
+            long[] childHis = digestHis[level - 1];
+            long[] childLos = digestLos[level - 1];
+            int size = (childHis.length + 1) / 2;
+            long[] his = new long[size];
+            long[] los = new long[size];
+            for(int i = 0; i < size; i++)
+            {
+                parent(childHis, childLos, i, md, children, digest);
+                his[i] = digest[0];
+                los[i] = digest[1];
+            }
+            digestHis[level] = his;
+            digestLos[level] = los;
+        }
+
+        return new MerkleTree(firstBlockIndex, digestHis, digestLos);
+    }
+
+    /*
+     * Computes the digest of the node at position i of the level above the given one
+     */
+    private static void parent(long[] childHis, long[] childLos, int i, MessageDigest md, ByteBuffer children,
+            long[] digest)
+    {
+        int left = 2 * i;
+        int right = left + 1;
+        if(right < childHis.length)
+        {
+            children.clear();
+            children.putLong(childHis[left]).putLong(childLos[left])
+                    .putLong(childHis[right]).putLong(childLos[right]);
+            md.reset();
+            md.update(children.array());
+            Digests.toLongs(md.digest(), digest);
+        }
+        else
+        {
+            // an only child is promoted
+            digest[0] = childHis[left];
+            digest[1] = childLos[left];
+        }
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getFirstBlockIndex()
+    {
+        return firstBlockIndex;
+    }
+
+    public int getNumLeaves()
+    {
+        return digestHis[0].length;
+    }
+
+    /**
+     * @return the number of levels, including the leaves and the root
+     */
+    public int getNumLevels()
+    {
+        return digestHis.length;
+    }
+
+    public int getLevelSize(int level)
+    {
+        return digestHis[level].length;
+    }
+
+    public long getDigestHi(int level, int position)
+    {
+        return digestHis[level][position];
+    }
+
+    public long getDigestLo(int level, int position)
+    {
+        return digestLos[level][position];
+    }
+
+    /**
+     * @return the hex encoded root digest, or null if the tree has no leaves. Not the same as
+     * NodeChecksums.getRootDigest, which is a flat digest of the leaves.
+     */
+    public String getRootDigest()
+    {
+        int root = digestHis.length - 1;
+        return (getNumLeaves() > 0 ? Digests.toHex(digestHis[root][0], digestLos[root][0]) : null);
+    }
+
+    public boolean rootEquals(MerkleTree other)
+    {
+        int root = digestHis.length - 1;
+        int otherRoot = other.digestHis.length - 1;
+        return getNumLeaves() == other.getNumLeaves()
+                && (getNumLeaves() == 0 || (digestHis[root][0] == other.digestHis[otherRoot][0]
+                        && digestLos[root][0] == other.digestLos[otherRoot][0]));
+    }
+
+    private boolean nodeEquals(MerkleTree other, int level, int position)
+    {
+        return digestHis[level][position] == other.digestHis[level][position]
+                && digestLos[level][position] == other.digestLos[level][position];
+    }
+
+    /**
+     * Compares the trees top down, only looking into subtrees whose digests differ.
+     *
+     * @return the ranges of blocks that differ between this tree and the other, including those that
+     * only one of them has, in block order with adjacent ranges merged. Empty if the trees are the same.
+     */
+    public List<BlockRange> diff(MerkleTree other)
+    {
+        List<BlockRange> ranges = new ArrayList<>();
+        int numLeaves = Math.max(getNumLeaves(), other.getNumLeaves());
+        if(numLeaves > 0)
+        {
+            // the top level that both trees have, the nodes at which cover the same blocks in both
+            int level = Math.min(getNumLevels(), other.getNumLevels()) - 1;
+            int size = Math.max(getLevelSize(level), other.getLevelSize(level));
+            int firstBlockIndex = (getNumLeaves() > 0 ? this.firstBlockIndex : other.firstBlockIndex);
+            int[] range = new int[] {-1, -1};
+            for(int position = 0; position < size; position++)
+            {
+                diff(other, level, position, numLeaves, firstBlockIndex, range, ranges);
+            }
+            addRange(firstBlockIndex, range, ranges);
+        }
+        return ranges;
+    }
+
+    private void diff(MerkleTree other, int level, int position, int numLeaves, int firstBlockIndex,
+            int[] range, List<BlockRange> ranges)
+    {
+        boolean inThis = position < getLevelSize(level);
+        boolean inOther = position < other.getLevelSize(level);
+        if((!inThis && !inOther) || (inThis && inOther && nodeEquals(other, level, position)))
+        {
+            return;
+        }
+
+        if(level == 0 || !inThis || !inOther)
+        {
+            // a leaf that differs, or a subtree that only one of the trees has
+            int start = position << level;
+            int end = Math.min((position + 1) << level, numLeaves) - 1;
+            if(range[0] != -1 && start == range[1] + 1)
+            {
+                range[1] = end;
+            }
+            else
+            {
+                addRange(firstBlockIndex, range, ranges);
+                range[0] = start;
+                range[1] = end;
+            }
+        }
+        else
+        {
+            diff(other, level - 1, 2 * position, numLeaves, firstBlockIndex, range, ranges);
+            diff(other, level - 1, 2 * position + 1, numLeaves, firstBlockIndex, range, ranges);
+        }
+    }
+
+    private static void addRange(int firstBlockIndex, int[] range, List<BlockRange> ranges)
+    {
+        if(range[0] != -1)
+        {
+            ranges.add(new BlockRange(firstBlockIndex + range[0], firstBlockIndex + range[1]));
+        }
+    }
+
+    /**
+     * @return the internal levels (all but the leaves, which are stored as the checksums), for storing
+     * with the checksums
+     */
+    public byte[] toBytes()
+    {
+        int numNodes = 0;
+        for(int level = 1; level < digestHis.length; level++)
+        {
+            numNodes += digestHis[level].length;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(8 + numNodes * 16);
+        bb.putInt(firstBlockIndex);
+        bb.putInt(getNumLeaves());
+        for(int level = 1; level < digestHis.length; level++)
+        {
+            for(int i = 0; i < digestHis[level].length; i++)
+            {
+                bb.putLong(digestHis[level][i]);
+                bb.putLong(digestLos[level][i]);
+            }
+        }
+        return bb.array();
+    }
+
+    /**
+     * The tree of the checksums' strong digests with its internal levels read from the stored ones, or
+     * null if the stored tree isn't of the checksums (e.g. it was written by an older version, or the
+     * checksums were rewritten without it), in which case it should be rebuilt and stored again.
+     *
+     * The stored levels are trusted rather than recomputed, they're written with the checksums. They're
+     * only checked for the checksums' first block index and number of leaves, their size and the
+     * digests along the first and last paths from the leaves to the root, which catches trees of
+     * checksums that have since been added to or truncated and corrupt roots in O(log n).
+     */
+    public static MerkleTree fromBytes(ByteBuffer bb, NodeChecksums checksums)
+    {
+        MerkleTree tree = null;
+
+        if(bb != null && bb.remaining() >= 8)
+        {
+            bb = bb.slice();
+            int firstBlockIndex = bb.getInt();
+            int numLeaves = bb.getInt();
+            int[] rows = checksums.getRowsInBlockOrder();
+            if(numLeaves == rows.length
+                    && (numLeaves == 0 || firstBlockIndex == checksums.getBlockIndex(rows[0])))
+            {
+                int numLevels = numLevels(numLeaves);
+                long[][] digestHis = new long[numLevels][];
+                long[][] digestLos = new long[numLevels][];
+                digestHis[0] = new long[numLeaves];
+                digestLos[0] = new long[numLeaves];
+                for(int i = 0; i < numLeaves; i++)
+                {
+                    digestHis[0][i] = checksums.getDigestHi(rows[i]);
+                    digestLos[0][i] = checksums.getDigestLo(rows[i]);
+                }
+
+                boolean matches = true;
+                for(int level = 1, size = (numLeaves + 1) / 2; level < numLevels && matches;
+                        level++, size = (size + 1) / 2)
+                {
+                    matches = bb.remaining() >= size * 16;
+                    if(matches)
+                    {
+                        digestHis[level] = new long[size];
+                        digestLos[level] = new long[size];
+                        for(int i = 0; i < size; i++)
+                        {
+                            digestHis[level][i] = bb.getLong();
+                            digestLos[level][i] = bb.getLong();
+                        }
+                    }
+                }
+
+                if(matches && !bb.hasRemaining())
+                {
+                    tree = new MerkleTree(firstBlockIndex, digestHis, digestLos);
+                    if(!tree.edgesMatch())
+                    {
+                        tree = null;
+                    }
+                }
+            }
+        }
+
+        return tree;
+    }
+
+    /*
+     * Checks the first and last node of each internal level against their children
+     */
+    private boolean edgesMatch()
+    {
+        MessageDigest md = newDigest();
+        ByteBuffer children = ByteBuffer.allocate(32);
+        long[] digest = new long[2];
+        boolean matches = true;
+        for(int level = 1; level < digestHis.length && matches; level++)
+        {
+            int last = digestHis[level].length - 1;
+            parent(digestHis[level - 1], digestLos[level - 1], 0, md, children, digest);
+            matches = digest[0] == digestHis[level][0] && digest[1] == digestLos[level][0];
+            if(matches && last > 0)
+            {
+                parent(digestHis[level - 1], digestLos[level - 1], last, md, children, digest);
+                matches = digest[0] == digestHis[level][last] && digest[1] == digestLos[level][last];
+            }
+        }
+        return matches;
+    }
+}
@@ -7,35 +7,90 @@
  */
 package org.sglover.checksum;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import org.sglover.alfrescoextensions.common.Digests;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
+
 /**
+ * The block checksums of a node.
+ * 
+ * Checksums are held as columns of primitive arrays, one row per block, rather than as Checksum objects
+ * so that a large node costs tens of bytes per block. Lookup by weak hash (the hot path of patch
+ * generation) goes through an open addressing table over the rows, built on first use after checksums
+ * have been added. The rows with a given weak hash are visited with
+ * {@link #firstByHash(int)} / {@link #nextByHash(int)} without allocating.
  * 
  * @author sglover
  *
  */
 public class NodeChecksums implements Serializable
 {
-    private static final long serialVersionUID = -2008780747092612209L;
+    private static final long serialVersionUID = 4461503215329387731L;
+
+    private static final int INITIAL_CAPACITY = 16;
 
     private String nodeId;
     private Long nodeInternalId;
     private Long nodeVersion;
     private String versionLabel;
     private int blockSize;
-    private Map<Integer, List<Checksum>> checksumsByHash;
-    private Map<Integer, Checksum> checksumsByBlock;
     private long numBlocks;
+    // checksums written before the algorithm was recorded are MD5
+    private HashAlgorithm algorithm = HashAlgorithm.MD5;
+
+    // one row per checksum, in the order they were added
+    private int size;
+    private int[] blockIndexes;
+    private long[] starts;
+    private long[] ends;
+    private int[] hashes;
+    private int[] adler32s;
+    private long[] digestHis;
+    private long[] digestLos;
+
+    private transient volatile HashIndex hashIndex;
+    // stored alongside the checksums by the DAOs, rather than serialised with them
+    private transient volatile MerkleTree merkleTree;
+
+    /**
+     * Rows grouped by weak hash (preserving the order they were added within a group) and an open addressing
+     * table from weak hash to the position of the first row of its group.
+     */
+    private static class HashIndex
+    {
+        private final int[] rowsByHash;
+        // position in rowsByHash + 1, 0 for an empty slot
+        private final int[] table;
+        private final int mask;
+
+        HashIndex(int[] rowsByHash, int[] table)
+        {
+            this.rowsByHash = rowsByHash;
+            this.table = table;
+            this.mask = table.length - 1;
+        }
+    }
 
     public NodeChecksums()
     {
-        this.checksumsByHash = new HashMap<>();
-        this.checksumsByBlock = new HashMap<>();
+        this(INITIAL_CAPACITY);
+    }
+
+    private NodeChecksums(int capacity)
+    {
+        allocate(Math.max(capacity, 1));
     }
 
     public NodeChecksums(String nodeId, Long nodeInternalId, Long nodeVersion,
@@ -53,7 +108,7 @@ public class NodeChecksums implements Serializable
     public NodeChecksums(String nodeId, Long nodeInternalId, Long nodeVersion,
             String versionLabel, int blockSize, long numBlocks, List<Checksum> checksums)
     {
-        this();
+        this(numBlocks > 0 && numBlocks < Integer.MAX_VALUE ? (int)numBlocks : INITIAL_CAPACITY);
         this.nodeId = nodeId;
         this.nodeInternalId = nodeInternalId;
         this.nodeVersion = nodeVersion;
@@ -69,6 +124,51 @@ public class NodeChecksums implements Serializable
         }
     }
 
+    private void allocate(int capacity)
+    {
+        this.blockIndexes = new int[capacity];
+        this.starts = new long[capacity];
+        this.ends = new long[capacity];
+        this.hashes = new int[capacity];
+        this.adler32s = new int[capacity];
+        this.digestHis = new long[capacity];
+        this.digestLos = new long[capacity];
+    }
+
+    private void resize(int capacity)
+    {
+        this.blockIndexes = Arrays.copyOf(blockIndexes, capacity);
+        this.starts = Arrays.copyOf(starts, capacity);
+        this.ends = Arrays.copyOf(ends, capacity);
+        this.hashes = Arrays.copyOf(hashes, capacity);
+        this.adler32s = Arrays.copyOf(adler32s, capacity);
+        this.digestHis = Arrays.copyOf(digestHis, capacity);
+        this.digestLos = Arrays.copyOf(digestLos, capacity);
+    }
+
+    // writes copies of the columns trimmed to size, leaving this instance's arrays alone so that it can
+    // be serialised while it's being read
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("nodeId", nodeId);
+        fields.put("nodeInternalId", nodeInternalId);
+        fields.put("nodeVersion", nodeVersion);
+        fields.put("versionLabel", versionLabel);
+        fields.put("blockSize", blockSize);
+        fields.put("numBlocks", numBlocks);
+        fields.put("algorithm", algorithm);
+        fields.put("size", size);
+        fields.put("blockIndexes", Arrays.copyOf(blockIndexes, size));
+        fields.put("starts", Arrays.copyOf(starts, size));
+        fields.put("ends", Arrays.copyOf(ends, size));
+        fields.put("hashes", Arrays.copyOf(hashes, size));
+        fields.put("adler32s", Arrays.copyOf(adler32s, size));
+        fields.put("digestHis", Arrays.copyOf(digestHis, size));
+        fields.put("digestLos", Arrays.copyOf(digestLos, size));
+        out.writeFields();
+    }
+
     public String getNodeId()
     {
         return nodeId;
@@ -114,6 +214,16 @@ public class NodeChecksums implements Serializable
         this.numBlocks = numBlocks;
     }
 
+    public HashAlgorithm getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    public void setAlgorithm(HashAlgorithm algorithm)
+    {
+        this.algorithm = algorithm;
+    }
+
     public int getBlockSize()
     {
         return blockSize;
@@ -124,26 +234,226 @@ public class NodeChecksums implements Serializable
         this.blockSize = blockSize;
     }
 
-    public void setChecksums(Map<Integer, List<Checksum>> checksums)
+    /**
+     * @return the number of checksums (rows)
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public int getBlockIndex(int row)
+    {
+        return blockIndexes[row];
+    }
+
+    public long getStart(int row)
+    {
+        return starts[row];
+    }
+
+    public long getEnd(int row)
+    {
+        return ends[row];
+    }
+
+    public int getHash(int row)
+    {
+        return hashes[row];
+    }
+
+    public int getAdler32(int row)
+    {
+        return adler32s[row];
+    }
+
+    public long getDigestHi(int row)
+    {
+        return digestHis[row];
+    }
+
+    public long getDigestLo(int row)
+    {
+        return digestLos[row];
+    }
+
+    public boolean digestEquals(int row, long digestHi, long digestLo)
+    {
+        return digestHis[row] == digestHi && digestLos[row] == digestLo;
+    }
+
+    public Checksum getChecksum(int row)
+    {
+        return new Checksum(blockIndexes[row], starts[row], ends[row], hashes[row], adler32s[row],
+                digestHis[row], digestLos[row]);
+    }
+
+    private static int mix(int hash)
+    {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private HashIndex getHashIndex()
+    {
+        HashIndex hashIndex = this.hashIndex;
+        if(hashIndex == null)
+        {
+            hashIndex = buildHashIndex();
+            this.hashIndex = hashIndex;
+        }
+        return hashIndex;
+    }
+
+    private HashIndex buildHashIndex()
+    {
+        int tableSize = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+        int mask = tableSize - 1;
+        int[] table = new int[tableSize];
+
+        // assign each row to a group (distinct weak hash) using the table, holding group + 1 for now
+        int[] rowGroups = new int[size];
+        int[] groupHashes = new int[size];
+        int[] groupStarts = new int[size + 1];
+        int numGroups = 0;
+        for(int row = 0; row < size; row++)
+        {
+            int hash = hashes[row];
+            int slot = mix(hash) & mask;
+            int group;
+            while(true)
+            {
+                int entry = table[slot];
+                if(entry == 0)
+                {
+                    group = numGroups++;
+                    groupHashes[group] = hash;
+                    table[slot] = group + 1;
+                    break;
+                }
+                else if(groupHashes[entry - 1] == hash)
+                {
+                    group = entry - 1;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            rowGroups[row] = group;
+            groupStarts[group + 1]++;
+        }
+
+        for(int group = 0; group < numGroups; group++)
+        {
+            groupStarts[group + 1] += groupStarts[group];
+        }
+
+        int[] rowsByHash = new int[size];
+        int[] next = Arrays.copyOf(groupStarts, numGroups);
+        for(int row = 0; row < size; row++)
+        {
+            rowsByHash[next[rowGroups[row]]++] = row;
+        }
+
+        // point the table at the start of each group
+        for(int slot = 0; slot < tableSize; slot++)
+        {
+            int entry = table[slot];
+            if(entry != 0)
+            {
+                table[slot] = groupStarts[entry - 1] + 1;
+            }
+        }
+
+        return new HashIndex(rowsByHash, table);
+    }
+
+    /**
+     * @return the position of the first checksum with the given weak hash, to be passed to
+     * {@link #getRowByHash(int)} and {@link #nextByHash(int)}, or -1 if there are none
+     */
+    public int firstByHash(int hash)
     {
-        this.checksumsByHash = checksums;
+        HashIndex hashIndex = getHashIndex();
+        int[] table = hashIndex.table;
+        int slot = mix(hash) & hashIndex.mask;
+        while(true)
+        {
+            int entry = table[slot];
+            if(entry == 0)
+            {
+                return -1;
+            }
+            int position = entry - 1;
+            if(hashes[hashIndex.rowsByHash[position]] == hash)
+            {
+                return position;
+            }
+            slot = (slot + 1) & hashIndex.mask;
+        }
     }
 
+    /**
+     * @return the position of the next checksum with the same weak hash as the one at position, or -1
+     */
+    public int nextByHash(int position)
+    {
+        int[] rowsByHash = getHashIndex().rowsByHash;
+        int next = position + 1;
+        if(next < rowsByHash.length && hashes[rowsByHash[next]] == hashes[rowsByHash[position]])
+        {
+            return next;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the row of the checksum at the given position in the weak hash ordering
+     */
+    public int getRowByHash(int position)
+    {
+        return getHashIndex().rowsByHash[position];
+    }
+
+    /**
+     * @return the checksums with the given weak hash in the order they were added, or null if there are none
+     */
     public List<Checksum> getChecksums(int hash)
     {
-        return checksumsByHash.get(hash);
+        List<Checksum> checksums = null;
+        for(int position = firstByHash(hash); position != -1; position = nextByHash(position))
+        {
+            if(checksums == null)
+            {
+                checksums = new ArrayList<>(2);
+            }
+            checksums.add(getChecksum(getRowByHash(position)));
+        }
+        return checksums;
     }
 
-    public void addChecksum(Checksum checksum)
+    public void addChecksum(int blockIndex, long start, long end, int hash, int adler32, long digestHi, long digestLo)
     {
-        List<Checksum> checksums = this.checksumsByHash.get(checksum.getHash());
-        if (checksums == null)
+        if(size == blockIndexes.length)
         {
-            checksums = new LinkedList<>();
-            this.checksumsByHash.put(checksum.getHash(), checksums);
+            // deserialised checksums have no spare capacity, possibly none at all
+            resize(Math.max(size * 2, INITIAL_CAPACITY));
         }
-        this.checksumsByBlock.put(checksum.getBlockIndex(), checksum);
-        checksums.add(checksum);
+        blockIndexes[size] = blockIndex;
+        starts[size] = start;
+        ends[size] = end;
+        hashes[size] = hash;
+        adler32s[size] = adler32;
+        digestHis[size] = digestHi;
+        digestLos[size] = digestLo;
+        size++;
+        this.hashIndex = null;
+        this.merkleTree = null;
+    }
+
+    public void addChecksum(Checksum checksum)
+    {
+        addChecksum(checksum.getBlockIndex(), checksum.getStart(), checksum.getEnd(), checksum.getHash(),
+                checksum.getAdler32(), checksum.getDigestHi(), checksum.getDigestLo());
     }
 
     public void addChecksums(Collection<Checksum> checksums)
@@ -154,23 +464,176 @@ public class NodeChecksums implements Serializable
         }
     }
 
+    public void setChecksums(Map<Integer, List<Checksum>> checksums)
+    {
+        this.size = 0;
+        this.hashIndex = null;
+        this.merkleTree = null;
+        for(List<Checksum> hashChecksums : checksums.values())
+        {
+            addChecksums(hashChecksums);
+        }
+    }
+
+    /**
+     * @return a copy of the checksums keyed by weak hash
+     */
     public Map<Integer, List<Checksum>> getChecksums()
     {
+        Map<Integer, List<Checksum>> checksumsByHash = new HashMap<>();
+        HashIndex hashIndex = getHashIndex();
+        for(int position = 0; position < size; position++)
+        {
+            int row = hashIndex.rowsByHash[position];
+            List<Checksum> checksums = checksumsByHash.get(hashes[row]);
+            if(checksums == null)
+            {
+                checksums = new ArrayList<>(2);
+                checksumsByHash.put(hashes[row], checksums);
+            }
+            checksums.add(getChecksum(row));
+        }
         return checksumsByHash;
     }
 
+    /**
+     * @return the row holding the checksum for the given block, or -1 if there isn't one
+     */
+    public int getRowByBlock(int blockIndex)
+    {
+        // blocks are usually added in order with consecutive indexes
+        if(size > 0)
+        {
+            int row = blockIndex - blockIndexes[0];
+            if(row >= 0 && row < size && blockIndexes[row] == blockIndex)
+            {
+                return row;
+            }
+        }
+
+        for(int row = 0; row < size; row++)
+        {
+            if(blockIndexes[row] == blockIndex)
+            {
+                return row;
+            }
+        }
+
+        return -1;
+    }
+
+    public Checksum getChecksumByBlock(int blockIndex)
+    {
+        int row = getRowByBlock(blockIndex);
+        return row != -1 ? getChecksum(row) : null;
+    }
+
+    /**
+     * @return a copy of the checksums keyed by block index
+     */
     public Map<Integer, Checksum> getChecksumsByBlock()
     {
+        Map<Integer, Checksum> checksumsByBlock = new HashMap<>();
+        for(int row = 0; row < size; row++)
+        {
+            checksumsByBlock.put(blockIndexes[row], getChecksum(row));
+        }
         return checksumsByBlock;
     }
 
+    /**
+     * @return the rows in block index order
+     */
+    public int[] getRowsInBlockOrder()
+    {
+        Integer[] rows = new Integer[size];
+        boolean sorted = true;
+        for(int row = 0; row < size; row++)
+        {
+            rows[row] = row;
+            sorted &= (row == 0 || blockIndexes[row - 1] <= blockIndexes[row]);
+        }
+        if(!sorted)
+        {
+            Arrays.sort(rows, new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer row1, Integer row2)
+                {
+                    return Integer.compare(blockIndexes[row1], blockIndexes[row2]);
+                }
+            });
+        }
+        int[] ret = new int[size];
+        for(int i = 0; i < size; i++)
+        {
+            ret[i] = rows[i];
+        }
+        return ret;
+    }
+
+    /**
+     * @return the Merkle tree over the checksums' strong digests, built on first use after checksums have
+     * been added
+     */
+    public MerkleTree getMerkleTree()
+    {
+        MerkleTree merkleTree = this.merkleTree;
+        if(merkleTree == null)
+        {
+            merkleTree = MerkleTree.build(this);
+            this.merkleTree = merkleTree;
+        }
+        return merkleTree;
+    }
+
+    /**
+     * Sets a stored tree, which must be of these checksums.
+     */
+    public void setMerkleTree(MerkleTree merkleTree)
+    {
+        this.merkleTree = merkleTree;
+    }
+
+    /**
+     * A digest of the strong digests of all blocks, in block order, that identifies the checksums
+     * (and so the content) without the checksums themselves. Hex encoded, or null if there are no
+     * checksums.
+     *
+     * This is published in ContentAvailableEvents and as the content's ETag, so must not change. It
+     * isn't the root of the Merkle tree, compare trees with {@link MerkleTree#rootEquals(MerkleTree)}.
+     */
+    public String getRootDigest()
+    {
+        String rootDigest = null;
+        if(size > 0)
+        {
+            try
+            {
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                for(int row : getRowsInBlockOrder())
+                {
+                    md.update(Digests.toBytes(digestHis[row], digestLos[row]));
+                }
+                long[] digest = new long[2];
+                Digests.toLongs(md.digest(), digest);
+                rootDigest = Digests.toHex(digest[0], digest[1]);
+            }
+            catch(NoSuchAlgorithmException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        return rootDigest;
+    }
+
     @Override
     public String toString()
     {
         return "NodeChecksums [nodeId=" + nodeId + ", nodeInternalId="
                 + nodeInternalId + ", nodeVersion=" + nodeVersion
-                + ", versionLabel=" + versionLabel + ", blockSize=" + blockSize + ", checksums="
-                + checksumsByHash + ", numBlocks=" + numBlocks + "]";
+                + ", versionLabel=" + versionLabel + ", blockSize=" + blockSize + ", algorithm=" + algorithm + ", checksums="
+                + getChecksums() + ", numBlocks=" + numBlocks + "]";
     }
 
 }
@@ -7,21 +7,23 @@
  */
 package org.sglover.checksum.dao.cassandra;
 
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 import javax.annotation.PostConstruct;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sglover.alfrescoextensions.common.CassandraSession;
-import org.sglover.checksum.Checksum;
+import org.sglover.alfrescoextensions.common.Digests;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
+import org.sglover.checksum.MerkleTree;
 import org.sglover.checksum.NodeChecksums;
 import org.sglover.checksum.dao.ChecksumDAO;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.TableMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
@@ -70,9 +72,9 @@ public class CassandraChecksumDAO implements ChecksumDAO
         this.getChecksumsMetadataStatement = session.prepare(
                 "SELECT * FROM " + keyspace + ".checksums_metadata where node_id = ? and node_version = ?");
         this.insertChecksumsMetadataStatement = session.prepare(
-                "INSERT INTO " + keyspace + ".checksums_metadata (node_id, node_version, version_label, block_size, num_blocks) VALUES (?, ?, ?, ?, ?)");
+                "INSERT INTO " + keyspace + ".checksums_metadata (node_id, node_version, version_label, block_size, num_blocks, algorithm, merkle_tree) VALUES (?, ?, ?, ?, ?, ?, ?)");
         this.insertChecksumStatement = session.prepare(
-                "INSERT INTO " + keyspace + ".checksums (node_id, node_version, block_idx, hash, adler32, md5, start, end) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+                "INSERT INTO " + keyspace + ".checksums (node_id, node_version, block_idx, hash, adler32, digest, start, end) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
     }
 
     private void createSchema()
@@ -87,17 +89,45 @@ public class CassandraChecksumDAO implements ChecksumDAO
         }
         else
         {
-            if(keySpaceMetadata.getTable("checksums_metadata") == null)
+            TableMetadata checksumsMetadataTable = keySpaceMetadata.getTable("checksums_metadata");
+            if(checksumsMetadataTable == null)
             {
                 session.execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".checksums_metadata (node_id text, node_version bigint, "
-                        + "version_label text, block_size int, num_blocks bigint, "
+                        + "version_label text, block_size int, num_blocks bigint, algorithm text, merkle_tree blob, "
                         + "PRIMARY KEY((node_id, node_version)));");
             }
-            if(keySpaceMetadata.getTable("checksums") == null)
+            else
+            {
+                if(checksumsMetadataTable.getColumn("algorithm") == null)
+                {
+                    session.execute("ALTER TABLE " + keyspace + ".checksums_metadata ADD algorithm text;");
+                }
+                if(checksumsMetadataTable.getColumn("merkle_tree") == null)
+                {
+                    session.execute("ALTER TABLE " + keyspace + ".checksums_metadata ADD merkle_tree blob;");
+                }
+            }
+            TableMetadata checksumsTable = keySpaceMetadata.getTable("checksums");
+            if(checksumsTable != null && checksumsTable.getClusteringColumns().isEmpty())
+            {
+                // the table used to be keyed by node version alone, so only held the last block written
+                // of each version. Those checksums can't be used, drop them with their metadata and
+                // have them recomputed when they're next needed.
+                logger.warn("Dropping " + keyspace + ".checksums, which isn't clustered by block_idx");
+                session.execute("DROP TABLE " + keyspace + ".checksums;");
+                session.execute("TRUNCATE " + keyspace + ".checksums_metadata;");
+                checksumsTable = null;
+            }
+            if(checksumsTable == null)
             {
                 session.execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".checksums (node_id text, node_version bigint, "
-                        + "block_idx int, hash int, adler32 int, md5 text, start bigint, end bigint, "
-                        + "PRIMARY KEY((node_id, node_version)));");
+                        + "block_idx int, hash int, adler32 int, md5 text, digest blob, start bigint, end bigint, "
+                        + "PRIMARY KEY((node_id, node_version), block_idx));");
+            }
+            else if(checksumsTable.getColumn("digest") == null)
+            {
+                // digests used to be stored as md5 hex text only
+                session.execute("ALTER TABLE " + keyspace + ".checksums ADD digest blob;");
             }
         }
     }
@@ -105,34 +135,69 @@ public class CassandraChecksumDAO implements ChecksumDAO
     @Override
     public void saveChecksums(NodeChecksums checksums)
     {
-        logger.info("Checksums for " + checksums.getNodeId() + "." + checksums.getNodeVersion() + " " + checksums.getChecksums().size());
+        logger.info("Checksums for " + checksums.getNodeId() + "." + checksums.getNodeVersion() + " " + checksums.size());
 
         cassandraSession.getCassandraSession()
                 .execute(insertChecksumsMetadataStatement.bind(checksums.getNodeId(), checksums.getNodeVersion(),
-                        checksums.getVersionLabel(), checksums.getBlockSize(), checksums.getNumBlocks()));
-        for(Map.Entry<Integer, List<Checksum>> checksum : checksums.getChecksums().entrySet())
+                        checksums.getVersionLabel(), checksums.getBlockSize(), checksums.getNumBlocks(),
+                        checksums.getAlgorithm().name(), ByteBuffer.wrap(checksums.getMerkleTree().toBytes())));
+        for(int row = 0; row < checksums.size(); row++)
+        {
+            int blockIndex = checksums.getBlockIndex(row);
+            int hash = checksums.getHash(row);
+            int adler32 = checksums.getAdler32(row);
+            ByteBuffer digest = ByteBuffer.wrap(Digests.toBytes(checksums.getDigestHi(row), checksums.getDigestLo(row)));
+            long start = checksums.getStart(row);
+            long end = checksums.getEnd(row);
+            cassandraSession.getCassandraSession()
+                .execute(insertChecksumStatement.bind(checksums.getNodeId(), checksums.getNodeVersion(),
+                        blockIndex, hash, adler32, digest, start, end));
+        }
+    }
+
+    private static boolean readDigest(ByteBuffer digestBytes, long[] digest)
+    {
+        boolean read = (digestBytes != null && digestBytes.remaining() >= 16);
+        if(read)
         {
-            Integer hash = checksum.getKey();
-            for(Checksum cs : checksum.getValue())
+            digest[0] = digestBytes.getLong(digestBytes.position());
+            digest[1] = digestBytes.getLong(digestBytes.position() + 8);
+        }
+        return read;
+    }
+
+    /**
+     * Reads the block's digest from the digest column, or from md5 as hex for rows written before
+     * digests were stored as binary.
+     *
+     * @return false if the row has no digest
+     */
+    private static boolean readDigest(Row row, long[] digest)
+    {
+        boolean read = readDigest(row.getBytes("digest"), digest);
+        if(!read && row.getColumnDefinitions().contains("md5"))
+        {
+            String md5 = row.getString("md5");
+            read = (md5 != null);
+            if(read)
             {
-                int blockIndex = cs.getBlockIndex();
-                int adler32 = cs.getAdler32();
-                String md5 = cs.getMd5();
-                long start = cs.getStart();
-                long end = cs.getEnd();
-                cassandraSession.getCassandraSession()
-                    .execute(insertChecksumStatement.bind(checksums.getNodeId(), checksums.getNodeVersion(),
-                            blockIndex, hash, adler32, md5, start, end));
+                Digests.fromHex(md5, digest);
             }
         }
+        return read;
     }
 
     private NodeChecksums toChecksums(String nodeId, long nodeVersion, Row row)
     {
         int blockSize = row.getInt("block_size");
-        int numBlocks = row.getInt("num_blocks");
+        long numBlocks = row.getLong("num_blocks");
+        String algorithm = row.getString("algorithm");
 
         NodeChecksums nodeChecksums = new NodeChecksums(nodeId, -1l, nodeVersion, "", blockSize, numBlocks);
+        if(algorithm != null)
+        {
+            nodeChecksums.setAlgorithm(HashAlgorithm.valueOf(algorithm));
+        }
 
         ResultSet rs1 = cassandraSession.getCassandraSession()
                 .execute(getChecksumsStatement.bind(nodeId, nodeVersion));
@@ -143,9 +208,22 @@ public class CassandraChecksumDAO implements ChecksumDAO
             long end = row1.getLong("end");
             int hash = row1.getInt("hash");
             int adler32 = row1.getInt("adler32");
-            String md5 = row1.getString("md5");
-            Checksum checksum = new Checksum(blockIndex, start, end, hash, adler32, md5);
-            nodeChecksums.addChecksum(checksum);
+            long[] digest = new long[2];
+            if(!readDigest(row1, digest))
+            {
+                // can't be matched against, so treat the checksums as missing and have them recomputed
+                logger.warn("No digest for block " + blockIndex + " of " + nodeId + "." + nodeVersion
+                        + ", ignoring its checksums");
+                return null;
+            }
+            nodeChecksums.addChecksum(blockIndex, start, end, hash, adler32, digest[0], digest[1]);
+        }
+
+        // checksums written before trees were stored have their tree built when it's first used
+        MerkleTree merkleTree = MerkleTree.fromBytes(row.getBytes("merkle_tree"), nodeChecksums);
+        if(merkleTree != null)
+        {
+            nodeChecksums.setMerkleTree(merkleTree);
         }
 
         return nodeChecksums;
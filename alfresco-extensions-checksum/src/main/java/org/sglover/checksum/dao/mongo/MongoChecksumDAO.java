@@ -7,11 +7,13 @@
  */
 package org.sglover.checksum.dao.mongo;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
-import org.sglover.checksum.Checksum;
+import org.sglover.alfrescoextensions.common.Digests;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
+import org.sglover.checksum.MerkleTree;
 import org.sglover.checksum.NodeChecksums;
 import org.sglover.checksum.dao.ChecksumDAO;
 
@@ -135,14 +137,23 @@ public class MongoChecksumDAO implements ChecksumDAO
         // }
     }
 
-    private Checksum toChecksum(DBObject dbObject)
+    private void addChecksum(NodeChecksums documentChecksums, DBObject dbObject)
     {
         int blockIndex = (Integer) dbObject.get("i");
         int hash = (Integer) dbObject.get("h");
         int adler32 = (Integer) dbObject.get("a");
-        String md5 = (String) dbObject.get("m");
-        Checksum checksum = new Checksum(blockIndex, -1, -1l, hash, adler32, md5);
-        return checksum;
+        long[] digest = new long[2];
+        Object m = dbObject.get("m");
+        if (m instanceof byte[])
+        {
+            Digests.toLongs((byte[]) m, digest);
+        }
+        else
+        {
+            // written before digests were stored as binary
+            Digests.fromHex((String) m, digest);
+        }
+        documentChecksums.addChecksum(blockIndex, -1, -1l, hash, adler32, digest[0], digest[1]);
     }
 
     @SuppressWarnings("unchecked")
@@ -157,9 +168,14 @@ public class MongoChecksumDAO implements ChecksumDAO
             String versionLabel = (String) dbObject.get("l");
             int blockSize = (Integer) dbObject.get("b");
             long numBlocks = (Long) dbObject.get("nb");
+            String algorithm = (String) dbObject.get("alg");
 
             documentChecksums = new NodeChecksums(nodeId, nodeInternalId,
                     nodeVersion, versionLabel, blockSize, numBlocks);
+            if (algorithm != null)
+            {
+                documentChecksums.setAlgorithm(HashAlgorithm.valueOf(algorithm));
+            }
 
             DBObject documentChecksumDBObject = (DBObject) dbObject.get("c");
             for (String hashStr : documentChecksumDBObject.keySet())
@@ -168,8 +184,19 @@ public class MongoChecksumDAO implements ChecksumDAO
                         .get(hashStr);
                 for (DBObject checksumDBObject : checksumDBObjects)
                 {
-                    Checksum checksum = toChecksum(checksumDBObject);
-                    documentChecksums.addChecksum(checksum);
+                    addChecksum(documentChecksums, checksumDBObject);
+                }
+            }
+
+            // checksums written before trees were stored have their tree built when it's first used
+            byte[] merkleTreeBytes = (byte[]) dbObject.get("mt");
+            if (merkleTreeBytes != null)
+            {
+                MerkleTree merkleTree = MerkleTree.fromBytes(ByteBuffer.wrap(merkleTreeBytes),
+                        documentChecksums);
+                if (merkleTree != null)
+                {
+                    documentChecksums.setMerkleTree(merkleTree);
                 }
             }
         }
@@ -177,30 +204,32 @@ public class MongoChecksumDAO implements ChecksumDAO
         return documentChecksums;
     }
 
-    private DBObject toDBObject(Checksum checksum)
+    private DBObject toDBObject(NodeChecksums documentChecksums, int row)
     {
         DBObject dbObject = BasicDBObjectBuilder
-                .start("i", checksum.getBlockIndex())
-                .add("h", checksum.getHash()).add("a", checksum.getAdler32())
-                .add("m", checksum.getMd5()).get();
+                .start("i", documentChecksums.getBlockIndex(row))
+                .add("h", documentChecksums.getHash(row)).add("a", documentChecksums.getAdler32(row))
+                .add("m", Digests.toBytes(documentChecksums.getDigestHi(row), documentChecksums.getDigestLo(row))).get();
         return dbObject;
     }
 
     private DBObject toDBObject(NodeChecksums documentChecksums)
     {
+        // checksums are stored grouped by weak hash, walk the rows in weak hash order
         BasicDBObjectBuilder checksumsObjectBuilder = BasicDBObjectBuilder
                 .start();
-        for (Map.Entry<Integer, List<Checksum>> checksums : documentChecksums
-                .getChecksums().entrySet())
+        List<DBObject> checksumDBObjects = null;
+        for (int position = 0; position < documentChecksums.size(); position++)
         {
-            List<DBObject> checksumDBObjects = new LinkedList<>();
-            for (Checksum checksum : checksums.getValue())
+            int row = documentChecksums.getRowByHash(position);
+            if (position == 0
+                    || documentChecksums.getHash(documentChecksums.getRowByHash(position - 1)) != documentChecksums.getHash(row))
             {
-                DBObject checksumDBObject = toDBObject(checksum);
-                checksumDBObjects.add(checksumDBObject);
+                checksumDBObjects = new LinkedList<>();
+                checksumsObjectBuilder.add(String.valueOf(documentChecksums.getHash(row)),
+                        checksumDBObjects);
             }
-            checksumsObjectBuilder.add(String.valueOf(checksums.getKey()),
-                    checksumDBObjects);
+            checksumDBObjects.add(toDBObject(documentChecksums, row));
         }
         DBObject dbObject = BasicDBObjectBuilder
                 .start("n", documentChecksums.getNodeId())
@@ -209,6 +238,8 @@ public class MongoChecksumDAO implements ChecksumDAO
                 .add("l", documentChecksums.getVersionLabel())
                 .add("b", documentChecksums.getBlockSize())
                 .add("nb", documentChecksums.getNumBlocks())
+                .add("alg", documentChecksums.getAlgorithm().name())
+                .add("mt", documentChecksums.getMerkleTree().toBytes())
                 .add("c", checksumsObjectBuilder.get()).get();
         return dbObject;
     }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.checksum;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
+import org.sglover.alfrescoextensions.common.HasherImpl;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class Adler32Test
+{
+    private static final int BLOCK_SIZE = 64;
+
+    private HasherImpl hasher;
+    private ByteBuffer data;
+
+    @Before
+    public void before() throws Exception
+    {
+        this.hasher = new HasherImpl(HashAlgorithm.MD5);
+
+        byte[] bytes = new byte[BLOCK_SIZE * 20];
+        new Random(42).nextBytes(bytes);
+        this.data = ByteBuffer.wrap(bytes);
+    }
+
+    private void assertSameChecksum(Adler32 expected, Adler32 actual)
+    {
+        assertEquals(expected.getA(), actual.getA());
+        assertEquals(expected.getB(), actual.getB());
+        assertEquals(expected.getAdler32(), actual.getAdler32());
+        assertEquals(expected.getHash(), actual.getHash());
+    }
+
+    private NodeChecksums checksums(ByteBuffer data)
+    {
+        NodeChecksums checksums = new NodeChecksums("1", 1l, 1l, "1.0", BLOCK_SIZE);
+        checksums.setAlgorithm(HashAlgorithm.MD5);
+        Adler32 adler32 = new Adler32(hasher);
+        long[] digest = new long[2];
+        int blockIndex = 1;
+        for(int start = 0; start < data.limit(); start += BLOCK_SIZE)
+        {
+            int end = Math.min(start + BLOCK_SIZE, data.limit()) - 1;
+            adler32.checksum(data, start, end);
+            hasher.hash(HashAlgorithm.MD5, data, start, end, digest);
+            checksums.addChecksum(blockIndex++, start, end, adler32.getHash(), adler32.getAdler32(),
+                    digest[0], digest[1]);
+        }
+        checksums.setNumBlocks(blockIndex - 1);
+        return checksums;
+    }
+
+    @Test
+    public void testRollingMatchesRecomputed() throws Exception
+    {
+        NodeChecksums noChecksums = new NodeChecksums("1", 1l, 1l, "1.0", BLOCK_SIZE);
+        noChecksums.setAlgorithm(HashAlgorithm.MD5);
+
+        Adler32 rolling = new Adler32(hasher);
+        Adler32 recomputed = new Adler32(hasher);
+        for(int start = 0; start + BLOCK_SIZE <= data.limit(); start++)
+        {
+            int end = start + BLOCK_SIZE - 1;
+            rolling.checkMatch(0, noChecksums, data, start, end);
+            recomputed.checksum(data, start, end);
+            assertSameChecksum(recomputed, rolling);
+        }
+    }
+
+    @Test
+    public void testShrinkingMatchesRecomputed() throws Exception
+    {
+        NodeChecksums noChecksums = new NodeChecksums("1", 1l, 1l, "1.0", BLOCK_SIZE);
+        noChecksums.setAlgorithm(HashAlgorithm.MD5);
+
+        // the window shrinks from the left at the end of the data
+        Adler32 rolling = new Adler32(hasher);
+        Adler32 recomputed = new Adler32(hasher);
+        int end = data.limit() - 1;
+        for(int start = data.limit() - BLOCK_SIZE; start <= end; start++)
+        {
+            rolling.checkMatch(0, noChecksums, data, start, end);
+            recomputed.checksum(data, start, end);
+            assertSameChecksum(recomputed, rolling);
+        }
+    }
+
+    @Test
+    public void testMatchesShiftedBlock() throws Exception
+    {
+        NodeChecksums checksums = checksums(data);
+
+        // insert a few bytes at the start, so that every block has moved
+        int shift = 7;
+        ByteBuffer shifted = ByteBuffer.allocate(data.limit() + shift);
+        shifted.put(new byte[shift]);
+        shifted.put(data.duplicate());
+        shifted.flip();
+
+        Adler32 adler32 = new Adler32(hasher);
+        for(int start = 0; start < shift; start++)
+        {
+            assertEquals(-1, adler32.checkMatch(0, checksums, shifted, start, start + BLOCK_SIZE - 1));
+        }
+        for(int block = 0; block < 20; block++)
+        {
+            int start = shift + block * BLOCK_SIZE;
+            assertEquals(block + 1, adler32.checkMatch(0, checksums, shifted, start, start + BLOCK_SIZE - 1));
+        }
+    }
+
+    @Test
+    public void testReuseAfterReset() throws Exception
+    {
+        NodeChecksums checksums = checksums(data);
+
+        Adler32 adler32 = new Adler32(hasher);
+        assertEquals(3, adler32.checkMatch(0, checksums, data, 2 * BLOCK_SIZE, 3 * BLOCK_SIZE - 1));
+
+        // refill the buffer with different content, the window must be recomputed
+        ByteBuffer other = ByteBuffer.allocate(data.limit());
+        adler32.reset();
+        assertEquals(-1, adler32.checkMatch(0, checksums, other, 2 * BLOCK_SIZE + 1, 3 * BLOCK_SIZE));
+
+        Adler32 recomputed = new Adler32(hasher);
+        recomputed.checksum(other, 2 * BLOCK_SIZE + 1, 3 * BLOCK_SIZE);
+        assertSameChecksum(recomputed, adler32);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.checksum;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
+import org.sglover.alfrescoextensions.common.HasherImpl;
+import org.sglover.alfrescoextensions.common.MimeType;
+import org.sglover.alfrescoextensions.common.Node;
+
+/**
+ * The memory mapped, parallel checksums of a file against those of the same content as a stream.
+ *
+ * @author sglover
+ *
+ */
+public class ChecksumServiceImplTest
+{
+    private static final int BLOCK_SIZE = 1024;
+    private static final int BLOCKS_PER_TASK = 4;
+
+    private Random random;
+    private File file;
+    private Node node;
+
+    @Before
+    public void before() throws Exception
+    {
+        this.random = new Random(42);
+        this.file = File.createTempFile("checksums", ".bin");
+        this.node = Node.build().nodeId("1").nodeVersion(1l).mimeType(MimeType.TEXT);
+    }
+
+    @After
+    public void after()
+    {
+        file.delete();
+    }
+
+    private void assertSameChecksums(NodeChecksums expected, NodeChecksums actual)
+    {
+        assertEquals(expected.getAlgorithm(), actual.getAlgorithm());
+        assertEquals(expected.getBlockSize(), actual.getBlockSize());
+        assertEquals(expected.getNumBlocks(), actual.getNumBlocks());
+        assertEquals(expected.size(), actual.size());
+        for(int row = 0; row < expected.size(); row++)
+        {
+            String message = "row " + row;
+            assertEquals(message, expected.getBlockIndex(row), actual.getBlockIndex(row));
+            assertEquals(message, expected.getStart(row), actual.getStart(row));
+            assertEquals(message, expected.getEnd(row), actual.getEnd(row));
+            assertEquals(message, expected.getHash(row), actual.getHash(row));
+            assertEquals(message, expected.getAdler32(row), actual.getAdler32(row));
+            assertEquals(message, expected.getDigestHi(row), actual.getDigestHi(row));
+            assertEquals(message, expected.getDigestLo(row), actual.getDigestLo(row));
+        }
+        assertEquals(expected.getRootDigest(), actual.getRootDigest());
+    }
+
+    private void assertMappedMatchesStream(HashAlgorithm algorithm, int size) throws Exception
+    {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        Files.write(file.toPath(), content);
+
+        ChecksumServiceImpl checksumService = new ChecksumServiceImpl(null, BLOCK_SIZE, new HasherImpl(algorithm));
+        checksumService.setBlocksPerTask(BLOCKS_PER_TASK);
+        try
+        {
+            NodeChecksums streamed = checksumService.getChecksums(node, new ByteArrayInputStream(content));
+            NodeChecksums mapped = checksumService.getChecksums(node, file.getAbsolutePath());
+            assertEquals(size / BLOCK_SIZE + (size % BLOCK_SIZE > 0 ? 1 : 0), streamed.size());
+            assertSameChecksums(streamed, mapped);
+        }
+        finally
+        {
+            checksumService.shutdown();
+        }
+    }
+
+    @Test
+    public void testSmallFiles() throws Exception
+    {
+        // within a single task
+        int[] sizes = new int[] {0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1,
+                BLOCKS_PER_TASK * BLOCK_SIZE - 1, BLOCKS_PER_TASK * BLOCK_SIZE};
+        for(int size : sizes)
+        {
+            assertMappedMatchesStream(HashAlgorithm.MD5, size);
+        }
+    }
+
+    @Test
+    public void testSeveralTasks() throws Exception
+    {
+        // split across tasks, with a short last block, and past the stream path's 20 block reads
+        int[] sizes = new int[] {BLOCKS_PER_TASK * BLOCK_SIZE + 1, 9 * BLOCK_SIZE + 17, 37 * BLOCK_SIZE + 123,
+                64 * BLOCK_SIZE, 101 * BLOCK_SIZE - 1};
+        for(int size : sizes)
+        {
+            assertMappedMatchesStream(HashAlgorithm.MD5, size);
+        }
+    }
+
+    @Test
+    public void testAlgorithms() throws Exception
+    {
+        for(HashAlgorithm algorithm : HashAlgorithm.values())
+        {
+            assertMappedMatchesStream(algorithm, 23 * BLOCK_SIZE + 511);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.checksum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.Digests;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
+import org.sglover.checksum.MerkleTree.BlockRange;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class MerkleTreeTest
+{
+    private static final int BLOCK_SIZE = 1024;
+
+    private Random random;
+
+    @Before
+    public void before() throws Exception
+    {
+        this.random = new Random(42);
+    }
+
+    private long[][] digests(int numBlocks)
+    {
+        long[][] digests = new long[2][numBlocks];
+        for(int i = 0; i < numBlocks; i++)
+        {
+            digests[0][i] = random.nextLong();
+            digests[1][i] = random.nextLong();
+        }
+        return digests;
+    }
+
+    private long[][] copy(long[][] digests, int numBlocks)
+    {
+        long[][] copy = new long[2][numBlocks];
+        System.arraycopy(digests[0], 0, copy[0], 0, Math.min(numBlocks, digests[0].length));
+        System.arraycopy(digests[1], 0, copy[1], 0, Math.min(numBlocks, digests[1].length));
+        for(int i = digests[0].length; i < numBlocks; i++)
+        {
+            copy[0][i] = random.nextLong();
+            copy[1][i] = random.nextLong();
+        }
+        return copy;
+    }
+
+    private void change(long[][] digests, int block)
+    {
+        digests[0][block] ^= 1;
+    }
+
+    private MerkleTree tree(long[][] digests)
+    {
+        // block indexes start at 1
+        return MerkleTree.build(1, digests[0], digests[1]);
+    }
+
+    private NodeChecksums checksums(long[][] digests)
+    {
+        NodeChecksums checksums = new NodeChecksums("node1", 1l, 1l, "1.0", BLOCK_SIZE, digests[0].length);
+        checksums.setAlgorithm(HashAlgorithm.MD5);
+        for(int i = 0; i < digests[0].length; i++)
+        {
+            checksums.addChecksum(i + 1, (long)i * BLOCK_SIZE, (long)(i + 1) * BLOCK_SIZE - 1, i, i,
+                    digests[0][i], digests[1][i]);
+        }
+        return checksums;
+    }
+
+    private void assertRanges(List<BlockRange> ranges, int... startsAndEnds)
+    {
+        assertEquals(ranges.toString(), startsAndEnds.length / 2, ranges.size());
+        for(int i = 0; i < ranges.size(); i++)
+        {
+            assertEquals(ranges.toString(), startsAndEnds[2 * i], ranges.get(i).getStartBlockIndex());
+            assertEquals(ranges.toString(), startsAndEnds[2 * i + 1], ranges.get(i).getEndBlockIndex());
+        }
+    }
+
+    @Test
+    public void testSame() throws Exception
+    {
+        long[][] digests = digests(13);
+        MerkleTree tree = tree(digests);
+        MerkleTree other = tree(copy(digests, 13));
+
+        assertTrue(tree.rootEquals(other));
+        assertEquals(tree.getRootDigest(), other.getRootDigest());
+        assertRanges(tree.diff(other));
+        assertEquals(5, tree.getNumLevels());
+    }
+
+    @Test
+    public void testChangedBlocks() throws Exception
+    {
+        long[][] digests = digests(13);
+        long[][] changed = copy(digests, 13);
+        change(changed, 0);
+        change(changed, 5);
+        change(changed, 6);
+        change(changed, 12);
+        MerkleTree tree = tree(digests);
+        MerkleTree other = tree(changed);
+
+        assertFalse(tree.rootEquals(other));
+        // adjacent blocks are merged into one range
+        assertRanges(tree.diff(other), 1, 1, 6, 7, 13, 13);
+        assertRanges(other.diff(tree), 1, 1, 6, 7, 13, 13);
+    }
+
+    @Test
+    public void testAppendedBlocks() throws Exception
+    {
+        long[][] digests = digests(10);
+        long[][] appended = copy(digests, 21);
+        change(appended, 2);
+        MerkleTree tree = tree(digests);
+        MerkleTree other = tree(appended);
+
+        assertFalse(tree.rootEquals(other));
+        assertRanges(tree.diff(other), 3, 3, 11, 21);
+        assertRanges(other.diff(tree), 3, 3, 11, 21);
+    }
+
+    @Test
+    public void testEmpty() throws Exception
+    {
+        MerkleTree empty = tree(digests(0));
+        MerkleTree tree = tree(digests(3));
+
+        assertNull(empty.getRootDigest());
+        assertTrue(empty.rootEquals(tree(digests(0))));
+        assertRanges(empty.diff(tree(digests(0))));
+        assertRanges(empty.diff(tree), 1, 3);
+        assertRanges(tree.diff(empty), 1, 3);
+    }
+
+    @Test
+    public void testSingleBlock() throws Exception
+    {
+        long[][] digests = digests(1);
+        MerkleTree tree = tree(digests);
+        assertEquals(1, tree.getNumLevels());
+        assertEquals(Digests.toHex(digests[0][0], digests[1][0]), tree.getRootDigest());
+
+        long[][] changed = copy(digests, 1);
+        change(changed, 0);
+        assertRanges(tree.diff(tree(changed)), 1, 1);
+    }
+
+    @Test
+    public void testFromBytes() throws Exception
+    {
+        NodeChecksums checksums = checksums(digests(13));
+        MerkleTree tree = checksums.getMerkleTree();
+
+        MerkleTree read = MerkleTree.fromBytes(ByteBuffer.wrap(tree.toBytes()), checksums);
+        assertNotNull(read);
+        assertTrue(tree.rootEquals(read));
+        assertEquals(tree.getFirstBlockIndex(), read.getFirstBlockIndex());
+        assertRanges(tree.diff(read));
+    }
+
+    @Test
+    public void testFromBytesOfOtherChecksums() throws Exception
+    {
+        long[][] digests = digests(13);
+        byte[] bytes = checksums(digests).getMerkleTree().toBytes();
+
+        // the first or last leaf has changed since the tree was stored
+        long[][] changed = copy(digests, 13);
+        change(changed, 0);
+        assertNull(MerkleTree.fromBytes(ByteBuffer.wrap(bytes), checksums(changed)));
+        changed = copy(digests, 13);
+        change(changed, 12);
+        assertNull(MerkleTree.fromBytes(ByteBuffer.wrap(bytes), checksums(changed)));
+
+        // a stored inner node is corrupt
+        byte[] corrupt = bytes.clone();
+        corrupt[corrupt.length - 1] ^= 1;
+        assertNull(MerkleTree.fromBytes(ByteBuffer.wrap(corrupt), checksums(digests)));
+
+        // a different number of blocks, or a truncated tree
+        assertNull(MerkleTree.fromBytes(ByteBuffer.wrap(bytes), checksums(copy(digests, 14))));
+        assertNull(MerkleTree.fromBytes(ByteBuffer.wrap(bytes, 0, bytes.length - 16), checksums(digests)));
+        assertNull(MerkleTree.fromBytes(null, checksums(digests)));
+    }
+
+    @Test
+    public void testFromBytesTrustsStoredLevels() throws Exception
+    {
+        long[][] digests = digests(13);
+        MerkleTree tree = checksums(digests).getMerkleTree();
+
+        // inner levels aren't recomputed, so a leaf away from the edges of the tree that has changed
+        // isn't noticed and its stored ancestors are used
+        long[][] changed = copy(digests, 13);
+        change(changed, 4);
+        NodeChecksums checksums = checksums(changed);
+        MerkleTree read = MerkleTree.fromBytes(ByteBuffer.wrap(tree.toBytes()), checksums);
+        assertNotNull(read);
+        assertTrue(tree.rootEquals(read));
+        assertFalse(read.rootEquals(MerkleTree.build(checksums)));
+        assertEquals(changed[0][4], read.getDigestHi(0, 4));
+
+        // all the leaves of a tree of up to 4 leaves are on its edges
+        for(int numBlocks = 2; numBlocks <= 4; numBlocks++)
+        {
+            digests = digests(numBlocks);
+            byte[] bytes = checksums(digests).getMerkleTree().toBytes();
+            assertNotNull(MerkleTree.fromBytes(ByteBuffer.wrap(bytes), checksums(digests)));
+            for(int i = 0; i < numBlocks; i++)
+            {
+                changed = copy(digests, numBlocks);
+                change(changed, i);
+                assertNull(MerkleTree.fromBytes(ByteBuffer.wrap(bytes), checksums(changed)));
+            }
+        }
+    }
+
+    @Test
+    public void testPublishedRootDigest() throws Exception
+    {
+        long[][] digests = digests(13);
+        NodeChecksums checksums = checksums(digests);
+
+        // NodeChecksums' root digest is published in events and ETags, so is a flat MD5 of the leaves
+        // rather than the tree's root
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        for(int i = 0; i < 13; i++)
+        {
+            md.update(Digests.toBytes(digests[0][i], digests[1][i]));
+        }
+        long[] expected = new long[2];
+        Digests.toLongs(md.digest(), expected);
+        assertEquals(Digests.toHex(expected[0], expected[1]), checksums.getRootDigest());
+        assertFalse(checksums.getRootDigest().equals(checksums.getMerkleTree().getRootDigest()));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.checksum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class NodeChecksumsCodecTest
+{
+    private byte[] write(NodeChecksums checksums) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NodeChecksumsCodec.write(checksums, out);
+        return out.toByteArray();
+    }
+
+    private NodeChecksums roundTrip(NodeChecksums checksums) throws IOException
+    {
+        NodeChecksums read = NodeChecksumsCodec.read(new ByteArrayInputStream(write(checksums)));
+        assertSameChecksums(checksums, read);
+        return read;
+    }
+
+    private void assertSameChecksums(NodeChecksums expected, NodeChecksums actual)
+    {
+        assertEquals(expected.getNodeId(), actual.getNodeId());
+        assertEquals(expected.getNodeInternalId(), actual.getNodeInternalId());
+        assertEquals(expected.getNodeVersion(), actual.getNodeVersion());
+        assertEquals(expected.getVersionLabel(), actual.getVersionLabel());
+        assertEquals(expected.getBlockSize(), actual.getBlockSize());
+        assertEquals(expected.getNumBlocks(), actual.getNumBlocks());
+        assertEquals(expected.getAlgorithm(), actual.getAlgorithm());
+        assertEquals(expected.size(), actual.size());
+        for(int row = 0; row < expected.size(); row++)
+        {
+            String message = "row " + row;
+            assertEquals(message, expected.getBlockIndex(row), actual.getBlockIndex(row));
+            assertEquals(message, expected.getStart(row), actual.getStart(row));
+            assertEquals(message, expected.getEnd(row), actual.getEnd(row));
+            assertEquals(message, expected.getHash(row), actual.getHash(row));
+            assertEquals(message, expected.getAdler32(row), actual.getAdler32(row));
+            assertEquals(message, expected.getDigestHi(row), actual.getDigestHi(row));
+            assertEquals(message, expected.getDigestLo(row), actual.getDigestLo(row));
+        }
+        assertEquals(expected.getRootDigest(), actual.getRootDigest());
+    }
+
+    @Test
+    public void testConsecutiveBlocks() throws Exception
+    {
+        int blockSize = 8192;
+        NodeChecksums checksums = new NodeChecksums("node1", 12l, 3l, "1.2", blockSize, 100);
+        checksums.setAlgorithm(HashAlgorithm.MD5);
+        Random random = new Random(42);
+        for(int block = 1; block <= 100; block++)
+        {
+            long start = (long)(block - 1) * blockSize;
+            long end = (block == 100 ? start + 99 : start + blockSize - 1);
+            checksums.addChecksum(block, start, end, random.nextInt(), random.nextInt(), random.nextLong(),
+                    random.nextLong());
+        }
+
+        byte[] bytes = write(checksums);
+        roundTrip(checksums);
+
+        // the block index and offsets of consecutive blocks take a few bytes
+        assertEquals(true, bytes.length < 100 * 30 + 50);
+    }
+
+    @Test
+    public void testNegativeValues() throws Exception
+    {
+        NodeChecksums checksums = new NodeChecksums("node1", -1l, -5l, "1.0", 1024, 4);
+        checksums.setAlgorithm(HashAlgorithm.SHA256);
+        checksums.addChecksum(3, 2048, 3071, -1, Integer.MIN_VALUE, -1l, Long.MIN_VALUE);
+        // blocks out of order and overlapping, so the deltas go backwards
+        checksums.addChecksum(1, 0, 1023, -12345, -678, Long.MIN_VALUE, -1l);
+        checksums.addChecksum(2, 512, 1535, Integer.MIN_VALUE, -1, -42l, -43l);
+        checksums.addChecksum(-1, 0, 0, 0, 0, 0l, 0l);
+        roundTrip(checksums);
+    }
+
+    @Test
+    public void testLargeValues() throws Exception
+    {
+        NodeChecksums checksums = new NodeChecksums("node1", Long.MAX_VALUE, Long.MAX_VALUE, "1.0",
+                Integer.MAX_VALUE, Long.MAX_VALUE);
+        checksums.setAlgorithm(HashAlgorithm.MURMUR3_128);
+        checksums.addChecksum(Integer.MAX_VALUE, 0, Long.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                Long.MAX_VALUE, Long.MAX_VALUE);
+        checksums.addChecksum(Integer.MIN_VALUE, Long.MAX_VALUE - 1, Long.MAX_VALUE, 1, 2, 3l, 4l);
+        checksums.addChecksum(Integer.MAX_VALUE - 1, 5l * Integer.MAX_VALUE, 6l * Integer.MAX_VALUE,
+                Integer.MIN_VALUE, Integer.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE);
+        roundTrip(checksums);
+    }
+
+    @Test
+    public void testEmpty() throws Exception
+    {
+        NodeChecksums checksums = new NodeChecksums(null, null, null, null, 1024);
+        checksums.setAlgorithm(HashAlgorithm.MD5);
+        NodeChecksums read = roundTrip(checksums);
+        assertNull(read.getNodeId());
+        assertNull(read.getNodeInternalId());
+        assertEquals(0, read.size());
+        assertNull(read.getRootDigest());
+
+        // empty strings aren't read back as nulls
+        checksums = new NodeChecksums("", 0l, 0l, "", 0, 0);
+        checksums.setAlgorithm(HashAlgorithm.MD5);
+        read = roundTrip(checksums);
+        assertEquals("", read.getNodeId());
+        assertEquals("", read.getVersionLabel());
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws Exception
+    {
+        NodeChecksums checksums = new NodeChecksums("node1", 1l, 1l, "1.0", 1024);
+        checksums.setAlgorithm(HashAlgorithm.MD5);
+        byte[] bytes = write(checksums);
+        bytes[0] = 2;
+        try
+        {
+            NodeChecksumsCodec.read(new ByteArrayInputStream(bytes));
+            fail();
+        }
+        catch(IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTruncated() throws Exception
+    {
+        NodeChecksums checksums = new NodeChecksums("node1", 1l, 1l, "1.0", 1024, 1);
+        checksums.setAlgorithm(HashAlgorithm.MD5);
+        checksums.addChecksum(1, 0, 1023, 1, 2, 3l, 4l);
+        byte[] bytes = write(checksums);
+        try
+        {
+            NodeChecksumsCodec.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+            fail();
+        }
+        catch(EOFException e)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.checksum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class NodeChecksumsTest
+{
+    private Random random;
+
+    @Before
+    public void before() throws Exception
+    {
+        this.random = new Random(42);
+    }
+
+    private NodeChecksums checksums()
+    {
+        return new NodeChecksums("node1", 1l, 1l, "1.0", 1024);
+    }
+
+    private void add(NodeChecksums checksums, int hash)
+    {
+        int block = checksums.size() + 1;
+        checksums.addChecksum(block, (block - 1) * 1024l, block * 1024l - 1, hash, random.nextInt(),
+                random.nextLong(), random.nextLong());
+    }
+
+    // rows by weak hash, in the order they were added
+    private Map<Integer, List<Integer>> expectedRows(NodeChecksums checksums)
+    {
+        Map<Integer, List<Integer>> rows = new LinkedHashMap<>();
+        for(int row = 0; row < checksums.size(); row++)
+        {
+            List<Integer> hashRows = rows.get(checksums.getHash(row));
+            if(hashRows == null)
+            {
+                hashRows = new ArrayList<>();
+                rows.put(checksums.getHash(row), hashRows);
+            }
+            hashRows.add(row);
+        }
+        return rows;
+    }
+
+    private void assertHashIndex(NodeChecksums checksums)
+    {
+        Map<Integer, List<Integer>> expected = expectedRows(checksums);
+        for(Map.Entry<Integer, List<Integer>> entry : expected.entrySet())
+        {
+            List<Integer> rows = new ArrayList<>();
+            for(int position = checksums.firstByHash(entry.getKey()); position != -1;
+                    position = checksums.nextByHash(position))
+            {
+                rows.add(checksums.getRowByHash(position));
+            }
+            assertEquals("hash " + entry.getKey(), entry.getValue(), rows);
+            assertEquals(entry.getValue().size(), checksums.getChecksums(entry.getKey()).size());
+        }
+
+        // hashes that aren't there, probing past any that are
+        for(int i = 0; i < 1000; i++)
+        {
+            int hash = random.nextInt();
+            if(!expected.containsKey(hash))
+            {
+                assertEquals(-1, checksums.firstByHash(hash));
+                assertNull(checksums.getChecksums(hash));
+            }
+        }
+    }
+
+    @Test
+    public void testCollidingHashes() throws Exception
+    {
+        NodeChecksums checksums = checksums();
+        // many rows with the same hash, interleaved with others
+        for(int i = 0; i < 50; i++)
+        {
+            add(checksums, 7);
+            add(checksums, i);
+            add(checksums, -i);
+        }
+        // hashes that differ only in their high bits, which land in the same slot without mixing
+        for(int i = 0; i < 50; i++)
+        {
+            add(checksums, i << 24);
+            add(checksums, (i << 20) | 7);
+        }
+        add(checksums, Integer.MIN_VALUE);
+        add(checksums, Integer.MAX_VALUE);
+        add(checksums, -1);
+
+        assertHashIndex(checksums);
+        // 50 of its own, and i and (i << 20) | 7 for i = 7 and 0
+        assertEquals(52, checksums.getChecksums(7).size());
+    }
+
+    @Test
+    public void testRandomHashes() throws Exception
+    {
+        NodeChecksums checksums = checksums();
+        for(int i = 0; i < 5000; i++)
+        {
+            // some repeated
+            add(checksums, random.nextInt(3000));
+        }
+        assertHashIndex(checksums);
+    }
+
+    @Test
+    public void testGrowAndRebuild() throws Exception
+    {
+        NodeChecksums checksums = checksums();
+        assertEquals(-1, checksums.firstByHash(1));
+
+        // past the initial capacity, so the columns grow
+        for(int i = 0; i < 40; i++)
+        {
+            add(checksums, i % 10);
+        }
+        assertHashIndex(checksums);
+
+        // rows added after the index was built are in it
+        for(int i = 0; i < 100; i++)
+        {
+            add(checksums, i);
+        }
+        assertEquals(140, checksums.size());
+        assertHashIndex(checksums);
+        // 4 of the first 40 and 1 of the 100
+        assertEquals(5, checksums.getChecksums(3).size());
+
+        // and replacing the checksums rebuilds it
+        Map<Integer, List<Checksum>> replacement = new LinkedHashMap<>();
+        replacement.put(3, checksums.getChecksums(3));
+        checksums.setChecksums(replacement);
+        assertEquals(5, checksums.size());
+        assertEquals(-1, checksums.firstByHash(4));
+        assertHashIndex(checksums);
+    }
+
+    @Test
+    public void testRowByHashOrder() throws Exception
+    {
+        NodeChecksums checksums = checksums();
+        int[] hashes = new int[] {5, 3, 5, 9, 3, 5, 1};
+        for(int hash : hashes)
+        {
+            add(checksums, hash);
+        }
+
+        // grouped by hash in the order each hash was first added, rows in the order they were added
+        int[] expected = new int[] {0, 2, 5, 1, 4, 3, 6};
+        for(int position = 0; position < expected.length; position++)
+        {
+            assertEquals("position " + position, expected[position], checksums.getRowByHash(position));
+        }
+
+        // every row once, whatever the hashes
+        checksums = checksums();
+        for(int i = 0; i < 1000; i++)
+        {
+            add(checksums, random.nextInt(100));
+        }
+        Set<Integer> rows = new HashSet<>();
+        Set<Integer> seenHashes = new HashSet<>();
+        for(int position = 0; position < checksums.size(); position++)
+        {
+            int row = checksums.getRowByHash(position);
+            assertTrue(rows.add(row));
+            int hash = checksums.getHash(row);
+            if(position > 0 && checksums.getHash(checksums.getRowByHash(position - 1)) == hash)
+            {
+                assertTrue(checksums.getRowByHash(position - 1) < row);
+            }
+            else
+            {
+                // a group isn't split
+                assertTrue(seenHashes.add(hash));
+            }
+        }
+        assertEquals(checksums.size(), rows.size());
+    }
+
+    private int getCapacity(NodeChecksums checksums) throws Exception
+    {
+        Field field = NodeChecksums.class.getDeclaredField("blockIndexes");
+        field.setAccessible(true);
+        return ((int[])field.get(checksums)).length;
+    }
+
+    private NodeChecksums serialise(NodeChecksums checksums) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(checksums);
+        }
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            return (NodeChecksums)in.readObject();
+        }
+    }
+
+    @Test
+    public void testSerialisation() throws Exception
+    {
+        NodeChecksums checksums = checksums();
+        for(int i = 0; i < 20; i++)
+        {
+            add(checksums, i % 4);
+        }
+        int capacity = getCapacity(checksums);
+        assertTrue(capacity > 20);
+
+        NodeChecksums read = serialise(checksums);
+
+        // the original is left as it was
+        assertEquals(capacity, getCapacity(checksums));
+        // the copy is trimmed
+        assertEquals(20, getCapacity(read));
+
+        assertEquals(checksums.size(), read.size());
+        assertEquals(checksums.getNodeId(), read.getNodeId());
+        assertEquals(checksums.getAlgorithm(), read.getAlgorithm());
+        assertEquals(checksums.getRootDigest(), read.getRootDigest());
+        for(int row = 0; row < checksums.size(); row++)
+        {
+            // Checksum has no equals, its string has all its fields
+            assertEquals(checksums.getChecksum(row).toString(), read.getChecksum(row).toString());
+        }
+        assertHashIndex(read);
+
+        // both can still be added to
+        add(checksums, 99);
+        add(read, 99);
+        assertEquals(21, read.size());
+        assertEquals(1, read.getChecksums(99).size());
+        assertHashIndex(read);
+
+        // including ones that were empty
+        NodeChecksums empty = serialise(checksums());
+        assertEquals(0, empty.size());
+        assertEquals(-1, empty.firstByHash(1));
+        add(empty, 1);
+        assertEquals(1, empty.getChecksums(1).size());
+    }
+}
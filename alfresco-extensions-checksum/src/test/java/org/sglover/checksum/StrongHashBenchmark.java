@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.checksum;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.sglover.alfrescoextensions.common.Digests;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
+import org.sglover.alfrescoextensions.common.HasherImpl;
+import org.sglover.alfrescoextensions.common.Node;
+
+/**
+ * Compares strong checksum matching using hex strings (the old path) against binary digests,
+ * and the cost of the available strong hash algorithms.
+ *
+ * Run with main() from the test classpath.
+ *
+ * @author sglover
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StrongHashBenchmark
+{
+    private static final int BLOCK_SIZE = 1024 * 10;
+    private static final int NUM_BLOCKS = 100;
+
+    private ByteBuffer data;
+    private Checksum[] checksums;
+    private String[] hexChecksums;
+
+    private HasherImpl hasher;
+    private long[] digest = new long[2];
+    private MessageDigest md5Digest;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        byte[] bytes = new byte[BLOCK_SIZE * NUM_BLOCKS];
+        new Random(42).nextBytes(bytes);
+        this.data = ByteBuffer.wrap(bytes);
+
+        this.hasher = new HasherImpl();
+        this.md5Digest = MessageDigest.getInstance("MD5");
+
+        ChecksumServiceImpl checksumService = new ChecksumServiceImpl(null, BLOCK_SIZE, hasher);
+        NodeChecksums nodeChecksums = checksumService.getChecksums(Node.build().nodeId("n1").nodeVersion(1l),
+                new ByteArrayInputStream(bytes));
+
+        this.checksums = new Checksum[NUM_BLOCKS];
+        this.hexChecksums = new String[NUM_BLOCKS];
+        for(int i = 0; i < NUM_BLOCKS; i++)
+        {
+            Checksum checksum = nodeChecksums.getChecksumByBlock(i + 1);
+            checksums[i] = checksum;
+            hexChecksums[i] = Digests.toHex(checksum.getDigestHi(), checksum.getDigestLo());
+        }
+    }
+
+    // the hex string digest, as computed before digests were held as binary
+    private String hexMd5(ByteBuffer bytes, int start, int end)
+    {
+        int saveLimit = bytes.limit();
+        bytes.limit(end + 1);
+
+        bytes.mark();
+        bytes.position(start);
+
+        md5Digest.reset();
+        md5Digest.update(bytes);
+        byte[] array = md5Digest.digest();
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < array.length; ++i)
+        {
+            sb.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(
+                    1, 3));
+        }
+
+        bytes.limit(saveLimit);
+        bytes.reset();
+
+        return sb.toString();
+    }
+
+    @Benchmark
+    public int hexMatch()
+    {
+        int matches = 0;
+        for(int i = 0; i < NUM_BLOCKS; i++)
+        {
+            int start = i * BLOCK_SIZE;
+            String md5sum = hexMd5(data, start, start + BLOCK_SIZE - 1);
+            if(md5sum.equals(hexChecksums[i]))
+            {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int binaryMatch()
+    {
+        int matches = 0;
+        for(int i = 0; i < NUM_BLOCKS; i++)
+        {
+            int start = i * BLOCK_SIZE;
+            hasher.hash(HashAlgorithm.MD5, data, start, start + BLOCK_SIZE - 1, digest);
+            if(checksums[i].digestEquals(digest[0], digest[1]))
+            {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private long hashAll(HashAlgorithm algorithm)
+    {
+        long result = 0;
+        for(int i = 0; i < NUM_BLOCKS; i++)
+        {
+            int start = i * BLOCK_SIZE;
+            hasher.hash(algorithm, data, start, start + BLOCK_SIZE - 1, digest);
+            result ^= digest[0] ^ digest[1];
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long md5()
+    {
+        return hashAll(HashAlgorithm.MD5);
+    }
+
+    @Benchmark
+    public long sha256()
+    {
+        return hashAll(HashAlgorithm.SHA256);
+    }
+
+    @Benchmark
+    public long murmur3()
+    {
+        return hashAll(HashAlgorithm.MURMUR3_128);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .include(StrongHashBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.checksum.dao.cassandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.CassandraSession;
+import org.sglover.checksum.MerkleTree;
+import org.sglover.checksum.NodeChecksums;
+
+import com.datastax.driver.core.TableMetadata;
+
+/**
+ * Needs a Cassandra instance on localhost.
+ *
+ * @author sglover
+ *
+ */
+public class CassandraChecksumDAOTest
+{
+    private CassandraSession cassandraSession;
+    private Random random = new Random(42);
+
+    @Before
+    public void before() throws Exception
+    {
+        this.cassandraSession = new CassandraSession("localhost", "checksumstest", true);
+        cassandraSession.init();
+    }
+
+    @After
+    public void after()
+    {
+        cassandraSession.shutdown();
+    }
+
+    private NodeChecksums checksums(String nodeId, int numBlocks)
+    {
+        NodeChecksums checksums = new NodeChecksums(nodeId, -1l, 1l, "1.0", 1024, numBlocks);
+        for(int i = 0; i < numBlocks; i++)
+        {
+            checksums.addChecksum(i + 1, i * 1024l, i * 1024l + 1023, random.nextInt(), random.nextInt(),
+                    random.nextLong(), random.nextLong());
+        }
+        return checksums;
+    }
+
+    @Test
+    public void testAllBlocksStored() throws Exception
+    {
+        CassandraChecksumDAO checksumDAO = new CassandraChecksumDAO(cassandraSession);
+        NodeChecksums checksums = checksums("1", 13);
+        checksumDAO.saveChecksums(checksums);
+
+        NodeChecksums read = checksumDAO.getChecksums("1", 1l);
+        assertNotNull(read);
+        assertEquals(13, read.size());
+        int[] rows = checksums.getRowsInBlockOrder();
+        int[] readRows = read.getRowsInBlockOrder();
+        for(int i = 0; i < 13; i++)
+        {
+            assertEquals(checksums.getBlockIndex(rows[i]), read.getBlockIndex(readRows[i]));
+            assertTrue(read.digestEquals(readRows[i], checksums.getDigestHi(rows[i]),
+                    checksums.getDigestLo(rows[i])));
+        }
+        assertEquals(checksums.getRootDigest(), read.getRootDigest());
+
+        MerkleTree tree = read.getMerkleTree();
+        assertTrue(tree.rootEquals(checksums.getMerkleTree()));
+        assertTrue(tree.diff(checksums.getMerkleTree()).isEmpty());
+    }
+
+    @Test
+    public void testMigrateUnclusteredTable() throws Exception
+    {
+        // the checksums table as it was, keyed by node version alone
+        String keyspace = cassandraSession.getKeyspace();
+        cassandraSession.getCassandraSession().execute("CREATE TABLE " + keyspace + ".checksums_metadata "
+                + "(node_id text, node_version bigint, version_label text, block_size int, num_blocks bigint, "
+                + "PRIMARY KEY((node_id, node_version)));");
+        cassandraSession.getCassandraSession().execute("CREATE TABLE " + keyspace + ".checksums "
+                + "(node_id text, node_version bigint, block_idx int, hash int, adler32 int, md5 text, "
+                + "start bigint, end bigint, PRIMARY KEY((node_id, node_version)));");
+        cassandraSession.getCassandraSession().execute("INSERT INTO " + keyspace + ".checksums_metadata "
+                + "(node_id, node_version, version_label, block_size, num_blocks) VALUES ('1', 1, '1.0', 1024, 2);");
+        cassandraSession.getCassandraSession().execute("INSERT INTO " + keyspace + ".checksums "
+                + "(node_id, node_version, block_idx, hash, adler32, md5, start, end) "
+                + "VALUES ('1', 1, 2, 1, 1, '0123456789abcdef0123456789abcdef', 1024, 2047);");
+
+        CassandraChecksumDAO checksumDAO = new CassandraChecksumDAO(cassandraSession);
+
+        // the incomplete checksums are gone, so are recomputed rather than used
+        assertNull(checksumDAO.getChecksums("1", 1l));
+        TableMetadata checksumsTable = cassandraSession.getCluster().getMetadata().getKeyspace(keyspace)
+                .getTable("checksums");
+        assertEquals(1, checksumsTable.getClusteringColumns().size());
+        assertEquals("block_idx", checksumsTable.getClusteringColumns().get(0).getName());
+
+        NodeChecksums checksums = checksums("1", 3);
+        checksumDAO.saveChecksums(checksums);
+        assertEquals(3, checksumDAO.getChecksums("1", 1l).size());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd. 
+ * pursuant to a written agreement and any use of this program without such an 
+ * agreement is prohibited. 
+ */
+package org.sglover.alfrescoextensions.common;
+
+/**
+ * Conversions for 128 bit digests held as two longs (high 64 bits, low 64 bits).
+ * 
+ * @author sglover
+ */
+public final class Digests
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Digests()
+    {
+    }
+
+    /**
+     * Packs the first 16 bytes of digest (big endian) into out[0] (high) and out[1] (low).
+     */
+    public static void toLongs(byte[] digest, long[] out)
+    {
+        long hi = 0;
+        long lo = 0;
+        for (int i = 0; i < 8; i++)
+        {
+            hi = (hi << 8) | (digest[i] & 0xFF);
+        }
+        for (int i = 8; i < 16; i++)
+        {
+            lo = (lo << 8) | (digest[i] & 0xFF);
+        }
+        out[0] = hi;
+        out[1] = lo;
+    }
+
+    public static byte[] toBytes(long hi, long lo)
+    {
+        byte[] bytes = new byte[16];
+        for (int i = 7; i >= 0; i--)
+        {
+            bytes[i] = (byte)hi;
+            hi >>>= 8;
+        }
+        for (int i = 15; i >= 8; i--)
+        {
+            bytes[i] = (byte)lo;
+            lo >>>= 8;
+        }
+        return bytes;
+    }
+
+    /**
+     * Lower case hex encoding, 32 characters.
+     */
+    public static String toHex(long hi, long lo)
+    {
+        char[] chars = new char[32];
+        for (int i = 15; i >= 0; i--)
+        {
+            chars[i] = HEX[(int)(hi & 0xF)];
+            hi >>>= 4;
+        }
+        for (int i = 31; i >= 16; i--)
+        {
+            chars[i] = HEX[(int)(lo & 0xF)];
+            lo >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Parses a 32 character hex digest into out[0] (high) and out[1] (low).
+     */
+    public static void fromHex(String hex, long[] out)
+    {
+        if (hex == null || hex.length() != 32)
+        {
+            throw new IllegalArgumentException("Expected a 32 character hex digest, got " + hex);
+        }
+        out[0] = Long.parseUnsignedLong(hex.substring(0, 16), 16);
+        out[1] = Long.parseUnsignedLong(hex.substring(16), 16);
+    }
+}
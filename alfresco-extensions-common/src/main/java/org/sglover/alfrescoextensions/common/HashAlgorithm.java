@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd. 
+ * pursuant to a written agreement and any use of this program without such an 
+ * agreement is prohibited. 
+ */
+package org.sglover.alfrescoextensions.common;
+
+/**
+ * Strong hash algorithms for block checksums. All produce a 128 bit digest.
+ * 
+ * @author sglover
+ */
+public enum HashAlgorithm
+{
+    MD5("MD5"),
+    /**
+     * SHA-256, truncated to the first 128 bits.
+     */
+    SHA256("SHA-256"),
+    /**
+     * MurmurHash3 x64 128, a fast non-cryptographic hash. Only suitable where content isn't adversarial,
+     * for example dedup within a cluster.
+     */
+    MURMUR3_128(null);
+
+    private String messageDigestName;
+
+    private HashAlgorithm(String messageDigestName)
+    {
+        this.messageDigestName = messageDigestName;
+    }
+
+    /**
+     * @return the java.security.MessageDigest algorithm name, or null if the algorithm
+     * isn't implemented by a MessageDigest
+     */
+    public String getMessageDigestName()
+    {
+        return messageDigestName;
+    }
+}
@@ -8,13 +8,27 @@
 package org.sglover.alfrescoextensions.common;
 
 import java.nio.ByteBuffer;
-import java.security.NoSuchAlgorithmException;
 
 /**
+ * Strong hashes of byte ranges. Implementations must be safe to share between threads.
  * 
  * @author sglover
  */
 public interface Hasher
 {
-    String md5(ByteBuffer bytes, int start, int end) throws NoSuchAlgorithmException;
+    /**
+     * @return the algorithm used for newly computed checksums
+     */
+    HashAlgorithm getAlgorithm();
+
+    /**
+     * Computes the 128 bit digest of bytes[start..end] (inclusive) using the given algorithm into
+     * digest[0] (high 64 bits) and digest[1] (low 64 bits). Does not allocate.
+     */
+    void hash(HashAlgorithm algorithm, ByteBuffer bytes, int start, int end, long[] digest);
+
+    /**
+     * As {@link #hash(HashAlgorithm, ByteBuffer, int, int, long[])} using {@link #getAlgorithm()}.
+     */
+    void hash(ByteBuffer bytes, int start, int end, long[] digest);
 }
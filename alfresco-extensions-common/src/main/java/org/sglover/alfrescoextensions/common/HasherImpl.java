@@ -8,12 +8,15 @@
 package org.sglover.alfrescoextensions.common;
 
 import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
+ * Thread safe: each thread gets its own MessageDigest instances and digest buffer.
  * 
  * @author sglover
  *
@@ -21,41 +24,108 @@ import org.springframework.stereotype.Component;
 @Component
 public class HasherImpl implements Hasher
 {
-    private MessageDigest md5;
+    @Value("${checksum.hashAlgorithm:MD5}")
+    private HashAlgorithm algorithm = HashAlgorithm.MD5;
 
-    public HasherImpl() throws NoSuchAlgorithmException
+    private ThreadLocal<Digesters> digesters = new ThreadLocal<Digesters>()
     {
-        md5 = MessageDigest.getInstance("MD5");
+        @Override
+        protected Digesters initialValue()
+        {
+            return new Digesters();
+        }
+    };
+
+    private static class Digesters
+    {
+        private MessageDigest[] messageDigests = new MessageDigest[HashAlgorithm.values().length];
+        private byte[] buffer = new byte[64];
+
+        MessageDigest get(HashAlgorithm algorithm)
+        {
+            MessageDigest messageDigest = messageDigests[algorithm.ordinal()];
+            if(messageDigest == null)
+            {
+                try
+                {
+                    messageDigest = MessageDigest.getInstance(algorithm.getMessageDigestName());
+                }
+                catch(NoSuchAlgorithmException e)
+                {
+                    throw new IllegalArgumentException("Unsupported hash algorithm " + algorithm, e);
+                }
+                messageDigests[algorithm.ordinal()] = messageDigest;
+            }
+            return messageDigest;
+        }
     }
 
-    private String getHash(ByteBuffer bytes, int start, int end, MessageDigest digest)
-            throws NoSuchAlgorithmException
+    public HasherImpl()
+    {
+    }
+
+    public HasherImpl(HashAlgorithm algorithm)
+    {
+        this.algorithm = algorithm;
+    }
+
+    public void setAlgorithm(HashAlgorithm algorithm)
+    {
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public HashAlgorithm getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    private void getHash(ByteBuffer bytes, int start, int end, MessageDigest digest, byte[] buffer, long[] out)
     {
         int saveLimit = bytes.limit();
+        int savePosition = bytes.position();
         bytes.limit(end + 1);
-
-        bytes.mark();
         bytes.position(start);
 
         digest.reset();
         digest.update(bytes);
-        byte[] array = digest.digest();
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < array.length; ++i)
+        try
         {
-            sb.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(
-                    1, 3));
+            digest.digest(buffer, 0, buffer.length);
+        }
+        catch(DigestException e)
+        {
+            throw new RuntimeException(e);
         }
 
         bytes.limit(saveLimit);
-        bytes.reset();
+        bytes.position(savePosition);
+
+        // longer digests are truncated to 128 bits
+        Digests.toLongs(buffer, out);
+    }
 
-        return sb.toString();
+    @Override
+    public void hash(HashAlgorithm algorithm, ByteBuffer bytes, int start, int end, long[] digest)
+    {
+        switch(algorithm)
+        {
+        case MURMUR3_128:
+        {
+            Murmur3.hash128(bytes, start, end, 0, digest);
+            break;
+        }
+        default:
+        {
+            Digesters d = digesters.get();
+            getHash(bytes, start, end, d.get(algorithm), d.buffer, digest);
+        }
+        }
     }
 
     @Override
-    public String md5(ByteBuffer bytes, int start, int end) throws NoSuchAlgorithmException
+    public void hash(ByteBuffer bytes, int start, int end, long[] digest)
     {
-        return getHash(bytes, start, end, md5);
+        hash(algorithm, bytes, start, end, digest);
     }
 }
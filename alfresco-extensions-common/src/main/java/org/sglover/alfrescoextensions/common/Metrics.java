@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.alfrescoextensions.common;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * The metric registry shared by the extensions' components, so that their metrics are reported
+ * together. A service that has its own registry (e.g. Dropwizard's) adds it under {@link #REGISTRY_NAME}
+ * before its components start, otherwise one is created on first use.
+ *
+ * @author sglover
+ */
+public final class Metrics
+{
+    public static final String REGISTRY_NAME = "alfresco-extensions";
+
+    private Metrics()
+    {
+    }
+
+    public static MetricRegistry getSharedRegistry()
+    {
+        return SharedMetricRegistries.getOrCreate(REGISTRY_NAME);
+    }
+
+    /**
+     * Registers metric under name, replacing any metric already registered under it (e.g. by an earlier
+     * instance of the component).
+     */
+    public static <T extends Metric> T register(MetricRegistry registry, String name, T metric)
+    {
+        registry.remove(name);
+        return registry.register(name, metric);
+    }
+}
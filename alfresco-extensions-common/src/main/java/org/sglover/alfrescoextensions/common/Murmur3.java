@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd. 
+ * pursuant to a written agreement and any use of this program without such an 
+ * agreement is prohibited. 
+ */
+package org.sglover.alfrescoextensions.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * MurmurHash3 x64 128, computed directly over a region of a ByteBuffer without allocating. Output matches
+ * Guava's Hashing.murmur3_128(seed), with h1 as the high 64 bits and h2 as the low 64 bits.
+ * 
+ * @author sglover
+ */
+public final class Murmur3
+{
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3()
+    {
+    }
+
+    private static long getLongLE(ByteBuffer bytes, int index)
+    {
+        long l = bytes.getLong(index);
+        return bytes.order() == ByteOrder.LITTLE_ENDIAN ? l : Long.reverseBytes(l);
+    }
+
+    private static long fmix64(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long mixK1(long k1)
+    {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2)
+    {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long byteAt(ByteBuffer bytes, int index)
+    {
+        return bytes.get(index) & 0xFFL;
+    }
+
+    /**
+     * Hashes bytes[start..end] (inclusive) into digest[0] (h1) and digest[1] (h2).
+     */
+    public static void hash128(ByteBuffer bytes, int start, int end, int seed, long[] digest)
+    {
+        int len = end - start + 1;
+        // sign extended, as Guava does, rather than the reference implementation's unsigned seed
+        long h1 = seed;
+        long h2 = seed;
+
+        int i = start;
+        int numChunks = len / 16;
+        for (int chunk = 0; chunk < numChunks; chunk++, i += 16)
+        {
+            long k1 = getLongLE(bytes, i);
+            long k2 = getLongLE(bytes, i + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        switch (len & 15)
+        {
+        case 15:
+            k2 ^= byteAt(bytes, i + 14) << 48;
+        case 14:
+            k2 ^= byteAt(bytes, i + 13) << 40;
+        case 13:
+            k2 ^= byteAt(bytes, i + 12) << 32;
+        case 12:
+            k2 ^= byteAt(bytes, i + 11) << 24;
+        case 11:
+            k2 ^= byteAt(bytes, i + 10) << 16;
+        case 10:
+            k2 ^= byteAt(bytes, i + 9) << 8;
+        case 9:
+            k2 ^= byteAt(bytes, i + 8);
+            h2 ^= mixK2(k2);
+        case 8:
+            k1 ^= byteAt(bytes, i + 7) << 56;
+        case 7:
+            k1 ^= byteAt(bytes, i + 6) << 48;
+        case 6:
+            k1 ^= byteAt(bytes, i + 5) << 40;
+        case 5:
+            k1 ^= byteAt(bytes, i + 4) << 32;
+        case 4:
+            k1 ^= byteAt(bytes, i + 3) << 24;
+        case 3:
+            k1 ^= byteAt(bytes, i + 2) << 16;
+        case 2:
+            k1 ^= byteAt(bytes, i + 1) << 8;
+        case 1:
+            k1 ^= byteAt(bytes, i);
+            h1 ^= mixK1(k1);
+        default:
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        digest[0] = h1;
+        digest[1] = h2;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.alfrescoextensions.common.scheduler;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor service view of a work stage that submits work at a fixed priority, for code that
+ * takes an ExecutorService. The stage's lifecycle belongs to the scheduler, so shutting down the view
+ * does nothing to the stage.
+ *
+ * @author sglover
+ *
+ */
+public class StageExecutorService extends AbstractExecutorService
+{
+    private final WorkStage stage;
+    private final WorkPriority priority;
+
+    public StageExecutorService(WorkStage stage, WorkPriority priority)
+    {
+        this.stage = stage;
+        this.priority = priority;
+    }
+
+    public WorkStage getStage()
+    {
+        return stage;
+    }
+
+    public WorkPriority getPriority()
+    {
+        return priority;
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+        stage.submit(command, priority);
+    }
+
+    @Override
+    public void shutdown()
+    {
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return stage.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return stage.isShutdown() && stage.getQueueDepth() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return stage.awaitTermination(timeout, unit);
+    }
+}
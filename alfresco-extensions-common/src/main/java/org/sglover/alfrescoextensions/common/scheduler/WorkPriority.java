@@ -0,0 +1,21 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.alfrescoextensions.common.scheduler;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public enum WorkPriority
+{
+    // work for a node a client has asked for and is waiting on
+    INTERACTIVE,
+    // work driven by repository events, backfill etc
+    BULK;
+}
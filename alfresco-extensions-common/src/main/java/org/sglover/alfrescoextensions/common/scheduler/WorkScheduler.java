@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.alfrescoextensions.common.scheduler;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Schedules the work of fetching, storing, checksumming, transforming and extracting entities from
+ * content across a shared set of stages, rather than each service having its own unbounded thread
+ * pool. Each stage has a bounded queue per priority, so bulk work (e.g. repository events) pushes back
+ * on its submitters when a stage falls behind, and work for a client that is waiting is taken first.
+ *
+ * @author sglover
+ *
+ */
+public class WorkScheduler
+{
+    private static Log logger = LogFactory.getLog(WorkScheduler.class);
+
+    // fetching content from the repository and storing it
+    public static final String FETCH = "fetch";
+    public static final String CHECKSUM = "checksum";
+    public static final String TRANSFORM = "transform";
+    public static final String NLP = "nlp";
+
+    private Map<String, WorkStage> stages = new LinkedHashMap<>();
+    private MetricRegistry metrics;
+    private long shutdownTimeoutMs = 10000;
+    private volatile boolean started;
+
+    public WorkScheduler()
+    {
+    }
+
+    public WorkScheduler(List<WorkStage> stages)
+    {
+        setStages(stages);
+    }
+
+    /**
+     * A started scheduler with small default stages, for services that are used without one having
+     * been configured.
+     */
+    public static WorkScheduler withDefaultStages()
+    {
+        WorkScheduler scheduler = new WorkScheduler(Arrays.asList(
+                new WorkStage(FETCH, 5, 1000),
+                new WorkStage(CHECKSUM, 4, 1000),
+                new WorkStage(TRANSFORM, 2, 100),
+                new WorkStage(NLP, 2, 100)));
+        scheduler.init();
+        return scheduler;
+    }
+
+    public void setStages(List<WorkStage> stages)
+    {
+        Map<String, WorkStage> byName = new LinkedHashMap<>();
+        for(WorkStage stage : stages)
+        {
+            if(byName.put(stage.getName(), stage) != null)
+            {
+                throw new IllegalArgumentException("Duplicate stage " + stage.getName());
+            }
+        }
+        this.stages = byName;
+    }
+
+    public void setMetricRegistry(MetricRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    public void setShutdownTimeoutMs(long shutdownTimeoutMs)
+    {
+        this.shutdownTimeoutMs = shutdownTimeoutMs;
+    }
+
+    @PostConstruct
+    public synchronized void init()
+    {
+        if(started)
+        {
+            return;
+        }
+
+        for(WorkStage stage : stages.values())
+        {
+            stage.start();
+            registerMetrics(stage);
+            logger.info("Started " + stage);
+        }
+        started = true;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown()
+    {
+        for(WorkStage stage : stages.values())
+        {
+            stage.shutdown();
+        }
+
+        long deadline = System.currentTimeMillis() + shutdownTimeoutMs;
+        try
+        {
+            for(WorkStage stage : stages.values())
+            {
+                long remaining = Math.max(deadline - System.currentTimeMillis(), 1);
+                if(!stage.awaitTermination(remaining, TimeUnit.MILLISECONDS))
+                {
+                    logger.warn("Stage " + stage.getName() + " did not finish its work before shutdown, "
+                            + stage.getQueueDepth() + " queued");
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void registerMetrics(final WorkStage stage)
+    {
+        if(metrics == null)
+        {
+            return;
+        }
+
+        String name = stage.getName();
+        metrics.register(MetricRegistry.name(WorkScheduler.class, name, "queueDepth"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return stage.getQueueDepth();
+            }
+        });
+        metrics.register(MetricRegistry.name(WorkScheduler.class, name, "interactiveQueueDepth"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return stage.getQueueDepth(WorkPriority.INTERACTIVE);
+            }
+        });
+        metrics.register(MetricRegistry.name(WorkScheduler.class, name, "completed"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return stage.getCompleted();
+            }
+        });
+        metrics.register(MetricRegistry.name(WorkScheduler.class, name, "failed"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return stage.getFailed();
+            }
+        });
+        metrics.register(MetricRegistry.name(WorkScheduler.class, name, "rejected"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return stage.getRejected();
+            }
+        });
+        metrics.register(MetricRegistry.name(WorkScheduler.class, name, "meanQueueTimeMs"), new Gauge<Double>()
+        {
+            @Override
+            public Double getValue()
+            {
+                return stage.getMeanQueueTimeMs();
+            }
+        });
+        metrics.register(MetricRegistry.name(WorkScheduler.class, name, "meanRunTimeMs"), new Gauge<Double>()
+        {
+            @Override
+            public Double getValue()
+            {
+                return stage.getMeanRunTimeMs();
+            }
+        });
+    }
+
+    public WorkStage getStage(String name)
+    {
+        WorkStage stage = stages.get(name);
+        if(stage == null)
+        {
+            throw new IllegalArgumentException("No such stage " + name);
+        }
+        return stage;
+    }
+
+    public Collection<WorkStage> getStages()
+    {
+        return Collections.unmodifiableCollection(stages.values());
+    }
+
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException if the stage's queue stays full
+     */
+    public void execute(String stage, WorkPriority priority, Runnable task)
+    {
+        getStage(stage).submit(task, priority);
+    }
+
+    /**
+     * Submits the task to the stage or, if the stage's queue stays full, runs it on the caller's
+     * thread, so that work the caller can't redo later isn't dropped and the caller is slowed down
+     * instead.
+     *
+     * @throws RejectedExecutionException if the stage has been shut down
+     */
+    public void executeOrRun(String stage, WorkPriority priority, Runnable task)
+    {
+        WorkStage workStage = getStage(stage);
+        try
+        {
+            workStage.submit(task, priority);
+        }
+        catch(RejectedExecutionException e)
+        {
+            if(workStage.isShutdown())
+            {
+                throw e;
+            }
+
+            logger.debug("Running " + priority + " work for stage " + stage + " on the caller's thread: "
+                    + e.getMessage());
+            task.run();
+        }
+    }
+
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException if the stage's queue stays full
+     */
+    public <T> Future<T> submit(String stage, WorkPriority priority, Callable<T> task)
+    {
+        FutureTask<T> future = new FutureTask<>(task);
+        getStage(stage).submit(future, priority);
+        return future;
+    }
+
+    public ExecutorService getExecutorService(String stage, WorkPriority priority)
+    {
+        return new StageExecutorService(getStage(stage), priority);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.alfrescoextensions.common.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A stage of the work pipeline: a fixed number of worker threads taking work from two bounded queues,
+ * one per priority. Interactive work is taken before bulk work, except that every
+ * {@link #BULK_INTERVAL}th piece of work is taken from the bulk queue if there is any, so bulk work
+ * isn't starved.
+ *
+ * Submitting work to a full queue blocks for up to the submit timeout, which pushes back on the
+ * submitter (e.g. a Camel consumer), then rejects the work. The queues are bounded separately, so a
+ * flood of bulk work never blocks interactive work.
+ *
+ * @author sglover
+ *
+ */
+public class WorkStage
+{
+    private static Log logger = LogFactory.getLog(WorkStage.class);
+
+    static final int BULK_INTERVAL = 8;
+
+    private final String name;
+    private final int numThreads;
+    private final int queueCapacity;
+    private long submitTimeoutMs = 1000;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition interactiveNotFull = lock.newCondition();
+    private final Condition bulkNotFull = lock.newCondition();
+    private final ArrayDeque<Work> interactive = new ArrayDeque<>();
+    private final ArrayDeque<Work> bulk = new ArrayDeque<>();
+    private long taken;
+    private boolean shutdown;
+
+    private final List<Thread> workers = new LinkedList<>();
+
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong totalQueueNanos = new AtomicLong(0);
+    private final AtomicLong totalRunNanos = new AtomicLong(0);
+
+    private static class Work
+    {
+        private final Runnable task;
+        private final long enqueued = System.nanoTime();
+
+        Work(Runnable task)
+        {
+            this.task = task;
+        }
+    }
+
+    public WorkStage(String name, int numThreads, int queueCapacity)
+    {
+        if(numThreads < 1 || queueCapacity < 1)
+        {
+            throw new IllegalArgumentException("Stage " + name + " needs at least one thread and a queue");
+        }
+        this.name = name;
+        this.numThreads = numThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setSubmitTimeoutMs(long submitTimeoutMs)
+    {
+        this.submitTimeoutMs = submitTimeoutMs;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    void start()
+    {
+        for(int i = 0; i < numThreads; i++)
+        {
+            Thread worker = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    work();
+                }
+            }, "WorkStage-" + name + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops taking new work. Queued work is still done.
+     */
+    void shutdown()
+    {
+        lock.lock();
+        try
+        {
+            shutdown = true;
+            notEmpty.signalAll();
+            interactiveNotFull.signalAll();
+            bulkNotFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    boolean isShutdown()
+    {
+        lock.lock();
+        try
+        {
+            return shutdown;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(Thread worker : workers)
+        {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if(remainingMs <= 0)
+            {
+                return false;
+            }
+            worker.join(remainingMs);
+            if(worker.isAlive())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the stage has been shut down, or its queue for the priority
+     * stays full for the submit timeout
+     */
+    public void submit(Runnable task, WorkPriority priority)
+    {
+        boolean isInteractive = (priority == WorkPriority.INTERACTIVE);
+        ArrayDeque<Work> queue = (isInteractive ? interactive : bulk);
+        Condition notFull = (isInteractive ? interactiveNotFull : bulkNotFull);
+
+        lock.lock();
+        try
+        {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(submitTimeoutMs);
+            while(!shutdown && queue.size() >= queueCapacity && remainingNanos > 0)
+            {
+                remainingNanos = notFull.awaitNanos(remainingNanos);
+            }
+
+            if(shutdown || queue.size() >= queueCapacity)
+            {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Stage " + name + (shutdown ? " is shut down"
+                        : " " + priority + " queue is full"));
+            }
+
+            queue.add(new Work(task));
+            submitted.incrementAndGet();
+            notEmpty.signal();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Interrupted submitting to stage " + name, e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // null when shut down and there's no more work
+    private Work take() throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while(interactive.isEmpty() && bulk.isEmpty())
+            {
+                if(shutdown)
+                {
+                    return null;
+                }
+                notEmpty.await();
+            }
+
+            taken++;
+            Work work;
+            if(!interactive.isEmpty() && (bulk.isEmpty() || taken % BULK_INTERVAL != 0))
+            {
+                work = interactive.poll();
+                interactiveNotFull.signal();
+            }
+            else
+            {
+                work = bulk.poll();
+                bulkNotFull.signal();
+            }
+            return work;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void work()
+    {
+        try
+        {
+            Work work;
+            while((work = take()) != null)
+            {
+                long start = System.nanoTime();
+                totalQueueNanos.addAndGet(start - work.enqueued);
+                try
+                {
+                    work.task.run();
+                    completed.incrementAndGet();
+                }
+                catch(Throwable t)
+                {
+                    failed.incrementAndGet();
+                    logger.error("Work failed in stage " + name, t);
+                }
+                finally
+                {
+                    totalRunNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueDepth()
+    {
+        lock.lock();
+        try
+        {
+            return interactive.size() + bulk.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueDepth(WorkPriority priority)
+    {
+        lock.lock();
+        try
+        {
+            return (priority == WorkPriority.INTERACTIVE ? interactive.size() : bulk.size());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getSubmitted()
+    {
+        return submitted.get();
+    }
+
+    public long getCompleted()
+    {
+        return completed.get();
+    }
+
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * @return the mean time work has spent queued, in milliseconds
+     */
+    public double getMeanQueueTimeMs()
+    {
+        long done = completed.get() + failed.get();
+        return done > 0 ? totalQueueNanos.get() / 1000000.0 / done : 0.0;
+    }
+
+    /**
+     * @return the mean time work has taken to run, in milliseconds
+     */
+    public double getMeanRunTimeMs()
+    {
+        long done = completed.get() + failed.get();
+        return done > 0 ? totalRunNanos.get() / 1000000.0 / done : 0.0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WorkStage [name=" + name + ", numThreads=" + numThreads
+                + ", queueCapacity=" + queueCapacity + ", queueDepth=" + getQueueDepth()
+                + ", submitted=" + submitted + ", completed=" + completed
+                + ", failed=" + failed + ", rejected=" + rejected + "]";
+    }
+}
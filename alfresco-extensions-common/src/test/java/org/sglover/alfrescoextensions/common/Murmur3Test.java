@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.alfrescoextensions.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Checks {@link Murmur3} against Guava's murmur3_128.
+ *
+ * @author sglover
+ *
+ */
+public class Murmur3Test
+{
+    private static final int[] SEEDS = {0, 1, 42, -1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+
+    private void assertMatchesGuava(byte[] bytes, int start, int end, int seed, ByteOrder order)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(order);
+        long[] digest = new long[2];
+        Murmur3.hash128(buffer, start, end, seed, digest);
+
+        byte[] expected = Hashing.murmur3_128(seed).hashBytes(bytes, start, end - start + 1).asBytes();
+        ByteBuffer expectedBuffer = ByteBuffer.wrap(expected).order(ByteOrder.LITTLE_ENDIAN);
+        String message = "length " + (end - start + 1) + ", seed " + seed + ", " + order;
+        assertEquals(message, expectedBuffer.getLong(0), digest[0]);
+        assertEquals(message, expectedBuffer.getLong(8), digest[1]);
+    }
+
+    @Test
+    public void testAllTailLengths() throws Exception
+    {
+        Random random = new Random(42);
+        for(int length = 0; length <= 100; length++)
+        {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            for(int seed : SEEDS)
+            {
+                assertMatchesGuava(bytes, 0, length - 1, seed, ByteOrder.BIG_ENDIAN);
+                assertMatchesGuava(bytes, 0, length - 1, seed, ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    @Test
+    public void testRegionOfBuffer() throws Exception
+    {
+        byte[] bytes = new byte[10 * 1024];
+        new Random(7).nextBytes(bytes);
+        for(int seed : SEEDS)
+        {
+            assertMatchesGuava(bytes, 13, 5000, seed, ByteOrder.BIG_ENDIAN);
+            assertMatchesGuava(bytes, 1024, bytes.length - 1, seed, ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    @Test
+    public void testHasher() throws Exception
+    {
+        byte[] bytes = new byte[1000];
+        new Random(11).nextBytes(bytes);
+
+        long[] digest = new long[2];
+        new HasherImpl(HashAlgorithm.MURMUR3_128).hash(ByteBuffer.wrap(bytes), 100, 899, digest);
+
+        byte[] expected = Hashing.murmur3_128().hashBytes(bytes, 100, 800).asBytes();
+        ByteBuffer expectedBuffer = ByteBuffer.wrap(expected).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(expectedBuffer.getLong(0), digest[0]);
+        assertEquals(expectedBuffer.getLong(8), digest[1]);
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.sglover.alfrescoextensions.common.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class WorkStageTest
+{
+    private WorkStage stage;
+    private WorkScheduler scheduler;
+
+    @After
+    public void after() throws Exception
+    {
+        if(stage != null)
+        {
+            stage.shutdown();
+            stage.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        if(scheduler != null)
+        {
+            scheduler.shutdown();
+        }
+    }
+
+    private WorkStage start(int queueCapacity, long submitTimeoutMs)
+    {
+        this.stage = new WorkStage("test", 1, queueCapacity);
+        stage.setSubmitTimeoutMs(submitTimeoutMs);
+        stage.start();
+        return stage;
+    }
+
+    /**
+     * Blocks the stage's only worker until the returned latch is counted down.
+     */
+    private CountDownLatch block(WorkStage stage) throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        stage.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, WorkPriority.INTERACTIVE);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private Runnable record(final List<String> done, final String name)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                done.add(name);
+            }
+        };
+    }
+
+    private void awaitCompleted(WorkStage stage, long completed) throws InterruptedException
+    {
+        for(int i = 0; i < 100 && stage.getCompleted() + stage.getFailed() < completed; i++)
+        {
+            Thread.sleep(50);
+        }
+        assertEquals(completed, stage.getCompleted() + stage.getFailed());
+    }
+
+    @Test
+    public void testInteractiveTakenFirst() throws Exception
+    {
+        start(100, 1000);
+        CountDownLatch release = block(stage);
+
+        List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        for(int i = 0; i < 10; i++)
+        {
+            stage.submit(record(done, "B"), WorkPriority.BULK);
+        }
+        for(int i = 0; i < 10; i++)
+        {
+            stage.submit(record(done, "I"), WorkPriority.INTERACTIVE);
+        }
+        assertEquals(10, stage.getQueueDepth(WorkPriority.INTERACTIVE));
+        assertEquals(20, stage.getQueueDepth());
+
+        release.countDown();
+        awaitCompleted(stage, 21);
+
+        // the blocking work was the first taken, every BULK_INTERVALth take goes to bulk work
+        assertEquals(Arrays.asList("I", "I", "I", "I", "I", "I", "B", "I", "I", "I", "I",
+                "B", "B", "B", "B", "B", "B", "B", "B", "B"), done);
+        assertEquals(0, stage.getQueueDepth());
+    }
+
+    @Test
+    public void testFullQueueRejects() throws Exception
+    {
+        start(2, 100);
+        CountDownLatch release = block(stage);
+
+        stage.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        }, WorkPriority.BULK);
+        stage.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        }, WorkPriority.BULK);
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            stage.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                }
+            }, WorkPriority.BULK);
+            fail();
+        }
+        catch(RejectedExecutionException e)
+        {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(1, stage.getRejected());
+
+        // the queues are bounded separately, so a full bulk queue doesn't hold up interactive work
+        stage.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        }, WorkPriority.INTERACTIVE);
+
+        release.countDown();
+        awaitCompleted(stage, 4);
+        assertEquals(4, stage.getSubmitted());
+    }
+
+    @Test
+    public void testSubmitWaitsForSpace() throws Exception
+    {
+        start(1, 10000);
+        CountDownLatch release = block(stage);
+
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        stage.submit(record(done, "1"), WorkPriority.BULK);
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread submitter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stage.submit(record(done, "2"), WorkPriority.BULK);
+                }
+                catch(Throwable t)
+                {
+                    error.set(t);
+                }
+            }
+        });
+        submitter.start();
+        Thread.sleep(100);
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(5000);
+        assertEquals(null, error.get());
+        awaitCompleted(stage, 3);
+        assertEquals(Arrays.asList("1", "2"), done);
+    }
+
+    @Test
+    public void testShutdownFinishesQueuedWork() throws Exception
+    {
+        start(100, 1000);
+        CountDownLatch release = block(stage);
+
+        List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        for(int i = 0; i < 5; i++)
+        {
+            stage.submit(record(done, "B"), WorkPriority.BULK);
+        }
+        stage.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw new RuntimeException("expected");
+            }
+        }, WorkPriority.BULK);
+
+        stage.shutdown();
+        try
+        {
+            stage.submit(record(done, "after"), WorkPriority.INTERACTIVE);
+            fail();
+        }
+        catch(RejectedExecutionException e)
+        {
+            // expected
+        }
+
+        release.countDown();
+        assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(5, done.size());
+        assertEquals(6, stage.getCompleted());
+        assertEquals(1, stage.getFailed());
+        assertEquals(1, stage.getRejected());
+    }
+
+    @Test
+    public void testExecuteOrRunOnCallerWhenFull() throws Exception
+    {
+        WorkStage stage = new WorkStage(WorkScheduler.CHECKSUM, 1, 1);
+        stage.setSubmitTimeoutMs(50);
+        this.scheduler = new WorkScheduler(Arrays.asList(stage));
+        scheduler.init();
+        CountDownLatch release = block(stage);
+
+        final List<Thread> ranOn = Collections.synchronizedList(new ArrayList<Thread>());
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ranOn.add(Thread.currentThread());
+            }
+        };
+        scheduler.executeOrRun(WorkScheduler.CHECKSUM, WorkPriority.BULK, task);
+        assertTrue(ranOn.isEmpty());
+
+        // the queue is full, so the task runs here rather than being dropped
+        scheduler.executeOrRun(WorkScheduler.CHECKSUM, WorkPriority.BULK, task);
+        assertEquals(1, ranOn.size());
+        assertSame(Thread.currentThread(), ranOn.get(0));
+
+        release.countDown();
+        awaitCompleted(stage, 2);
+        assertEquals(2, ranOn.size());
+
+        scheduler.shutdown();
+        try
+        {
+            scheduler.executeOrRun(WorkScheduler.CHECKSUM, WorkPriority.BULK, task);
+            fail();
+        }
+        catch(RejectedExecutionException e)
+        {
+            // expected
+        }
+        assertEquals(2, ranOn.size());
+    }
+}
@@ -12,7 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.Calendar;
@@ -51,6 +51,8 @@ public abstract class AbstractContentStore implements ContentStore
 {
     protected static Log logger = LogFactory.getLog(AbstractContentStore.class);
 
+    private static final int PATCH_BUFFER_SIZE = 64 * 1024;
+
     protected String contentRoot;
 
     @Autowired
@@ -96,7 +98,19 @@ public abstract class AbstractContentStore implements ContentStore
         this.contentRoot = TempFileProvider.getTempDir("RepoContentStore").getAbsolutePath();
         logger.info("ContentStore root directory " + contentRoot);
 
-        this.executor = Executors.newFixedThreadPool(5);
+        if(executor == null)
+        {
+            this.executor = Executors.newFixedThreadPool(5);
+        }
+    }
+
+    /**
+     * The executor for asynchronous checksum extraction, e.g. a stage of the shared work scheduler. If
+     * not set, the content store creates its own.
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
     }
 
     private void extractChecksumsAsync(final Node node)
@@ -122,9 +136,17 @@ public abstract class AbstractContentStore implements ContentStore
     {
         ContentReader reader = getReader(node);
 
-        try(InputStream in = reader.getStream())
+        if(reader instanceof FileContentReader)
         {
-            checksumService.extractChecksums(node, in);
+            // local file, map it and checksum in parallel
+            checksumService.extractChecksums(node, ((FileContentReader)reader).getPath());
+        }
+        else
+        {
+            try(InputStream in = reader.getStream())
+            {
+                checksumService.extractChecksums(node, in);
+            }
         }
     }
 
@@ -418,6 +440,13 @@ public abstract class AbstractContentStore implements ContentStore
         }
     }
 
+    /**
+     * Discards anything cached for any version of the node. Called when a node is removed.
+     */
+    public void invalidateNode(String nodeId)
+    {
+    }
+
 //    @SuppressWarnings("resource")
 //    @Override
 //    public FileChannel getChannel(Node node) throws IOException
@@ -579,9 +608,13 @@ public abstract class AbstractContentStore implements ContentStore
     {
         InChannel c = new InChannel(inChannel, patchDocument.getMatchedBlocks(), patchDocument.getBlockSize());
 
+        ByteBuffer patchBuffer = ByteBuffer.allocateDirect(PATCH_BUFFER_SIZE);
+
         int totalWritten = 0;
 
-        int blockIndex = -1;
+        // the next matched block to be written, carried over between patches so that it isn't skipped when
+        // consecutive patches (a literal run split across patches) share a lastMatchIndex
+        int blockIndex = c.nextBlock();
 
 //        int blockIndex = c.nextBlock();
 //        if(blockIndex > -1)
@@ -590,7 +623,6 @@ public abstract class AbstractContentStore implements ContentStore
             {
                 int lastMatchingBlockIndex = patch.getLastMatchIndex();
     
-                blockIndex = c.nextBlock();
                 while(blockIndex != -1 && blockIndex <= lastMatchingBlockIndex)
                 {
                     int bytesWritten = outChannel.write(c.currentBlock);
@@ -608,17 +640,7 @@ public abstract class AbstractContentStore implements ContentStore
                 }
     
                 // apply patch
-                int patchSize = patch.getSize();
-                ReadableByteChannel patchChannel = Channels.newChannel(patch.getStream());
-                ByteBuffer patchBB = ByteBuffer.allocate(patchSize);
-                int bytesRead = patchChannel.read(patchBB);
-                patchBB.flip();
-                int bytesWritten = outChannel.write(patchBB);
-                totalWritten += bytesWritten;
-                if(bytesWritten != bytesRead)
-                {
-                    throw new RuntimeException("Wrote too few bytes, expected " + bytesRead + ", got " + bytesWritten);
-                }
+                totalWritten += writePatch(patch, patchBuffer, outChannel);
             }
 
             // we're done with all the patches, add the remaining blocks
@@ -638,6 +660,116 @@ public abstract class AbstractContentStore implements ContentStore
         return totalWritten;
     }
 
+    /**
+     * Applies a patch to content held in a file. Matched blocks are copied from their position in the
+     * previous version with FileChannel.transferTo, so nothing is read that isn't written and, where the
+     * platform allows, blocks are copied without passing through the heap. Matched blocks may therefore
+     * be in any order and may repeat. Patch bytes are written through a single reusable direct buffer.
+     * 
+     * Matched blocks are written in the order they are listed. A patch is written after the run of
+     * matched blocks with its lastMatchIndex at or after the current position in the list, or straight
+     * away if there is none (for a lastMatchIndex of 0, content inserted before the first match).
+     * A patch between two matches of the same block is therefore written after both of them, which is
+     * why the patch service doesn't match the block again after a literal run.
+     */
+    protected long applyPatch(FileChannel inChannel, WritableByteChannel outChannel,
+            PatchDocument patchDocument) throws IOException
+    {
+        int blockSize = patchDocument.getBlockSize();
+        List<Integer> matchedBlocks = patchDocument.getMatchedBlocks();
+        int numMatchedBlocks = matchedBlocks.size();
+        long inSize = inChannel.size();
+
+        ByteBuffer patchBuffer = ByteBuffer.allocateDirect(PATCH_BUFFER_SIZE);
+
+        long totalWritten = 0;
+        int matchIndex = 0;
+
+        for(Patch patch : patchDocument.getPatches())
+        {
+            int lastMatchingBlockIndex = patch.getLastMatchIndex();
+
+            int end = matchIndex;
+            while(end < numMatchedBlocks && matchedBlocks.get(end) != lastMatchingBlockIndex)
+            {
+                end++;
+            }
+            if(end < numMatchedBlocks)
+            {
+                while(end < numMatchedBlocks && matchedBlocks.get(end) == lastMatchingBlockIndex)
+                {
+                    end++;
+                }
+
+                for(; matchIndex < end; matchIndex++)
+                {
+                    totalWritten += transferBlock(inChannel, inSize, matchedBlocks.get(matchIndex), blockSize,
+                            outChannel);
+                }
+            }
+
+            totalWritten += writePatch(patch, patchBuffer, outChannel);
+        }
+
+        // we're done with all the patches, add the remaining blocks
+        for(; matchIndex < numMatchedBlocks; matchIndex++)
+        {
+            totalWritten += transferBlock(inChannel, inSize, matchedBlocks.get(matchIndex), blockSize, outChannel);
+        }
+
+        return totalWritten;
+    }
+
+    private long transferBlock(FileChannel inChannel, long inSize, int blockIndex, int blockSize,
+            WritableByteChannel outChannel) throws IOException
+    {
+        long position = (blockIndex - 1L) * blockSize;
+        if(blockIndex < 1 || position >= inSize)
+        {
+            throw new IllegalArgumentException("Matched block " + blockIndex + " is beyond the end of the content");
+        }
+
+        // the last block may be short
+        long count = Math.min(blockSize, inSize - position);
+        long transferred = 0;
+        while(transferred < count)
+        {
+            long bytesWritten = inChannel.transferTo(position + transferred, count - transferred, outChannel);
+            if(bytesWritten <= 0)
+            {
+                throw new RuntimeException("Wrote too few bytes, expected " + count + ", got " + transferred);
+            }
+            transferred += bytesWritten;
+        }
+
+        return transferred;
+    }
+
+    private long writePatch(Patch patch, ByteBuffer patchBuffer, WritableByteChannel outChannel)
+            throws IOException
+    {
+        byte[] buffer = patch.getBuffer();
+        int patchSize = patch.getSize();
+        long totalWritten = 0;
+
+        // copy through the direct buffer in chunks, rather than letting the channel allocate
+        // a temporary direct buffer the size of the patch
+        for(int offset = 0; offset < patchSize;)
+        {
+            int length = Math.min(patchBuffer.capacity(), patchSize - offset);
+            patchBuffer.clear();
+            patchBuffer.put(buffer, offset, length);
+            patchBuffer.flip();
+            while(patchBuffer.hasRemaining())
+            {
+                totalWritten += outChannel.write(patchBuffer);
+            }
+            offset += length;
+        }
+
+        return totalWritten;
+    }
+
     protected abstract PatchDocument getPatchDocument(Node node);
 
     @Override
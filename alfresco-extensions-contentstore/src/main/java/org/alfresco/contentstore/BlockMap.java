@@ -1,12 +1,16 @@
 package org.alfresco.contentstore;
 
 /**
+ * Maps the blocks of a node version, in content order, to the digests of the shared, content addressed
+ * blocks that hold their data.
  * 
  * @author sglover
  *
  */
-public interface BlockMap extends Iterable<Long>
+public interface BlockMap
 {
-    long getGlobalBlockNum(int blockNum);
-    void addBlockMapping(int contentBlock, long blockNum);
+    int getNumBlocks();
+    long getDigestHi(int blockNum);
+    long getDigestLo(int blockNum);
+    void addBlockMapping(int contentBlock, long digestHi, long digestLo);
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Fetches the blocks of a node version in order, keeping up to readAheadBlocks fetches in flight so
+ * that sequential reads aren't bound by the round trip time of each fetch. Blocks are returned in
+ * order whatever order the fetches complete in.
+ *
+ * @author sglover
+ *
+ */
+class BlockReadAhead
+{
+    private final CassandraBlockStore blockStore;
+    private final BlockMap blockMap;
+    private final int readAheadBlocks;
+    private final Deque<ListenableFuture<ByteBuffer>> inFlight = new ArrayDeque<>();
+    // the block returned by the next call to nextBlock
+    private int nextBlockNum;
+    // the next block to be fetched
+    private int nextFetchNum;
+
+    BlockReadAhead(CassandraBlockStore blockStore, BlockMap blockMap, int readAheadBlocks)
+    {
+        this.blockStore = blockStore;
+        this.blockMap = blockMap;
+        this.readAheadBlocks = Math.max(readAheadBlocks, 1);
+    }
+
+    boolean hasNext()
+    {
+        return nextBlockNum < blockMap.getNumBlocks();
+    }
+
+    /*
+     * Aims the window at blockNum. Fetches already in flight for blocks from blockNum on are kept,
+     * others are cancelled.
+     */
+    void seek(int blockNum)
+    {
+        if(blockNum > nextBlockNum && blockNum < nextFetchNum)
+        {
+            while(nextBlockNum < blockNum)
+            {
+                inFlight.removeFirst().cancel(true);
+                nextBlockNum++;
+            }
+        }
+        else if(blockNum != nextBlockNum)
+        {
+            cancel();
+            this.nextBlockNum = blockNum;
+            this.nextFetchNum = blockNum;
+        }
+    }
+
+    ByteBuffer nextBlock() throws IOException
+    {
+        if(!hasNext())
+        {
+            return null;
+        }
+
+        fetch();
+        ListenableFuture<ByteBuffer> future = inFlight.removeFirst();
+        int blockNum = nextBlockNum++;
+        fetch();
+
+        ByteBuffer bb = null;
+        try
+        {
+            bb = future.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted fetching block " + blockNum);
+        }
+        catch(ExecutionException e)
+        {
+            throw new IOException("Failed to fetch block " + blockNum, e.getCause());
+        }
+
+        if(bb == null)
+        {
+            throw new IOException("Missing block " + blockNum);
+        }
+
+        return bb;
+    }
+
+    private void fetch()
+    {
+        int numBlocks = blockMap.getNumBlocks();
+        while(inFlight.size() < readAheadBlocks && nextFetchNum < numBlocks)
+        {
+            inFlight.addLast(blockStore.getBlockAsync(blockMap.getDigestHi(nextFetchNum),
+                    blockMap.getDigestLo(nextFetchNum)));
+            nextFetchNum++;
+        }
+    }
+
+    int getNumInFlight()
+    {
+        return inFlight.size();
+    }
+
+    void cancel()
+    {
+        for(ListenableFuture<ByteBuffer> future : inFlight)
+        {
+            future.cancel(true);
+        }
+        inFlight.clear();
+    }
+}
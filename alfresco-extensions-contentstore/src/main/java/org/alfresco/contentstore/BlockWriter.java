@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+
+import org.sglover.alfrescoextensions.common.Node;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Splits content into blocks as it's written, writing each full block to the block store without
+ * waiting for it. At most writeBehindBlocks block writes are in flight; when the window is full the
+ * writer waits for the oldest to complete. close() is the only point that waits for all of them, the
+ * caller then writes the block map and node data.
+ *
+ * @author sglover
+ *
+ */
+class BlockWriter
+{
+    private final CassandraBlockStore blockStore;
+    private final int writeBehindBlocks;
+    private final NodeMetadata nodeMetadata;
+    private final ByteBuffer bb;
+    private final Deque<ListenableFuture<Boolean>> inFlight = new ArrayDeque<>();
+    private final long[] digest = new long[2];
+    private int blockNum = 0;
+    private long size = 0;
+
+    BlockWriter(CassandraBlockStore blockStore, Node node, int blockSize, int writeBehindBlocks)
+    {
+        this.blockStore = blockStore;
+        this.writeBehindBlocks = Math.max(writeBehindBlocks, 1);
+        this.nodeMetadata = new NodeMetadata(node);
+        this.bb = ByteBuffer.allocate(blockSize);
+    }
+
+    Node getNode()
+    {
+        return nodeMetadata.getNode();
+    }
+
+    int getNumBlocks()
+    {
+        return blockNum;
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    int getNumInFlight()
+    {
+        return inFlight.size();
+    }
+
+    void write(byte b) throws IOException
+    {
+        if(!bb.hasRemaining())
+        {
+            writeBlock();
+        }
+
+        bb.put(b);
+        size++;
+    }
+
+    int write(ByteBuffer src) throws IOException
+    {
+        int numBytesWritten = src.remaining();
+
+        while(src.hasRemaining())
+        {
+            if(!bb.hasRemaining())
+            {
+                writeBlock();
+            }
+
+            int count = Math.min(src.remaining(), bb.remaining());
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + count);
+            bb.put(chunk);
+            src.position(src.position() + count);
+        }
+
+        size += numBytesWritten;
+
+        return numBytesWritten;
+    }
+
+    private void writeBlock() throws IOException
+    {
+        bb.flip();
+
+        if(bb.hasRemaining())
+        {
+            while(inFlight.size() >= writeBehindBlocks)
+            {
+                waitFor(inFlight.removeFirst());
+            }
+
+            // the block is copied, so the buffer can be reused straight away
+            inFlight.addLast(blockStore.writeBlockAsync(bb, digest));
+            nodeMetadata.getBlockmap().addBlockMapping(blockNum, digest[0], digest[1]);
+            blockNum++;
+        }
+
+        bb.clear();
+    }
+
+    private void waitFor(ListenableFuture<Boolean> future) throws IOException
+    {
+        try
+        {
+            future.get();
+        }
+        catch(InterruptedException e)
+        {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing blocks of " + getNode());
+        }
+        catch(ExecutionException e)
+        {
+            cancel();
+            throw new IOException("Failed to write a block of " + getNode(), e.getCause());
+        }
+    }
+
+    private void cancel()
+    {
+        for(ListenableFuture<Boolean> future : inFlight)
+        {
+            future.cancel(true);
+        }
+        inFlight.clear();
+    }
+
+    /*
+     * Writes any remaining data as the last block and waits for all the block writes
+     *
+     * @return the node version's metadata, including its block map
+     */
+    NodeMetadata close() throws IOException
+    {
+        writeBlock();
+
+        while(!inFlight.isEmpty())
+        {
+            waitFor(inFlight.removeFirst());
+        }
+
+        return nodeMetadata;
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sglover.alfrescoextensions.common.CassandraSession;
+import org.sglover.alfrescoextensions.common.Digests;
+import org.sglover.alfrescoextensions.common.HashAlgorithm;
+import org.sglover.alfrescoextensions.common.Hasher;
+import org.sglover.alfrescoextensions.common.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Content addressed block storage. Blocks are keyed by the digest of their data, so a block shared by
+ * several node versions (or several nodes) is stored once. Node versions reference blocks through their
+ * {@link BlockMap}. The key is always {@link #BLOCK_KEY_ALGORITHM}, whatever the hasher is configured to
+ * use for checksums: a block is only ever read back by its key, so two different blocks with the same
+ * key would silently swap content, which a non-cryptographic hash such as Murmur3 can't rule out.
+ *
+ * Each reference to a block is counted. The count is incremented when a block is written, before its
+ * data is stored, and decremented when a node version referencing it is removed. Blocks whose count
+ * has fallen to zero are deleted by {@link #collectOrphanedBlocks()}, which runs periodically, in two
+ * passes: they are first
+ * marked as orphans in a separate, ordinary table, and only deleted by a later pass once they have
+ * been marked for longer than the grace period and their count is still zero. Counter rows are never
+ * deleted, because Cassandra can't reliably increment a counter again after it has been deleted; a
+ * block that's written again just counts up from zero.
+ *
+ * Cassandra counters can't be checked atomically with a delete, so a block may be written again
+ * between its count being checked and its data being deleted. The writer counts its reference before
+ * checking that the block exists, so the collector reads the data before deleting it and checks the
+ * count again afterwards, putting the data back if it has gone up: either the writer's existence
+ * check saw the block before it was deleted, and the count it had already incremented is seen by the
+ * second check, or it didn't see the block and wrote the data itself. A write that fails, or is
+ * cancelled, gives its reference back.
+ *
+ * The data is only written if no block with the same digest exists, as a lightweight transaction, so
+ * that of concurrent first writes of a block only one stores it.
+ *
+ * @author sglover
+ *
+ */
+@Component
+public class CassandraBlockStore
+{
+    private static Log logger = LogFactory.getLog(CassandraBlockStore.class);
+
+    public static final HashAlgorithm BLOCK_KEY_ALGORITHM = HashAlgorithm.SHA256;
+
+    @Autowired
+    private CassandraSession cassandraSession;
+
+    @Autowired
+    private Hasher hasher;
+
+    @Autowired(required=false)
+    private MetricRegistry metricRegistry;
+
+    private PreparedStatement getBlockStatement;
+    private PreparedStatement blockExistsStatement;
+    private PreparedStatement writeBlockStatement;
+    private PreparedStatement deleteBlockStatement;
+    private PreparedStatement incrementRefsStatement;
+    private PreparedStatement decrementRefsStatement;
+    private PreparedStatement getRefsStatement;
+    private PreparedStatement isOrphanStatement;
+    private PreparedStatement markOrphanStatement;
+    private PreparedStatement unmarkOrphanStatement;
+
+    // how long a block must have been an orphan before it's deleted
+    @Value("${cassandra.orphanedBlockGracePeriodMs:3600000}")
+    private long orphanGracePeriodMs = 60 * 60 * 1000;
+
+    // rows fetched at a time when scanning the reference counts and orphans
+    @Value("${cassandra.orphanedBlockScanPageSize:1000}")
+    private int scanPageSize = 1000;
+
+    // how often orphaned blocks are collected, collection is disabled if this isn't positive
+    @Value("${cassandra.orphanedBlockCollectIntervalSecs:600}")
+    private long collectIntervalSecs = 600;
+
+    private ScheduledExecutorService collector;
+
+    // dedup metrics: blocks and bytes written by clients, and those actually stored
+    private final AtomicLong blocksWritten = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+    private final AtomicLong blocksStored = new AtomicLong(0);
+    private final AtomicLong bytesStored = new AtomicLong(0);
+
+    public CassandraBlockStore()
+    {
+    }
+
+    public CassandraBlockStore(CassandraSession cassandraSession, Hasher hasher)
+    {
+        this.cassandraSession = cassandraSession;
+        this.hasher = hasher;
+        init();
+    }
+
+    @PostConstruct
+    public void init()
+    {
+        createSchema();
+
+        String keyspace = cassandraSession.getKeyspace();
+
+        this.getBlockStatement = cassandraSession.getCassandraSession().prepare(
+                "SELECT data FROM " + keyspace + ".content_blocks_by_digest where digest = ?");
+        this.blockExistsStatement = cassandraSession.getCassandraSession().prepare(
+                "SELECT digest FROM " + keyspace + ".content_blocks_by_digest where digest = ?");
+        this.writeBlockStatement = cassandraSession.getCassandraSession().prepare(
+                "INSERT INTO " + keyspace + ".content_blocks_by_digest (digest, data) VALUES(?, ?) IF NOT EXISTS;");
+        this.deleteBlockStatement = cassandraSession.getCassandraSession().prepare(
+                "DELETE FROM " + keyspace + ".content_blocks_by_digest where digest = ?");
+        this.incrementRefsStatement = cassandraSession.getCassandraSession().prepare(
+                "UPDATE " + keyspace + ".content_block_refs SET refs = refs + 1 where digest = ?");
+        this.decrementRefsStatement = cassandraSession.getCassandraSession().prepare(
+                "UPDATE " + keyspace + ".content_block_refs SET refs = refs - 1 where digest = ?");
+        this.getRefsStatement = cassandraSession.getCassandraSession().prepare(
+                "SELECT refs FROM " + keyspace + ".content_block_refs where digest = ?");
+        this.isOrphanStatement = cassandraSession.getCassandraSession().prepare(
+                "SELECT digest FROM " + keyspace + ".content_block_orphans where digest = ?");
+        this.markOrphanStatement = cassandraSession.getCassandraSession().prepare(
+                "INSERT INTO " + keyspace + ".content_block_orphans (digest, marked) VALUES(?, ?);");
+        this.unmarkOrphanStatement = cassandraSession.getCassandraSession().prepare(
+                "DELETE FROM " + keyspace + ".content_block_orphans where digest = ?");
+
+        registerMetrics();
+        startCollector();
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        if(collector != null)
+        {
+            collector.shutdownNow();
+            collector = null;
+        }
+    }
+
+    public void setCassandraSession(CassandraSession cassandraSession)
+    {
+        this.cassandraSession = cassandraSession;
+    }
+
+    public void setHasher(Hasher hasher)
+    {
+        this.hasher = hasher;
+    }
+
+    public void setOrphanGracePeriodMs(long orphanGracePeriodMs)
+    {
+        this.orphanGracePeriodMs = orphanGracePeriodMs;
+    }
+
+    public void setScanPageSize(int scanPageSize)
+    {
+        this.scanPageSize = scanPageSize;
+    }
+
+    public void setCollectIntervalSecs(long collectIntervalSecs)
+    {
+        this.collectIntervalSecs = collectIntervalSecs;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry)
+    {
+        this.metricRegistry = metricRegistry;
+    }
+
+    private void registerMetrics()
+    {
+        MetricRegistry registry = (metricRegistry != null ? metricRegistry : Metrics.getSharedRegistry());
+        Metrics.register(registry, MetricRegistry.name(CassandraBlockStore.class, "dedupRatio"), new Gauge<Double>()
+        {
+            @Override
+            public Double getValue()
+            {
+                return getDedupRatio();
+            }
+        });
+        Metrics.register(registry, MetricRegistry.name(CassandraBlockStore.class, "bytesWritten"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return getBytesWritten();
+            }
+        });
+        Metrics.register(registry, MetricRegistry.name(CassandraBlockStore.class, "bytesStored"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return getBytesStored();
+            }
+        });
+    }
+
+    private void startCollector()
+    {
+        if(collectIntervalSecs <= 0 || collector != null)
+        {
+            return;
+        }
+
+        this.collector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "OrphanedBlockCollector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        collector.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    collectOrphanedBlocks();
+                }
+                catch(Exception e)
+                {
+                    // keep collecting, a failure mustn't cancel the schedule
+                    logger.warn("Failed to collect orphaned blocks", e);
+                }
+            }
+        }, collectIntervalSecs, collectIntervalSecs, TimeUnit.SECONDS);
+    }
+
+    private void createSchema()
+    {
+        String keyspace = cassandraSession.getKeyspace();
+
+        KeyspaceMetadata keySpaceMetadata = cassandraSession.getCluster().getMetadata()
+                .getKeyspace(keyspace);
+        if(keySpaceMetadata == null)
+        {
+            throw new RuntimeException("No " + keyspace + " keyspace");
+        }
+        else
+        {
+            if(keySpaceMetadata.getTable("content_blocks_by_digest") == null)
+            {
+                cassandraSession.getCassandraSession().execute("CREATE TABLE IF NOT EXISTS " + keyspace
+                        + ".content_blocks_by_digest (digest blob, data blob, PRIMARY KEY(digest));");
+            }
+            if(keySpaceMetadata.getTable("content_block_refs") == null)
+            {
+                cassandraSession.getCassandraSession().execute("CREATE TABLE IF NOT EXISTS " + keyspace
+                        + ".content_block_refs (digest blob, refs counter, PRIMARY KEY(digest));");
+            }
+            if(keySpaceMetadata.getTable("content_block_orphans") == null)
+            {
+                cassandraSession.getCassandraSession().execute("CREATE TABLE IF NOT EXISTS " + keyspace
+                        + ".content_block_orphans (digest blob, marked timestamp, PRIMARY KEY(digest));");
+            }
+        }
+    }
+
+    private ByteBuffer toKey(long digestHi, long digestLo)
+    {
+        return ByteBuffer.wrap(Digests.toBytes(digestHi, digestLo));
+    }
+
+    /**
+     * Writes the block bb[position..limit), adding a reference to it, without waiting for the write to
+     * complete. The block's {@link #BLOCK_KEY_ALGORITHM} digest is returned in digest[0] (high 64 bits)
+     * and digest[1] (low 64 bits).
+     * The data is only stored if no block with the same digest exists; the future's result is true if it
+     * was. The block is copied, so bb may be reused as soon as this returns. Its position is unchanged.
+     * If the write fails or is cancelled, the reference is removed again.
+     */
+    public ListenableFuture<Boolean> writeBlockAsync(ByteBuffer bb, long[] digest)
+    {
+        final int size = bb.remaining();
+        if(size == 0)
+        {
+            throw new IllegalArgumentException("Empty block");
+        }
+
+        hasher.hash(BLOCK_KEY_ALGORITHM, bb, bb.position(), bb.limit() - 1, digest);
+        final ByteBuffer key = toKey(digest[0], digest[1]);
+
+        final ByteBuffer data = ByteBuffer.allocate(size);
+        data.put(bb.duplicate());
+        data.flip();
+
+        blocksWritten.incrementAndGet();
+        bytesWritten.addAndGet(size);
+
+        // count the reference first, so the block can't be collected between the existence check and
+        // the reference being counted
+        final Session session = cassandraSession.getCassandraSession();
+        final ResultSetFuture counted = session.executeAsync(incrementRefsStatement.bind(key));
+        // the increment isn't cancelled with the write, so that whether the reference was counted is
+        // always known
+        ListenableFuture<ResultSet> exists = Futures.transform(Futures.nonCancellationPropagating(counted),
+                new AsyncFunction<ResultSet, ResultSet>()
+        {
+            @Override
+            public ListenableFuture<ResultSet> apply(ResultSet rs)
+            {
+                return session.executeAsync(blockExistsStatement.bind(key));
+            }
+        });
+
+        ListenableFuture<Boolean> written = Futures.transform(exists, new AsyncFunction<ResultSet, Boolean>()
+        {
+            @Override
+            public ListenableFuture<Boolean> apply(ResultSet rs)
+            {
+                if(rs.one() != null)
+                {
+                    return Futures.immediateFuture(false);
+                }
+
+                return Futures.transform(session.executeAsync(writeBlockStatement.bind(key, data)),
+                        new Function<ResultSet, Boolean>()
+                {
+                    @Override
+                    public Boolean apply(ResultSet rs)
+                    {
+                        // false if a concurrent write of the same block stored it first
+                        boolean applied = rs.wasApplied();
+                        if(applied)
+                        {
+                            blocksStored.incrementAndGet();
+                            bytesStored.addAndGet(size);
+                        }
+                        return applied;
+                    }
+                });
+            }
+        });
+
+        Futures.addCallback(written, new FutureCallback<Boolean>()
+        {
+            @Override
+            public void onSuccess(Boolean stored)
+            {
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                removeReference(counted, key);
+            }
+        });
+
+        return written;
+    }
+
+    /**
+     * Removes the reference counted by a write that failed, once the count has been incremented. If
+     * incrementing the count failed there's nothing to remove.
+     */
+    private void removeReference(ListenableFuture<ResultSet> counted, final ByteBuffer key)
+    {
+        Futures.addCallback(counted, new FutureCallback<ResultSet>()
+        {
+            @Override
+            public void onSuccess(ResultSet rs)
+            {
+                cassandraSession.getCassandraSession().executeAsync(decrementRefsStatement.bind(key));
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+            }
+        });
+    }
+
+    /**
+     * @return the block with the given digest, or null if there is no such block
+     */
+    public ByteBuffer getBlock(long digestHi, long digestLo)
+    {
+        ByteBuffer bb = null;
+
+        ResultSet rs = cassandraSession.getCassandraSession().execute(getBlockStatement.bind(toKey(digestHi, digestLo)));
+        Row row = rs.one();
+        if(row != null)
+        {
+            bb = row.getBytes("data");
+        }
+
+        return bb;
+    }
+
+    /**
+     * Starts fetching the block with the given digest without waiting for it. The future's result is
+     * null if there is no such block.
+     */
+    public ListenableFuture<ByteBuffer> getBlockAsync(long digestHi, long digestLo)
+    {
+        ResultSetFuture future = cassandraSession.getCassandraSession().executeAsync(
+                getBlockStatement.bind(toKey(digestHi, digestLo)));
+        return Futures.transform(future, new Function<ResultSet, ByteBuffer>()
+        {
+            @Override
+            public ByteBuffer apply(ResultSet rs)
+            {
+                Row row = rs.one();
+                return (row != null ? row.getBytes("data") : null);
+            }
+        });
+    }
+
+    /**
+     * Removes the references a node version's block map holds to its blocks. The blocks themselves are
+     * removed by {@link #collectOrphanedBlocks()}.
+     */
+    public void removeReferences(BlockMap blockMap)
+    {
+        for(int i = 0; i < blockMap.getNumBlocks(); i++)
+        {
+            ByteBuffer key = toKey(blockMap.getDigestHi(i), blockMap.getDigestLo(i));
+            cassandraSession.getCassandraSession().execute(decrementRefsStatement.bind(key));
+        }
+    }
+
+    private long getRefs(ByteBuffer key)
+    {
+        Row row = cassandraSession.getCassandraSession().execute(getRefsStatement.bind(key)).one();
+        return (row != null ? row.getLong("refs") : 0);
+    }
+
+    /**
+     * Marks blocks that are no longer referenced by any node version as orphans, and deletes those that
+     * were marked more than the grace period ago and are still not referenced. Blocks that have been
+     * referenced again since they were marked are unmarked. Both tables are scanned a page at a time.
+     *
+     * @return the number of blocks deleted
+     */
+    public int collectOrphanedBlocks()
+    {
+        Session session = cassandraSession.getCassandraSession();
+        String keyspace = cassandraSession.getKeyspace();
+        long now = System.currentTimeMillis();
+
+        // delete the blocks marked by earlier passes first, so that those marked now get their grace period
+        int numDeleted = 0;
+        int numUnmarked = 0;
+        Statement orphans = new SimpleStatement("SELECT digest, marked FROM " + keyspace
+                + ".content_block_orphans").setFetchSize(scanPageSize);
+        for(Row row : session.execute(orphans))
+        {
+            ByteBuffer key = row.getBytes("digest");
+            Date marked = row.getDate("marked");
+            if(getRefs(key) > 0)
+            {
+                session.execute(unmarkOrphanStatement.bind(key));
+                numUnmarked++;
+            }
+            else if(marked == null || marked.getTime() <= now - orphanGracePeriodMs)
+            {
+                if(deleteOrphanedBlock(key))
+                {
+                    numDeleted++;
+                }
+                session.execute(unmarkOrphanStatement.bind(key));
+            }
+        }
+
+        int numMarked = 0;
+        Statement refs = new SimpleStatement("SELECT digest, refs FROM " + keyspace
+                + ".content_block_refs").setFetchSize(scanPageSize);
+        for(Row row : session.execute(refs))
+        {
+            if(row.getLong("refs") <= 0)
+            {
+                // keep the time of an existing mark. Only collectors mark, so the worst a concurrent
+                // collector can do is mark the block again a little later, delaying its deletion. The
+                // counts of deleted blocks stay at zero, they aren't marked again
+                ByteBuffer key = row.getBytes("digest");
+                if(session.execute(isOrphanStatement.bind(key)).one() == null
+                        && session.execute(blockExistsStatement.bind(key)).one() != null)
+                {
+                    session.execute(markOrphanStatement.bind(key, new Date(now)));
+                    numMarked++;
+                }
+            }
+        }
+
+        if(logger.isDebugEnabled())
+        {
+            logger.debug("Collected " + numDeleted + " orphaned blocks, " + numUnmarked
+                    + " were referenced again, marked " + numMarked + " new orphans");
+        }
+
+        return numDeleted;
+    }
+
+    /**
+     * Deletes the block's data, putting it back if the block has been referenced again by the time it
+     * has been deleted (see the class comment).
+     *
+     * @return true if the block was deleted
+     */
+    private boolean deleteOrphanedBlock(ByteBuffer key)
+    {
+        Session session = cassandraSession.getCassandraSession();
+
+        Row row = session.execute(getBlockStatement.bind(key)).one();
+        if(row == null)
+        {
+            // already deleted
+            return false;
+        }
+        ByteBuffer data = row.getBytes("data");
+
+        session.execute(deleteBlockStatement.bind(key));
+        if(getRefs(key) > 0)
+        {
+            // unless a writer has already stored it again
+            session.execute(writeBlockStatement.bind(key, data));
+            if(logger.isDebugEnabled())
+            {
+                logger.debug("Orphaned block was referenced while it was being deleted, restored it");
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    public long getBlocksWritten()
+    {
+        return blocksWritten.get();
+    }
+
+    public long getBlocksStored()
+    {
+        return blocksStored.get();
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    public long getBytesStored()
+    {
+        return bytesStored.get();
+    }
+
+    /**
+     * @return the ratio of bytes written to bytes stored since startup, 1 if nothing has been written
+     */
+    public double getDedupRatio()
+    {
+        long stored = bytesStored.get();
+        return stored > 0 ? (double)bytesWritten.get() / stored : 1.0;
+    }
+}
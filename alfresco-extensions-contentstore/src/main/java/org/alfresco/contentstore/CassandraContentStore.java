@@ -38,6 +38,7 @@ import org.sglover.checksum.Patch;
 import org.sglover.checksum.PatchDocument;
 import org.sglover.entities.EntitiesService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.datastax.driver.core.BatchStatement;
@@ -50,6 +51,9 @@ import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 
 /**
+ * Content store backed by Cassandra. Content is split into blocks held in a {@link CassandraBlockStore},
+ * keyed by digest, so blocks shared between versions are stored once. Each node version has a block map
+ * listing the digests of its blocks in order.
  * 
  * @author sglover
  *
@@ -63,15 +67,22 @@ public class CassandraContentStore extends AbstractContentStore
     @Autowired
     private NodeMetadataCache nodeMetadataCache;
 
-    private AtomicLong blockNum = new AtomicLong(0);
+    @Autowired
+    private CassandraBlockStore blockStore;
+
+    // the number of block fetches kept in flight when reading content sequentially
+    @Value("${cassandra.readAheadBlocks:16}")
+    private int readAheadBlocks = 16;
+
+    // the number of block writes kept in flight when writing content
+    @Value("${cassandra.writeBehindBlocks:16}")
+    private int writeBehindBlocks = 16;
 
 //    private PreparedStatement getNodeMetadataStatement;
 //    private PreparedStatement writeNodeMetadataStatement;
     private PreparedStatement getNodeStatement;
-    private PreparedStatement getBlockStatement;
-    private PreparedStatement writeBlockStatement;
-    private PreparedStatement getNodeBlockStatement;
-    private PreparedStatement writeNodeBlockStatement;
+    private PreparedStatement writeNodeStatement;
+    private PreparedStatement deleteNodeStatement;
     private PreparedStatement writePatchStatement;
     private PreparedStatement getPatchesStatement;
     private PreparedStatement writeMatchedBlockStatement;
@@ -82,15 +93,28 @@ public class CassandraContentStore extends AbstractContentStore
     {
     }
 
-    public CassandraContentStore(CassandraSession cassandraSession, ChecksumService checksumService,
+    public CassandraContentStore(CassandraSession cassandraSession, NodeMetadataCache nodeMetadataCache,
+            CassandraBlockStore blockStore, ChecksumService checksumService,
             PatchService patchService, NodeUsageDAO nodeUsageDAO,
             EntitiesService entitiesService, boolean async) throws IOException
     {
         super(checksumService, patchService, nodeUsageDAO, entitiesService, async);
         this.cassandraSession = cassandraSession;
+        this.nodeMetadataCache = nodeMetadataCache;
+        this.blockStore = blockStore;
         init();
     }
 
+    public void setReadAheadBlocks(int readAheadBlocks)
+    {
+        this.readAheadBlocks = readAheadBlocks;
+    }
+
+    public void setWriteBehindBlocks(int writeBehindBlocks)
+    {
+        this.writeBehindBlocks = writeBehindBlocks;
+    }
+
     @PostConstruct
     public void init()
     {
@@ -111,16 +135,10 @@ public class CassandraContentStore extends AbstractContentStore
 //                + ".content_metadata (nodeId, nodeVersion, mimetype, block_num, global_block_num) VALUES(?, ?, ?, ?, ?);");
         this.getNodeStatement = cassandraSession.getCassandraSession().prepare(
                 "SELECT * FROM " + keyspace + ".content where nodeId = ? and nodeVersion = ? and mimetype = ?");
-
-        this.getBlockStatement = cassandraSession.getCassandraSession().prepare(
-                "SELECT * FROM " + keyspace + ".content_blocks where global_block_num = ?");
-        this.writeBlockStatement = cassandraSession.getCassandraSession().prepare(
-                "INSERT INTO " + keyspace + ".content_blocks (global_block_num, data) VALUES(?, ?);");
-
-        this.getNodeBlockStatement = cassandraSession.getCassandraSession().prepare(
-                "SELECT * FROM " + keyspace + ".node_content_blocks where nodeId = ? and nodeVersion = ? and mimeType = ?");
-        this.writeNodeBlockStatement = cassandraSession.getCassandraSession().prepare(
-                "INSERT INTO " + keyspace + ".node_content_blocks (nodeId, nodeVersion, mimeType, block_num, data) VALUES(?, ?, ?, ?, ?);");
+        this.writeNodeStatement = cassandraSession.getCassandraSession().prepare(
+                "INSERT INTO " + keyspace + ".content (nodeId, nodeVersion, mimetype, num_blocks, size, block_size) VALUES(?, ?, ?, ?, ?, ?);");
+        this.deleteNodeStatement = cassandraSession.getCassandraSession().prepare(
+                "DELETE FROM " + keyspace + ".content where nodeId = ? and nodeVersion = ? and mimetype = ?");
 
         this.writePatchStatement = cassandraSession.getCassandraSession().prepare(
                 "INSERT INTO " + keyspace + ".patch_data (nodeId, nodeVersion, mimeType, num, last_match_index, size, patch) VALUES (?, ?, ?, ?, ?, ?, ?);");
@@ -156,16 +174,6 @@ public class CassandraContentStore extends AbstractContentStore
                         + "mimetype text, path text, num_blocks int, size bigint, block_size int, "
                         + "PRIMARY KEY((nodeId, nodeVersion, mimetype)));");
             }
-            if(keySpaceMetadata.getTable("content_blocks") == null)
-            {
-                cassandraSession.getCassandraSession().execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".content_blocks (global_block_num bigint, data blob, "
-                        + "PRIMARY KEY(global_block_num));");
-            }
-            if(keySpaceMetadata.getTable("node_content_blocks") == null)
-            {
-                cassandraSession.getCassandraSession().execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".node_content_blocks (nodeId text, nodeVersion bigint, mimeType text, block_num bigint, data blob, "
-                        + "PRIMARY KEY(nodeId, nodeVersion, mimeType));");
-            }
             if(keySpaceMetadata.getTable("patch_data") == null)
             {
                 ResultSet rs = cassandraSession.getCassandraSession().execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".patch_data (nodeId text, "
@@ -321,10 +329,15 @@ public class CassandraContentStore extends AbstractContentStore
         private final AtomicLong position = new AtomicLong(0);
         private final AtomicLong size = new AtomicLong(0);
         private final NodeMetadata nodeMetadata;
+        private final BlockReadAhead readAhead;
+        // the block holding the current position, if it has been fetched
+        private ByteBuffer currentBlock;
+        private int currentBlockNum = -1;
 
         public CassandraReadingByteChannel(Node node)
         {
             this.nodeMetadata = nodeMetadataCache.getNodeMetadata(node);
+            this.readAhead = new BlockReadAhead(blockStore, nodeMetadata.getBlockmap(), readAheadBlocks);
 
             ResultSet rs = cassandraSession.getCassandraSession()
                     .execute(getNodeStatement.bind(node.getNodeId(), node.getNodeVersion(),
@@ -349,6 +362,7 @@ public class CassandraContentStore extends AbstractContentStore
         @Override
         public void close() throws IOException
         {
+            readAhead.cancel();
             this.isOpen.getAndSet(false);
         }
 
@@ -356,59 +370,47 @@ public class CassandraContentStore extends AbstractContentStore
         public int read(ByteBuffer dst) throws IOException
         {
             long pos = position();
-            long size = Math.min(this.size.get(), dst.remaining());
-
-            int remaining = dst.remaining();
-            long numBytes = (pos + remaining > this.size.get() ? size - pos : remaining);
-            long l = numBytes / blockSize + (numBytes % blockSize > 0 ? 1 : 0);
-            if(l > Integer.MAX_VALUE)
-            {
-                throw new RuntimeException("numBlocks exceeds maximum number of blocks");
-            }
-            int numBlocks = (int)l;
-            l = pos / blockSize + (pos % blockSize > 0 ? 1 : 0);
-            if(l > Integer.MAX_VALUE)
+            long size = this.size.get();
+            if(pos >= size)
             {
-                throw new RuntimeException("Range start exceeds maximum number of blocks");
+                return -1;
             }
-            int rangeStart = (int)l;
-            int rangeEnd = rangeStart + numBlocks - 1;
 
-            int numRead = -1;
-            if(rangeEnd >= rangeStart)
+            int numRead = 0;
+            while(dst.hasRemaining() && pos < size)
             {
-                numRead = 0;
-                for (int i = rangeStart; i <= rangeEnd; i++)
+                long l = pos / blockSize;
+                if(l >= numBlocks)
                 {
-                    long globalBlockNum = nodeMetadata.getBlockmap().getGlobalBlockNum(i);
-                    ByteBuffer bb = getBlock(globalBlockNum);
-
-//                    if(dst.remaining() > blockSize)
-//                    {
-//                        long globalBlockNum = nodeMetadata.getBlockmap().getGlobalBlockNum(i);
-//                        bb = getBlock(globalBlockNum);
-//                        //bb = getBlock(node, i);
-//                    }
-//                    else
-//                    {
-//                        bb = getBlock(node, i, dst.remaining());
-//                    }
-
-                    if(bb != null)
-                    {
-                        numRead += bb.remaining();
-        
-                        dst.put(bb);
-                    }
-                    else
-                    {
-                        // TODO
-                    }
+                    throw new IOException("Position " + pos + " is beyond the last block");
+                }
+                int blockNum = (int)l;
+                if(blockNum != currentBlockNum)
+                {
+                    // a no-op when reading sequentially, otherwise re-aims the read ahead window
+                    readAhead.seek(blockNum);
+                    this.currentBlock = readAhead.nextBlock();
+                    this.currentBlockNum = blockNum;
                 }
-                
-                position.addAndGet(numRead);
+
+                int offset = (int)(pos % blockSize);
+                if(offset >= currentBlock.remaining())
+                {
+                    throw new IOException("Block " + blockNum + " is shorter than expected");
+                }
+
+                ByteBuffer src = currentBlock.duplicate();
+                src.position(src.position() + offset);
+                int count = Math.min(src.remaining(), dst.remaining());
+                src.limit(src.position() + count);
+                dst.put(src);
+
+                numRead += count;
+                pos += count;
             }
 
+            position.getAndSet(pos);
+
             return numRead;
         }
 
@@ -448,17 +450,12 @@ public class CassandraContentStore extends AbstractContentStore
 
     private class CassandraWritableByteChannel implements WritableByteChannel
     {
-        private final ByteBuffer bb;
         private final AtomicBoolean isOpen = new AtomicBoolean(true);
-        private int blockNum = 0;
-        private long size = 0;
-        private int numBlocks = 0;
-        private final NodeMetadata nodeMetadata;
+        private final BlockWriter writer;
 
         public CassandraWritableByteChannel(Node node)
         {
-            this.nodeMetadata = new NodeMetadata(node, numBlocks);
-            this.bb = ByteBuffer.allocate(getBlockSize());
+            this.writer = new BlockWriter(blockStore, node, getBlockSize(), writeBehindBlocks);
         }
 
         @Override
@@ -470,164 +467,70 @@ public class CassandraContentStore extends AbstractContentStore
         @Override
         public void close() throws IOException
         {
-            bb.flip();
-
-//            long globalBlockNum = writeBlock(bb);
-//            nodeMetadata.getBlockmap().addBlockMapping(currentRangeId, globalBlockNum);
-
-            writeNodeBlock(nodeMetadata.getNode(), blockNum, bb);
-
-            numBlocks++;
-            blockNum++;
-            bb.clear();
-
             this.isOpen.getAndSet(false);
 
-            nodeMetadataCache.writeNodeMetadata(nodeMetadata);
-            writeNodeData(nodeMetadata.getNode(), numBlocks, size);
+            closeWriter(writer);
 
-            createPatch(nodeMetadata.getNode());
-            extractChecksums(nodeMetadata.getNode());
+            createPatch(writer.getNode());
+            extractChecksums(writer.getNode());
 
-            if(nodeMetadata.getNode().getMimeType().isText())
+            if(writer.getNode().getMimeType().isText())
             {
-                extractEntities(nodeMetadata.getNode());
+                extractEntities(writer.getNode());
             }
         }
 
         @Override
         public int write(ByteBuffer src) throws IOException
         {
-            int numBytesWritten = 0;
-
-            while(src.hasRemaining())
-            {
-                if(bb.remaining() == 0)
-                {
-                    bb.flip();
-
-                    writeNodeBlock(nodeMetadata.getNode(), blockNum, bb);
-
-//                    long globalBlockNum = writeBlock(bb);
-//                    nodeMetadata.getBlockmap().addBlockMapping(currentRangeId, globalBlockNum);
-
-                    numBlocks++;
-                    blockNum++;
-                    bb.clear();
-                }
-
-                byte b = src.get();
-                bb.put(b);
-                numBytesWritten++;
-            }
-
-//            if(bb.remaining() == 0)
-//            {
-//                bb.flip();
-//                writeBlock(node, mimeType, currentRangeId, bb);
-//                currentRangeId++;
-//                bb.clear();
-//            }
-
-            size += numBytesWritten;
-
-            return numBytesWritten;
+            return writer.write(src);
         }
     }
 
-    private ByteBuffer getNodeBlock(Node node, long rangeId)
-    {
-        return getNodeBlock(node, rangeId, getBlockSize());
-    }
-
     @Override
     public InputStream getBlockAsInputStream(Node node, long rangeId, int size)
     {
-        ByteBuffer bb = getNodeBlock(node, rangeId, size);
-        InputStream in = new ByteArrayInputStream(bb.array());
-        return in;
-    }
-
-    /*
-     * Get up to size bytes from the block storage in Cassandra
-     */
-    private ByteBuffer getBlock(long globalBlockId)
-    {
-        ByteBuffer bb = null;
-
-        ResultSet rs = cassandraSession.getCassandraSession().execute(getBlockStatement.bind(globalBlockId));
-        Row row = rs.one();
-        if(row != null)
+        NodeMetadata nodeMetadata = nodeMetadataCache.getNodeMetadata(node);
+        if(rangeId < 0 || rangeId >= nodeMetadata.getBlockmap().getNumBlocks())
         {
-            bb = row.getBytes("data");
-            bb.compact();
-            bb.flip();
+            throw new IllegalArgumentException("No block " + rangeId + " for node " + node);
         }
 
-        return bb;
+        ByteBuffer bb = getBlock(nodeMetadata, (int)rangeId);
+        byte[] bytes = new byte[Math.min(size, bb.remaining())];
+        bb.get(bytes);
+        InputStream in = new ByteArrayInputStream(bytes);
+        return in;
     }
 
     /*
-     * Get up to size bytes from the block storage in Cassandra
+     * Get block blockNum of a node version from the block store
      */
-    private ByteBuffer getNodeBlock(Node node, long rangeId, int size)
+    private ByteBuffer getBlock(NodeMetadata nodeMetadata, int blockNum)
     {
-        ByteBuffer bb = null;
-
-        String nodeId = node.getNodeId();
-        long nodeVersion = node.getNodeVersion();
-        MimeType mimeType = node.getMimeType();
-
-        ResultSet rs = cassandraSession.getCassandraSession()
-                .execute(getNodeBlockStatement.bind(nodeId, nodeVersion, mimeType.getMimetype(), rangeId));
-        Row row = rs.one();
-        if(row != null)
+        BlockMap blockMap = nodeMetadata.getBlockmap();
+        ByteBuffer bb = blockStore.getBlock(blockMap.getDigestHi(blockNum), blockMap.getDigestLo(blockNum));
+        if(bb == null)
         {
-            bb = row.getBytes("data");
-            bb.compact();
-            bb.flip();
-            if(bb.limit() > size)
-            {
-                bb.limit(size);
-            }
+            throw new RuntimeException("Missing block " + blockNum + " for node " + nodeMetadata.getNode());
         }
-
         return bb;
     }
 
-    private void writeNodeBlock(Node node, long blockNum, ByteBuffer bb)
+    /*
+     * Waits for the writer's blocks to be written, then writes the block map and node data
+     */
+    private void closeWriter(BlockWriter writer) throws IOException
     {
-        cassandraSession.getCassandraSession()
-                .execute(writeNodeBlockStatement.bind(node.getNodeId(), node.getNodeVersion(), node.getMimeType().toString(),
-                        blockNum, bb));
+        NodeMetadata nodeMetadata = writer.close();
+        nodeMetadataCache.writeNodeMetadata(nodeMetadata);
+        writeNodeData(nodeMetadata.getNode(), writer.getNumBlocks(), writer.getSize());
     }
 
     private void writeNodeData(Node node, int numBlocks, long size)
     {
-        StringBuilder sb = new StringBuilder("INSERT INTO " + cassandraSession.getKeyspace() + ".content (nodeId, nodeVersion, mimetype, num_blocks, size, block_size) ");
-        sb.append(" VALUES('");
-        sb.append(node.getNodeId());
-        sb.append("', ");
-        sb.append(node.getNodeVersion());
-        sb.append(", '");
-        sb.append(node.getMimeType().getMimetype());
-        sb.append("', ");
-        sb.append(numBlocks);
-        sb.append(", ");
-        sb.append(size);
-        sb.append(", ");
-        sb.append(getBlockSize());
-        sb.append(")");
-
-        cassandraSession.getCassandraSession().execute(sb.toString());
-    }
-
-    private long writeBlock(ByteBuffer bb)
-    {
-        long globalBlockNum = blockNum.incrementAndGet();
-        cassandraSession.getCassandraSession()
-                .execute(writeBlockStatement.bind(globalBlockNum, bb));
-        return globalBlockNum;
+        cassandraSession.getCassandraSession().execute(writeNodeStatement.bind(node.getNodeId(),
+                node.getNodeVersion(), node.getMimeType().getMimetype(), numBlocks, size, getBlockSize()));
     }
 
 //    private void writeBlock(Node node, long rangeId, ByteBuffer bb)
@@ -640,28 +543,43 @@ public class CassandraContentStore extends AbstractContentStore
 
     private class CassandraInputStream extends InputStream
     {
-        private int blockNum = 0;
-        private ByteBuffer bb = ByteBuffer.allocate(getBlockSize());
-        private final Node node;
+        private ByteBuffer bb;
+        private BlockReadAhead readAhead;
 
         public CassandraInputStream(Node node)
         {
-            this.node = node;
-
-            NodeMetadata nodeMetadata = nodeMetadataCache.getNodeMetadata(node);
-
             ResultSet rs = cassandraSession.getCassandraSession()
                     .execute(getNodeStatement.bind(node.getNodeId(), node.getNodeVersion(),
-                            nodeMetadata.getNode().getMimeType().getMimetype()));
+                            node.getMimeType().getMimetype()));
             Row row = rs.one();
             if(row == null)
             {
                 throw new IllegalArgumentException("No such node " + node);
             }
 
-            // get first block
-            bb = getNodeBlock(node, blockNum);
-            blockNum++;
+            if(row.getInt("num_blocks") > 0)
+            {
+                this.readAhead = new BlockReadAhead(blockStore, nodeMetadataCache.getNodeMetadata(node).getBlockmap(),
+                        readAheadBlocks);
+            }
+        }
+
+        /*
+         * Moves on to the next block if the current one has been read, returning false at the end of
+         * the content
+         */
+        private boolean nextBlock() throws IOException
+        {
+            if(bb == null || !bb.hasRemaining())
+            {
+                if(readAhead == null || !readAhead.hasNext())
+                {
+                    return false;
+                }
+                bb = readAhead.nextBlock();
+            }
+
+            return true;
         }
 
         @Override
@@ -669,83 +587,76 @@ public class CassandraContentStore extends AbstractContentStore
         {
             int ret = -1;
 
-            if(bb != null)
+            if(nextBlock())
             {
-                if(bb.remaining() == 0)
-                {
-                    bb = getNodeBlock(node, blockNum);
-                    blockNum++;
-                }
+                ret = bb.get() & 0xFF;
+            }
 
-                if(bb != null)
-                {
-                    ret = bb.get() & 0xFF;
-                }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if(len == 0)
+            {
+                return 0;
+            }
+
+            int ret = -1;
+
+            if(nextBlock())
+            {
+                ret = Math.min(len, bb.remaining());
+                bb.get(b, off, ret);
             }
 
             return ret;
         }
+
+        @Override
+        public void close() throws IOException
+        {
+            if(readAhead != null)
+            {
+                readAhead.cancel();
+            }
+        }
     }
 
     private class CassandraOutputStream extends OutputStream
     {
-        private int blockNum = 0;
-        private ByteBuffer bb = ByteBuffer.allocate(getBlockSize());
-        private long size = 0;
-        private int numBlocks = 0;
-        private final NodeMetadata nodeMetadata;
+        private final BlockWriter writer;
 
         public CassandraOutputStream(Node node)
         {
-            this.nodeMetadata = new NodeMetadata(node, numBlocks);
+            this.writer = new BlockWriter(blockStore, node, getBlockSize(), writeBehindBlocks);
         }
 
         @Override
         public void write(int i) throws IOException
         {
-            if(!bb.hasRemaining())
-            {
-                bb.flip();
-
-//                long globalBlockNum = writeBlock(bb);
-//                nodeMetadata.getBlockmap().addBlockMapping(currentRangeId, globalBlockNum);
-
-                writeNodeBlock(nodeMetadata.getNode(), blockNum, bb);
-
-                numBlocks++;
-                blockNum++;
-                bb.clear();
-            }
+            writer.write((byte)i);
+        }
 
-            bb.put((byte)i);
-            size++;
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            writer.write(ByteBuffer.wrap(b, off, len));
         }
 
         @Override
         public void close() throws IOException
         {
-            bb.flip();
-
-//            long globalBlockNum = writeBlock(bb);
-//            nodeMetadata.getBlockmap().addBlockMapping(currentRangeId, globalBlockNum);
+            closeWriter(writer);
 
-            writeNodeBlock(nodeMetadata.getNode(), blockNum, bb);
+            extractChecksums(writer.getNode());
 
-            numBlocks++;
-            blockNum++;
-            bb.clear();
+            createPatch(writer.getNode());
 
-            CassandraContentStore.this.nodeMetadataCache.writeNodeMetadata(nodeMetadata);
-
-            writeNodeData(nodeMetadata.getNode(), numBlocks, size);
-
-            extractChecksums(nodeMetadata.getNode());
-
-            createPatch(nodeMetadata.getNode());
-
-            if(nodeMetadata.getNode().getMimeType().isText())
+            if(writer.getNode().getMimeType().isText())
             {
-                extractEntities(nodeMetadata.getNode());
+                extractEntities(writer.getNode());
             }
         }
     }
@@ -759,16 +670,11 @@ public class CassandraContentStore extends AbstractContentStore
 
     private class CassandraWriter extends Writer
     {
-        private int blockNum = 0;
-        private ByteBuffer current;
-        private long size = 0;
-        private int numBlocks = 0;
-        private final NodeMetadata nodeMetadata;
+        private final BlockWriter writer;
 
         public CassandraWriter(Node node)
         {
-            this.nodeMetadata = new NodeMetadata(node, numBlocks);
-            this.current = ByteBuffer.allocate(getBlockSize());
+            this.writer = new BlockWriter(blockStore, node, getBlockSize(), writeBehindBlocks);
         }
 
         @Override
@@ -776,66 +682,36 @@ public class CassandraContentStore extends AbstractContentStore
         {
             CharBuffer charBuffer = CharBuffer.wrap(cbuf, off, len);
             ByteBuffer bb = charset.encode(charBuffer);
-            while(bb.remaining() > 0)
-            {
-                byte b = bb.get();
-                size++;
-                if(!current.hasRemaining())
-                {
-//                    long globalBlockNum = writeBlock(current);
-//                    nodeMetadata.getBlockmap().addBlockMapping(currentRangeId, globalBlockNum);
-
-                    writeNodeBlock(nodeMetadata.getNode(), blockNum, bb);
-
-                    numBlocks++;
-                    blockNum++;
-                    current.clear();
-                }
-
-                current.put(b);
-            }
+            writer.write(bb);
         }
 
         @Override
         public void flush() throws IOException
         {
-//            long globalBlockNum = writeBlock(current);
-//            nodeMetadata.getBlockmap().addBlockMapping(currentRangeId, globalBlockNum);
-
-            writeNodeBlock(nodeMetadata.getNode(), blockNum, current);
-
-            blockNum++;
+            // blocks are only written when full, or on close, so that content stays block aligned
         }
 
         @Override
         public void close() throws IOException
         {
             // write out any remaining
+            closeWriter(writer);
 
-//            long globalBlockNum = writeBlock(current);
-//            nodeMetadata.getBlockmap().addBlockMapping(currentRangeId, globalBlockNum);
+            extractChecksums(writer.getNode());
+            createPatch(writer.getNode());
 
-            writeNodeBlock(nodeMetadata.getNode(), blockNum, current);
-
-            nodeMetadataCache.writeNodeMetadata(nodeMetadata);
-
-            writeNodeData(nodeMetadata.getNode(), numBlocks, size);
-
-            extractChecksums(nodeMetadata.getNode());
-            createPatch(nodeMetadata.getNode());
-
-            if(nodeMetadata.getNode().getMimeType().isText())
+            if(writer.getNode().getMimeType().isText())
             {
-                extractEntities(nodeMetadata.getNode());
+                extractEntities(writer.getNode());
             }
         }
     }
 
     private class CassandraReader extends Reader
     {
-        private int blockNum = 0;
-        private CharBuffer charBuffer = CharBuffer.allocate(getBlockSize());
+        private CharBuffer charBuffer = CharBuffer.allocate(0);
         private final NodeMetadata nodeMetadata;
+        private final BlockReadAhead readAhead;
 
         public CassandraReader(Node node)
         {
@@ -844,6 +720,7 @@ public class CassandraContentStore extends AbstractContentStore
             {
                 throw new IllegalArgumentException("No such node " + node);
             }
+            this.readAhead = new BlockReadAhead(blockStore, nodeMetadata.getBlockmap(), readAheadBlocks);
 
 //            ResultSet rs = cassandraSession.getCassandraSession()
 //                    .execute(getNodeStatement.bind(node.getNodeId(), node.getNodeVersion(),
@@ -860,43 +737,30 @@ public class CassandraContentStore extends AbstractContentStore
         {
             int total = 0;
 
-            do
+            while(total < len)
             {
-                int remaining = charBuffer.remaining();
-                if(remaining == 0)
+                if(!charBuffer.hasRemaining())
                 {
-                    blockNum++;
-                    long globalBlockNum = nodeMetadata.getBlockmap().getGlobalBlockNum(blockNum);
-                    ByteBuffer bb = getBlock(globalBlockNum);
-//                    ByteBuffer bb = getBlock(node, currentRangeId);
-                    if(bb != null)
-                    {
-                        charBuffer = charset.decode(bb);
-                        remaining = charBuffer.remaining();
-                        if(remaining == 0)
-                        {
-                            total = -1;
-                            break;
-                        }
-                    }
-                    else
+                    if(!readAhead.hasNext())
                     {
-                        remaining = 0;
+                        break;
                     }
+                    ByteBuffer bb = readAhead.nextBlock();
+                    charBuffer = charset.decode(bb);
                 }
-                total += remaining;
-                charBuffer.get(cbuf, 0, remaining);
+
+                int count = Math.min(len - total, charBuffer.remaining());
+                charBuffer.get(cbuf, off + total, count);
+                total += count;
             }
-            while(total < cbuf.length);
 
-            return total;
+            return (total == 0 && len > 0 ? -1 : total);
         }
 
         @Override
         public void close() throws IOException
         {
-            // TODO Auto-generated method stub
-            
+            readAhead.cancel();
         }
     }
 
@@ -938,6 +802,26 @@ public class CassandraContentStore extends AbstractContentStore
         }
     }
 
+    /**
+     * Removes a node version, releasing its references to its blocks. Blocks no longer referenced by any
+     * node version are deleted by {@link CassandraBlockStore#collectOrphanedBlocks()}.
+     */
+    public void removeContent(Node node)
+    {
+        NodeMetadata nodeMetadata = nodeMetadataCache.getNodeMetadata(node);
+        blockStore.removeReferences(nodeMetadata.getBlockmap());
+        nodeMetadataCache.removeNodeMetadata(node);
+
+        cassandraSession.getCassandraSession().execute(deleteNodeStatement.bind(node.getNodeId(),
+                node.getNodeVersion(), node.getMimeType().getMimetype()));
+    }
+
+    @Override
+    public void invalidateNode(String nodeId)
+    {
+        nodeMetadataCache.invalidate(nodeId);
+    }
+
     private class CassandraContentReader extends AbstractContentReader
     {
         private int numBlocks;
@@ -1,36 +1,64 @@
 package org.alfresco.contentstore;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
 
 /**
+ * A block map that grows as blocks are added, for content being written.
  * 
  * @author sglover
  *
  */
 public class DynamicBlockMap implements BlockMap
 {
-    private Map<Integer, Long> blockMap;
+    private long[] digestHis;
+    private long[] digestLos;
+    private volatile int numBlocks;
 
     public DynamicBlockMap()
     {
-        this.blockMap = new ConcurrentHashMap<>();
+        this.digestHis = new long[16];
+        this.digestLos = new long[16];
     }
 
-    public long getGlobalBlockNum(int blockNum)
+    public int getNumBlocks()
     {
-        return blockMap.get(blockNum);
+        return numBlocks;
     }
 
-    public void addBlockMapping(int contentBlock, long blockNum)
+    public long getDigestHi(int blockNum)
     {
-        blockMap.put(contentBlock, blockNum);
+        checkBlockNum(blockNum);
+        return digestHis[blockNum];
     }
 
-    @Override
-    public Iterator<Long> iterator()
+    public long getDigestLo(int blockNum)
     {
-        return blockMap.values().iterator();
+        checkBlockNum(blockNum);
+        return digestLos[blockNum];
+    }
+
+    private void checkBlockNum(int blockNum)
+    {
+        if(blockNum < 0 || blockNum >= numBlocks)
+        {
+            throw new IndexOutOfBoundsException("No block " + blockNum + ", " + numBlocks + " blocks");
+        }
+    }
+
+    public synchronized void addBlockMapping(int contentBlock, long digestHi, long digestLo)
+    {
+        if(contentBlock >= digestHis.length)
+        {
+            int capacity = Math.max(contentBlock + 1, digestHis.length * 2);
+            digestHis = Arrays.copyOf(digestHis, capacity);
+            digestLos = Arrays.copyOf(digestLos, capacity);
+        }
+
+        digestHis[contentBlock] = digestHi;
+        digestLos[contentBlock] = digestLo;
+        if(contentBlock >= numBlocks)
+        {
+            numBlocks = contentBlock + 1;
+        }
     }
 }
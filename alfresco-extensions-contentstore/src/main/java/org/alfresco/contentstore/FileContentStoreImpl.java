@@ -10,6 +10,7 @@ package org.alfresco.contentstore;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -24,6 +25,7 @@ import java.nio.channels.ReadableByteChannel;
 import org.alfresco.contentstore.dao.ContentDAO;
 import org.alfresco.contentstore.dao.NodeInfo;
 import org.alfresco.contentstore.dao.NodeUsageDAO;
+import org.alfresco.contentstore.eviction.ContentEvictor;
 import org.alfresco.contentstore.patch.PatchService;
 import org.apache.commons.io.IOUtils;
 import org.sglover.alfrescoextensions.common.MimeType;
@@ -42,6 +44,9 @@ public class FileContentStoreImpl extends AbstractContentStore implements FileCo
 {
     private ContentDAO contentDAO;
 
+    // optional, evicts content when the file system fills up
+    private ContentEvictor contentEvictor;
+
     public FileContentStoreImpl(ChecksumService checksumService, PatchService patchService,
             NodeUsageDAO nodeUsageDAO, EntitiesService entitiesService, ContentDAO contentDAO) throws IOException
     {
@@ -49,6 +54,38 @@ public class FileContentStoreImpl extends AbstractContentStore implements FileCo
         this.contentDAO = contentDAO;
     }
 
+    public void setContentEvictor(ContentEvictor contentEvictor)
+    {
+        this.contentEvictor = contentEvictor;
+    }
+
+    public ContentEvictor getContentEvictor()
+    {
+        return contentEvictor;
+    }
+
+    @Override
+    public void init()
+    {
+        super.init();
+
+        if(contentEvictor != null)
+        {
+            contentEvictor.start(contentRoot);
+        }
+    }
+
+    @Override
+    public void remove(String contentPath)
+    {
+        super.remove(contentPath);
+
+        if(contentEvictor != null)
+        {
+            contentEvictor.contentRemoved(contentPath);
+        }
+    }
+
 //    @SuppressWarnings("unused")
 //    @Override
 //    public Node applyPatch(Node node, PatchDocument patchDocument) throws IOException
@@ -175,6 +212,11 @@ public class FileContentStoreImpl extends AbstractContentStore implements FileCo
 
             contentDAO.updateNode(newNodeInfo);
 
+            if(contentEvictor != null)
+            {
+                contentEvictor.contentAdded(newNode, outContentPath);
+            }
+
             return newNode;
         }
     }
@@ -182,8 +224,19 @@ public class FileContentStoreImpl extends AbstractContentStore implements FileCo
     @Override
     protected ContentReader getReaderImpl(Node node) throws IOException
     {
-        FileContentReader reader = new FileContentReaderImpl(node);
-        return reader;
+        try
+        {
+            FileContentReader reader = new FileContentReaderImpl(node);
+            return reader;
+        }
+        catch(InvalidNodeException e)
+        {
+            if(contentEvictor != null)
+            {
+                contentEvictor.recordMiss();
+            }
+            throw e;
+        }
     }
 
     @Override
@@ -224,6 +277,11 @@ public class FileContentStoreImpl extends AbstractContentStore implements FileCo
             String contentPath = nodeInfo.getContentPath();
             RandomAccessFile randomAccessFile = new RandomAccessFile(contentPath, "r");  // won't create it
             FileChannel channel = randomAccessFile.getChannel();
+            if(contentEvictor != null)
+            {
+                // don't evict the content while it's being read
+                channel = contentEvictor.pin(channel, contentPath);
+            }
             return channel;
         }
 
@@ -258,6 +316,10 @@ public class FileContentStoreImpl extends AbstractContentStore implements FileCo
         {
             String contentPath = nodeInfo.getContentPath();
             InputStream in = new FileInputStream(contentPath);
+            if(contentEvictor != null)
+            {
+                in = contentEvictor.pin(in, contentPath);
+            }
             return in;
         }
 
@@ -312,15 +374,43 @@ public class FileContentStoreImpl extends AbstractContentStore implements FileCo
         @Override
         public void writeStream(InputStream in) throws IOException
         {
-            OutputStream out = getOutputStream();
-            IOUtils.copy(in, out);
+            // closing the stream is what tells the evictor about the content
+            try(OutputStream out = getOutputStream())
+            {
+                IOUtils.copy(in, out);
+            }
         }
 
         @Override
         public OutputStream getOutputStream() throws IOException
         {
-            String contentPath = nodeInfo.getContentPath();
+            final String contentPath = nodeInfo.getContentPath();
             OutputStream out = new FileOutputStream(contentPath);
+            if(contentEvictor != null)
+            {
+                // the content can be evicted once it has been written
+                out = new FilterOutputStream(out)
+                {
+                    private boolean closed = false;
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException
+                    {
+                        this.out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException
+                    {
+                        super.close();
+                        if(!closed)
+                        {
+                            closed = true;
+                            contentEvictor.contentAdded(node, contentPath);
+                        }
+                    }
+                };
+            }
             return out;
         }
 
@@ -1,7 +1,5 @@
 package org.alfresco.contentstore;
 
-import java.util.Iterator;
-
 /**
  * 
  * @author sglover
@@ -9,44 +7,33 @@ import java.util.Iterator;
  */
 public class FixedSizeBlockMap implements BlockMap
 {
-    private long[] blockMap;
+    private long[] digestHis;
+    private long[] digestLos;
 
     public FixedSizeBlockMap(int numBlocks)
     {
-        this.blockMap = new long[numBlocks];
+        this.digestHis = new long[numBlocks];
+        this.digestLos = new long[numBlocks];
     }
 
-    public long getGlobalBlockNum(int blockNum)
+    public int getNumBlocks()
     {
-        return blockMap[blockNum];
+        return digestHis.length;
     }
 
-    public void addBlockMapping(int contentBlock, long blockNum)
+    public long getDigestHi(int blockNum)
     {
-        blockMap[contentBlock] = blockNum;
+        return digestHis[blockNum];
     }
 
-    @Override
-    public Iterator<Long> iterator()
+    public long getDigestLo(int blockNum)
     {
-        return new BlockMapIterator();
+        return digestLos[blockNum];
     }
 
-    private class BlockMapIterator implements Iterator<Long>
+    public void addBlockMapping(int contentBlock, long digestHi, long digestLo)
     {
-        private int i = 0;
-
-        @Override
-        public boolean hasNext()
-        {
-            return i < blockMap.length;
-        }
-
-        @Override
-        public Long next()
-        {
-            return blockMap[i++];
-        }
-        
+        digestHis[contentBlock] = digestHi;
+        digestLos[contentBlock] = digestLo;
     }
 }
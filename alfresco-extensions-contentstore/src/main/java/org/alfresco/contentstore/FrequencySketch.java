@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore;
+
+/**
+ * Estimates how often keys have been seen recently, for cache admission (as in TinyLFU). A count-min
+ * sketch of 4 bit counters, 16 to a long: each key has a counter in each of 4 rows, and its frequency is
+ * the least of them. Once the number of increments reaches 10 times the width, all the counters are
+ * halved, so that keys that were popular a while ago age out.
+ *
+ * @author sglover
+ *
+ */
+class FrequencySketch
+{
+    private static final long[] SEEDS = new long[] { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * @param width the number of keys expected to be tracked, rounded up to a power of 2
+     */
+    FrequencySketch(int width)
+    {
+        int tableSize = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+        this.table = new long[tableSize];
+        this.mask = tableSize - 1;
+        this.sampleSize = 10 * tableSize;
+    }
+
+    private int spread(int hash)
+    {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    private int indexOf(int hash, int row)
+    {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += (h >>> 32);
+        return ((int)h) & mask;
+    }
+
+    /**
+     * @return the estimated number of times key has been seen recently, at most 15
+     */
+    synchronized int frequency(Object key)
+    {
+        int hash = spread(key.hashCode());
+        // each row uses a different counter of the 16 in its long
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for(int i = 0; i < 4; i++)
+        {
+            int offset = (start + i) << 2;
+            int count = (int)((table[indexOf(hash, i)] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    synchronized void increment(Object key)
+    {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for(int i = 0; i < 4; i++)
+        {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            if(((table[index] >>> offset) & 0xfL) != MAX_COUNT)
+            {
+                table[index] += (1L << offset);
+                added = true;
+            }
+        }
+
+        if(added && ++size == sampleSize)
+        {
+            reset();
+        }
+    }
+
+    private void reset()
+    {
+        for(int i = 0; i < table.length; i++)
+        {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+}
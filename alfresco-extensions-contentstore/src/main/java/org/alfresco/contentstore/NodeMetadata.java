@@ -26,7 +26,7 @@ public class NodeMetadata
         this.blockMap = new FixedSizeBlockMap(numBlocks);
     }
 
-    public NodeMetadata(Node node, FixedSizeBlockMap blockMap)
+    public NodeMetadata(Node node, BlockMap blockMap)
     {
         super();
         this.node = node;
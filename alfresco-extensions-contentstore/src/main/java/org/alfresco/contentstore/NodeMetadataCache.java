@@ -1,23 +1,53 @@
 package org.alfresco.contentstore;
 
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 
 import org.sglover.alfrescoextensions.common.CassandraSession;
+import org.sglover.alfrescoextensions.common.Digests;
+import org.sglover.alfrescoextensions.common.Metrics;
 import org.sglover.alfrescoextensions.common.MimeType;
 import org.sglover.alfrescoextensions.common.Node;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /**
+ * Caches node version block maps, persisted in the content_block_map table as the digest of each
+ * block in content order.
+ * 
+ * The cache is bounded by the total number of blocks in the cached block maps, least recently used
+ * block maps being evicted first. Once it's full, a loaded block map is only admitted if its node
+ * version has been asked for before, recently, according to a {@link FrequencySketch}, so that a scan
+ * of content that's read once doesn't evict block maps that are read often. Concurrent misses for the
+ * same node version share a single load.
+ *
+ * Hit, miss, eviction and admission counts and the load time distribution are registered with the
+ * metric registry, the shared one unless another has been set.
  * 
  * @author sglover
  *
@@ -28,26 +58,91 @@ public class NodeMetadataCache
     @Autowired
     private CassandraSession cassandraSession;
 
+    @Autowired(required = false)
+    private MetricRegistry metricRegistry;
+
+    @Value("${contentstore.nodeMetadataCache.maxBlocks:1048576}")
+    private long maxBlocks = 1048576;
+
+    private static final int MAX_BATCH_SIZE = 256;
+
     private PreparedStatement getNodeMetadataStatement;
     private PreparedStatement writeNodeMetadataStatement;
+    private PreparedStatement deleteNodeMetadataStatement;
 
-    private ConcurrentHashMap<Node, NodeMetadata> nodeMetadata = new ConcurrentHashMap<>();
+    private Cache<Node, NodeMetadata> nodeMetadata;
+    private FrequencySketch frequencySketch;
+    // the total weight of the cached block maps
+    private final AtomicLong weight = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private Timer loadTimer;
 
     public NodeMetadataCache()
     {
     }
 
+    public void setMaxBlocks(long maxBlocks)
+    {
+        this.maxBlocks = maxBlocks;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry)
+    {
+        this.metricRegistry = metricRegistry;
+    }
+
     @PostConstruct
     public void init()
     {
+        initCache();
+
         createSchema();
 
         this.getNodeMetadataStatement = cassandraSession.getCassandraSession().prepare(
                 "SELECT * FROM " + cassandraSession.getKeyspace()
-                + ".content_metadata where nodeId = ? and nodeVersion = ? and mimeType = ?");
+                + ".content_block_map where nodeId = ? and nodeVersion = ? and mimeType = ?");
         this.writeNodeMetadataStatement = cassandraSession.getCassandraSession().prepare(
                 "INSERT INTO " + cassandraSession.getKeyspace()
-                + ".content_metadata (nodeId, nodeVersion, mimetype, block_num, global_block_num) VALUES(?, ?, ?, ?, ?);");
+                + ".content_block_map (nodeId, nodeVersion, mimetype, block_num, digest) VALUES(?, ?, ?, ?, ?);");
+        this.deleteNodeMetadataStatement = cassandraSession.getCassandraSession().prepare(
+                "DELETE FROM " + cassandraSession.getKeyspace()
+                + ".content_block_map where nodeId = ? and nodeVersion = ? and mimeType = ?");
+    }
+
+    private static int weigh(NodeMetadata nodeMetadata)
+    {
+        return nodeMetadata.getBlockmap().getNumBlocks() + 1;
+    }
+
+    void initCache()
+    {
+        this.nodeMetadata = CacheBuilder.newBuilder()
+                // a single segment, so that the bound and the least recently used order are the
+                // cache's rather than each segment's. Loads don't hold its lock
+                .concurrencyLevel(1)
+                .maximumWeight(maxBlocks)
+                .weigher(new Weigher<Node, NodeMetadata>()
+                {
+                    @Override
+                    public int weigh(Node node, NodeMetadata nodeMetadata)
+                    {
+                        return NodeMetadataCache.weigh(nodeMetadata);
+                    }
+                })
+                .removalListener(new RemovalListener<Node, NodeMetadata>()
+                {
+                    @Override
+                    public void onRemoval(RemovalNotification<Node, NodeMetadata> notification)
+                    {
+                        weight.addAndGet(-weigh(notification.getValue()));
+                    }
+                })
+                .recordStats()
+                .build();
+        this.frequencySketch = new FrequencySketch((int)Math.min(maxBlocks, 1 << 20));
+        this.weight.set(0);
+
+        registerMetrics();
     }
 
     private void createSchema()
@@ -62,47 +157,202 @@ public class NodeMetadataCache
         }
         else
         {
-            if(keySpaceMetadata.getTable("content_metadata") == null)
+            if(keySpaceMetadata.getTable("content_block_map") == null)
             {
-                cassandraSession.getCassandraSession().execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".content_metadata (nodeId text, nodeVersion bigint, "
-                        + "mimeType text, block_num int, global_block_num bigint,"
+                cassandraSession.getCassandraSession().execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".content_block_map (nodeId text, nodeVersion bigint, "
+                        + "mimeType text, block_num int, digest blob,"
                         + "PRIMARY KEY((nodeId, nodeVersion, mimeType), block_num));");
             }
         }
     }
 
-    public NodeMetadata getNodeMetadata(Node node)
+    private void registerMetrics()
     {
-        NodeMetadata nodeMetadata = this.nodeMetadata.get(node);
-        if(nodeMetadata == null)
+        MetricRegistry registry = (metricRegistry != null ? metricRegistry : Metrics.getSharedRegistry());
+        this.loadTimer = Metrics.register(registry, MetricRegistry.name(NodeMetadataCache.class, "loads"),
+                new Timer());
+        Metrics.register(registry, MetricRegistry.name(NodeMetadataCache.class, "hits"), new Gauge<Long>()
         {
-            String nodeId = node.getNodeId();
-            long nodeVersion = node.getNodeVersion();
-            MimeType mimeType = node.getMimeType();
-
-            ResultSet rs = cassandraSession.getCassandraSession()
-                    .execute(getNodeMetadataStatement.bind(node.getNodeId(), node.getNodeVersion(),
-                            mimeType.getMimetype()));
-            Row row = rs.one();
-            if(row == null)
+            @Override
+            public Long getValue()
+            {
+                return nodeMetadata.stats().hitCount();
+            }
+        });
+        Metrics.register(registry, MetricRegistry.name(NodeMetadataCache.class, "misses"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return nodeMetadata.stats().missCount();
+            }
+        });
+        Metrics.register(registry, MetricRegistry.name(NodeMetadataCache.class, "evictions"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
             {
-                throw new IllegalArgumentException("No such node " + node);
+                return nodeMetadata.stats().evictionCount();
             }
-            int blockSize = row.getInt("block_size");
+        });
+        Metrics.register(registry, MetricRegistry.name(NodeMetadataCache.class, "rejected"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return rejected.get();
+            }
+        });
+        Metrics.register(registry, MetricRegistry.name(NodeMetadataCache.class, "weight"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return weight.get();
+            }
+        });
+        Metrics.register(registry, MetricRegistry.name(NodeMetadataCache.class, "size"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return nodeMetadata.size();
+            }
+        });
+    }
+
+    public CacheStats getStats()
+    {
+        return nodeMetadata.stats();
+    }
 
-            FixedSizeBlockMap blockMap = new FixedSizeBlockMap(blockSize);
+    /**
+     * @return the total number of blocks in the cached block maps, plus one for each block map
+     */
+    long getWeight()
+    {
+        return weight.get();
+    }
 
-            rs = cassandraSession.getCassandraSession()
-                    .execute(getNodeMetadataStatement.bind(nodeId, nodeVersion, mimeType.getMimetype()));
-            for(Row row1 : rs)
+    long getRejected()
+    {
+        return rejected.get();
+    }
+
+    // thrown by a load that finds no blocks, so that nothing is cached
+    @SuppressWarnings("serial")
+    private static class NoBlocksException extends RuntimeException
+    {
+    }
+
+    // thrown by a load whose block map isn't admitted to the cache, to pass it to the callers
+    @SuppressWarnings("serial")
+    private static class NotAdmittedException extends RuntimeException
+    {
+        private final NodeMetadata nodeMetadata;
+
+        NotAdmittedException(NodeMetadata nodeMetadata)
+        {
+            this.nodeMetadata = nodeMetadata;
+        }
+    }
+
+    /*
+     * Whether a block map should be cached: always while there's room for it, otherwise only if its node
+     * version has been asked for before, recently, in which case it's likely to be asked for again
+     * before the least recently used block maps it evicts
+     */
+    private boolean admit(NodeMetadata nodeMetadata)
+    {
+        return weight.get() + weigh(nodeMetadata) <= maxBlocks
+                || frequencySketch.frequency(nodeMetadata.getNode()) > 1;
+    }
+
+    NodeMetadata loadNodeMetadata(Node node)
+    {
+        String nodeId = node.getNodeId();
+        long nodeVersion = node.getNodeVersion();
+        MimeType mimeType = node.getMimeType();
+
+        DynamicBlockMap blockMap = new DynamicBlockMap();
+
+        ResultSet rs = cassandraSession.getCassandraSession()
+                .execute(getNodeMetadataStatement.bind(nodeId, nodeVersion, mimeType.getMimetype()));
+        for(Row row : rs)
+        {
+            int blockNum = row.getInt("block_num");
+            ByteBuffer digest = row.getBytes("digest");
+            blockMap.addBlockMapping(blockNum, digest.getLong(digest.position()),
+                    digest.getLong(digest.position() + 8));
+        }
+
+        // hold the cached block map in arrays of exactly the right size
+        int numBlocks = blockMap.getNumBlocks();
+        FixedSizeBlockMap fixedSizeBlockMap = new FixedSizeBlockMap(numBlocks);
+        for(int i = 0; i < numBlocks; i++)
+        {
+            fixedSizeBlockMap.addBlockMapping(i, blockMap.getDigestHi(i), blockMap.getDigestLo(i));
+        }
+
+        return new NodeMetadata(node, fixedSizeBlockMap);
+    }
+
+    public NodeMetadata getNodeMetadata(final Node node)
+    {
+        NodeMetadata nodeMetadata = null;
+
+        frequencySketch.increment(node);
+
+        try
+        {
+            // concurrent misses for the same node wait for a single load
+            nodeMetadata = this.nodeMetadata.get(node, new Callable<NodeMetadata>()
             {
-                int blockNum = row1.getInt("block_num");
-                long globalBlockNum = row1.getLong("global_block_num");
-                blockMap.addBlockMapping(blockNum, globalBlockNum);
-            }
+                @Override
+                public NodeMetadata call() throws Exception
+                {
+                    NodeMetadata nodeMetadata;
+                    try(Timer.Context context = loadTimer.time())
+                    {
+                        nodeMetadata = loadNodeMetadata(node);
+                    }
 
-            nodeMetadata = new NodeMetadata(node, blockMap);
-            this.nodeMetadata.put(node, nodeMetadata);
+                    // empty content has no blocks, as does a node version that hasn't been written yet,
+                    // so isn't cached
+                    if(nodeMetadata.getBlockmap().getNumBlocks() == 0)
+                    {
+                        throw new NoBlocksException();
+                    }
+
+                    if(!admit(nodeMetadata))
+                    {
+                        rejected.incrementAndGet();
+                        throw new NotAdmittedException(nodeMetadata);
+                    }
+
+                    weight.addAndGet(weigh(nodeMetadata));
+                    return nodeMetadata;
+                }
+            });
+        }
+        catch(UncheckedExecutionException e)
+        {
+            if(e.getCause() instanceof NoBlocksException)
+            {
+                nodeMetadata = new NodeMetadata(node, new FixedSizeBlockMap(0));
+            }
+            else if(e.getCause() instanceof NotAdmittedException)
+            {
+                nodeMetadata = ((NotAdmittedException)e.getCause()).nodeMetadata;
+            }
+            else
+            {
+                throw e;
+            }
+        }
+        catch(ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
         }
 
         return nodeMetadata;
@@ -144,17 +394,60 @@ public class NodeMetadataCache
     {
         Node node = nodeMetadata.getNode();
 
-        Iterator<Long> blockMapIt = nodeMetadata.getBlockmap().iterator();
-        int i = 0;
-        while(blockMapIt.hasNext())
+        // the rows are all in the node version's partition, so they're written as unlogged batches,
+        // kept below Cassandra's batch size limits, all in flight at once
+        List<ResultSetFuture> futures = new LinkedList<>();
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+
+        BlockMap blockMap = nodeMetadata.getBlockmap();
+        for(int i = 0; i < blockMap.getNumBlocks(); i++)
         {
-            Long globalBlockNum = blockMapIt.next();
+            ByteBuffer digest = ByteBuffer.wrap(Digests.toBytes(blockMap.getDigestHi(i), blockMap.getDigestLo(i)));
 
-            cassandraSession.getCassandraSession()
-                .execute(writeNodeMetadataStatement.bind(node.getNodeId(), node.getNodeVersion(),
-                        node.getMimeType().toString(), i++, globalBlockNum));
+            batch.add(writeNodeMetadataStatement.bind(node.getNodeId(), node.getNodeVersion(),
+                        node.getMimeType().getMimetype(), i, digest));
+            if(batch.size() >= MAX_BATCH_SIZE)
+            {
+                futures.add(cassandraSession.getCassandraSession().executeAsync(batch));
+                batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            }
+        }
+        if(batch.size() > 0)
+        {
+            futures.add(cassandraSession.getCassandraSession().executeAsync(batch));
         }
 
-        this.nodeMetadata.put(node,  nodeMetadata);
+        for(ResultSetFuture future : futures)
+        {
+            future.getUninterruptibly();
+        }
+
+        // just written, so likely to be read soon (e.g. to be checksummed or transformed)
+        frequencySketch.increment(node);
+        weight.addAndGet(weigh(nodeMetadata));
+        this.nodeMetadata.put(node, nodeMetadata);
+    }
+
+    public void removeNodeMetadata(Node node)
+    {
+        cassandraSession.getCassandraSession()
+            .execute(deleteNodeMetadataStatement.bind(node.getNodeId(), node.getNodeVersion(),
+                    node.getMimeType().getMimetype()));
+
+        this.nodeMetadata.invalidate(node);
+    }
+
+    /**
+     * Discards the cached block maps of all versions of a node.
+     */
+    public void invalidate(String nodeId)
+    {
+        for(Node node : this.nodeMetadata.asMap().keySet())
+        {
+            if(node.getNodeId().equals(nodeId))
+            {
+                this.nodeMetadata.invalidate(node);
+            }
+        }
     }
 }
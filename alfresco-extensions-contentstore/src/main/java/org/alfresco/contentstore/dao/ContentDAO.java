@@ -27,4 +27,15 @@ public interface ContentDAO
     NodeInfo getByNodeId(long nodeInternalId, String mimeType);
 
     void updateNode(NodeInfo node);
+
+    /**
+     * Removes the record of a node version whose content is at contentPath, for instance when the
+     * content has been evicted from the store.
+     */
+    void removeNode(String nodeId, long nodeInternalVersion, String contentPath);
+
+    /**
+     * @return the node version whose content is at contentPath, or null if there is none
+     */
+    NodeInfo getByContentPath(String contentPath);
 }
@@ -136,6 +136,11 @@ public class MongoContentDAO implements ContentDAO
             DBObject keys = BasicDBObjectBuilder.start("e", 1).add("n", 1)
                     .add("p", 1).get();
             this.contentData.ensureIndex(keys, "byNodePath", false);
+        }
+
+        {
+            DBObject keys = BasicDBObjectBuilder.start("e", 1).add("c", 1).get();
+            this.contentData.ensureIndex(keys, "byContentPath", false);
         }    }
 
     private NodeInfo toNodeInfo(DBObject dbObject)
@@ -307,6 +312,30 @@ public class MongoContentDAO implements ContentDAO
         checkResult(result);
     }
 
+    @Override
+    public void removeNode(String nodeId, long nodeInternalVersion, String contentPath)
+    {
+        QueryBuilder queryBuilder = QueryBuilder.start("e")
+                .is(serverIdentity.getId()).and("n").is(nodeId).and("v")
+                .is(nodeInternalVersion).and("c").is(contentPath);
+        DBObject query = queryBuilder.get();
+
+        WriteResult result = contentData.remove(query);
+        checkResult(result);
+    }
+
+    @Override
+    public NodeInfo getByContentPath(String contentPath)
+    {
+        QueryBuilder queryBuilder = QueryBuilder.start("e")
+                .is(serverIdentity.getId()).and("c").is(contentPath);
+        DBObject query = queryBuilder.get();
+
+        DBObject dbObject = contentData.findOne(query);
+        NodeInfo nodeInfo = toNodeInfo(dbObject);
+        return nodeInfo;
+    }
+
     @Override
     public boolean nodeExists(String nodeId, long nodeVersion, boolean isPrimary)
     {
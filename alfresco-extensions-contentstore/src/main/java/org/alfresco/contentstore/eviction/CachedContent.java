@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.eviction;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sglover.alfrescoextensions.common.Node;
+
+/**
+ * A node version's content file in the content store, as tracked for eviction.
+ *
+ * @author sglover
+ *
+ */
+public class CachedContent
+{
+    private final Node node;
+    private final String contentPath;
+    private final long size;
+
+    private volatile long lastAccessed;
+    private final AtomicLong accesses = new AtomicLong(0);
+
+    // policy specific priority, for policies that maintain one
+    private volatile double priority;
+
+    // guarded by this
+    private int readers;
+    private boolean evicted;
+
+    public CachedContent(Node node, String contentPath, long size)
+    {
+        this(node, contentPath, size, System.currentTimeMillis());
+    }
+
+    public CachedContent(Node node, String contentPath, long size, long lastAccessed)
+    {
+        this.node = node;
+        this.contentPath = contentPath;
+        this.size = size;
+        this.lastAccessed = lastAccessed;
+    }
+
+    public Node getNode()
+    {
+        return node;
+    }
+
+    public String getContentPath()
+    {
+        return contentPath;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public long getLastAccessed()
+    {
+        return lastAccessed;
+    }
+
+    public long getAccesses()
+    {
+        return accesses.get();
+    }
+
+    public double getPriority()
+    {
+        return priority;
+    }
+
+    public void setPriority(double priority)
+    {
+        this.priority = priority;
+    }
+
+    void accessed()
+    {
+        this.lastAccessed = System.currentTimeMillis();
+        accesses.incrementAndGet();
+    }
+
+    /**
+     * Pins the content while it is read.
+     *
+     * @return false if the content has been evicted
+     */
+    synchronized boolean acquire()
+    {
+        if(evicted)
+        {
+            return false;
+        }
+        readers++;
+        return true;
+    }
+
+    synchronized void release()
+    {
+        readers--;
+    }
+
+    /**
+     * Marks the content as evicted, unless it is being read.
+     *
+     * @return true if the content can be evicted
+     */
+    synchronized boolean evict()
+    {
+        if(readers > 0 || evicted)
+        {
+            return false;
+        }
+        evicted = true;
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CachedContent [node=" + node + ", contentPath=" + contentPath
+                + ", size=" + size + ", lastAccessed=" + lastAccessed
+                + ", accesses=" + accesses + "]";
+    }
+}
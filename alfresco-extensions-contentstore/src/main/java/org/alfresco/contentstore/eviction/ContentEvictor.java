@@ -0,0 +1,440 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.eviction;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.contentstore.dao.ContentDAO;
+import org.alfresco.contentstore.dao.NodeInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sglover.alfrescoextensions.common.Node;
+
+/**
+ * Evicts content from a file content store when the file system holding the content root fills up.
+ * When the used fraction of the file system reaches the high watermark, content is evicted in the
+ * order given by the eviction policy until it is back down to the low watermark. The content's node
+ * record is removed from the content DAO before its file is deleted.
+ *
+ * Content that is being read is pinned and never evicted. Content that was written before the evictor
+ * was started is found by scanning the content root in the background when it starts, and is tracked
+ * as last accessed when its file was last modified.
+ *
+ * @author sglover
+ *
+ */
+public class ContentEvictor
+{
+    private static Log logger = LogFactory.getLog(ContentEvictor.class);
+
+    private final ContentDAO contentDAO;
+    private final EvictionPolicy policy;
+
+    private double highWatermark = 0.9;
+    private double lowWatermark = 0.8;
+    private long checkIntervalSecs = 60;
+
+    private File contentRoot;
+    private ScheduledExecutorService scheduler;
+    private final AtomicBoolean checkPending = new AtomicBoolean(false);
+
+    private final ConcurrentMap<String, CachedContent> contentByPath = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong bytesEvicted = new AtomicLong(0);
+    private final AtomicLong contentEvicted = new AtomicLong(0);
+
+    private final Runnable check = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            checkPending.set(false);
+            try
+            {
+                checkSpace();
+            }
+            catch(Exception e)
+            {
+                logger.error("Content eviction failed", e);
+            }
+        }
+    };
+
+    public ContentEvictor(ContentDAO contentDAO, EvictionPolicy policy)
+    {
+        this.contentDAO = contentDAO;
+        this.policy = policy;
+    }
+
+    public void setHighWatermark(double highWatermark)
+    {
+        this.highWatermark = highWatermark;
+    }
+
+    public void setLowWatermark(double lowWatermark)
+    {
+        this.lowWatermark = lowWatermark;
+    }
+
+    public void setCheckIntervalSecs(long checkIntervalSecs)
+    {
+        this.checkIntervalSecs = checkIntervalSecs;
+    }
+
+    public void start(String contentRoot)
+    {
+        if(lowWatermark > highWatermark)
+        {
+            throw new IllegalArgumentException("Low watermark " + lowWatermark
+                    + " is above the high watermark " + highWatermark);
+        }
+
+        this.contentRoot = new File(contentRoot);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "ContentEvictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    scan();
+                    checkSpace();
+                }
+                catch(Exception e)
+                {
+                    logger.error("Scanning " + ContentEvictor.this.contentRoot + " for content failed", e);
+                }
+            }
+        });
+        scheduler.scheduleWithFixedDelay(check, checkIntervalSecs, checkIntervalSecs, TimeUnit.SECONDS);
+
+        logger.info("Evicting content from " + contentRoot + " above " + highWatermark
+                + " of the file system, down to " + lowWatermark);
+    }
+
+    public void shutdown()
+    {
+        if(scheduler != null)
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public void contentAdded(Node node, String contentPath)
+    {
+        CachedContent content = new CachedContent(node, contentPath, new File(contentPath).length());
+        policy.contentAdded(content);
+        contentByPath.put(contentPath, content);
+
+        // check now rather than waiting for the next scheduled check, but don't queue up checks
+        if(scheduler != null && !scheduler.isShutdown() && checkPending.compareAndSet(false, true))
+        {
+            scheduler.execute(check);
+        }
+    }
+
+    /**
+     * Tracks the content files under the content root that aren't tracked yet, i.e. those written
+     * before the evictor was started. Files without a node record in the content DAO aren't content
+     * (or their record has been removed) and are left alone.
+     *
+     * @return the number of content files found
+     */
+    int scan() throws IOException
+    {
+        final int[] numFound = new int[1];
+        Files.walkFileTree(contentRoot.toPath(), new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                String contentPath = file.toFile().getAbsolutePath();
+                if(attrs.isRegularFile() && !contentByPath.containsKey(contentPath))
+                {
+                    NodeInfo nodeInfo = contentDAO.getByContentPath(contentPath);
+                    if(nodeInfo != null)
+                    {
+                        CachedContent content = new CachedContent(nodeInfo.getNode(), contentPath,
+                                attrs.size(), attrs.lastModifiedTime().toMillis());
+                        policy.contentAdded(content);
+                        // content added while scanning is tracked already
+                        if(contentByPath.putIfAbsent(contentPath, content) == null)
+                        {
+                            numFound[0]++;
+                        }
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                logger.warn("Unable to scan " + file + " for content: " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        logger.info("Found " + numFound[0] + " content files in " + contentRoot);
+
+        return numFound[0];
+    }
+
+    public void contentRemoved(String contentPath)
+    {
+        contentByPath.remove(contentPath);
+    }
+
+    public void recordMiss()
+    {
+        misses.incrementAndGet();
+    }
+
+    private CachedContent acquire(String contentPath)
+    {
+        CachedContent content = contentByPath.get(contentPath);
+        if(content != null && content.acquire())
+        {
+            hits.incrementAndGet();
+            content.accessed();
+            policy.contentAccessed(content);
+        }
+        else
+        {
+            content = null;
+        }
+
+        return content;
+    }
+
+    /**
+     * Pins the content at contentPath until the channel is closed.
+     */
+    public FileChannel pin(FileChannel channel, String contentPath)
+    {
+        CachedContent content = acquire(contentPath);
+        return (content != null ? new PinnedFileChannel(channel, content) : channel);
+    }
+
+    /**
+     * Pins the content at contentPath until the stream is closed.
+     */
+    public InputStream pin(InputStream in, String contentPath)
+    {
+        final CachedContent content = acquire(contentPath);
+        if(content == null)
+        {
+            return in;
+        }
+
+        return new FilterInputStream(in)
+        {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    if(!closed)
+                    {
+                        closed = true;
+                        content.release();
+                    }
+                }
+            }
+        };
+    }
+
+    private static class Candidate
+    {
+        private final CachedContent content;
+        private final double priority;
+
+        Candidate(CachedContent content, double priority)
+        {
+            this.content = content;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Evicts content if the file system is above the high watermark.
+     *
+     * @return the number of bytes evicted
+     */
+    public synchronized long checkSpace()
+    {
+        long total = getTotalSpace();
+        long used = getUsedSpace();
+        if(total <= 0 || (double)used / total < highWatermark)
+        {
+            return 0;
+        }
+
+        long toFree = used - (long)(lowWatermark * total);
+
+        // priorities change as content is accessed, so get them once per pass to sort by
+        List<Candidate> candidates = new ArrayList<>(contentByPath.size());
+        for(CachedContent content : contentByPath.values())
+        {
+            candidates.add(new Candidate(content, policy.getPriority(content)));
+        }
+        Collections.sort(candidates, new Comparator<Candidate>()
+        {
+            @Override
+            public int compare(Candidate c1, Candidate c2)
+            {
+                return Double.compare(c1.priority, c2.priority);
+            }
+        });
+
+        long freed = 0;
+        int numEvicted = 0;
+        for(Candidate candidate : candidates)
+        {
+            if(freed >= toFree)
+            {
+                break;
+            }
+
+            CachedContent content = candidate.content;
+            if(content.evict())
+            {
+                evict(content);
+                freed += content.getSize();
+                numEvicted++;
+            }
+        }
+
+        bytesEvicted.addAndGet(freed);
+        contentEvicted.addAndGet(numEvicted);
+
+        if(freed < toFree)
+        {
+            logger.warn("Evicted " + freed + " bytes of content, wanted " + toFree
+                    + ": the rest is being read, untracked or not content");
+        }
+        logger.info("Evicted " + numEvicted + " content files, " + freed + " bytes. " + getReport());
+
+        return freed;
+    }
+
+    /**
+     * @return the size of the file system holding the content root
+     */
+    protected long getTotalSpace()
+    {
+        return contentRoot.getTotalSpace();
+    }
+
+    /**
+     * @return the space used on the file system holding the content root
+     */
+    protected long getUsedSpace()
+    {
+        return contentRoot.getTotalSpace() - contentRoot.getUsableSpace();
+    }
+
+    private void evict(CachedContent content)
+    {
+        String contentPath = content.getContentPath();
+        Node node = content.getNode();
+
+        contentByPath.remove(contentPath);
+        contentDAO.removeNode(node.getNodeId(), node.getNodeVersion(), contentPath);
+        File file = new File(contentPath);
+        if(!file.delete() && file.exists())
+        {
+            logger.warn("Unable to delete evicted content " + contentPath);
+        }
+        policy.contentEvicted(content);
+
+        if(logger.isDebugEnabled())
+        {
+            logger.debug("Evicted " + content);
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public double getHitRatio()
+    {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double)h / total : 0.0;
+    }
+
+    public long getBytesEvicted()
+    {
+        return bytesEvicted.get();
+    }
+
+    public long getContentEvicted()
+    {
+        return contentEvicted.get();
+    }
+
+    public int getNumTracked()
+    {
+        return contentByPath.size();
+    }
+
+    public String getReport()
+    {
+        return "Content cache: hits " + getHits() + ", misses " + getMisses()
+                + ", hit ratio " + String.format("%.3f", getHitRatio())
+                + ", evicted " + getContentEvicted() + " files, " + getBytesEvicted() + " bytes"
+                + ", tracking " + getNumTracked() + " files";
+    }
+}
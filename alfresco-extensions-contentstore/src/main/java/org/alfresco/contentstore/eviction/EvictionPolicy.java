@@ -0,0 +1,29 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.eviction;
+
+/**
+ * Decides the order in which content is evicted from the content store. Content with the lowest
+ * priority is evicted first.
+ *
+ * @author sglover
+ *
+ */
+public interface EvictionPolicy
+{
+    void contentAdded(CachedContent content);
+
+    void contentAccessed(CachedContent content);
+
+    void contentEvicted(CachedContent content);
+
+    /**
+     * Called once for each candidate at the start of an eviction pass.
+     */
+    double getPriority(CachedContent content);
+}
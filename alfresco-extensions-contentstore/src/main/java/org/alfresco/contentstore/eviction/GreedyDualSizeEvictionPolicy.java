@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.eviction;
+
+/**
+ * GreedyDual-Size. Content is given the priority L + cost / size when it is added or accessed, where L
+ * is the priority of the last content evicted, so large content is evicted before small content, and
+ * content not accessed for a while ages as L rises.
+ *
+ * Every fetch from the repository is assumed to cost the same, which favours the hit ratio over the
+ * byte hit ratio.
+ *
+ * @author sglover
+ *
+ */
+public class GreedyDualSizeEvictionPolicy implements EvictionPolicy
+{
+    private double cost = 1.0;
+
+    private volatile double inflation = 0.0;
+
+    public void setCost(double cost)
+    {
+        this.cost = cost;
+    }
+
+    private void updatePriority(CachedContent content)
+    {
+        content.setPriority(inflation + cost / Math.max(1, content.getSize()));
+    }
+
+    @Override
+    public void contentAdded(CachedContent content)
+    {
+        updatePriority(content);
+    }
+
+    @Override
+    public void contentAccessed(CachedContent content)
+    {
+        updatePriority(content);
+    }
+
+    @Override
+    public void contentEvicted(CachedContent content)
+    {
+        inflation = Math.max(inflation, content.getPriority());
+    }
+
+    @Override
+    public double getPriority(CachedContent content)
+    {
+        return content.getPriority();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.eviction;
+
+/**
+ * Evicts the least frequently used content first, by the accesses the evictor has counted since it
+ * started tracking the content. The counts are kept in memory, so getting the priorities of an eviction
+ * pass is cheap; they start from zero when the evictor is restarted. Ties go to the least recently
+ * accessed.
+ *
+ * @author sglover
+ *
+ */
+public class LFUEvictionPolicy implements EvictionPolicy
+{
+    @Override
+    public void contentAdded(CachedContent content)
+    {
+    }
+
+    @Override
+    public void contentAccessed(CachedContent content)
+    {
+    }
+
+    @Override
+    public void contentEvicted(CachedContent content)
+    {
+    }
+
+    // above any access time in ms for the next couple of centuries, so that access times only break ties
+    private static final double ACCESS_WEIGHT = 1e13;
+
+    @Override
+    public double getPriority(CachedContent content)
+    {
+        // a fraction of the access time would be lost to rounding, so weight the accesses instead
+        return content.getAccesses() * ACCESS_WEIGHT + content.getLastAccessed();
+    }
+}
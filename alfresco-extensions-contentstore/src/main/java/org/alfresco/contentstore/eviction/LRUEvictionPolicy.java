@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.eviction;
+
+/**
+ * Evicts the least recently accessed content first.
+ *
+ * @author sglover
+ *
+ */
+public class LRUEvictionPolicy implements EvictionPolicy
+{
+    @Override
+    public void contentAdded(CachedContent content)
+    {
+    }
+
+    @Override
+    public void contentAccessed(CachedContent content)
+    {
+    }
+
+    @Override
+    public void contentEvicted(CachedContent content)
+    {
+    }
+
+    @Override
+    public double getPriority(CachedContent content)
+    {
+        return content.getLastAccessed();
+    }
+}
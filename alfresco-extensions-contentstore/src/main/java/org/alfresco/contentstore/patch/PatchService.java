@@ -33,6 +33,27 @@ public interface PatchService
 //    MultiPart getMultiPart(PatchDocument patchDocument);
 
     void writePatch(Node node, PatchDocument patchDocument, OutputStream out) throws IOException;
+
+    /**
+     * Generates the patch of the content against checksums, writing it to out as a protocol buffer
+     * as it is generated rather than building the patch document in memory.
+     */
+    void writePatch(Node node, NodeChecksums checksums, InputStream in, OutputStream out) throws IOException;
+
+    /**
+     * Generates the patch of the content against checksums, writing it to out in the given framing as
+     * a stream of length-delimited protocol buffers, each sent as soon as it is generated. Closes out.
+     */
+    void writePatchStream(Node node, NodeChecksums checksums, InputStream in, OutputStream out,
+            PatchStreamEncoding encoding) throws IOException;
+
+    /**
+     * Reads a patch written by writePatchStream, adding its matched blocks and patches to patchDocument
+     * as they arrive and committing it at the end.
+     */
+    void readPatchStream(InputStream in, PatchStreamEncoding encoding, PatchDocument patchDocument)
+            throws IOException;
+
     PatchDocument getPatch(InputStream in) throws IOException;
 
     void updatePatchDocument(PatchDocument patchDocument, NodeChecksums checksums, ReadableByteChannel channel) throws IOException;
@@ -46,6 +46,10 @@ public class PatchServiceImpl implements PatchService
     @Value("${content.blocksize}")
     private int blockSize;
 
+    // longer literal runs are split across patches, bounding memory for arbitrarily large edits
+    @Value("${patch.maxPatchSize:1048576}")
+    private int maxPatchSize = 1024 * 1024;
+
     @Autowired
     private Hasher hasher;
 
@@ -65,6 +69,11 @@ public class PatchServiceImpl implements PatchService
     {
     }
 
+    public void setMaxPatchSize(int maxPatchSize)
+    {
+        this.maxPatchSize = maxPatchSize;
+    }
+
     @Override
     public void getPatch(PatchDocument patchDocument, NodeChecksums nodeChecksums, ReadableByteChannel inChannel)
             throws IOException
@@ -276,6 +285,52 @@ public class PatchServiceImpl implements PatchService
         return patchDocument;
     }
 
+    @Override
+    public void writePatch(Node node, NodeChecksums checksums, InputStream in, OutputStream out) throws IOException
+    {
+        PatchDocument patchDocument = new ProtocolBufferPatchDocument(node, checksums.getBlockSize(), out,
+                ProtocolBufferPatchDocument.Encoding.MESSAGE, false);
+        updatePatchDocument(patchDocument, checksums, in);
+        patchDocument.commit();
+    }
+
+    @Override
+    public void writePatchStream(Node node, NodeChecksums checksums, InputStream in, OutputStream out,
+            PatchStreamEncoding encoding) throws IOException
+    {
+        try(OutputStream encoded = encoding.encode(out))
+        {
+            PatchDocument patchDocument = new ProtocolBufferPatchDocument(node, checksums.getBlockSize(), encoded,
+                    ProtocolBufferPatchDocument.Encoding.DELIMITED, false);
+            updatePatchDocument(patchDocument, checksums, in);
+            patchDocument.commit();
+        }
+    }
+
+    @Override
+    public void readPatchStream(InputStream in, PatchStreamEncoding encoding, PatchDocument patchDocument)
+            throws IOException
+    {
+        InputStream decoded = encoding.decode(in);
+
+        PatchDocumentProtos.PatchDocument message;
+        while((message = PatchDocumentProtos.PatchDocument.parseDelimitedFrom(decoded)) != null)
+        {
+            patchDocument.setBlockSize(message.getBlockSize());
+            for(int matchedBlock : message.getMatchedBlocksList())
+            {
+                patchDocument.addMatchedBlock(matchedBlock);
+            }
+            for(PatchDocumentProtos.PatchDocument.Patch patch : message.getPatchesList())
+            {
+                patchDocument.addPatch(new Patch(patch.getLastMatchIndex(), patch.getSize(),
+                        patch.getBuffer().toByteArray()));
+            }
+        }
+
+        patchDocument.commit();
+    }
+
     @Override
     public PatchDocument getPatch(InputStream in) throws IOException
     {
@@ -401,64 +456,101 @@ public class PatchServiceImpl implements PatchService
 
     private void updatePatchDocument(PatchDocument patchDocument, NodeChecksums checksums, Reader reader) throws IOException
     {
-        ByteBuffer data = ByteBuffer.allocate(blockSize * 20);
+        int blockSize = checksums.getBlockSize();
+
+        // room for the longest literal run plus a window of blocks
+        ByteBuffer data = ByteBuffer.allocate(maxPatchSize + blockSize * 20);
+        data.flip();
 
+        // blocks start at 1, so a leading literal run is applied before the first block
+        updatePatchDocument(patchDocument, checksums, data, reader, 0);
+    }
+
+    @Override
+    public void updatePatchDocument(PatchDocument patchDocument, NodeChecksums checksums, ByteBuffer data)
+    {
         int blockSize = checksums.getBlockSize();
 
-        int i = 0;
+        patchDocument.setBlockSize(blockSize);
+
+        try
+        {
+            updatePatchDocument(patchDocument, checksums, data, null, 0);
+        }
+        catch(IOException e)
+        {
+            // can't happen, there is no reader
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Rolling delta engine. Slides a blockSize window over the data one byte at a time,
+     * rolling the weak checksum forwards rather than recomputing it, and jumps a whole
+     * block on a strong match.
+     * 
+     * If reader is non-null the data buffer is topped up from it whenever the window
+     * would run past the end of the buffered data, so windows are never clamped by a
+     * buffer boundary, only by the end of the content.
+     * 
+     * Unmatched bytes aren't copied as the window passes over them. The current literal
+     * run, data[literalStart..i), stays in the data buffer and is copied out in one go
+     * when it ends. A run reaching maxPatchSize is added as a patch and continues in a
+     * further patch with the same lastMatchIndex, so memory is bounded however large the
+     * edit. When refilling, the buffer needs room for maxPatchSize bytes plus a block.
+     */
+    private void updatePatchDocument(PatchDocument patchDocument, NodeChecksums checksums, ByteBuffer data,
+            Reader reader, int lastMatchIndex) throws IOException
+    {
+        int blockSize = checksums.getBlockSize();
 
         Adler32 adlerInfo = new Adler32(hasher);
-        int lastMatchIndex = 1; // starts at 1
-        ByteBuffer currentPatch = ByteBuffer.allocate(5000000); // TODO
+        boolean eof = (reader == null);
 
-        int x = 0;
+        int i = 0;
+        int literalStart = 0;
+
+        // the lowest block index that may match next. After unmatched bytes only a later block may
+        // match; patches are placed by lastMatchIndex alone, so a patch between two matches of the
+        // same block couldn't be told apart from a patch following both of them. Repeats of a block with
+        // nothing between them still match
+        int minBlockIndex = lastMatchIndex;
 
         for (;;)
         {
-            if(x == 0 || i >= data.limit())
+            if(i - literalStart >= maxPatchSize)
             {
-                data.clear();
-                i = 0;
-                int numRead = reader.read(data);
-                if(numRead <= 0)
-                {
-                    break;
-                }
-                data.flip();
-                x += numRead;
+                addPatch(patchDocument, lastMatchIndex, data, literalStart, i);
+                literalStart = i;
             }
 
-            int chunkSize = 0;
-            // determine the size of the next data chuck to evaluate. Default to
-            // blockSize, but clamp to end of data
-            if ((i + blockSize) > data.limit())
+            if(!eof && i + blockSize > data.limit())
             {
-                chunkSize = data.limit() - i;
-                adlerInfo.reset(); // need to reset this because the rolling
-                                  // checksum doesn't work correctly on a final
-                                  // non-aligned block
+                // move the literal run and unprocessed bytes to the start of the buffer and refill it
+                data.position(literalStart);
+                data.compact();
+                i -= literalStart;
+                literalStart = 0;
+                eof = fill(reader, data);
+                data.flip();
+
+                // the window has moved in the buffer, so it can't be rolled
+                adlerInfo.reset();
             }
-            else
+
+            if(i >= data.limit())
             {
-                chunkSize = blockSize;
+                break;
             }
 
+            // determine the size of the next data chuck to evaluate. Default to
+            // blockSize, but clamp to end of data
+            int chunkSize = Math.min(blockSize, data.limit() - i);
             int end = i + chunkSize - 1;
 
-            int matchedBlockIndex = adlerInfo.checkMatch(lastMatchIndex, checksums, data, i, end);
+            int matchedBlockIndex = adlerInfo.checkMatch(minBlockIndex, checksums, data, i, end);
             if (matchedBlockIndex != -1)
             {
-//                try
-//                {
-//                    String y = hasher.md5(data, i, end);
-//                    System.out.println("y = " + y + ", x = " + x + ", i = " + i + ", end = " + end);
-//                }
-//                catch (NoSuchAlgorithmException e)
-//                {
-//                    // TODO Auto-generated catch block
-//                    e.printStackTrace();
-//                }
-
                 // if we have a match, do the following:
                 // 1) add the matched block index to our tracking buffer
                 // 2) check to see if there's a current patch. If so, add it to
@@ -466,150 +558,67 @@ public class PatchServiceImpl implements PatchService
                 // 3) jump forward blockSize bytes and continue
                 patchDocument.addMatchedBlock(matchedBlockIndex);
 
-                if (currentPatch.position() > 0)
+                if (i > literalStart)
                 {
                     // there are outstanding patches, add them to the list
                     // create the patch and append it to the patches buffer
-                    currentPatch.flip();
-                    int size = currentPatch.limit();
-                    byte[] dst = new byte[size];
-                    currentPatch.get(dst, 0, size);
-                    Patch patch = new Patch(lastMatchIndex, size, dst);
-                    patchDocument.addPatch(patch);
-                    currentPatch.clear();
+                    addPatch(patchDocument, lastMatchIndex, data, literalStart, i);
                 }
 
                 lastMatchIndex = matchedBlockIndex;
+                minBlockIndex = matchedBlockIndex;
 
                 i += chunkSize;
+                literalStart = i;
 
                 adlerInfo.reset();
             }
             else
             {
-                // while we don't have a block match, append bytes to the
-                // current patch
-                if(currentPatch.position() >= currentPatch.limit())
-                {
-//                    System.out.println("count=" + (x + i));
-//                    System.out.println("count1=" + currentPatch.position() + ", " + currentPatch.limit());
-//                    System.out.println(matchedBlockIndexes);
-//                    System.out.println(patches);
-                }
-                currentPatch.put(data.get(i));
+                // while we don't have a block match, extend the current patch
                 i++;
+                minBlockIndex = lastMatchIndex + 1;
             }
         } // end for each byte in the data
 
-        if (currentPatch.position() > 0)
+        if (i > literalStart)
         {
-            currentPatch.flip();
-            int size = currentPatch.limit();
-            byte[] dst = new byte[size];
-            currentPatch.get(dst, 0, size);
-            Patch patch = new Patch(lastMatchIndex, size, dst);
-            patchDocument.addPatch(patch);
+            addPatch(patchDocument, lastMatchIndex, data, literalStart, i);
         }
     }
 
-    @Override
-    public void updatePatchDocument(PatchDocument patchDocument, NodeChecksums checksums, ByteBuffer data)
+    /**
+     * Adds data[start..end) as a patch, copied in bulk. The position of data is unchanged.
+     */
+    private void addPatch(PatchDocument patchDocument, int lastMatchIndex, ByteBuffer data, int start, int end)
     {
-        int blockSize = checksums.getBlockSize();
-
-        patchDocument.setBlockSize(blockSize);
-
-        int i = 0;
-
-        Adler32 adlerInfo = new Adler32(hasher);
-        int lastMatchIndex = 0;
-        ByteBuffer currentPatch = ByteBuffer.allocate(600000); // TODO
-
-        int currentPatchSize = 0;
+        int size = end - start;
+        byte[] dst = new byte[size];
+        int savePosition = data.position();
+        data.position(start);
+        data.get(dst, 0, size);
+        data.position(savePosition);
+        Patch patch = new Patch(lastMatchIndex, size, dst);
+        patchDocument.addPatch(patch);
+    }
 
-        for (;;)
+    /**
+     * Reads from the reader until the buffer is full or the content is exhausted.
+     * 
+     * @return true if the end of the content has been reached
+     */
+    private boolean fill(Reader reader, ByteBuffer data) throws IOException
+    {
+        while(data.hasRemaining())
         {
-            int chunkSize = 0;
-            // determine the size of the next data chuck to evaluate. Default to
-            // blockSize, but clamp to end of data
-            if ((i + blockSize) > data.limit())
+            int numRead = reader.read(data);
+            if(numRead < 0)
             {
-                chunkSize = data.limit() - i;
-                adlerInfo.reset(); // need to reset this because the rolling
-                                  // checksum doesn't work correctly on a final
-                                  // non-aligned block
+                return true;
             }
-            else
-            {
-                chunkSize = blockSize;
-            }
-
-            int matchedBlock = adlerInfo.checkMatch(lastMatchIndex, checksums, data, i, i + chunkSize - 1);
-            if (matchedBlock != -1)
-            {
-//                try
-//                {
-//                    String y = hasher.md5(data, i, i + chunkSize - 1);
-//                    System.out.println("y = " + y);
-//                }
-//                catch (NoSuchAlgorithmException e)
-//                {
-//                    // TODO Auto-generated catch block
-//                    e.printStackTrace();
-//                }
-                // if we have a match, do the following:
-                // 1) add the matched block index to our tracking buffer
-                // 2) check to see if there's a current patch. If so, add it to
-                // the patch document.
-                // 3) jump forward blockSize bytes and continue
-                patchDocument.addMatchedBlock(matchedBlock);
-
-                if (currentPatchSize > 0)
-                {
-                    // there are outstanding patches, add them to the list
-                    // create the patch and append it to the patches buffer
-                    currentPatch.flip();
-                    int size = currentPatch.limit();
-                    byte[] dst = new byte[size];
-                    currentPatch.get(dst, 0, size);
-                    Patch patch = new Patch(lastMatchIndex, size, dst);
-                    patchDocument.addPatch(patch);
-                    currentPatch.clear();
-                }
-
-                lastMatchIndex = matchedBlock;
-
-                i += chunkSize;
-
-                adlerInfo.reset();
-
-                continue;
-            }
-            else
-            {
-                // while we don't have a block match, append bytes to the
-                // current patch
-                logger.debug("limit = " + currentPatch.limit()
-                        + ", position = " + currentPatch.position());
-                currentPatch.put(data.get(i));
-                currentPatchSize++;
-            }
-            if (i >= data.limit() - 1)
-            {
-                break;
-            }
-            i++;
-        } // end for each byte in the data
-
-        if (currentPatchSize > 0)
-        {
-            currentPatch.flip();
-            int size = currentPatch.limit();
-            byte[] dst = new byte[size];
-            currentPatch.get(dst, 0, size);
-            Patch patch = new Patch(lastMatchIndex, size, dst);
-            patchDocument.addPatch(patch);
         }
+
+        return false;
     }
 
     private interface Reader
@@ -631,7 +640,10 @@ public class PatchServiceImpl implements PatchService
         {
             byte[] bytes = new byte[bb.remaining()];
             int numRead = in.read(bytes);
-            bb.put(bytes);
+            if(numRead > 0)
+            {
+                bb.put(bytes, 0, numRead);
+            }
             return numRead;
         }
     }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.patch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+
+/**
+ * The framing of a streamed patch, negotiated with Accept-Encoding and given by Content-Encoding. Both
+ * compressed framings emit output as their blocks fill, so the receiver can start applying a patch
+ * before the sender has finished generating it.
+ *
+ * @author sglover
+ *
+ */
+public enum PatchStreamEncoding
+{
+    IDENTITY("identity")
+    {
+        @Override
+        public OutputStream encode(OutputStream out)
+        {
+            return out;
+        }
+
+        @Override
+        public InputStream decode(InputStream in)
+        {
+            return in;
+        }
+    },
+    GZIP("gzip")
+    {
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException
+        {
+            return new GZIPOutputStream(out, 64 * 1024);
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException
+        {
+            return new GZIPInputStream(in, 64 * 1024);
+        }
+    },
+    // cheaper than gzip, for patches that are mostly literal bytes that don't compress well
+    LZ4("lz4")
+    {
+        @Override
+        public OutputStream encode(OutputStream out)
+        {
+            return new LZ4BlockOutputStream(out);
+        }
+
+        @Override
+        public InputStream decode(InputStream in)
+        {
+            return new LZ4BlockInputStream(in);
+        }
+    };
+
+    private final String contentEncoding;
+
+    private PatchStreamEncoding(String contentEncoding)
+    {
+        this.contentEncoding = contentEncoding;
+    }
+
+    public String getContentEncoding()
+    {
+        return contentEncoding;
+    }
+
+    /**
+     * Wraps the stream so that what is written to the result is written to out in this framing.
+     * Closing the result finishes the framing and closes out.
+     */
+    public abstract OutputStream encode(OutputStream out) throws IOException;
+
+    public abstract InputStream decode(InputStream in) throws IOException;
+
+    /**
+     * @return the encoding for a response's Content-Encoding header, identity if there is none
+     */
+    public static PatchStreamEncoding fromContentEncoding(String header)
+    {
+        PatchStreamEncoding encoding = IDENTITY;
+        if(header != null)
+        {
+            String value = header.trim();
+            for(PatchStreamEncoding candidate : values())
+            {
+                if(candidate.contentEncoding.equalsIgnoreCase(value))
+                {
+                    encoding = candidate;
+                    break;
+                }
+            }
+        }
+        return encoding;
+    }
+
+    /**
+     * @return the encoding to respond with given a request's Accept-Encoding header, preferring lz4 over
+     * gzip, or identity if the client accepts neither. Quality values other than 0 are not ranked.
+     */
+    public static PatchStreamEncoding fromAcceptEncoding(String header)
+    {
+        boolean gzip = false;
+        boolean lz4 = false;
+        if(header != null)
+        {
+            for(String coding : header.split(","))
+            {
+                String[] params = coding.trim().split(";");
+                String name = params[0].trim();
+                boolean refused = false;
+                for(int i = 1; i < params.length; i++)
+                {
+                    String param = params[i].trim().replace(" ", "");
+                    if(param.equals("q=0") || param.matches("q=0\\.0*"))
+                    {
+                        refused = true;
+                    }
+                }
+                if(!refused)
+                {
+                    gzip |= name.equalsIgnoreCase(GZIP.contentEncoding);
+                    lz4 |= name.equalsIgnoreCase(LZ4.contentEncoding);
+                }
+            }
+        }
+        return lz4 ? LZ4 : (gzip ? GZIP : IDENTITY);
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.patch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.contentstore.protobuf.PatchDocumentProtos;
+import org.sglover.alfrescoextensions.common.Node;
+import org.sglover.checksum.Patch;
+import org.sglover.checksum.PatchDocument;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+/**
+ * A write only patch document that streams matched blocks and patches to an output stream as they are
+ * added, encoded as PatchDocumentProtos.PatchDocument, either:
+ *
+ * <ul>
+ * <li>{@link Encoding#MESSAGE}: a single message. The block size and node id are written by
+ * {@link #commit()}. Protocol buffer fields may appear in any order, so the result can be read with
+ * PatchDocumentProtos.PatchDocument.parseFrom.</li>
+ * <li>{@link Encoding#DELIMITED}: a sequence of length-delimited messages, each holding the matched
+ * blocks and patches added since the last. A message is written for each patch and for every
+ * {@link #MAX_MATCHED_BLOCKS} matched blocks, so the reader can apply the patch as it arrives rather
+ * than after all of it has been generated. It is read with {@link PatchService#readPatchStream}.</li>
+ * </ul>
+ *
+ * Patches are written directly rather than built as messages, which would copy their buffers.
+ *
+ * The matched block indexes that have been written are kept (as ints, 4 bytes a block) for
+ * {@link #getMatchedBlocks()}. The patches are kept for {@link #getPatches()} only if the document is
+ * created with retainPatches, because their buffers are as big as the changed content; without it
+ * nothing but the block indexes is held in memory, so a patch of any size can be written.
+ *
+ * @author sglover
+ *
+ */
+public class ProtocolBufferPatchDocument implements PatchDocument
+{
+    static final int MAX_MATCHED_BLOCKS = 1024;
+
+    public static enum Encoding
+    {
+        MESSAGE, DELIMITED;
+    }
+
+    private Node node;
+    private int blockSize;
+    private CodedOutputStream out;
+    private Encoding encoding;
+    private int matchCount;
+    // the number of matched blocks that have been written, for the delimited encoding
+    private int writtenMatchCount;
+    private int[] matchedBlocks = new int[64];
+    private final List<Patch> patches;
+
+    public ProtocolBufferPatchDocument(Node node, int blockSize, OutputStream out)
+    {
+        this(node, blockSize, out, Encoding.MESSAGE, true);
+    }
+
+    /**
+     * @param retainPatches whether to keep the patches that are written for {@link #getPatches()}
+     */
+    public ProtocolBufferPatchDocument(Node node, int blockSize, OutputStream out, Encoding encoding,
+            boolean retainPatches)
+    {
+        this.node = node;
+        this.blockSize = blockSize;
+        this.out = CodedOutputStream.newInstance(out);
+        this.encoding = encoding;
+        this.patches = (retainPatches ? new ArrayList<>() : null);
+    }
+
+    @Override
+    public Node getNode()
+    {
+        return node;
+    }
+
+    private static int computePatchSize(Patch patch)
+    {
+        byte[] buffer = patch.getBuffer();
+        return CodedOutputStream.computeInt32Size(
+                PatchDocumentProtos.PatchDocument.Patch.LAST_MATCH_INDEX_FIELD_NUMBER, patch.getLastMatchIndex())
+                + CodedOutputStream.computeInt32Size(PatchDocumentProtos.PatchDocument.Patch.SIZE_FIELD_NUMBER,
+                        patch.getSize())
+                + CodedOutputStream.computeTagSize(PatchDocumentProtos.PatchDocument.Patch.BUFFER_FIELD_NUMBER)
+                + CodedOutputStream.computeRawVarint32Size(buffer.length) + buffer.length;
+    }
+
+    private void writePatch(Patch patch, int patchSize) throws IOException
+    {
+        byte[] buffer = patch.getBuffer();
+        out.writeTag(PatchDocumentProtos.PatchDocument.PATCHES_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeRawVarint32(patchSize);
+        out.writeInt32(PatchDocumentProtos.PatchDocument.Patch.LAST_MATCH_INDEX_FIELD_NUMBER, patch.getLastMatchIndex());
+        out.writeInt32(PatchDocumentProtos.PatchDocument.Patch.SIZE_FIELD_NUMBER, patch.getSize());
+        out.writeTag(PatchDocumentProtos.PatchDocument.Patch.BUFFER_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeRawVarint32(buffer.length);
+        out.writeRawBytes(buffer);
+    }
+
+    /**
+     * Writes a delimited message with the matched blocks added since the last one, the patch if there
+     * is one, and the block size and node id, which are required and cheap to repeat.
+     */
+    private void writeDelimited(Patch patch) throws IOException
+    {
+        int patchSize = (patch != null ? computePatchSize(patch) : 0);
+        int messageSize = CodedOutputStream.computeInt32Size(
+                PatchDocumentProtos.PatchDocument.BLOCK_SIZE_FIELD_NUMBER, blockSize)
+                + CodedOutputStream.computeStringSize(PatchDocumentProtos.PatchDocument.NODE_ID_FIELD_NUMBER,
+                        node.getId());
+        for(int i = writtenMatchCount; i < matchCount; i++)
+        {
+            messageSize += CodedOutputStream.computeInt32Size(
+                    PatchDocumentProtos.PatchDocument.MATCHED_BLOCKS_FIELD_NUMBER, matchedBlocks[i]);
+        }
+        if(patch != null)
+        {
+            messageSize += CodedOutputStream.computeTagSize(PatchDocumentProtos.PatchDocument.PATCHES_FIELD_NUMBER)
+                    + CodedOutputStream.computeRawVarint32Size(patchSize) + patchSize;
+        }
+
+        out.writeRawVarint32(messageSize);
+        for(; writtenMatchCount < matchCount; writtenMatchCount++)
+        {
+            out.writeInt32(PatchDocumentProtos.PatchDocument.MATCHED_BLOCKS_FIELD_NUMBER,
+                    matchedBlocks[writtenMatchCount]);
+        }
+        if(patch != null)
+        {
+            writePatch(patch, patchSize);
+        }
+        out.writeInt32(PatchDocumentProtos.PatchDocument.BLOCK_SIZE_FIELD_NUMBER, blockSize);
+        out.writeString(PatchDocumentProtos.PatchDocument.NODE_ID_FIELD_NUMBER, node.getId());
+    }
+
+    @Override
+    public void addPatch(Patch patch)
+    {
+        try
+        {
+            if(encoding == Encoding.DELIMITED)
+            {
+                writeDelimited(patch);
+            }
+            else
+            {
+                writePatch(patch, computePatchSize(patch));
+            }
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        if(patches != null)
+        {
+            patches.add(patch);
+        }
+    }
+
+    @Override
+    public void addMatchedBlock(int matchedBlock)
+    {
+        if(matchCount == matchedBlocks.length)
+        {
+            matchedBlocks = Arrays.copyOf(matchedBlocks, matchCount * 2);
+        }
+        matchedBlocks[matchCount++] = matchedBlock;
+
+        try
+        {
+            if(encoding == Encoding.DELIMITED)
+            {
+                if(matchCount - writtenMatchCount >= MAX_MATCHED_BLOCKS)
+                {
+                    writeDelimited(null);
+                }
+            }
+            else
+            {
+                out.writeInt32(PatchDocumentProtos.PatchDocument.MATCHED_BLOCKS_FIELD_NUMBER, matchedBlock);
+            }
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void setBlockSize(int blockSize)
+    {
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    @Override
+    public int getMatchCount()
+    {
+        return matchCount;
+    }
+
+    @Override
+    public List<Integer> getMatchedBlocks()
+    {
+        return new AbstractList<Integer>()
+        {
+            @Override
+            public Integer get(int index)
+            {
+                if(index >= matchCount)
+                {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + matchCount);
+                }
+                return matchedBlocks[index];
+            }
+
+            @Override
+            public int size()
+            {
+                return matchCount;
+            }
+        };
+    }
+
+    /**
+     * @throws IllegalStateException if the document was created without retainPatches
+     */
+    @Override
+    public List<Patch> getPatches()
+    {
+        if(patches == null)
+        {
+            throw new IllegalStateException("Patches of " + node.getId() + " were written to the stream "
+                    + "without being retained");
+        }
+        return Collections.unmodifiableList(patches);
+    }
+
+    @Override
+    public void commit()
+    {
+        try
+        {
+            if(encoding == Encoding.DELIMITED)
+            {
+                // always write a last message, so that a patch with no changes still says what its block
+                // size is
+                writeDelimited(null);
+            }
+            else
+            {
+                out.writeInt32(PatchDocumentProtos.PatchDocument.BLOCK_SIZE_FIELD_NUMBER, blockSize);
+                out.writeString(PatchDocumentProtos.PatchDocument.NODE_ID_FIELD_NUMBER, node.getId());
+            }
+            out.flush();
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
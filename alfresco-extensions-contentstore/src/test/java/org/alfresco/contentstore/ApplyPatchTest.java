@@ -0,0 +1,290 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.alfresco.contentstore.patch.PatchServiceImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.HasherImpl;
+import org.sglover.alfrescoextensions.common.MimeType;
+import org.sglover.alfrescoextensions.common.Node;
+import org.sglover.checksum.ChecksumServiceImpl;
+import org.sglover.checksum.NodeChecksums;
+import org.sglover.checksum.Patch;
+import org.sglover.checksum.PatchDocument;
+import org.sglover.checksum.PatchDocumentImpl;
+
+/**
+ * Patches applied to a previous version held in a file, with its matched blocks transferred from
+ * the file, and to the same version as a stream.
+ *
+ * @author sglover
+ *
+ */
+public class ApplyPatchTest
+{
+    private static final int BLOCK_SIZE = 16;
+
+    private Random random;
+    private File file;
+    private Node node;
+    private HasherImpl hasher;
+    private ChecksumServiceImpl checksumService;
+    private PatchServiceImpl patchService;
+    private TestContentStore contentStore;
+
+    private static class TestContentStore extends AbstractContentStore
+    {
+        @Override
+        protected ContentReader getReaderImpl(Node node) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected ContentReader getReaderImpl(Node node, MimeType mimeType) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected ContentWriter getWriterImpl(Node node) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected PatchDocument getPatchDocument(Node node)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InputStream getBlockAsInputStream(Node node, long rangeId, int size)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean exists(Node node)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ReadableByteChannel getChannel(Node node) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Node applyPatch(Node node, PatchDocument patchDocument) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Before
+    public void before() throws Exception
+    {
+        this.random = new Random(42);
+        this.file = File.createTempFile("applypatch", ".bin");
+        this.node = Node.build().nodeId("1").nodeVersion(1l).mimeType(MimeType.TEXT);
+        this.hasher = new HasherImpl();
+        this.checksumService = new ChecksumServiceImpl(null, BLOCK_SIZE, hasher);
+        this.patchService = new PatchServiceImpl(hasher, BLOCK_SIZE);
+        this.contentStore = new TestContentStore();
+    }
+
+    @After
+    public void after()
+    {
+        checksumService.shutdown();
+        file.delete();
+    }
+
+    private byte[] bytes(int size)
+    {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private byte[] concat(byte[]... parts)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] part : parts)
+        {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private Patch patch(int lastMatchIndex, byte[] bytes)
+    {
+        return new Patch(lastMatchIndex, bytes.length, bytes);
+    }
+
+    private byte[] applyFromFile(byte[] previous, PatchDocument patchDocument) throws IOException
+    {
+        Files.write(file.toPath(), previous);
+
+        File out = File.createTempFile("applypatch", ".out");
+        try
+        {
+            try(FileInputStream fis = new FileInputStream(file);
+                    FileChannel inChannel = fis.getChannel();
+                    FileOutputStream fos = new FileOutputStream(out);
+                    FileChannel outChannel = fos.getChannel())
+            {
+                long written = contentStore.applyPatch(inChannel, outChannel, patchDocument);
+                assertEquals(out.length(), written);
+            }
+            return Files.readAllBytes(out.toPath());
+        }
+        finally
+        {
+            out.delete();
+        }
+    }
+
+    private byte[] applyFromStream(byte[] previous, PatchDocument patchDocument) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(WritableByteChannel outChannel = Channels.newChannel(out))
+        {
+            contentStore.applyPatch(Channels.newChannel(new ByteArrayInputStream(previous)), outChannel,
+                    patchDocument);
+        }
+        return out.toByteArray();
+    }
+
+    private PatchDocument getPatch(byte[] previous, byte[] content) throws IOException
+    {
+        NodeChecksums checksums = checksumService.getChecksums(node, new ByteArrayInputStream(previous));
+        PatchDocument patchDocument = new PatchDocumentImpl(node, BLOCK_SIZE, new ArrayList<Integer>(),
+                new ArrayList<Patch>());
+        patchService.updatePatchDocument(patchDocument, checksums, new ByteArrayInputStream(content));
+        return patchDocument;
+    }
+
+    @Test
+    public void testTransferRepeatedAndOutOfOrderBlocks() throws Exception
+    {
+        byte[] a = bytes(BLOCK_SIZE);
+        byte[] b = bytes(BLOCK_SIZE);
+        byte[] c = bytes(BLOCK_SIZE);
+        // the last block is short
+        byte[] d = bytes(BLOCK_SIZE / 2 + 1);
+        byte[] previous = concat(a, b, c, d);
+
+        byte[] head = bytes(5);
+        byte[] middle = bytes(3 * BLOCK_SIZE + 7);
+        byte[] tail = bytes(1);
+        List<Integer> matchedBlocks = Arrays.asList(3, 1, 1, 4, 2, 2);
+        List<Patch> patches = Arrays.asList(patch(0, head), patch(1, middle), patch(2, tail));
+        PatchDocument patchDocument = new PatchDocumentImpl(node, BLOCK_SIZE, matchedBlocks, patches);
+
+        // the run of matches ending in a patch's lastMatchIndex is written before it
+        assertArrayEquals(concat(head, c, a, a, middle, d, b, b, tail), applyFromFile(previous, patchDocument));
+
+        // blocks after the last patch, and patches before any block
+        patchDocument = new PatchDocumentImpl(node, BLOCK_SIZE, Arrays.asList(2, 4, 1),
+                Arrays.asList(patch(0, head)));
+        assertArrayEquals(concat(head, b, d, a), applyFromFile(previous, patchDocument));
+    }
+
+    @Test
+    public void testBlockBeyondEnd() throws Exception
+    {
+        byte[] previous = bytes(2 * BLOCK_SIZE);
+        PatchDocument patchDocument = new PatchDocumentImpl(node, BLOCK_SIZE, Arrays.asList(1, 3),
+                new ArrayList<Patch>());
+        try
+        {
+            applyFromFile(previous, patchDocument);
+            fail();
+        }
+        catch(IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRepeatedBlocks() throws Exception
+    {
+        byte[] a = bytes(BLOCK_SIZE);
+        byte[] b = bytes(BLOCK_SIZE);
+        byte[] previous = concat(a, b);
+        byte[] literal = bytes(7);
+
+        // repeated blocks with nothing between them are matched each time
+        byte[] content = concat(a, a, literal, b, b);
+        PatchDocument patchDocument = getPatch(previous, content);
+        assertEquals(Arrays.asList(1, 1, 2, 2), patchDocument.getMatchedBlocks());
+        assertEquals(1, patchDocument.getPatches().size());
+        assertArrayEquals(content, applyFromFile(previous, patchDocument));
+        assertArrayEquals(content, applyFromStream(previous, patchDocument));
+    }
+
+    @Test
+    public void testRepeatedBlockAfterLiteral() throws Exception
+    {
+        byte[] a = bytes(BLOCK_SIZE);
+        byte[] b = bytes(BLOCK_SIZE);
+        byte[] previous = concat(a, b);
+        byte[] literal = bytes(7);
+
+        // a patch is placed only by its lastMatchIndex, so a literal between two matches of a block
+        // reads as a literal following both of them
+        PatchDocument ambiguous = new PatchDocumentImpl(node, BLOCK_SIZE, Arrays.asList(1, 1, 2),
+                Arrays.asList(patch(1, literal)));
+        assertArrayEquals(concat(a, a, literal, b), applyFromFile(previous, ambiguous));
+        assertArrayEquals(concat(a, a, literal, b), applyFromStream(previous, ambiguous));
+
+        // so after a literal the block last matched isn't matched again, it's part of the literal
+        byte[] content = concat(a, literal, a, b);
+        PatchDocument patchDocument = getPatch(previous, content);
+        assertEquals(Arrays.asList(1, 2), patchDocument.getMatchedBlocks());
+        assertEquals(1, patchDocument.getPatches().size());
+        assertEquals(literal.length + BLOCK_SIZE, patchDocument.getPatches().get(0).getSize());
+        assertArrayEquals(content, applyFromFile(previous, patchDocument));
+        assertArrayEquals(content, applyFromStream(previous, patchDocument));
+
+        // later blocks still match after a literal
+        content = concat(a, literal, b, literal);
+        patchDocument = getPatch(previous, content);
+        assertEquals(Arrays.asList(1, 2), patchDocument.getMatchedBlocks());
+        assertEquals(2, patchDocument.getPatches().size());
+        assertArrayEquals(content, applyFromFile(previous, patchDocument));
+        assertArrayEquals(content, applyFromStream(previous, patchDocument));
+    }
+}
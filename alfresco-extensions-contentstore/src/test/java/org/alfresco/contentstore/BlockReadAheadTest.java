@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class BlockReadAheadTest
+{
+    private static final int NUM_BLOCKS = 10;
+
+    /*
+     * Block i's digest is (0, i) and its data is the single byte i. The test decides when each fetch
+     * completes, and may complete it before it's been made.
+     */
+    private static class TestBlockStore extends CassandraBlockStore
+    {
+        private final List<Integer> fetched = new ArrayList<>();
+        private final List<SettableFuture<ByteBuffer>> returned = new ArrayList<>();
+        private final Map<Integer, SettableFuture<ByteBuffer>> futures = new HashMap<>();
+
+        @Override
+        public synchronized ListenableFuture<ByteBuffer> getBlockAsync(long digestHi, long digestLo)
+        {
+            int blockNum = (int)digestLo;
+            fetched.add(blockNum);
+            // a block that's fetched again gets a new fetch
+            SettableFuture<ByteBuffer> future = futures.remove(blockNum);
+            if(future == null)
+            {
+                future = SettableFuture.create();
+            }
+            returned.add(future);
+            return future;
+        }
+
+        synchronized SettableFuture<ByteBuffer> getFuture(int blockNum)
+        {
+            SettableFuture<ByteBuffer> future = futures.get(blockNum);
+            if(future == null)
+            {
+                future = SettableFuture.create();
+                futures.put(blockNum, future);
+            }
+            return future;
+        }
+
+        void complete(int blockNum)
+        {
+            getFuture(blockNum).set(ByteBuffer.wrap(new byte[] { (byte)blockNum }));
+        }
+    }
+
+    private TestBlockStore blockStore;
+    private BlockMap blockMap;
+
+    @Before
+    public void before()
+    {
+        this.blockStore = new TestBlockStore();
+        this.blockMap = new FixedSizeBlockMap(NUM_BLOCKS);
+        for(int i = 0; i < NUM_BLOCKS; i++)
+        {
+            blockMap.addBlockMapping(i, 0, i);
+        }
+    }
+
+    private int blockNum(ByteBuffer bb)
+    {
+        return bb.get(bb.position());
+    }
+
+    @Test
+    public void testSequential() throws Exception
+    {
+        // completed in reverse
+        for(int i = NUM_BLOCKS - 1; i >= 0; i--)
+        {
+            blockStore.complete(i);
+        }
+
+        BlockReadAhead readAhead = new BlockReadAhead(blockStore, blockMap, 4);
+        assertEquals(0, readAhead.getNumInFlight());
+
+        assertEquals(0, blockNum(readAhead.nextBlock()));
+        // the window is kept full
+        assertEquals(4, readAhead.getNumInFlight());
+        assertEquals(5, blockStore.fetched.size());
+
+        for(int i = 1; i < NUM_BLOCKS; i++)
+        {
+            assertTrue(readAhead.hasNext());
+            assertEquals(i, blockNum(readAhead.nextBlock()));
+            assertTrue(readAhead.getNumInFlight() <= 4);
+        }
+        assertFalse(readAhead.hasNext());
+        assertNull(readAhead.nextBlock());
+
+        // each block fetched once, in order
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), blockStore.fetched);
+    }
+
+    @Test
+    public void testLateFetch() throws Exception
+    {
+        BlockReadAhead readAhead = new BlockReadAhead(blockStore, blockMap, 4);
+        for(int i = 1; i < NUM_BLOCKS; i++)
+        {
+            blockStore.complete(i);
+        }
+        final SettableFuture<ByteBuffer> block0 = blockStore.getFuture(0);
+
+        // the first block completes last
+        Thread completer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch(InterruptedException e)
+                {
+                }
+                block0.set(ByteBuffer.wrap(new byte[] { 0 }));
+            }
+        };
+        completer.start();
+
+        for(int i = 0; i < NUM_BLOCKS; i++)
+        {
+            assertEquals(i, blockNum(readAhead.nextBlock()));
+        }
+        completer.join();
+    }
+
+    @Test
+    public void testSeekWithinWindow() throws Exception
+    {
+        for(int i = 0; i < NUM_BLOCKS; i++)
+        {
+            blockStore.complete(i);
+        }
+        SettableFuture<ByteBuffer> block1 = SettableFuture.create();
+        SettableFuture<ByteBuffer> block2 = SettableFuture.create();
+        blockStore.futures.put(1, block1);
+        blockStore.futures.put(2, block2);
+
+        BlockReadAhead readAhead = new BlockReadAhead(blockStore, blockMap, 4);
+        assertEquals(0, blockNum(readAhead.nextBlock()));
+
+        // the fetches of blocks 3 and 4 are kept, those of the skipped blocks are cancelled
+        readAhead.seek(3);
+        assertTrue(block1.isCancelled());
+        assertTrue(block2.isCancelled());
+        assertEquals(2, readAhead.getNumInFlight());
+        assertEquals(3, blockNum(readAhead.nextBlock()));
+        assertEquals(4, blockNum(readAhead.nextBlock()));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8), blockStore.fetched);
+
+        // seeking to the next block is a no-op
+        readAhead.seek(5);
+        assertEquals(4, readAhead.getNumInFlight());
+        assertEquals(5, blockNum(readAhead.nextBlock()));
+    }
+
+    @Test
+    public void testSeekOutsideWindow() throws Exception
+    {
+        for(int i = 0; i < NUM_BLOCKS; i++)
+        {
+            blockStore.complete(i);
+        }
+        BlockReadAhead readAhead = new BlockReadAhead(blockStore, blockMap, 2);
+        assertEquals(0, blockNum(readAhead.nextBlock()));
+
+        // forwards beyond the window
+        readAhead.seek(7);
+        assertEquals(0, readAhead.getNumInFlight());
+        assertEquals(7, blockNum(readAhead.nextBlock()));
+
+        // and backwards, the block is fetched again
+        blockStore.complete(2);
+        blockStore.complete(3);
+        blockStore.complete(4);
+        readAhead.seek(2);
+        assertEquals(2, blockNum(readAhead.nextBlock()));
+        assertEquals(3, blockNum(readAhead.nextBlock()));
+        assertEquals(Arrays.asList(0, 1, 2, 7, 8, 9, 2, 3, 4, 5), blockStore.fetched);
+    }
+
+    @Test
+    public void testFailedFetches() throws Exception
+    {
+        blockStore.getFuture(0).set(null);
+        blockStore.getFuture(1).setException(new RuntimeException("Unavailable"));
+
+        BlockReadAhead readAhead = new BlockReadAhead(blockStore, blockMap, 4);
+        try
+        {
+            readAhead.nextBlock();
+            fail();
+        }
+        catch(IOException e)
+        {
+            assertEquals("Missing block 0", e.getMessage());
+        }
+        try
+        {
+            readAhead.nextBlock();
+            fail();
+        }
+        catch(IOException e)
+        {
+            assertEquals("Unavailable", e.getCause().getMessage());
+        }
+
+        // blocks 2 to 5 are still being fetched
+        readAhead.cancel();
+        assertEquals(0, readAhead.getNumInFlight());
+        assertEquals(6, blockStore.returned.size());
+        for(int i = 2; i < 6; i++)
+        {
+            assertTrue(blockStore.returned.get(i).isCancelled());
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.MimeType;
+import org.sglover.alfrescoextensions.common.Node;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class BlockWriterTest
+{
+    /*
+     * The i'th block written gets the digest (0, i). Writes are left pending until the test completes
+     * them, unless they're completed straight away.
+     */
+    private static class TestBlockStore extends CassandraBlockStore
+    {
+        private final List<byte[]> blocks = new ArrayList<>();
+        private final List<SettableFuture<Boolean>> writes = new ArrayList<>();
+        private boolean complete;
+
+        @Override
+        public synchronized ListenableFuture<Boolean> writeBlockAsync(ByteBuffer bb, long[] digest)
+        {
+            byte[] block = new byte[bb.remaining()];
+            bb.duplicate().get(block);
+            digest[0] = 0;
+            digest[1] = blocks.size();
+            blocks.add(block);
+            SettableFuture<Boolean> write = SettableFuture.create();
+            if(complete)
+            {
+                write.set(true);
+            }
+            writes.add(write);
+            return write;
+        }
+
+        synchronized SettableFuture<Boolean> getWrite(int i)
+        {
+            return writes.get(i);
+        }
+
+        synchronized int getNumWrites()
+        {
+            return writes.size();
+        }
+
+        void setComplete(boolean complete)
+        {
+            this.complete = complete;
+        }
+    }
+
+    private TestBlockStore blockStore;
+    private Node node;
+
+    @Before
+    public void before()
+    {
+        this.blockStore = new TestBlockStore();
+        this.node = Node.build().nodeId("1").nodeVersion(1l).mimeType(MimeType.TEXT);
+    }
+
+    private byte[] bytes(int start, int count)
+    {
+        byte[] bytes = new byte[count];
+        for(int i = 0; i < count; i++)
+        {
+            bytes[i] = (byte)(start + i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testBlocks() throws Exception
+    {
+        blockStore.setComplete(true);
+        BlockWriter writer = new BlockWriter(blockStore, node, 4, 16);
+        writer.write(ByteBuffer.wrap(bytes(0, 3)));
+        writer.write((byte)3);
+        writer.write((byte)4);
+        writer.write(ByteBuffer.wrap(bytes(5, 5)));
+        NodeMetadata nodeMetadata = writer.close();
+
+        assertEquals(3, writer.getNumBlocks());
+        assertEquals(10, writer.getSize());
+        assertEquals(3, blockStore.getNumWrites());
+        assertArrayEquals(bytes(0, 4), blockStore.blocks.get(0));
+        assertArrayEquals(bytes(4, 4), blockStore.blocks.get(1));
+        assertArrayEquals(bytes(8, 2), blockStore.blocks.get(2));
+
+        BlockMap blockMap = nodeMetadata.getBlockmap();
+        assertEquals(3, blockMap.getNumBlocks());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for(int i = 0; i < blockMap.getNumBlocks(); i++)
+        {
+            content.write(blockStore.blocks.get((int)blockMap.getDigestLo(i)));
+        }
+        assertArrayEquals(bytes(0, 10), content.toByteArray());
+    }
+
+    @Test
+    public void testEmpty() throws Exception
+    {
+        BlockWriter writer = new BlockWriter(blockStore, node, 4, 16);
+        NodeMetadata nodeMetadata = writer.close();
+        assertEquals(0, writer.getNumBlocks());
+        assertEquals(0, nodeMetadata.getBlockmap().getNumBlocks());
+        assertEquals(0, blockStore.getNumWrites());
+    }
+
+    @Test
+    public void testWindow() throws Exception
+    {
+        final BlockWriter writer = new BlockWriter(blockStore, node, 4, 2);
+
+        // two blocks in flight, and a third buffered
+        writer.write(ByteBuffer.wrap(bytes(0, 9)));
+        assertEquals(2, writer.getNumInFlight());
+        assertEquals(2, blockStore.getNumWrites());
+
+        // writing the third block waits for the first
+        final List<IOException> errors = new ArrayList<>();
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    writer.write(ByteBuffer.wrap(bytes(9, 4)));
+                }
+                catch(IOException e)
+                {
+                    errors.add(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join(200);
+        assertTrue(thread.isAlive());
+        assertEquals(2, blockStore.getNumWrites());
+
+        blockStore.getWrite(0).set(true);
+        thread.join(5000);
+        assertTrue(errors.isEmpty());
+        assertEquals(3, blockStore.getNumWrites());
+        assertEquals(2, writer.getNumInFlight());
+
+        blockStore.getWrite(1).set(false);
+        blockStore.getWrite(2).set(true);
+        // close writes the last block
+        Thread closer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch(IOException e)
+                {
+                    errors.add(e);
+                }
+            }
+        };
+        closer.start();
+        closer.join(200);
+        assertTrue(closer.isAlive());
+        assertEquals(4, blockStore.getNumWrites());
+        blockStore.getWrite(3).set(true);
+        closer.join(5000);
+        assertTrue(errors.isEmpty());
+        assertEquals(0, writer.getNumInFlight());
+        assertEquals(4, writer.getNumBlocks());
+    }
+
+    @Test
+    public void testFailedWrite() throws Exception
+    {
+        BlockWriter writer = new BlockWriter(blockStore, node, 4, 16);
+        writer.write(ByteBuffer.wrap(bytes(0, 12)));
+        blockStore.getWrite(0).set(true);
+        blockStore.getWrite(1).setException(new RuntimeException("Unavailable"));
+
+        try
+        {
+            writer.close();
+            fail();
+        }
+        catch(IOException e)
+        {
+            assertEquals("Unavailable", e.getCause().getMessage());
+        }
+
+        // the other writes are cancelled
+        assertTrue(blockStore.getWrite(2).isCancelled());
+        assertEquals(0, writer.getNumInFlight());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.CassandraSession;
+import org.sglover.alfrescoextensions.common.Digests;
+import org.sglover.alfrescoextensions.common.HasherImpl;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Needs a Cassandra instance on localhost, as {@link ContentStoreTest} does.
+ *
+ * @author sglover
+ *
+ */
+public class CassandraBlockStoreTest
+{
+    private CassandraSession cassandraSession;
+    private MetricRegistry metrics;
+    private CassandraBlockStore blockStore;
+    private Random random = new Random();
+
+    @Before
+    public void before() throws Exception
+    {
+        this.cassandraSession = new CassandraSession("localhost", "blockstoretest", true);
+        cassandraSession.init();
+        // lightweight transactions need a quorum of replicas, and there's a single local node
+        cassandraSession.getCassandraSession().execute("ALTER KEYSPACE " + cassandraSession.getKeyspace()
+                + " WITH replication = {'class':'SimpleStrategy', 'replication_factor':1};");
+        this.metrics = new MetricRegistry();
+        this.blockStore = new CassandraBlockStore();
+        blockStore.setCassandraSession(cassandraSession);
+        blockStore.setHasher(new HasherImpl());
+        blockStore.setMetricRegistry(metrics);
+        blockStore.setCollectIntervalSecs(0);
+        blockStore.setOrphanGracePeriodMs(0);
+        blockStore.init();
+    }
+
+    @After
+    public void after()
+    {
+        blockStore.shutdown();
+        cassandraSession.shutdown();
+    }
+
+    private ByteBuffer randomBlock(int size)
+    {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private long getRefs(long[] digest)
+    {
+        Row row = cassandraSession.getCassandraSession().execute("SELECT refs FROM "
+                + cassandraSession.getKeyspace() + ".content_block_refs where digest = ?",
+                ByteBuffer.wrap(Digests.toBytes(digest[0], digest[1]))).one();
+        return (row != null ? row.getLong("refs") : 0);
+    }
+
+    private long waitForRefs(long[] digest, long expected) throws InterruptedException
+    {
+        long refs = getRefs(digest);
+        for(int i = 0; i < 50 && refs != expected; i++)
+        {
+            Thread.sleep(100);
+            refs = getRefs(digest);
+        }
+        return refs;
+    }
+
+    @Test
+    public void testConcurrentFirstWrites() throws Exception
+    {
+        ByteBuffer block = randomBlock(1024);
+
+        List<ListenableFuture<Boolean>> writes = new ArrayList<>();
+        List<long[]> digests = new ArrayList<>();
+        for(int i = 0; i < 8; i++)
+        {
+            long[] digest = new long[2];
+            writes.add(blockStore.writeBlockAsync(block, digest));
+            digests.add(digest);
+        }
+
+        int numStored = 0;
+        for(ListenableFuture<Boolean> write : writes)
+        {
+            if(write.get())
+            {
+                numStored++;
+            }
+        }
+        assertEquals(1, numStored);
+        assertEquals(8, blockStore.getBlocksWritten());
+        assertEquals(1, blockStore.getBlocksStored());
+        assertEquals(1024, blockStore.getBytesStored());
+        assertEquals(8.0, (Double)metrics.getGauges().get(
+                MetricRegistry.name(CassandraBlockStore.class, "dedupRatio")).getValue(), 0.0001);
+
+        long[] digest = digests.get(0);
+        assertEquals(8, getRefs(digest));
+        assertEquals(block, blockStore.getBlock(digest[0], digest[1]));
+    }
+
+    @Test
+    public void testCancelledWriteRemovesReference() throws Exception
+    {
+        long[] digest = new long[2];
+        ListenableFuture<Boolean> write = blockStore.writeBlockAsync(randomBlock(1024), digest);
+        write.cancel(true);
+
+        assertEquals(0, waitForRefs(digest, 0));
+    }
+
+    @Test
+    public void testCollectOrphanedBlocks() throws Exception
+    {
+        long[] digest1 = new long[2];
+        assertTrue(blockStore.writeBlockAsync(randomBlock(1024), digest1).get());
+        long[] digest2 = new long[2];
+        assertTrue(blockStore.writeBlockAsync(randomBlock(1024), digest2).get());
+
+        BlockMap blockMap = new FixedSizeBlockMap(1);
+        blockMap.addBlockMapping(0, digest1[0], digest1[1]);
+        blockStore.removeReferences(blockMap);
+
+        // the first pass only marks the orphan, the second deletes it
+        assertEquals(0, blockStore.collectOrphanedBlocks());
+        assertNotNull(blockStore.getBlock(digest1[0], digest1[1]));
+        assertEquals(1, blockStore.collectOrphanedBlocks());
+        assertNull(blockStore.getBlock(digest1[0], digest1[1]));
+        assertNotNull(blockStore.getBlock(digest2[0], digest2[1]));
+
+        // the block can be written again
+        ByteBuffer block = randomBlock(512);
+        long[] digest3 = new long[2];
+        assertTrue(blockStore.writeBlockAsync(block, digest3).get());
+        blockMap = new FixedSizeBlockMap(1);
+        blockMap.addBlockMapping(0, digest3[0], digest3[1]);
+        blockStore.removeReferences(blockMap);
+        assertEquals(0, blockStore.collectOrphanedBlocks());
+        assertTrue(blockStore.writeBlockAsync(block, digest3).get() == false);
+        assertEquals(0, blockStore.collectOrphanedBlocks());
+        assertEquals(block, blockStore.getBlock(digest3[0], digest3[1]));
+    }
+
+    @Test
+    public void testScheduledCollection() throws Exception
+    {
+        blockStore.shutdown();
+        blockStore.setCollectIntervalSecs(1);
+        blockStore.init();
+
+        long[] digest = new long[2];
+        assertTrue(blockStore.writeBlockAsync(randomBlock(1024), digest).get());
+        BlockMap blockMap = new FixedSizeBlockMap(1);
+        blockMap.addBlockMapping(0, digest[0], digest[1]);
+        blockStore.removeReferences(blockMap);
+
+        ByteBuffer block = blockStore.getBlock(digest[0], digest[1]);
+        for(int i = 0; i < 100 && block != null; i++)
+        {
+            Thread.sleep(100);
+            block = blockStore.getBlock(digest[0], digest[1]);
+        }
+        assertNull(block);
+
+        // not collected after the store has shut down
+        blockStore.shutdown();
+        assertTrue(blockStore.writeBlockAsync(randomBlock(1024), digest).get());
+        blockMap = new FixedSizeBlockMap(1);
+        blockMap.addBlockMapping(0, digest[0], digest[1]);
+        blockStore.removeReferences(blockMap);
+        Thread.sleep(2500);
+        assertNotNull(blockStore.getBlock(digest[0], digest[1]));
+    }
+}
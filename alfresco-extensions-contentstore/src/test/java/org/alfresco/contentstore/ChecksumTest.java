@@ -762,4 +762,44 @@ public class ChecksumTest
             System.out.println(i + ", " + numRead1 + ", " + numRead2 + ", " + total + ", " + same + ", " + (double)same/total);
         }
     }
+
+    @Test
+    public void test12() throws IOException
+    {
+        // content spanning many read buffers with a small insertion, the rolling
+        // checksum should resynchronise straight after the insertion
+        checksumService.setBlockSize(1024);
+
+        UserContext.setUser("user1");
+
+        Node node = Node.build().nodeId(GUID.generate()).nodeVersion(1l);
+
+        byte[] content = new byte[1024 * 100];
+        new java.util.Random(42).nextBytes(content);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(content, 0, 50003);
+        bos.write(new byte[] { 1, 2, 3, 4, 5 });
+        bos.write(content, 50003, content.length - 50003);
+        byte[] content1 = bos.toByteArray();
+
+        try(InputStream in = new ByteArrayInputStream(content);
+                ReadableByteChannel channel1 = Channels.newChannel(new ByteArrayInputStream(content1)))
+        {
+            NodeChecksums checksums = checksumService.getChecksums(node, in);
+
+            PatchDocument patchDocument = new PatchDocumentImpl();
+            patchService.updatePatchDocument(patchDocument, checksums, channel1);
+
+            int patchSize = 0;
+            for(Patch patch : patchDocument.getPatches())
+            {
+                patchSize += patch.getSize();
+            }
+
+            assertEquals(99, patchDocument.getMatchCount());
+            assertEquals(1, patchDocument.getPatches().size());
+            assertEquals(1024 + 5, patchSize);
+        }
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.MimeType;
+import org.sglover.alfrescoextensions.common.Node;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class NodeMetadataCacheTest
+{
+    /*
+     * Node n's block map has n blocks, loaded without Cassandra
+     */
+    private static class TestNodeMetadataCache extends NodeMetadataCache
+    {
+        private final AtomicInteger numLoads = new AtomicInteger(0);
+        private volatile CountDownLatch loadLatch;
+
+        @Override
+        NodeMetadata loadNodeMetadata(Node node)
+        {
+            numLoads.incrementAndGet();
+            if(loadLatch != null)
+            {
+                try
+                {
+                    loadLatch.await();
+                }
+                catch(InterruptedException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            int numBlocks = Integer.parseInt(node.getNodeId());
+            FixedSizeBlockMap blockMap = new FixedSizeBlockMap(numBlocks);
+            for(int i = 0; i < numBlocks; i++)
+            {
+                blockMap.addBlockMapping(i, numBlocks, i);
+            }
+            return new NodeMetadata(node, blockMap);
+        }
+    }
+
+    private TestNodeMetadataCache cache;
+    private MetricRegistry metrics;
+
+    @Before
+    public void before()
+    {
+        this.metrics = new MetricRegistry();
+        this.cache = new TestNodeMetadataCache();
+        cache.setMaxBlocks(100);
+        cache.setMetricRegistry(metrics);
+        cache.initCache();
+    }
+
+    private Node node(int numBlocks)
+    {
+        return Node.build().nodeId(String.valueOf(numBlocks)).nodeVersion(1l).mimeType(MimeType.TEXT);
+    }
+
+    @Test
+    public void testWeightedBound() throws Exception
+    {
+        Random random = new Random(42);
+        for(int i = 0; i < 2000; i++)
+        {
+            int numBlocks = 1 + random.nextInt(30);
+            NodeMetadata nodeMetadata = cache.getNodeMetadata(node(numBlocks));
+            assertEquals(numBlocks, nodeMetadata.getBlockmap().getNumBlocks());
+            // each block map weighs its number of blocks plus one
+            assertTrue(cache.getWeight() <= 100);
+        }
+        assertTrue(cache.getStats().evictionCount() > 0);
+        assertEquals(cache.getWeight(), metrics.getGauges().get(
+                MetricRegistry.name(NodeMetadataCache.class, "weight")).getValue());
+        // including those that weren't admitted
+        assertEquals(cache.getStats().loadCount(), metrics.getTimers().get(
+                MetricRegistry.name(NodeMetadataCache.class, "loads")).getCount());
+    }
+
+    @Test
+    public void testAdmission() throws Exception
+    {
+        // fill the cache, 10 block maps of weight 10
+        for(int i = 0; i < 10; i++)
+        {
+            cache.getNodeMetadata(node(9).newNodeVersion((long)i));
+        }
+        assertEquals(100, cache.getWeight());
+        assertEquals(0, cache.getRejected());
+
+        // a block map that's read once doesn't evict those
+        NodeMetadata nodeMetadata = cache.getNodeMetadata(node(19));
+        assertEquals(19, nodeMetadata.getBlockmap().getNumBlocks());
+        assertEquals(1, cache.getRejected());
+        assertEquals(0, cache.getStats().evictionCount());
+        for(int i = 0; i < 10; i++)
+        {
+            cache.getNodeMetadata(node(9).newNodeVersion((long)i));
+        }
+        assertEquals(10, cache.getStats().hitCount());
+
+        // it's admitted once it's read again
+        cache.getNodeMetadata(node(19));
+        assertEquals(1, cache.getRejected());
+        assertEquals(2, cache.getStats().evictionCount());
+        assertEquals(100, cache.getWeight());
+        int numLoads = cache.numLoads.get();
+        cache.getNodeMetadata(node(19));
+        assertEquals(numLoads, cache.numLoads.get());
+    }
+
+    @Test
+    public void testSingleFlightLoad() throws Exception
+    {
+        cache.loadLatch = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<NodeMetadata>> futures = new ArrayList<>();
+            for(int i = 0; i < 8; i++)
+            {
+                futures.add(executor.submit(new Callable<NodeMetadata>()
+                {
+                    @Override
+                    public NodeMetadata call() throws Exception
+                    {
+                        return cache.getNodeMetadata(node(5));
+                    }
+                }));
+            }
+
+            // let all the threads get to the cache before the load finishes
+            Thread.sleep(200);
+            cache.loadLatch.countDown();
+
+            NodeMetadata nodeMetadata = futures.get(0).get();
+            for(Future<NodeMetadata> future : futures)
+            {
+                assertSame(nodeMetadata, future.get());
+            }
+            assertEquals(1, cache.numLoads.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testNoBlocksNotCached() throws Exception
+    {
+        assertEquals(0, cache.getNodeMetadata(node(0)).getBlockmap().getNumBlocks());
+        assertEquals(0, cache.getNodeMetadata(node(0)).getBlockmap().getNumBlocks());
+        assertEquals(2, cache.numLoads.get());
+        assertEquals(0, cache.getWeight());
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.eviction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.contentstore.dao.ContentDAO;
+import org.alfresco.contentstore.dao.NodeInfo;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.MimeType;
+import org.sglover.alfrescoextensions.common.Node;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class ContentEvictorTest
+{
+    // the file system size the evictor sees, content is evicted from 90% down to 85% of it
+    private static final long TOTAL_SPACE = 10000;
+
+    private File contentRoot;
+    private TestContentDAO contentDAO;
+    private TestContentEvictor evictor;
+
+    private static class TestContentDAO implements ContentDAO
+    {
+        private final Map<String, NodeInfo> nodesByContentPath = new HashMap<>();
+        private final Set<String> removed = new HashSet<>();
+
+        void addNode(Node node, String contentPath)
+        {
+            nodesByContentPath.put(contentPath, new NodeInfo(node, contentPath, MimeType.TEXT, "UTF-8", 0l));
+        }
+
+        @Override
+        public boolean nodeExists(String nodeId, long nodeInternalVersion, boolean isPrimary)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NodeInfo getByNodeId(String nodeId, long nodeInternalVersion, MimeType mimeType)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NodeInfo getByNodeId(String nodeId, long nodeInternalVersion, boolean isPrimary)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NodeInfo getByNodeId(String nodeId, String nodeVersion, boolean isPrimary)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NodeInfo getByNodeId(long nodeInternalId, String mimeType)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void updateNode(NodeInfo node)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized void removeNode(String nodeId, long nodeInternalVersion, String contentPath)
+        {
+            removed.add(nodeId);
+        }
+
+        @Override
+        public synchronized NodeInfo getByContentPath(String contentPath)
+        {
+            return nodesByContentPath.get(contentPath);
+        }
+
+        synchronized Set<String> getRemoved()
+        {
+            return new HashSet<>(removed);
+        }
+    }
+
+    private class TestContentEvictor extends ContentEvictor
+    {
+        // the space used by everything but the content root
+        private volatile long otherSpace = 0;
+        private final AtomicInteger numChecks = new AtomicInteger();
+
+        TestContentEvictor(ContentDAO contentDAO, EvictionPolicy policy)
+        {
+            super(contentDAO, policy);
+            setHighWatermark(0.9);
+            setLowWatermark(0.85);
+            setCheckIntervalSecs(3600);
+        }
+
+        @Override
+        protected long getTotalSpace()
+        {
+            return TOTAL_SPACE;
+        }
+
+        @Override
+        protected long getUsedSpace()
+        {
+            // goes down as content is evicted, so checks racing with the test's don't evict more
+            return otherSpace + FileUtils.sizeOfDirectory(contentRoot);
+        }
+
+        @Override
+        public long checkSpace()
+        {
+            try
+            {
+                return super.checkSpace();
+            }
+            finally
+            {
+                numChecks.incrementAndGet();
+            }
+        }
+    }
+
+    @Before
+    public void before() throws Exception
+    {
+        this.contentRoot = Files.createTempDirectory("ContentEvictorTest").toFile();
+        this.contentDAO = new TestContentDAO();
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        if(evictor != null)
+        {
+            evictor.shutdown();
+        }
+        FileUtils.deleteQuietly(contentRoot);
+    }
+
+    private void start(EvictionPolicy policy)
+    {
+        this.evictor = new TestContentEvictor(contentDAO, policy);
+        evictor.start(contentRoot.getAbsolutePath());
+    }
+
+    private String writeContent(String name, int size) throws IOException
+    {
+        File file = new File(contentRoot, name);
+        try(OutputStream out = new FileOutputStream(file))
+        {
+            out.write(new byte[size]);
+        }
+        return file.getAbsolutePath();
+    }
+
+    private String addContent(String nodeId, int size) throws Exception
+    {
+        String contentPath = writeContent(nodeId, size);
+        evictor.contentAdded(Node.build().nodeId(nodeId).nodeVersion(1l), contentPath);
+        // so that access times differ
+        Thread.sleep(5);
+        return contentPath;
+    }
+
+    private void read(String contentPath, int times) throws Exception
+    {
+        for(int i = 0; i < times; i++)
+        {
+            try(InputStream in = evictor.pin(Files.newInputStream(new File(contentPath).toPath()), contentPath))
+            {
+                in.read();
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private void setUsedSpace(long usedSpace)
+    {
+        evictor.otherSpace = usedSpace - FileUtils.sizeOfDirectory(contentRoot);
+    }
+
+    /**
+     * Evicts content with the evictor seeing the file system toFree bytes above the low watermark,
+     * which is only above the high watermark for toFree of 500 or more.
+     */
+    private long evict(long toFree)
+    {
+        setUsedSpace((long)(0.85 * TOTAL_SPACE) + toFree);
+        return evictor.checkSpace();
+    }
+
+    private void assertEvicted(String contentPath, String nodeId)
+    {
+        assertFalse(new File(contentPath).exists());
+        assertTrue(contentDAO.getRemoved().contains(nodeId));
+    }
+
+    private void assertNotEvicted(String contentPath, String nodeId)
+    {
+        assertTrue(new File(contentPath).exists());
+        assertFalse(contentDAO.getRemoved().contains(nodeId));
+    }
+
+    @Test
+    public void testBelowHighWatermark() throws Exception
+    {
+        start(new LRUEvictionPolicy());
+        String a = addContent("a", 100);
+
+        setUsedSpace((long)(0.89 * TOTAL_SPACE));
+        assertEquals(0, evictor.checkSpace());
+        assertNotEvicted(a, "a");
+    }
+
+    @Test
+    public void testLRU() throws Exception
+    {
+        start(new LRUEvictionPolicy());
+        String a = addContent("a", 600);
+        String b = addContent("b", 600);
+        String c = addContent("c", 600);
+        read(a, 1);
+
+        assertEquals(600, evict(600));
+        assertEvicted(b, "b");
+        assertNotEvicted(a, "a");
+        assertNotEvicted(c, "c");
+
+        assertEquals(600, evict(600));
+        assertEvicted(c, "c");
+        assertNotEvicted(a, "a");
+        assertEquals(1, evictor.getNumTracked());
+    }
+
+    @Test
+    public void testLFU() throws Exception
+    {
+        start(new LFUEvictionPolicy());
+        String a = addContent("a", 600);
+        String b = addContent("b", 600);
+        String c = addContent("c", 600);
+        read(a, 3);
+        read(b, 1);
+        read(c, 2);
+
+        evict(600);
+        assertEvicted(b, "b");
+        assertNotEvicted(a, "a");
+        assertNotEvicted(c, "c");
+
+        // the same number of accesses, the least recently accessed goes
+        read(c, 1);
+        evict(600);
+        assertEvicted(a, "a");
+        assertNotEvicted(c, "c");
+    }
+
+    @Test
+    public void testGreedyDualSize() throws Exception
+    {
+        start(new GreedyDualSizeEvictionPolicy());
+        String a = addContent("a", 600);
+        String b = addContent("b", 1200);
+        String c = addContent("c", 600);
+
+        // the largest content goes first
+        evict(600);
+        assertEvicted(b, "b");
+        assertNotEvicted(a, "a");
+        assertNotEvicted(c, "c");
+
+        // c is accessed after b's eviction has raised the priority of accessed content, so a goes
+        read(c, 1);
+        evict(600);
+        assertEvicted(a, "a");
+        assertNotEvicted(c, "c");
+    }
+
+    @Test
+    public void testPinnedContentNotEvicted() throws Exception
+    {
+        start(new LRUEvictionPolicy());
+        String a = addContent("a", 600);
+        String b = addContent("b", 600);
+
+        InputStream in = evictor.pin(Files.newInputStream(new File(a).toPath()), a);
+        Thread.sleep(5);
+        read(b, 1);
+        // a is the least recently accessed but is pinned, so b goes
+        evict(600);
+        assertEvicted(b, "b");
+        assertNotEvicted(a, "a");
+
+        assertEquals(0, evict(600));
+        assertNotEvicted(a, "a");
+
+        in.close();
+        assertEquals(600, evict(600));
+        assertEvicted(a, "a");
+    }
+
+    @Test
+    public void testExistingContentIsTracked() throws Exception
+    {
+        String a = writeContent("a", 600);
+        String b = writeContent("b", 600);
+        String notContent = writeContent("notContent", 600);
+        new File(a).setLastModified(System.currentTimeMillis() - 60000);
+        contentDAO.addNode(Node.build().nodeId("a").nodeVersion(1l), a);
+        contentDAO.addNode(Node.build().nodeId("b").nodeVersion(1l), b);
+
+        start(new LRUEvictionPolicy());
+        // wait for the scan and the check after it
+        for(int i = 0; i < 100 && evictor.numChecks.get() == 0; i++)
+        {
+            Thread.sleep(50);
+        }
+        assertEquals(2, evictor.getNumTracked());
+
+        // a was last modified before b
+        evict(600);
+        assertEvicted(a, "a");
+        assertNotEvicted(b, "b");
+
+        // files without a node record aren't content, so are never evicted
+        evict(1200);
+        assertEvicted(b, "b");
+        assertTrue(new File(notContent).exists());
+        assertEquals(0, evictor.getNumTracked());
+    }
+}
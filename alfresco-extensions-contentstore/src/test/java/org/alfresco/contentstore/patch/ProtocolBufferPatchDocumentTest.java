@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.contentstore.patch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.alfresco.contentstore.protobuf.PatchDocumentProtos;
+import org.junit.Before;
+import org.junit.Test;
+import org.sglover.alfrescoextensions.common.Node;
+import org.sglover.checksum.Patch;
+import org.sglover.checksum.PatchDocument;
+import org.sglover.checksum.PatchDocumentImpl;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class ProtocolBufferPatchDocumentTest
+{
+    private static final int BLOCK_SIZE = 8192;
+
+    private Node node;
+    private List<Integer> matchedBlocks;
+    private List<Patch> patches;
+
+    @Before
+    public void before() throws Exception
+    {
+        this.node = Node.fromNodeId("node1:2");
+        this.matchedBlocks = new ArrayList<>();
+        this.patches = new ArrayList<>();
+
+        // enough matched blocks between patches for the delimited encoding to split them
+        Random random = new Random(42);
+        int block = 1;
+        for(int i = 0; i < 5; i++)
+        {
+            int numMatched = (i == 2 ? ProtocolBufferPatchDocument.MAX_MATCHED_BLOCKS * 2 + 3 : i);
+            for(int j = 0; j < numMatched; j++)
+            {
+                matchedBlocks.add(block++);
+            }
+            byte[] buffer = new byte[i * 100];
+            random.nextBytes(buffer);
+            patches.add(new Patch(block - 1, buffer.length, buffer));
+        }
+        matchedBlocks.add(block);
+    }
+
+    private void write(PatchDocument patchDocument)
+    {
+        int matched = 0;
+        for(Patch patch : patches)
+        {
+            while(matched < matchedBlocks.size() && matchedBlocks.get(matched) <= patch.getLastMatchIndex())
+            {
+                patchDocument.addMatchedBlock(matchedBlocks.get(matched++));
+            }
+            patchDocument.addPatch(patch);
+        }
+        while(matched < matchedBlocks.size())
+        {
+            patchDocument.addMatchedBlock(matchedBlocks.get(matched++));
+        }
+        patchDocument.commit();
+    }
+
+    @Test
+    public void testMessage() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtocolBufferPatchDocument patchDocument = new ProtocolBufferPatchDocument(node, BLOCK_SIZE, out);
+        write(patchDocument);
+
+        assertEquals(matchedBlocks.size(), patchDocument.getMatchCount());
+        assertEquals(matchedBlocks, patchDocument.getMatchedBlocks());
+        assertEquals(patches, patchDocument.getPatches());
+
+        PatchDocument read = new PatchServiceImpl().getPatch(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(node.getNodeId(), read.getNode().getNodeId());
+        assertEquals(node.getNodeVersion(), read.getNode().getNodeVersion());
+        assertEquals(BLOCK_SIZE, read.getBlockSize());
+        assertEquals(matchedBlocks, read.getMatchedBlocks());
+        assertEquals(patches, read.getPatches());
+    }
+
+    @Test
+    public void testDelimited() throws Exception
+    {
+        for(PatchStreamEncoding encoding : PatchStreamEncoding.values())
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try(OutputStream encoded = encoding.encode(out))
+            {
+                ProtocolBufferPatchDocument patchDocument = new ProtocolBufferPatchDocument(node, BLOCK_SIZE,
+                        encoded, ProtocolBufferPatchDocument.Encoding.DELIMITED, true);
+                write(patchDocument);
+                assertEquals(matchedBlocks, patchDocument.getMatchedBlocks());
+                assertEquals(patches, patchDocument.getPatches());
+            }
+
+            // each message is a whole PatchDocument
+            int numMessages = 0;
+            InputStream in = encoding.decode(new ByteArrayInputStream(out.toByteArray()));
+            PatchDocumentProtos.PatchDocument message;
+            while((message = PatchDocumentProtos.PatchDocument.parseDelimitedFrom(in)) != null)
+            {
+                assertEquals(BLOCK_SIZE, message.getBlockSize());
+                assertEquals(node.getId(), message.getNodeId());
+                numMessages++;
+            }
+            // a message per patch, two for the matched blocks before the third patch and the last one
+            assertEquals(encoding.toString(), patches.size() + 3, numMessages);
+
+            PatchDocumentImpl read = new PatchDocumentImpl();
+            new PatchServiceImpl().readPatchStream(new ByteArrayInputStream(out.toByteArray()), encoding, read);
+            assertEquals(BLOCK_SIZE, read.getBlockSize());
+            assertEquals(matchedBlocks, read.getMatchedBlocks());
+            assertEquals(patches, read.getPatches());
+        }
+    }
+
+    @Test
+    public void testNoChanges() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PatchDocument patchDocument = new ProtocolBufferPatchDocument(node, BLOCK_SIZE, out,
+                ProtocolBufferPatchDocument.Encoding.DELIMITED, true);
+        patchDocument.commit();
+
+        PatchDocumentImpl read = new PatchDocumentImpl();
+        new PatchServiceImpl().readPatchStream(new ByteArrayInputStream(out.toByteArray()),
+                PatchStreamEncoding.IDENTITY, read);
+        assertEquals(BLOCK_SIZE, read.getBlockSize());
+        assertEquals(0, read.getMatchCount());
+        assertEquals(0, read.getPatches().size());
+    }
+
+    @Test
+    public void testPatchesNotRetained() throws Exception
+    {
+        PatchDocument patchDocument = new ProtocolBufferPatchDocument(node, BLOCK_SIZE,
+                new ByteArrayOutputStream(), ProtocolBufferPatchDocument.Encoding.MESSAGE, false);
+        write(patchDocument);
+        assertEquals(matchedBlocks, patchDocument.getMatchedBlocks());
+        try
+        {
+            patchDocument.getPatches();
+            fail();
+        }
+        catch(IllegalStateException e)
+        {
+            // expected
+        }
+    }
+}
@@ -14,11 +14,13 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.alfresco.events.node.types.NodeContentGetEvent;
+import org.alfresco.service.common.elasticsearch.repoquery.PermissionFilterQueryBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.elasticsearch.action.ActionFuture;
@@ -57,6 +59,11 @@ public class ElasticSearchClient
     private static final Log logger = LogFactory
             .getLog(ElasticSearchClient.class);
 
+    /**
+     * The numeric field that nodes' ACL ids are indexed in
+     */
+    public static final String ACL_ID_FIELD = "acl";
+
     private Client client;
     private String indexName;
 
@@ -445,6 +452,37 @@ public class ElasticSearchClient
         return response;
     }
 
+    /**
+     * Searches the nodes readable by a user. Needs the repo query plugin
+     * ({@link org.alfresco.service.common.elasticsearch.repoquery.RepoQueryPlugin})
+     * on the data nodes.
+     * 
+     * @param authorities the user and all of the groups that the user is in
+     * @param readableAclIds the ids of the ACLs that grant Read to any of the
+     *            authorities
+     */
+    public SearchResponse readableNodesSearch(String indexName,
+            QueryBuilder queryBuilder, Collection<String> authorities,
+            Collection<Long> readableAclIds, int skip, int maxItems)
+    {
+        String[] types = new String[]
+        { IndexType.node.toString() };
+        String[] fields = new String[]
+        { "n", "nid", "v", "l" };
+        QueryBuilder filteredQueryBuilder = QueryBuilders.boolQuery()
+                .must(queryBuilder)
+                .filter(new PermissionFilterQueryBuilder(ACL_ID_FIELD,
+                        authorities, readableAclIds));
+
+        SearchRequestBuilder builder = client.prepareSearch(indexName)
+                .addFields(fields).setTypes(types)
+                .setSearchType(SearchType.QUERY_THEN_FETCH)
+                .setQuery(filteredQueryBuilder) // Query
+                .setFrom(skip).setSize(maxItems);
+        SearchResponse response = builder.execute().actionGet();
+        return response;
+    }
+
     public SearchResponse search(String indexName, QueryBuilder queryBuilder,
             AggregationBuilder aggregation, List<IndexType> types,
             String[] fields)
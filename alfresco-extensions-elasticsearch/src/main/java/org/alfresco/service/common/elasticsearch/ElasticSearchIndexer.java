@@ -355,7 +355,8 @@ public class ElasticSearchIndexer
 
         BasicDBObjectBuilder builder = BasicDBObjectBuilder.start("n", nodeId)
                 .add("nid", nodeInternalId).add("v", nodeVersion)
-                .add("l", versionLabel).add("t", timestamp).add("u", username);
+                .add("l", versionLabel).add("t", timestamp).add("u", username)
+                .add(ElasticSearchClient.ACL_ID_FIELD, node.getAclId());
 
         NodeVersionKey nodeVersionKey = new NodeVersionKey(nodeInternalId,
                 nodeVersion);
@@ -436,7 +437,8 @@ public class ElasticSearchIndexer
 
         BasicDBObjectBuilder builder = BasicDBObjectBuilder.start("n", nodeId)
                 .add("nid", nodeInternalId).add("v", nodeVersion)
-                .add("l", versionLabel);
+                .add("l", versionLabel)
+                .add(ElasticSearchClient.ACL_ID_FIELD, node.getAclId());
 
         NodeVersionKey nodeVersionKey = new NodeVersionKey(nodeInternalId,
                 nodeVersion);
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.service.common.elasticsearch.repoquery;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSet;
+
+/**
+ * Caches the documents of each segment that have one of a set of readable ACLs, for
+ * {@link PermissionFilterQuery}. Sets are cached against the segment's core, so they are shared by
+ * the readers of a segment before and after deletes (live docs are applied by the searcher) and
+ * dropped when the core is closed, e.g. after a merge. The least recently used ACL sets of a
+ * segment are evicted once it has more than maxAclSetsPerSegment.
+ *
+ * Sets are keyed on the ACL id field and the readable ACL ids rather than on the authorities, so
+ * users that can read the same ACLs share a set, and a set is never stale: when an ACL or an
+ * authority's membership changes the authorities' readable ACLs change too, and so does the key.
+ * {@link #aclsChanged()} only drops the sets of the old readable ACLs sooner than eviction would.
+ *
+ * @author sglover
+ *
+ */
+public class PermissionFilterCache
+{
+    private final Map<Object, Segment> segments = new ConcurrentHashMap<>();
+    private final LeafReader.CoreClosedListener coreClosedListener = segments::remove;
+
+    private volatile int maxAclSetsPerSegment = 64;
+
+    public void setMaxAclSetsPerSegment(int maxAclSetsPerSegment)
+    {
+        this.maxAclSetsPerSegment = maxAclSetsPerSegment;
+    }
+
+    @FunctionalInterface
+    public interface DocIdSetBuilder
+    {
+        DocIdSet build(LeafReader reader) throws IOException;
+    }
+
+    private static class Key
+    {
+        private final String aclIdField;
+        private final long[] readableAclIds;
+        private final int hashCode;
+
+        Key(String aclIdField, long[] readableAclIds)
+        {
+            this.aclIdField = aclIdField;
+            this.readableAclIds = readableAclIds;
+            this.hashCode = 31 * aclIdField.hashCode() + Arrays.hashCode(readableAclIds);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(this == obj)
+            {
+                return true;
+            }
+            if(!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key)obj;
+            return hashCode == other.hashCode && aclIdField.equals(other.aclIdField)
+                    && Arrays.equals(readableAclIds, other.readableAclIds);
+        }
+    }
+
+    private class Segment
+    {
+        @SuppressWarnings("serial")
+        private final Map<Key, DocIdSet> docIdSets = new LinkedHashMap<Key, DocIdSet>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, DocIdSet> eldest)
+            {
+                return size() > maxAclSetsPerSegment;
+            }
+        };
+    }
+
+    /**
+     * @param readableAclIds sorted, distinct ACL ids, which mustn't be changed afterwards
+     * @return the segment's documents with one of the readable ACLs, built with the builder if they
+     * aren't cached
+     */
+    public DocIdSet get(LeafReader reader, String aclIdField, long[] readableAclIds,
+            DocIdSetBuilder builder) throws IOException
+    {
+        Object coreKey = reader.getCoreCacheKey();
+        Segment segment = segments.get(coreKey);
+        if(segment == null)
+        {
+            Segment newSegment = new Segment();
+            segment = segments.putIfAbsent(coreKey, newSegment);
+            if(segment == null)
+            {
+                segment = newSegment;
+                reader.addCoreClosedListener(coreClosedListener);
+            }
+        }
+
+        Key key = new Key(aclIdField, readableAclIds);
+        synchronized(segment)
+        {
+            DocIdSet docIdSet = segment.docIdSets.get(key);
+            if(docIdSet != null)
+            {
+                return docIdSet;
+            }
+        }
+
+        // built outside the lock, concurrent builds for the same ACLs just do the work twice
+        DocIdSet docIdSet = builder.build(reader);
+
+        synchronized(segment)
+        {
+            segment.docIdSets.put(key, docIdSet);
+        }
+
+        return docIdSet;
+    }
+
+    /**
+     * Drops all the cached sets, because the ACLs readable by some authorities have changed and
+     * their old sets won't be asked for again.
+     */
+    public void aclsChanged()
+    {
+        for(Segment segment : segments.values())
+        {
+            synchronized(segment)
+            {
+                segment.docIdSets.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of segments with cached sets
+     */
+    public int getNumSegments()
+    {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of sets cached for the segment
+     */
+    public int getNumAclSets(LeafReader reader)
+    {
+        Segment segment = segments.get(reader.getCoreCacheKey());
+        if(segment == null)
+        {
+            return 0;
+        }
+        synchronized(segment)
+        {
+            return segment.docIdSets.size();
+        }
+    }
+}
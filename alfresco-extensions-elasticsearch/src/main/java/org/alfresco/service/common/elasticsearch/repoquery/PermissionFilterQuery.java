@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.service.common.elasticsearch.repoquery;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.util.RoaringDocIdSet;
+
+/**
+ * Matches the documents readable by a set of authorities, i.e. those whose ACL id (a numeric doc
+ * values field) is one of the ACLs that the authorities can read, to be used as a filter. The
+ * readable documents of each segment are built by going through the segment's ACL ids once and are
+ * cached per segment and readable ACL set in a {@link PermissionFilterCache}, so repeated searches by
+ * users that can read the same ACLs only intersect the cached set with their query. The query
+ * matches the same documents whatever the authorities are, so only the readable ACLs are part of
+ * its equality.
+ *
+ * @author sglover
+ *
+ */
+public class PermissionFilterQuery extends RepoQuery
+{
+    private final PermissionFilterCache cache;
+    private final String aclIdField;
+    private final Set<String> authorities;
+    private final long[] readableAclIds;
+
+    /**
+     * @param authorities the user and all of the groups that the user is in
+     * @param readableAclIds the ids of the ACLs that grant Read to any of the authorities
+     */
+    public PermissionFilterQuery(PermissionFilterCache cache, String aclIdField,
+            Collection<String> authorities, Collection<Long> readableAclIds)
+    {
+        this.cache = cache;
+        this.aclIdField = aclIdField;
+        this.authorities = Collections.unmodifiableSet(new HashSet<>(authorities));
+        this.readableAclIds = readableAclIds.stream().mapToLong(Long::longValue).sorted().distinct()
+                .toArray();
+    }
+
+    @Override
+    protected DocIdSet getDocIdSet(LeafReaderContext context) throws IOException
+    {
+        return cache.get(context.reader(), aclIdField, readableAclIds, this::buildDocIdSet);
+    }
+
+    private DocIdSet buildDocIdSet(LeafReader reader) throws IOException
+    {
+        if(readableAclIds.length == 0)
+        {
+            return DocIdSet.EMPTY;
+        }
+
+        SortedNumericDocValues aclIds = DocValues.getSortedNumeric(reader, aclIdField);
+        int maxDoc = reader.maxDoc();
+        RoaringDocIdSet.Builder builder = new RoaringDocIdSet.Builder(maxDoc);
+        for(int doc = 0; doc < maxDoc; doc++)
+        {
+            aclIds.setDocument(doc);
+            int count = aclIds.count();
+            for(int i = 0; i < count; i++)
+            {
+                if(Arrays.binarySearch(readableAclIds, aclIds.valueAt(i)) >= 0)
+                {
+                    builder.add(doc);
+                    break;
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    public String getAclIdField()
+    {
+        return aclIdField;
+    }
+
+    public Set<String> getAuthorities()
+    {
+        return authorities;
+    }
+
+    public int getNumReadableAcls()
+    {
+        return readableAclIds.length;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        final int prime = 31;
+        int result = super.hashCode();
+        result = prime * result + aclIdField.hashCode();
+        result = prime * result + Arrays.hashCode(readableAclIds);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if(!super.equals(obj))
+        {
+            return false;
+        }
+        PermissionFilterQuery other = (PermissionFilterQuery)obj;
+        return aclIdField.equals(other.aclIdField)
+                && Arrays.equals(readableAclIds, other.readableAclIds);
+    }
+
+    @Override
+    public String toString(String field)
+    {
+        return "PermissionFilterQuery(" + aclIdField + ", authorities=" + authorities
+                + ", readableAcls=" + readableAclIds.length + ")";
+    }
+}
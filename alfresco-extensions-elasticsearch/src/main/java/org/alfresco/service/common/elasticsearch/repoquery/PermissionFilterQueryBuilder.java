@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.service.common.elasticsearch.repoquery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * Builds a {@link PermissionFilterQuery}, parsed on the data nodes by
+ * {@link PermissionFilterQueryParser}.
+ *
+ * @author sglover
+ *
+ */
+public class PermissionFilterQueryBuilder extends QueryBuilder
+{
+    private final String aclIdField;
+    private final Collection<String> authorities;
+    private final Collection<Long> readableAclIds;
+
+    /**
+     * @param authorities the user and all of the groups that the user is in
+     * @param readableAclIds the ids of the ACLs that grant Read to any of the authorities
+     */
+    public PermissionFilterQueryBuilder(String aclIdField, Collection<String> authorities,
+            Collection<Long> readableAclIds)
+    {
+        this.aclIdField = aclIdField;
+        this.authorities = new ArrayList<>(authorities);
+        this.readableAclIds = new ArrayList<>(readableAclIds);
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException
+    {
+        builder.startObject(PermissionFilterQueryParser.NAME)
+            .field(PermissionFilterQueryParser.FIELD, aclIdField)
+            .field(PermissionFilterQueryParser.AUTHORITIES, authorities)
+            .field(PermissionFilterQueryParser.READABLE_ACL_IDS, readableAclIds)
+            .endObject();
+    }
+}
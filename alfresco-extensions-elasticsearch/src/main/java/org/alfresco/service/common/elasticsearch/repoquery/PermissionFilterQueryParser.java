@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.service.common.elasticsearch.repoquery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryParser;
+import org.elasticsearch.index.query.QueryParsingException;
+
+/**
+ * Parses a "permission_filter" query into a {@link PermissionFilterQuery}, e.g.
+ *
+ * {"permission_filter": {"field": "acl", "authorities": ["user1", "GROUP_1"],
+ *     "readable_acl_ids": [1, 5, 8]}}
+ *
+ * All the queries parsed on a node share its {@link PermissionFilterCache}. The parser remembers the
+ * readable ACLs of the most recently seen authority sets, and when they change for an authority set
+ * an ACL or a membership has changed, so the cache's sets of the old readable ACLs are dropped.
+ *
+ * @author sglover
+ *
+ */
+public class PermissionFilterQueryParser implements QueryParser
+{
+    public static final String NAME = "permission_filter";
+    public static final String FIELD = "field";
+    public static final String AUTHORITIES = "authorities";
+    public static final String READABLE_ACL_IDS = "readable_acl_ids";
+
+    private final PermissionFilterCache cache;
+    private final int maxAuthoritySets;
+
+    // the last query of each authority set
+    private final Map<Set<String>, PermissionFilterQuery> lastQueries;
+
+    @Inject
+    public PermissionFilterQueryParser()
+    {
+        this(new PermissionFilterCache(), 10000);
+    }
+
+    @SuppressWarnings("serial")
+    public PermissionFilterQueryParser(PermissionFilterCache cache, int maxAuthoritySets)
+    {
+        this.cache = cache;
+        this.maxAuthoritySets = maxAuthoritySets;
+        this.lastQueries = new LinkedHashMap<Set<String>, PermissionFilterQuery>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Set<String>, PermissionFilterQuery> eldest)
+            {
+                return size() > PermissionFilterQueryParser.this.maxAuthoritySets;
+            }
+        };
+    }
+
+    @Override
+    public String[] names()
+    {
+        return new String[] { NAME };
+    }
+
+    @Override
+    public PermissionFilterQuery parse(QueryParseContext parseContext) throws IOException, QueryParsingException
+    {
+        try
+        {
+            return parse(parseContext.parser());
+        }
+        catch(ElasticsearchParseException e)
+        {
+            throw new QueryParsingException(parseContext, e.getMessage(), e);
+        }
+    }
+
+    PermissionFilterQuery parse(XContentParser parser) throws IOException
+    {
+        String aclIdField = null;
+        List<String> authorities = null;
+        List<Long> readableAclIds = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while((token = parser.nextToken()) != XContentParser.Token.END_OBJECT)
+        {
+            if(token == XContentParser.Token.FIELD_NAME)
+            {
+                currentFieldName = parser.currentName();
+            }
+            else if(token == XContentParser.Token.START_ARRAY && AUTHORITIES.equals(currentFieldName))
+            {
+                authorities = new ArrayList<>();
+                while(parser.nextToken() != XContentParser.Token.END_ARRAY)
+                {
+                    authorities.add(parser.text());
+                }
+            }
+            else if(token == XContentParser.Token.START_ARRAY && READABLE_ACL_IDS.equals(currentFieldName))
+            {
+                readableAclIds = new ArrayList<>();
+                while(parser.nextToken() != XContentParser.Token.END_ARRAY)
+                {
+                    readableAclIds.add(parser.longValue());
+                }
+            }
+            else if(token.isValue() && FIELD.equals(currentFieldName))
+            {
+                aclIdField = parser.text();
+            }
+            else
+            {
+                throw new ElasticsearchParseException("[{}] query does not support [{}]", NAME,
+                        currentFieldName);
+            }
+        }
+
+        if(aclIdField == null || authorities == null || readableAclIds == null)
+        {
+            throw new ElasticsearchParseException("[{}] query needs [{}], [{}] and [{}]", NAME, FIELD,
+                    AUTHORITIES, READABLE_ACL_IDS);
+        }
+
+        PermissionFilterQuery query = new PermissionFilterQuery(cache, aclIdField, authorities,
+                readableAclIds);
+        PermissionFilterQuery lastQuery;
+        synchronized(lastQueries)
+        {
+            lastQuery = lastQueries.put(query.getAuthorities(), query);
+        }
+        if(lastQuery != null && !lastQuery.equals(query))
+        {
+            cache.aclsChanged();
+        }
+        return query;
+    }
+
+    public PermissionFilterCache getCache()
+    {
+        return cache;
+    }
+}
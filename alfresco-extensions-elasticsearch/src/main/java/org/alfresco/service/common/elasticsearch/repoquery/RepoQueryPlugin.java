@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.service.common.elasticsearch.repoquery;
+
+import org.elasticsearch.indices.IndicesModule;
+import org.elasticsearch.plugins.Plugin;
+
+/**
+ * Registers the repo queries with Elasticsearch, so that they can be used in searches. Installed on
+ * the data nodes.
+ *
+ * @author sglover
+ *
+ */
+public class RepoQueryPlugin extends Plugin
+{
+    @Override
+    public String name()
+    {
+        return "alfresco-repo-query";
+    }
+
+    @Override
+    public String description()
+    {
+        return "Alfresco repository queries";
+    }
+
+    public void onModule(IndicesModule module)
+    {
+        module.registerQueryParser(PermissionFilterQueryParser.class);
+    }
+}
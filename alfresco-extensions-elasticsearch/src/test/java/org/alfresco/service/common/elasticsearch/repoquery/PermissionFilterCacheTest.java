@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.service.common.elasticsearch.repoquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class PermissionFilterCacheTest
+{
+    private static final String ACL_ID_FIELD = "acl";
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private PermissionFilterCache cache;
+
+    @Before
+    public void before() throws Exception
+    {
+        this.directory = new RAMDirectory();
+        try(IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer())))
+        {
+            // node i has ACL i % 4
+            for(int i = 0; i < 20; i++)
+            {
+                Document doc = new Document();
+                doc.add(new StringField("id", "node" + i, Field.Store.NO));
+                doc.add(new SortedNumericDocValuesField(ACL_ID_FIELD, i % 4));
+                writer.addDocument(doc);
+            }
+        }
+        this.reader = DirectoryReader.open(directory);
+        this.searcher = new IndexSearcher(reader);
+        // only the permission filter cache
+        searcher.setQueryCache(null);
+        this.cache = new PermissionFilterCache();
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        reader.close();
+        directory.close();
+    }
+
+    private LeafReader leaf()
+    {
+        return reader.leaves().get(0).reader();
+    }
+
+    private PermissionFilterQuery query(List<String> authorities, Long... readableAclIds)
+    {
+        return new PermissionFilterQuery(cache, ACL_ID_FIELD, authorities, Arrays.asList(readableAclIds));
+    }
+
+    @Test
+    public void testSameAclsShareSet() throws Exception
+    {
+        assertEquals(10, searcher.count(query(Arrays.asList("user1"), 1l, 2l)));
+        // other authorities that can read the same ACLs, in another order
+        assertEquals(10, searcher.count(query(Arrays.asList("user2", "GROUP_1"), 2l, 1l, 2l)));
+        assertEquals(1, cache.getNumAclSets(leaf()));
+        assertEquals(query(Arrays.asList("user1"), 1l, 2l), query(Arrays.asList("user2"), 2l, 1l));
+    }
+
+    @Test
+    public void testChangedAclsOfSameAuthorities() throws Exception
+    {
+        // the authorities' readable ACLs change, their old set mustn't be used
+        assertEquals(5, searcher.count(query(Arrays.asList("user1"), 1l)));
+        assertEquals(10, searcher.count(query(Arrays.asList("user1"), 1l, 3l)));
+        assertEquals(0, searcher.count(query(Arrays.asList("user1"))));
+        assertEquals(5, searcher.count(query(Arrays.asList("user1"), 3l, 7l)));
+        assertEquals(4, cache.getNumAclSets(leaf()));
+        assertFalse(query(Arrays.asList("user1"), 1l).equals(query(Arrays.asList("user1"), 1l, 3l)));
+
+        // or another ACL field
+        PermissionFilterQuery otherField = new PermissionFilterQuery(cache, "other", Arrays.asList("user1"),
+                Arrays.asList(1l));
+        assertEquals(0, searcher.count(otherField));
+        assertEquals(5, cache.getNumAclSets(leaf()));
+    }
+
+    @Test
+    public void testAclsChanged() throws Exception
+    {
+        searcher.count(query(Arrays.asList("user1"), 1l));
+        searcher.count(query(Arrays.asList("user2"), 2l));
+        assertEquals(2, cache.getNumAclSets(leaf()));
+
+        cache.aclsChanged();
+        assertEquals(0, cache.getNumAclSets(leaf()));
+        assertEquals(5, searcher.count(query(Arrays.asList("user1"), 1l)));
+        assertEquals(1, cache.getNumAclSets(leaf()));
+    }
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        cache.setMaxAclSetsPerSegment(2);
+        searcher.count(query(Arrays.asList("user1"), 1l));
+        searcher.count(query(Arrays.asList("user2"), 2l));
+        searcher.count(query(Arrays.asList("user3"), 3l));
+        assertEquals(2, cache.getNumAclSets(leaf()));
+    }
+
+    @Test
+    public void testCoreClosed() throws Exception
+    {
+        searcher.count(query(Arrays.asList("user1"), 1l));
+        assertEquals(1, cache.getNumSegments());
+
+        reader.close();
+        assertEquals(0, cache.getNumSegments());
+        this.reader = DirectoryReader.open(directory);
+    }
+
+    private PermissionFilterQuery parse(PermissionFilterQueryParser parser, List<String> authorities,
+            Long... readableAclIds) throws Exception
+    {
+        PermissionFilterQueryBuilder queryBuilder = new PermissionFilterQueryBuilder(ACL_ID_FIELD,
+                authorities, Arrays.asList(readableAclIds));
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        queryBuilder.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        return parse(parser, builder.string());
+    }
+
+    private PermissionFilterQuery parse(PermissionFilterQueryParser parser, String json) throws Exception
+    {
+        // positioned at the start of the query's body, as Elasticsearch does
+        try(XContentParser xContentParser = JsonXContent.jsonXContent.createParser(json))
+        {
+            xContentParser.nextToken();
+            xContentParser.nextToken();
+            xContentParser.nextToken();
+            return parser.parse(xContentParser);
+        }
+    }
+
+    @Test
+    public void testParser() throws Exception
+    {
+        PermissionFilterQueryParser parser = new PermissionFilterQueryParser(cache, 10);
+        PermissionFilterQuery query = parse(parser, Arrays.asList("user1", "GROUP_1"), 3l, 1l);
+        assertEquals(query(Arrays.asList("user1", "GROUP_1"), 1l, 3l), query);
+        assertEquals(ACL_ID_FIELD, query.getAclIdField());
+        assertEquals(2, query.getAuthorities().size());
+        assertEquals(10, searcher.count(query));
+
+        // the same readable ACLs for the authorities keep the cached sets
+        searcher.count(parse(parser, Arrays.asList("user2"), 2l));
+        searcher.count(parse(parser, Arrays.asList("GROUP_1", "user1"), 1l, 3l));
+        assertEquals(2, cache.getNumAclSets(leaf()));
+
+        // an ACL or membership change drops them
+        query = parse(parser, Arrays.asList("user1", "GROUP_1"), 1l);
+        assertEquals(0, cache.getNumAclSets(leaf()));
+        assertEquals(5, searcher.count(query));
+    }
+
+    @Test
+    public void testParserErrors() throws Exception
+    {
+        PermissionFilterQueryParser parser = new PermissionFilterQueryParser(cache, 10);
+        try
+        {
+            parse(parser, "{\"permission_filter\": {\"field\": \"acl\", \"authorities\": [\"user1\"]}}");
+            fail();
+        }
+        catch(ElasticsearchParseException e)
+        {
+            // expected
+        }
+        try
+        {
+            parse(parser, "{\"permission_filter\": {\"field\": \"acl\", \"authorities\": [\"user1\"], "
+                    + "\"readable_acl_ids\": [1], \"unknown\": 1}}");
+            fail();
+        }
+        catch(ElasticsearchParseException e)
+        {
+            // expected
+        }
+    }
+}
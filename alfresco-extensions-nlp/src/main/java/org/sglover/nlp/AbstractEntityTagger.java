@@ -11,6 +11,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.jsoup.Jsoup;
@@ -41,6 +42,16 @@ public abstract class AbstractEntityTagger implements EntityTagger
     	executorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(numThreads)); 
     }
 
+    /**
+     * Runs tagging on the given executor, e.g. a stage of the shared work scheduler, rather than the
+     * tagger's own thread pool.
+     */
+    public void setExecutorService(ExecutorService executorService)
+    {
+        this.executorService.shutdown();
+        this.executorService = MoreExecutors.listeningDecorator(executorService);
+    }
+
     protected abstract Entities getEntitiesImpl(String content);
 
     private void makeCall(final TaggerCall call, final EntityTaggerCallback callback)
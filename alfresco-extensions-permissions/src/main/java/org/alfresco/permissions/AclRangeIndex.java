@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.permissions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An index of the ranges of group ids that ACLs grant permissions to, so that the ACLs granting a
+ * permission to a group can be found without going through every ACL's aces.
+ *
+ * For each permission the group id line is cut into sorted, disjoint segments at the ends of the
+ * ranges, each segment holding the ACLs whose ranges cover it (counted, because an ACL's ranges may
+ * overlap). Finding the ACLs that cover a group id is a floor lookup, O(log n) in the number of
+ * segments. Ranges are added and removed a whole ACL at a time, splitting and merging only the
+ * segments at the range's ends.
+ *
+ * @author sglover
+ *
+ */
+public class AclRangeIndex
+{
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // by permission, segment start -> ACL counts of the segment up to the next start, empty if no
+    // ACLs cover it
+    private final Map<String, TreeMap<Long, Map<String, Integer>>> segmentsByPermission = new HashMap<>();
+
+    // by ACL id, the ranges that are indexed for it
+    private final Map<String, Map<String, List<Range>>> rangesByAcl = new HashMap<>();
+
+    /**
+     * Indexes the ACL's ranges by permission, replacing any that were indexed for it before.
+     */
+    public void putAcl(String aclId, Map<String, List<Range>> rangesByPermission)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            removeRanges(aclId);
+
+            Map<String, List<Range>> aclRanges = new HashMap<>();
+            for(Map.Entry<String, List<Range>> entry : rangesByPermission.entrySet())
+            {
+                String permission = entry.getKey();
+                TreeMap<Long, Map<String, Integer>> segments = segmentsByPermission.get(permission);
+                if(segments == null)
+                {
+                    segments = new TreeMap<>();
+                    segmentsByPermission.put(permission, segments);
+                }
+                for(Range range : entry.getValue())
+                {
+                    add(segments, aclId, range);
+                }
+                aclRanges.put(permission, new ArrayList<>(entry.getValue()));
+            }
+            if(!aclRanges.isEmpty())
+            {
+                rangesByAcl.put(aclId, aclRanges);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeAcl(String aclId)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            removeRanges(aclId);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeRanges(String aclId)
+    {
+        Map<String, List<Range>> aclRanges = rangesByAcl.remove(aclId);
+        if(aclRanges != null)
+        {
+            for(Map.Entry<String, List<Range>> entry : aclRanges.entrySet())
+            {
+                String permission = entry.getKey();
+                TreeMap<Long, Map<String, Integer>> segments = segmentsByPermission.get(permission);
+                for(Range range : entry.getValue())
+                {
+                    remove(segments, aclId, range);
+                }
+                if(segments.isEmpty())
+                {
+                    segmentsByPermission.remove(permission);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes sure that a segment starts at the given group id, copying the ACLs of the segment that
+     * covered it.
+     */
+    private static void split(TreeMap<Long, Map<String, Integer>> segments, long start)
+    {
+        if(!segments.containsKey(start))
+        {
+            Map.Entry<Long, Map<String, Integer>> covering = segments.floorEntry(start);
+            segments.put(start, covering != null ? new HashMap<>(covering.getValue())
+                    : new HashMap<>());
+        }
+    }
+
+    /**
+     * Removes the segment starting at the given group id if it has the same ACLs as the one before,
+     * or if it's empty and is the first, so that the segments stay as few as the ranges need. An
+     * empty segment after a non-empty one is kept, it's where the non-empty one ends.
+     */
+    private static void merge(TreeMap<Long, Map<String, Integer>> segments, long start)
+    {
+        Map<String, Integer> acls = segments.get(start);
+        if(acls != null)
+        {
+            Map.Entry<Long, Map<String, Integer>> previous = segments.lowerEntry(start);
+            if(previous != null ? previous.getValue().equals(acls) : acls.isEmpty())
+            {
+                segments.remove(start);
+            }
+        }
+    }
+
+    private static NavigableMap<Long, Map<String, Integer>> covered(
+            TreeMap<Long, Map<String, Integer>> segments, Range range)
+    {
+        return (range.getEnd() == Long.MAX_VALUE ? segments.tailMap(range.getStart(), true)
+                : segments.subMap(range.getStart(), true, range.getEnd() + 1, false));
+    }
+
+    private static void add(TreeMap<Long, Map<String, Integer>> segments, String aclId, Range range)
+    {
+        if(range.isEmpty())
+        {
+            return;
+        }
+        split(segments, range.getStart());
+        if(range.getEnd() != Long.MAX_VALUE)
+        {
+            split(segments, range.getEnd() + 1);
+        }
+        for(Map<String, Integer> acls : covered(segments, range).values())
+        {
+            acls.merge(aclId, 1, Integer::sum);
+        }
+        merge(segments, range.getStart());
+        if(range.getEnd() != Long.MAX_VALUE)
+        {
+            merge(segments, range.getEnd() + 1);
+        }
+    }
+
+    private static void remove(TreeMap<Long, Map<String, Integer>> segments, String aclId, Range range)
+    {
+        if(range.isEmpty())
+        {
+            return;
+        }
+        for(Map<String, Integer> acls : covered(segments, range).values())
+        {
+            acls.computeIfPresent(aclId, (id, count) -> (count > 1 ? count - 1 : null));
+        }
+        merge(segments, range.getStart());
+        if(range.getEnd() != Long.MAX_VALUE)
+        {
+            merge(segments, range.getEnd() + 1);
+        }
+    }
+
+    /**
+     * @return the ids of the ACLs with a range for the permission that covers the group id
+     */
+    public Set<String> getAcls(String permission, long groupId)
+    {
+        return getAcls(permission, Collections.singleton(groupId));
+    }
+
+    /**
+     * @return the ids of the ACLs with a range for the permission that covers any of the group ids
+     */
+    public Set<String> getAcls(String permission, Collection<Long> groupIds)
+    {
+        lock.readLock().lock();
+        try
+        {
+            Set<String> aclIds = new HashSet<>();
+            TreeMap<Long, Map<String, Integer>> segments = segmentsByPermission.get(permission);
+            if(segments != null)
+            {
+                for(long groupId : groupIds)
+                {
+                    Map.Entry<Long, Map<String, Integer>> segment = segments.floorEntry(groupId);
+                    if(segment != null)
+                    {
+                        aclIds.addAll(segment.getValue().keySet());
+                    }
+                }
+            }
+            return aclIds;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of segments indexed for the permission
+     */
+    public int getNumSegments(String permission)
+    {
+        lock.readLock().lock();
+        try
+        {
+            TreeMap<Long, Map<String, Integer>> segments = segmentsByPermission.get(permission);
+            return (segments != null ? segments.size() : 0);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+}
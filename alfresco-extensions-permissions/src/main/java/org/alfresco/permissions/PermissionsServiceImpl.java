@@ -7,50 +7,159 @@
  */
 package org.alfresco.permissions;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
+ * Group ids are allocated in blocks of {@link #GROUP_BLOCK_SIZE}, one block per top level group,
+ * which takes the block's first id, and its child groups take the rest. Each group's range is its
+ * id and its descendants' ids, so a top level group's range is its whole block and a child group's
+ * is its own id, and an ace for a group covers the group's range. ACLs are indexed by these ranges
+ * so that the ACLs granting a permission to a set of groups are found with a lookup per group
+ * rather than by going through every ACL.
  * 
  * @author sglover
  *
  */
 public class PermissionsServiceImpl
 {
+    public static final long GROUP_BLOCK_SIZE = 1000;
+
     private AtomicLong maxParentGroupId = new AtomicLong(0);
     private Map<String, Long> maxGroupIdByParentGroupName = new ConcurrentHashMap<>();
     private Map<String, Long> groupsToIds = new ConcurrentHashMap<>();
+    private AclRangeIndex aclRangeIndex = new AclRangeIndex();
 
     public long addGroup(String parentGroupName)
     {
-        long parentGroupId = maxParentGroupId.getAndIncrement();
+        long parentGroupId = maxParentGroupId.getAndIncrement() * GROUP_BLOCK_SIZE;
         groupsToIds.put(parentGroupName, parentGroupId);
+        maxGroupIdByParentGroupName.put(parentGroupName, parentGroupId);
         return parentGroupId;
     }
 
+    /**
+     * Adds a child group to a top level group, taking the next id in the parent's block.
+     * 
+     * @throws IllegalArgumentException if the parent isn't a top level group, child groups have no
+     * ids left for children of their own
+     * @throws IllegalStateException if the parent's block is full
+     */
     public long addGroup(String parentGroupName, String childGroupName)
     {
-        long childGroupId = maxGroupIdByParentGroupName.get(parentGroupName) + 1;
-        maxGroupIdByParentGroupName.put(parentGroupName, childGroupId);
+        long childGroupId = maxGroupIdByParentGroupName.compute(parentGroupName,
+                (name, maxGroupId) -> {
+                    if(maxGroupId == null)
+                    {
+                        throw new IllegalArgumentException("No top level group " + parentGroupName);
+                    }
+                    if(maxGroupId % GROUP_BLOCK_SIZE == GROUP_BLOCK_SIZE - 1)
+                    {
+                        throw new IllegalStateException("Group " + parentGroupName + " already has "
+                                + (GROUP_BLOCK_SIZE - 1) + " child groups");
+                    }
+                    return maxGroupId + 1;
+                });
         groupsToIds.put(childGroupName, childGroupId);
         return childGroupId;
     }
 
+    /**
+     * @throws IllegalArgumentException if the group is unknown
+     */
     public long getGroupId(String group)
     {
-        return groupsToIds.get(group);
+        Long groupId = groupsToIds.get(group);
+        if(groupId == null)
+        {
+            throw new IllegalArgumentException("No group " + group);
+        }
+        return groupId;
+    }
+
+    /**
+     * @return the range of the group's id and its descendants' ids, empty if the group is unknown
+     */
+    public Range getGroupRange(String group)
+    {
+        Long groupId = groupsToIds.get(group);
+        Range range;
+        if(groupId == null)
+        {
+            range = Range.start(0).end(-1);
+        }
+        else if(groupId % GROUP_BLOCK_SIZE == 0)
+        {
+            // a top level group, its block has its children's ids
+            range = Range.start(groupId).end(groupId + GROUP_BLOCK_SIZE - 1);
+        }
+        else
+        {
+            range = Range.start(groupId).end(groupId);
+        }
+        return range;
+    }
+
+    /**
+     * An ace for a group that isn't known yet has an empty range, so grants nothing until its ACL
+     * is set again.
+     */
+    private Range calculateAceGroupRange(Ace ace)
+    {
+        return getGroupRange(ace.getGroup());
     }
 
     public List<Range> calculateNodeAclGroupRanges(Acl acl)
     {
-        List<Range> ranges = acl.getAces().stream().map(ace -> {
-            String group = ace.getGroup();
-            long groupId = getGroupId(group);
-            return Range.start(groupId).end(groupId / 1000 * 1000 + 999);
-        }).collect(Collectors.toList());
+        List<Range> ranges = acl.getAces().stream()
+                .map(this::calculateAceGroupRange)
+                .collect(Collectors.toList());
+        return ranges;
+    }
+
+    public Map<String, List<Range>> calculateNodeAclGroupRangesByPermission(Acl acl)
+    {
+        Map<String, List<Range>> ranges = acl.getAces().stream()
+                .collect(Collectors.groupingBy(Ace::getPermission,
+                        Collectors.mapping(this::calculateAceGroupRange, Collectors.toList())));
         return ranges;
     }
+
+    /**
+     * Indexes the ACL's group ranges, replacing those of any previous version of it.
+     */
+    public void setAcl(String aclId, Acl acl)
+    {
+        aclRangeIndex.putAcl(aclId, calculateNodeAclGroupRangesByPermission(acl));
+    }
+
+    public void removeAcl(String aclId)
+    {
+        aclRangeIndex.removeAcl(aclId);
+    }
+
+    /**
+     * @return the ids of the ACLs that grant the permission to any of the groups
+     */
+    public Set<String> getAcls(String permission, Collection<String> groups)
+    {
+        List<Long> groupIds = groups.stream()
+                .map(groupsToIds::get)
+                .filter(groupId -> groupId != null)
+                .collect(Collectors.toList());
+        return aclRangeIndex.getAcls(permission, groupIds);
+    }
+
+    /**
+     * @return the ids of the ACLs that grant Read to any of the groups
+     */
+    public Set<String> getReadableAcls(Collection<String> groups)
+    {
+        return getAcls("Read", groups);
+    }
 }
@@ -36,6 +36,13 @@ public class Range
 	{
 		return end;
 	}
+	/**
+	 * @return true if the range has no ids, i.e. it ends before it starts
+	 */
+	public boolean isEmpty()
+	{
+		return start > end;
+	}
 
 	@Override
     public int hashCode()
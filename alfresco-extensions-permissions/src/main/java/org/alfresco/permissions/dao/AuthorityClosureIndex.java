@@ -0,0 +1,491 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.permissions.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * An in-memory transitive closure of the authority hierarchy, so that authority checks don't go
+ * back to the store. Authorities are interned as dense ints and each one has a compressed bitmap
+ * of all the groups that contain it, directly or not, and of all the authorities that it contains.
+ * Along with the direct parent and child edges, these are maintained incrementally as child
+ * authorities are added and removed.
+ *
+ * The index only knows about the changes made through it, so it should be loaded from the store
+ * when its DAO starts and kept up to date by the DAO's writes and by replaying the memberships that
+ * other instances have changed since.
+ *
+ * @author sglover
+ *
+ */
+public class AuthorityClosureIndex
+{
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    // by authority id, null if empty
+    private final List<RoaringBitmap> parents = new ArrayList<>();
+    private final List<RoaringBitmap> children = new ArrayList<>();
+    private final List<RoaringBitmap> ancestors = new ArrayList<>();
+    private final List<RoaringBitmap> descendants = new ArrayList<>();
+
+    private Integer getId(String authority)
+    {
+        return ids.get(authority);
+    }
+
+    private int intern(String authority)
+    {
+        Integer id = ids.get(authority);
+        if(id == null)
+        {
+            id = names.size();
+            ids.put(authority, id);
+            names.add(authority);
+            parents.add(null);
+            children.add(null);
+            ancestors.add(null);
+            descendants.add(null);
+        }
+        return id;
+    }
+
+    private static RoaringBitmap get(List<RoaringBitmap> bitmaps, int id)
+    {
+        RoaringBitmap bitmap = bitmaps.get(id);
+        if(bitmap == null)
+        {
+            bitmap = new RoaringBitmap();
+            bitmaps.set(id, bitmap);
+        }
+        return bitmap;
+    }
+
+    private static RoaringBitmap copyOf(List<RoaringBitmap> bitmaps, int id)
+    {
+        RoaringBitmap bitmap = bitmaps.get(id);
+        return (bitmap != null ? bitmap.clone() : new RoaringBitmap());
+    }
+
+    /**
+     * @return the authority's id, which is only meaningful to this index, interning the authority
+     * if it's new
+     */
+    public int getAuthorityId(String authority)
+    {
+        lock.readLock().lock();
+        try
+        {
+            Integer id = getId(authority);
+            if(id != null)
+            {
+                return id;
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try
+        {
+            return intern(authority);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addAuthority(String authority)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            intern(authority);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addChildAuthority(String parentAuthority, String childAuthority)
+    {
+        addChildAuthority(parentAuthority, childAuthority, null);
+    }
+
+    /**
+     * Replaces all the memberships with the given child authorities of each parent authority, e.g.
+     * when the index is reloaded from the store. Authorities keep their ids, so bitmaps of ids held
+     * elsewhere stay valid. Readers see either the old or the new memberships.
+     */
+    public void reset(Map<String, ? extends Collection<String>> childAuthorities)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Collections.fill(parents, null);
+            Collections.fill(children, null);
+            Collections.fill(ancestors, null);
+            Collections.fill(descendants, null);
+            for(Map.Entry<String, ? extends Collection<String>> entry : childAuthorities.entrySet())
+            {
+                for(String childAuthority : entry.getValue())
+                {
+                    addChildAuthority(entry.getKey(), childAuthority, null);
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the child authority to the parent, passing each (containing group, contained authority)
+     * pair that this adds to the closure to closureAdded, if it isn't null. The pair for the parent
+     * and child is only passed if the child wasn't already in the parent through another group.
+     *
+     * @return false if the child authority was already a child of the parent
+     */
+    public boolean addChildAuthority(String parentAuthority, String childAuthority,
+            BiConsumer<String, String> closureAdded)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            int parent = intern(parentAuthority);
+            int child = intern(childAuthority);
+            RoaringBitmap childParents = get(parents, child);
+            if(childParents.contains(parent))
+            {
+                return false;
+            }
+            childParents.add(parent);
+            get(children, parent).add(child);
+
+            // the child and everything it contains are now in the parent and everything that
+            // contains it
+            RoaringBitmap addedAncestors = copyOf(ancestors, parent);
+            addedAncestors.add(parent);
+            RoaringBitmap addedDescendants = copyOf(descendants, child);
+            addedDescendants.add(child);
+
+            IntIterator it = addedDescendants.getIntIterator();
+            while(it.hasNext())
+            {
+                int descendant = it.next();
+                RoaringBitmap descendantAncestors = get(ancestors, descendant);
+                if(closureAdded != null)
+                {
+                    RoaringBitmap added = addedAncestors.clone();
+                    added.andNot(descendantAncestors);
+                    IntIterator addedIt = added.getIntIterator();
+                    while(addedIt.hasNext())
+                    {
+                        closureAdded.accept(names.get(addedIt.next()), names.get(descendant));
+                    }
+                }
+                descendantAncestors.or(addedAncestors);
+            }
+            it = addedAncestors.getIntIterator();
+            while(it.hasNext())
+            {
+                get(descendants, it.next()).or(addedDescendants);
+            }
+
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeChildAuthority(String parentAuthority, String childAuthority)
+    {
+        removeChildAuthority(parentAuthority, childAuthority, null);
+    }
+
+    /**
+     * Removes the child authority from the parent, passing each (containing group, contained
+     * authority) pair that this removes from the closure to closureRemoved, if it isn't null.
+     *
+     * @return false if the child authority wasn't a child of the parent
+     */
+    public boolean removeChildAuthority(String parentAuthority, String childAuthority,
+            BiConsumer<String, String> closureRemoved)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Integer parent = getId(parentAuthority);
+            Integer child = getId(childAuthority);
+            if(parent == null || child == null || parents.get(child) == null
+                    || !parents.get(child).contains(parent))
+            {
+                return false;
+            }
+            parents.get(child).remove(parent);
+            children.get(parent).remove(child);
+
+            // the child may still be in some of the parent's ancestors by another path, so the
+            // closures that the edge was part of are worked out again from the remaining edges
+            RoaringBitmap affectedDescendants = copyOf(descendants, child);
+            affectedDescendants.add(child);
+            RoaringBitmap affectedAncestors = copyOf(ancestors, parent);
+            affectedAncestors.add(parent);
+
+            IntIterator it = affectedDescendants.getIntIterator();
+            while(it.hasNext())
+            {
+                int id = it.next();
+                RoaringBitmap idAncestors = reachable(parents, id);
+                if(closureRemoved != null && ancestors.get(id) != null)
+                {
+                    RoaringBitmap removed = ancestors.get(id).clone();
+                    if(idAncestors != null)
+                    {
+                        removed.andNot(idAncestors);
+                    }
+                    IntIterator removedIt = removed.getIntIterator();
+                    while(removedIt.hasNext())
+                    {
+                        closureRemoved.accept(names.get(removedIt.next()), names.get(id));
+                    }
+                }
+                ancestors.set(id, idAncestors);
+            }
+            it = affectedAncestors.getIntIterator();
+            while(it.hasNext())
+            {
+                int id = it.next();
+                descendants.set(id, reachable(children, id));
+            }
+
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static RoaringBitmap reachable(List<RoaringBitmap> edges, int from)
+    {
+        RoaringBitmap reached = new RoaringBitmap();
+        RoaringBitmap frontier = copyOf(edges, from);
+        while(!frontier.isEmpty())
+        {
+            reached.or(frontier);
+            RoaringBitmap next = new RoaringBitmap();
+            IntIterator it = frontier.getIntIterator();
+            while(it.hasNext())
+            {
+                RoaringBitmap bitmap = edges.get(it.next());
+                if(bitmap != null)
+                {
+                    next.or(bitmap);
+                }
+            }
+            next.andNot(reached);
+            frontier = next;
+        }
+        return (reached.isEmpty() ? null : reached);
+    }
+
+    /**
+     * @return true if the child authority is contained in the parent authority, directly or
+     * through other groups
+     */
+    public boolean hasAuthority(String parentAuthority, String childAuthority)
+    {
+        lock.readLock().lock();
+        try
+        {
+            Integer parent = getId(parentAuthority);
+            Integer child = getId(childAuthority);
+            boolean hasAuthority = false;
+            if(parent != null && child != null)
+            {
+                RoaringBitmap childAncestors = ancestors.get(child);
+                hasAuthority = (childAncestors != null && childAncestors.contains(parent));
+            }
+            return hasAuthority;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<String> getNames(List<RoaringBitmap> bitmaps, String authority)
+    {
+        lock.readLock().lock();
+        try
+        {
+            Integer id = getId(authority);
+            RoaringBitmap bitmap = (id != null ? bitmaps.get(id) : null);
+            List<String> authorities = Collections.emptyList();
+            if(bitmap != null)
+            {
+                authorities = new ArrayList<>(bitmap.getCardinality());
+                IntIterator it = bitmap.getIntIterator();
+                while(it.hasNext())
+                {
+                    authorities.add(names.get(it.next()));
+                }
+            }
+            return authorities;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the authorities contained in the parent authority, directly or through other
+     * groups, in no particular order
+     */
+    public List<String> getContainedAuthorities(String parentAuthority)
+    {
+        return getNames(descendants, parentAuthority);
+    }
+
+    /**
+     * @return a page of the authorities contained in the parent authority, directly or through
+     * other groups, in id order. Ids are never reused, so the order is stable apart from
+     * authorities that join the parent, which may be anywhere in it.
+     */
+    public List<String> getContainedAuthorities(String parentAuthority, int skip, int limit)
+    {
+        lock.readLock().lock();
+        try
+        {
+            Integer id = getId(parentAuthority);
+            RoaringBitmap bitmap = (id != null ? descendants.get(id) : null);
+            List<String> authorities = Collections.emptyList();
+            if(bitmap != null && skip < bitmap.getCardinality() && limit > 0)
+            {
+                authorities = new ArrayList<>(Math.min(limit, bitmap.getCardinality() - skip));
+                IntIterator it = bitmap.getIntIterator();
+                for(int i = 0; i < skip; i++)
+                {
+                    it.next();
+                }
+                while(it.hasNext() && authorities.size() < limit)
+                {
+                    authorities.add(names.get(it.next()));
+                }
+            }
+            return authorities;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the groups that contain the child authority, directly or through other groups, in
+     * no particular order
+     */
+    public List<String> getContainingAuthorities(String childAuthority)
+    {
+        return getNames(ancestors, childAuthority);
+    }
+
+    /**
+     * Passes each (containing group, contained authority) pair in the closure to consumer. The
+     * index can't be changed until it returns.
+     */
+    public void forEachContainedAuthority(BiConsumer<String, String> consumer)
+    {
+        lock.readLock().lock();
+        try
+        {
+            for(int id = 0; id < descendants.size(); id++)
+            {
+                RoaringBitmap bitmap = descendants.get(id);
+                if(bitmap != null)
+                {
+                    String authority = names.get(id);
+                    IntIterator it = bitmap.getIntIterator();
+                    while(it.hasNext())
+                    {
+                        consumer.accept(authority, names.get(it.next()));
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the ids of the authority and of all the groups that contain it, i.e. of the
+     * authorities that it holds, interning the authority if it's new
+     */
+    public RoaringBitmap getHeldAuthorities(String authority)
+    {
+        // an authority in no groups still holds itself
+        int id = getAuthorityId(authority);
+        lock.readLock().lock();
+        try
+        {
+            RoaringBitmap held = copyOf(ancestors, id);
+            held.add(id);
+            return held;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the authorities with the given ids
+     */
+    public List<String> getAuthorities(RoaringBitmap ids)
+    {
+        lock.readLock().lock();
+        try
+        {
+            List<String> authorities = new ArrayList<>(ids.getCardinality());
+            IntIterator it = ids.getIntIterator();
+            while(it.hasNext())
+            {
+                authorities.add(names.get(it.next()));
+            }
+            return authorities;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd. 
+ * pursuant to a written agreement and any use of this program without such an 
+ * agreement is prohibited. 
+ */
+package org.alfresco.permissions.dao;
+
+import java.util.List;
+
+/**
+ * A page of a node's children, with the token to pass to get the next page.
+ * 
+ * @author sglover
+ *
+ */
+public class ChildrenPage
+{
+    private List<Node> children;
+    private String continuationToken;
+
+    public ChildrenPage(List<Node> children, String continuationToken)
+    {
+        super();
+        this.children = children;
+        this.continuationToken = continuationToken;
+    }
+
+    public List<Node> getChildren()
+    {
+        return children;
+    }
+
+    /**
+     * @return the token for the next page, or null if this is the last page
+     */
+    public String getContinuationToken()
+    {
+        return continuationToken;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ChildrenPage [children=" + children + ", continuationToken=" + continuationToken
+                + "]";
+    }
+}
@@ -7,34 +7,57 @@
  */
 package org.alfresco.permissions.dao.cassandra;
 
-import java.nio.ByteBuffer;
-import java.util.BitSet;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Spliterator;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import org.alfresco.events.types.ActivityEvent;
 import org.alfresco.permissions.Auths;
-import org.alfresco.permissions.CollectionUtils;
 import org.alfresco.permissions.Properties;
+import org.alfresco.permissions.dao.AuthorityClosureIndex;
+import org.alfresco.permissions.dao.ChildrenPage;
 import org.alfresco.permissions.dao.Event;
 import org.alfresco.permissions.dao.Node;
 import org.alfresco.permissions.dao.PermissionsDAO;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.roaringbitmap.RoaringBitmap;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
 import com.datastax.driver.core.policies.DefaultRetryPolicy;
 import com.datastax.driver.core.policies.RoundRobinPolicy;
 import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 
 /**
  * 
@@ -42,12 +65,61 @@ import com.datastax.driver.core.policies.TokenAwarePolicy;
  *
  * TODO incomplete
  * 
+ * The child_authorities and parent_authorities tables hold each direct membership at level 1 and
+ * each membership in the transitive closure, direct or not, at level 0. Keyspaces written before
+ * the closure was kept, which have rows from level 2 up for ancestors by their position in the
+ * ancestor list, are migrated when their authorities are loaded.
+ * 
+ * Authority checks are answered from an in-memory index of the memberships. Every direct membership
+ * change is also logged to authority_changes, by hour, and before the index is used it replays the
+ * changes made since it was last brought up to date, by this instance or any other, if that was more
+ * than maxStalenessMs ago. An index that is further behind than the log's ttl is reloaded instead.
+ * 
+ * A node's children are readable by the holders of their Read authority, their ACL group. Each
+ * parent has the set of its children's ACL groups, cached as a bitmap of authority ids, and its
+ * children are stored both in name order and in name order per ACL group, so that a page of the
+ * children that an authority can read is found by reading the partitions of the ACL groups it holds.
+ * The cached sets may be missing ACL groups added on other instances, so they only decide how
+ * children are read, never that they don't need to be filtered.
+ * 
  */
 public class BitSetCassandraPermissionsDAO implements PermissionsDAO
 {
+    private static Log logger = LogFactory.getLog(BitSetCassandraPermissionsDAO.class);
+
+    private static final int DIRECT_LEVEL = 1;
+    // ancestors used to be written from level 2 up, never at 0
+    private static final int CLOSURE_LEVEL = 0;
+
+    private static final String CHILDREN_ASSOC_TYPE = "Children";
+
+    private static final long CHANGE_BUCKET_MS = 60 * 60 * 1000;
+    // changes are replayed from this long before the last sync, in case other instances' clocks are
+    // behind, and replaying a change twice is harmless
+    private static final long MAX_CLOCK_SKEW_MS = 10 * 1000;
+
     private Session session;
     private String keyspace;
 
+    // authority checks are answered from memory rather than parent_authorities
+    private final AuthorityClosureIndex authorityIndex = new AuthorityClosureIndex();
+    private long maxStalenessMs = 1000;
+    private int changeTtlSecs = 24 * 60 * 60;
+    private volatile long lastSynced;
+
+    // membership writes are batched per partition
+    private int batchSize = 50;
+    private int maxConcurrentBatches = 32;
+    private int maxPendingStatements = 64 * 1024;
+
+    // a page is read from at most this many ACL group partitions, otherwise the children are scanned
+    private int maxAclGroupReads = 16;
+
+    // the ACL groups of each parent's children, by parent node and assoc type
+    private long aclGroupsCacheSize = 10000;
+    private long aclGroupsCacheExpirySecs = 60;
+    private Cache<String, RoaringBitmap> aclGroupsByParent = buildAclGroupsCache();
+
     private static Session buildSession(String host)
     {
         Cluster cluster = Cluster.builder().addContactPoint(host)
@@ -81,12 +153,6 @@ public class BitSetCassandraPermissionsDAO implements PermissionsDAO
             session.execute("CREATE KEYSPACE " + keyspace + " WITH replication "
                     + "= {'class':'SimpleStrategy', 'replication_factor':3};");
 
-            session.execute("CREATE TABLE " + keyspace + ".node_assocs (" + "source_node_id text, "
-                    + "source_node_version text, " + "assoc_type text, " + "permission text, "
-                    + "authority text," + "target_node_id text," + "target_node_version text, "
-                    + "PRIMARY KEY(source_node_id, source_node_version, assoc_type, permission, authority, target_node_id, target_node_version) "
-                    + ");");
-
             session.execute("CREATE TABLE " + keyspace + ".child_permissions ("
                     + "parent_permission text, " + "child_permission text,"
                     + "PRIMARY KEY(parent_permission, child_permission) " + ");");
@@ -100,6 +166,52 @@ public class BitSetCassandraPermissionsDAO implements PermissionsDAO
                     + "PRIMARY KEY(child_authority, level, parent_authority) " + ");");
         }
 
+        // the tables below aren't in the keyspace block, keyspaces created before they were added
+        // don't have them
+        TableMetadata nodeAssocs = (keySpaceMetadata != null ? keySpaceMetadata.getTable("node_assocs")
+                : null);
+        if (nodeAssocs != null && nodeAssocs.getColumn("name") == null)
+        {
+            // node_assocs used to be keyed by permission and authority with text versions, which
+            // no rows could be written to, so it is replaced rather than migrated
+            if (session.execute("select * from " + keyspace + ".node_assocs LIMIT 1").one() != null)
+            {
+                throw new IllegalStateException("Can't migrate " + keyspace
+                        + ".node_assocs, it has rows keyed by permission and authority");
+            }
+            logger.info("Replacing " + keyspace + ".node_assocs with children in name order");
+            session.execute("DROP TABLE " + keyspace + ".node_assocs;");
+        }
+
+        session.execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".nodes (" + "node_id text, "
+                + "node_version int, " + "name text, " + "auths map<text, text>, "
+                + "PRIMARY KEY(node_id, node_version) " + ");");
+
+        session.execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".node_assocs ("
+                + "source_node_id text, " + "source_node_version int, " + "assoc_type text, "
+                + "name text, " + "target_node_id text, " + "target_node_version int, "
+                + "read_authority text, "
+                + "PRIMARY KEY((source_node_id, source_node_version, assoc_type), name, target_node_id, target_node_version) "
+                + ");");
+
+        session.execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".node_assocs_by_acl_group ("
+                + "source_node_id text, " + "source_node_version int, " + "assoc_type text, "
+                + "read_authority text, " + "name text, " + "target_node_id text, "
+                + "target_node_version int, "
+                + "PRIMARY KEY((source_node_id, source_node_version, assoc_type, read_authority), name, target_node_id, target_node_version) "
+                + ");");
+
+        session.execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".node_acl_groups ("
+                + "source_node_id text, " + "source_node_version int, " + "assoc_type text, "
+                + "read_authority text, "
+                + "PRIMARY KEY((source_node_id, source_node_version, assoc_type), read_authority) "
+                + ");");
+
+        session.execute("CREATE TABLE IF NOT EXISTS " + keyspace + ".authority_changes ("
+                + "bucket bigint, " + "changed timeuuid, " + "parent_authority text, "
+                + "child_authority text, " + "added boolean, "
+                + "PRIMARY KEY(bucket, changed) " + ");");
+
         this.insertChildPermission = session
                 .prepare("insert into " + keyspace + ".child_permissions "
                         + "(parent_permission, child_permission) " + "VALUES(?, ?)");
@@ -114,37 +226,250 @@ public class BitSetCassandraPermissionsDAO implements PermissionsDAO
         this.getChildPermissions = session.prepare(
                 "select * from " + keyspace + ".child_permissions where parent_permission = ?");
         this.getDescendantAuthorities = session.prepare("select * from " + keyspace
-                + ".child_authorities where parent_authority = ? AND level > 0");
+                + ".child_authorities where parent_authority = ? AND level = " + CLOSURE_LEVEL);
         this.getChildAuthorities = session.prepare("select * from " + keyspace
                 + ".child_authorities where parent_authority = ? AND level = 1");
+        this.insertNode = session.prepare("insert into " + keyspace
+                + ".nodes (node_id, node_version, name, auths) VALUES(?, ?, ?, ?)");
+        this.getNode = session.prepare("select * from " + keyspace
+                + ".nodes WHERE node_id = ? AND node_version = ?");
         this.insertNodeAssoc = session.prepare("insert into " + keyspace
                 + ".node_assocs (source_node_id, source_node_version, " + "assoc_type, "
-                + "permission, authority, target_node_id, target_node_version) VALUES(?, ?, ?, ?, ?, ?, ?)");
+                + "name, target_node_id, target_node_version, read_authority) VALUES(?, ?, ?, ?, ?, ?, ?)");
+        this.insertNodeAssocByAclGroup = session.prepare("insert into " + keyspace
+                + ".node_assocs_by_acl_group (source_node_id, source_node_version, assoc_type, "
+                + "read_authority, name, target_node_id, target_node_version) VALUES(?, ?, ?, ?, ?, ?, ?)");
+        this.insertNodeAclGroup = session.prepare("insert into " + keyspace
+                + ".node_acl_groups (source_node_id, source_node_version, assoc_type, read_authority) "
+                + "VALUES(?, ?, ?, ?)");
+        this.getNodeAclGroups = session.prepare("select read_authority from " + keyspace
+                + ".node_acl_groups WHERE source_node_id = ? AND source_node_version = ? AND assoc_type = ?");
+        this.getNodeAssocs = session.prepare("select * from " + keyspace
+                + ".node_assocs WHERE source_node_id = ? AND source_node_version = ? AND assoc_type = ? "
+                + "LIMIT ?");
+        this.getNodeAssocsAfter = session.prepare("select * from " + keyspace
+                + ".node_assocs WHERE source_node_id = ? AND source_node_version = ? AND assoc_type = ? "
+                + "AND (name, target_node_id, target_node_version) > (?, ?, ?) LIMIT ?");
+        this.getNodeAssocsByAclGroup = session.prepare("select * from " + keyspace
+                + ".node_assocs_by_acl_group WHERE source_node_id = ? AND source_node_version = ? "
+                + "AND assoc_type = ? AND read_authority = ? LIMIT ?");
+        this.getNodeAssocsByAclGroupAfter = session.prepare("select * from " + keyspace
+                + ".node_assocs_by_acl_group WHERE source_node_id = ? AND source_node_version = ? "
+                + "AND assoc_type = ? AND read_authority = ? "
+                + "AND (name, target_node_id, target_node_version) > (?, ?, ?) LIMIT ?");
         this.insertParentAuthority = session
                 .prepare("insert into " + keyspace + ".parent_authorities "
                         + "(child_authority, level, parent_authority) " + "VALUES(?, ?, ?)");
         this.getParentAuthorities = session.prepare("select * from " + keyspace
                 + ".parent_authorities " + "WHERE child_authority = ? AND level=1");
-        this.getAncestorAuthorities = session.prepare(
-                "select * from " + keyspace + ".parent_authorities " + "WHERE child_authority = ?");
+        this.getAncestorAuthorities = session.prepare("select * from " + keyspace
+                + ".parent_authorities " + "WHERE child_authority = ? AND level = " + CLOSURE_LEVEL);
         this.removeParentAuthority = session
                 .prepare("delete from " + keyspace + ".parent_authorities "
                         + "WHERE child_authority = ? AND level = ? AND parent_authority = ?");
-        this.getAcl = session.prepare("SELECT * FROM " + keyspace + ".acl WHERE source_node_id=?"
-                + " AND source_node_version=?" + " AND permission=?");
-        this.getAuth = session.prepare("SELECT * FROM " + keyspace + ".auths WHERE auth_name=?");
+        this.getAllParentAuthorities = session.prepare("select child_authority, level, parent_authority from "
+                + keyspace + ".parent_authorities");
+        this.insertAuthorityChange = session.prepare("insert into " + keyspace
+                + ".authority_changes (bucket, changed, parent_authority, child_authority, added) "
+                + "VALUES(?, ?, ?, ?, ?) USING TTL ?");
+        this.getAuthorityChanges = session.prepare("select * from " + keyspace
+                + ".authority_changes WHERE bucket = ? AND changed > ?");
+
+        loadAuthorityIndex();
+    }
+
+    /**
+     * Loads the authority index from the direct parent authorities, migrating the tables' closure
+     * rows if they were written before the closure was kept.
+     */
+    private synchronized void loadAuthorityIndex()
+    {
+        long start = System.currentTimeMillis();
+        Map<String, List<String>> childAuthorities = new HashMap<>();
+        List<Row> legacyRows = new ArrayList<>();
+        boolean hasClosureRows = false;
+        ResultSet resultSet = session.execute(getAllParentAuthorities.bind());
+        for (Row row : resultSet)
+        {
+            int level = row.getInt("level");
+            if (level == DIRECT_LEVEL)
+            {
+                childAuthorities.computeIfAbsent(row.getString("parent_authority"),
+                        p -> new ArrayList<>()).add(row.getString("child_authority"));
+            }
+            else if (level == CLOSURE_LEVEL)
+            {
+                hasClosureRows = true;
+            }
+            else
+            {
+                legacyRows.add(row);
+            }
+        }
+        authorityIndex.reset(childAuthorities);
+
+        // direct memberships are always written with their closure rows, so without any they were
+        // written before the closure was kept
+        if (!legacyRows.isEmpty() || (!hasClosureRows && !childAuthorities.isEmpty()))
+        {
+            logger.info("Migrating the authority closure in " + keyspace + ", replacing "
+                    + legacyRows.size() + " ancestor rows");
+            MembershipWriter writer = new MembershipWriter();
+            authorityIndex.forEachContainedAuthority(
+                    (ancestor, descendant) -> writer.insert(ancestor, CLOSURE_LEVEL, descendant));
+            legacyRows.forEach(row -> writer.delete(row.getString("parent_authority"),
+                    row.getInt("level"), row.getString("child_authority")));
+            writer.flush();
+        }
+
+        this.lastSynced = start;
+    }
+
+    /**
+     * Brings the authority index up to date with the memberships changed since it was last synced,
+     * by this instance or any other, or reloads it if it is further behind than the change log goes
+     * back.
+     */
+    public synchronized void syncAuthorityIndex()
+    {
+        long now = System.currentTimeMillis();
+        long since = lastSynced - MAX_CLOCK_SKEW_MS;
+        if (now - since >= changeTtlSecs * 1000l)
+        {
+            loadAuthorityIndex();
+        }
+        else
+        {
+            UUID after = UUIDs.startOf(since);
+            for (long bucket = since / CHANGE_BUCKET_MS; bucket <= now / CHANGE_BUCKET_MS; bucket++)
+            {
+                // in the order the changes were made
+                for (Row row : session.execute(getAuthorityChanges.bind(bucket, after)))
+                {
+                    String parentAuthority = row.getString("parent_authority");
+                    String childAuthority = row.getString("child_authority");
+                    if (row.getBool("added"))
+                    {
+                        authorityIndex.addChildAuthority(parentAuthority, childAuthority);
+                    }
+                    else
+                    {
+                        authorityIndex.removeChildAuthority(parentAuthority, childAuthority);
+                    }
+                }
+            }
+            this.lastSynced = now;
+        }
+    }
+
+    private void ensureAuthorityIndexSynced()
+    {
+        if (System.currentTimeMillis() - lastSynced >= maxStalenessMs)
+        {
+            syncAuthorityIndex();
+        }
+    }
+
+    /**
+     * How out of date the authority index may be, i.e. how long a membership changed on another
+     * instance may go unnoticed, in ms. 0 syncs it on every use.
+     */
+    public void setMaxStalenessMs(long maxStalenessMs)
+    {
+        this.maxStalenessMs = maxStalenessMs;
+    }
+
+    /**
+     * How long membership changes are logged for. An instance whose authority index is out of date
+     * by more than this reloads it.
+     */
+    public void setChangeTtlSecs(int changeTtlSecs)
+    {
+        this.changeTtlSecs = changeTtlSecs;
+    }
+
+    /**
+     * The maximum number of rows in a batch. Batches are for a single partition, so this only needs
+     * to keep them under Cassandra's batch size warning threshold.
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The maximum number of batches being written at once.
+     */
+    public void setMaxConcurrentBatches(int maxConcurrentBatches)
+    {
+        this.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    /**
+     * The maximum number of rows held in partially filled batches, after which they are all written.
+     */
+    public void setMaxPendingStatements(int maxPendingStatements)
+    {
+        this.maxPendingStatements = maxPendingStatements;
+    }
 
+    /**
+     * The maximum number of ACL groups whose partitions are read for a page of children. If an
+     * authority can read more of a node's children's ACL groups than this, the children are scanned
+     * in name order instead.
+     */
+    public void setMaxAclGroupReads(int maxAclGroupReads)
+    {
+        this.maxAclGroupReads = maxAclGroupReads;
+    }
+
+    /**
+     * The maximum number of parents whose children's ACL groups are cached.
+     */
+    public void setAclGroupsCacheSize(long aclGroupsCacheSize)
+    {
+        this.aclGroupsCacheSize = aclGroupsCacheSize;
+        this.aclGroupsByParent = buildAclGroupsCache();
+    }
+
+    /**
+     * How long a parent's children's ACL groups are cached for, which bounds how long children
+     * added on other instances with new ACL groups may be left out of the pages read by ACL group.
+     */
+    public void setAclGroupsCacheExpirySecs(long aclGroupsCacheExpirySecs)
+    {
+        this.aclGroupsCacheExpirySecs = aclGroupsCacheExpirySecs;
+        this.aclGroupsByParent = buildAclGroupsCache();
+    }
+
+    private Cache<String, RoaringBitmap> buildAclGroupsCache()
+    {
+        return CacheBuilder.newBuilder().maximumSize(aclGroupsCacheSize)
+                .expireAfterWrite(aclGroupsCacheExpirySecs, TimeUnit.SECONDS).build();
     }
 
     public void drop()
     {
-        session.execute("DROP TABLE " + keyspace + ".acl;");
-        session.execute("DROP TABLE " + keyspace + ".auths;");
+        session.execute("DROP TABLE " + keyspace + ".node_acl_groups;");
+        session.execute("DROP TABLE " + keyspace + ".node_assocs_by_acl_group;");
+        session.execute("DROP TABLE " + keyspace + ".node_assocs;");
+        session.execute("DROP TABLE " + keyspace + ".nodes;");
+        session.execute("DROP TABLE " + keyspace + ".parent_authorities;");
+        session.execute("DROP TABLE " + keyspace + ".child_authorities;");
+        session.execute("DROP TABLE " + keyspace + ".authority_changes;");
+        session.execute("DROP TABLE " + keyspace + ".child_permissions;");
     }
 
+    private PreparedStatement insertNode;
+    private PreparedStatement getNode;
     private PreparedStatement insertNodeAssoc;
+    private PreparedStatement insertNodeAssocByAclGroup;
+    private PreparedStatement insertNodeAclGroup;
+    private PreparedStatement getNodeAclGroups;
     private PreparedStatement getNodeAssocs;
-    private PreparedStatement getAuth;
+    private PreparedStatement getNodeAssocsAfter;
+    private PreparedStatement getNodeAssocsByAclGroup;
+    private PreparedStatement getNodeAssocsByAclGroupAfter;
     private PreparedStatement insertChildAuthority;
     private PreparedStatement removeChildAuthority;
     private PreparedStatement insertParentAuthority;
@@ -156,7 +481,9 @@ public class BitSetCassandraPermissionsDAO implements PermissionsDAO
     private PreparedStatement getChildPermissions;
     private PreparedStatement getDescendantAuthorities;
     private PreparedStatement getChildAuthorities;
-    private PreparedStatement getAcl;
+    private PreparedStatement getAllParentAuthorities;
+    private PreparedStatement insertAuthorityChange;
+    private PreparedStatement getAuthorityChanges;
 
     @Override
     public Stream<String> getContainedAuthoritiesAsStream(String parentAuthority)
@@ -167,15 +494,10 @@ public class BitSetCassandraPermissionsDAO implements PermissionsDAO
     @Override
     public Stream<String> getContainedAuthoritiesAsStream(String parentAuthority, Integer skip, Integer limit)
     {
-        final BoundStatement boundStatement = getDescendantAuthorities.bind(parentAuthority);
-        final ResultSet resultSet = session.execute(boundStatement);
-        final Spliterator<Row> spliterator = resultSet.spliterator();
-        Stream<String> stream = StreamSupport.stream(spliterator, false)
-                // .onClose(() -> resultSet.) // need to close cursor;
-                .map(row -> {
-                    String childAuthority = row.getString("child_authority");
-                    return childAuthority;
-                });
+        ensureAuthorityIndexSynced();
+        // in the index's order rather than by name, so a page isn't sorted from the whole closure
+        Stream<String> stream = authorityIndex.getContainedAuthorities(parentAuthority,
+                skip != null ? skip : 0, limit != null ? limit : Integer.MAX_VALUE).stream();
         return stream;
     }
 
@@ -231,97 +553,511 @@ public class BitSetCassandraPermissionsDAO implements PermissionsDAO
     @Override
     public void addChildAuthority(String parentAuthority, String childAuthority)
     {
-        Stream<Map.Entry<Integer, String>> ancestorAuthorities = CollectionUtils.zipWithIndex(
-                Stream.concat(Stream.of(parentAuthority), getAncestorAuthorities(parentAuthority)),
-                1);
-        ancestorAuthorities.forEach(authLevel -> {
-            String ancestorAuthority = authLevel.getValue();
-            int level = authLevel.getKey();
-            BoundStatement childInsert = insertChildAuthority.bind(ancestorAuthority, level,
-                    childAuthority);
-            session.execute(childInsert);
-
-            BoundStatement parentInsert = insertParentAuthority.bind(childAuthority, level,
-                    ancestorAuthority);
-            session.execute(parentInsert);
-        });
-        //
-        // BoundStatement parentInsert =
-        // insertParentAuthority.bind(childAuthority, parentAuthority);
-        // session.execute(parentInsert);
+        addChildAuthorities(Collections.singletonMap(parentAuthority,
+                Collections.singletonList(childAuthority)));
+    }
+
+    /**
+     * Adds memberships in bulk, e.g. for a directory sync, given the child authorities of each
+     * parent authority. The closure rows that each membership adds are worked out in memory from the
+     * authority index rather than by reading the ancestors back, and all the rows are written as
+     * unlogged batches per partition, asynchronously and with at most maxConcurrentBatches batches
+     * in flight. Memberships that already exist are skipped.
+     * 
+     * The memberships are in the index while their rows are written. If a write fails they are
+     * taken out of it again, their rows are deleted and the failure is rethrown.
+     */
+    public void addChildAuthorities(Map<String, ? extends Collection<String>> childAuthorities)
+    {
+        // the closure rows are worked out from the index, so it must have the other instances' changes
+        ensureAuthorityIndexSynced();
+        MembershipWriter writer = new MembershipWriter();
+        List<Map.Entry<String, String>> added = new ArrayList<>();
+        try
+        {
+            childAuthorities.forEach((parentAuthority, children) -> {
+                for (String childAuthority : children)
+                {
+                    addChildAuthority(parentAuthority, childAuthority, writer, added);
+                }
+            });
+            writer.flush();
+        }
+        catch (RuntimeException e)
+        {
+            writer.awaitInFlight();
+            MembershipWriter undo = new MembershipWriter();
+            for (int i = added.size() - 1; i >= 0; i--)
+            {
+                removeChildAuthority(added.get(i).getKey(), added.get(i).getValue(), undo,
+                        new ArrayList<>());
+            }
+            undo.flushQuietly();
+            throw e;
+        }
     }
 
     @Override
     public void removeChildAuthority(String parentAuthority, String childAuthority)
     {
-        Stream<Map.Entry<Integer, String>> ancestorAuthorities = CollectionUtils.zipWithIndex(
-                Stream.concat(Stream.of(parentAuthority), getParentAuthorities(parentAuthority)),
-                1);
-        ancestorAuthorities.forEach(authLevel -> {
-            String ancestorAuthority = authLevel.getValue();
-            int level = authLevel.getKey();
-            BoundStatement childDelete = removeChildAuthority.bind(ancestorAuthority, level,
-                    childAuthority);
-            session.execute(childDelete);
-            BoundStatement insert = removeParentAuthority.bind(childAuthority, level,
-                    parentAuthority);
-            session.execute(insert);
-        });
+        ensureAuthorityIndexSynced();
+        MembershipWriter writer = new MembershipWriter();
+        List<Map.Entry<String, String>> removed = new ArrayList<>();
+        try
+        {
+            removeChildAuthority(parentAuthority, childAuthority, writer, removed);
+            writer.flush();
+        }
+        catch (RuntimeException e)
+        {
+            writer.awaitInFlight();
+            MembershipWriter undo = new MembershipWriter();
+            removed.forEach(m -> addChildAuthority(m.getKey(), m.getValue(), undo, new ArrayList<>()));
+            undo.flushQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the membership to the index, and to added if it's new, and its rows to the writer.
+     */
+    private void addChildAuthority(String parentAuthority, String childAuthority,
+            MembershipWriter writer, List<Map.Entry<String, String>> added)
+    {
+        // written once the index's lock is released
+        List<Map.Entry<String, String>> closureAdded = new ArrayList<>();
+        if (authorityIndex.addChildAuthority(parentAuthority, childAuthority,
+                (ancestor, descendant) -> closureAdded
+                        .add(new AbstractMap.SimpleImmutableEntry<>(ancestor, descendant))))
+        {
+            added.add(new AbstractMap.SimpleImmutableEntry<>(parentAuthority, childAuthority));
+            writer.logChange(parentAuthority, childAuthority, true);
+            writer.insert(parentAuthority, DIRECT_LEVEL, childAuthority);
+            closureAdded.forEach(e -> writer.insert(e.getKey(), CLOSURE_LEVEL, e.getValue()));
+        }
+    }
+
+    /**
+     * Removes the membership from the index, adding it to removed if it was there, and deletes its
+     * rows with the writer.
+     */
+    private void removeChildAuthority(String parentAuthority, String childAuthority,
+            MembershipWriter writer, List<Map.Entry<String, String>> removed)
+    {
+        List<Map.Entry<String, String>> closureRemoved = new ArrayList<>();
+        if (authorityIndex.removeChildAuthority(parentAuthority, childAuthority,
+                (ancestor, descendant) -> closureRemoved
+                        .add(new AbstractMap.SimpleImmutableEntry<>(ancestor, descendant))))
+        {
+            removed.add(new AbstractMap.SimpleImmutableEntry<>(parentAuthority, childAuthority));
+            writer.logChange(parentAuthority, childAuthority, false);
+            writer.delete(parentAuthority, DIRECT_LEVEL, childAuthority);
+            closureRemoved.forEach(e -> writer.delete(e.getKey(), CLOSURE_LEVEL, e.getValue()));
+        }
+    }
+
+    /**
+     * Writes membership rows to both authority tables, batched by partition. Not thread safe.
+     */
+    private class MembershipWriter
+    {
+        private final int maxInFlight = maxConcurrentBatches;
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final Map<String, BatchStatement> childBatches = new HashMap<>();
+        private final Map<String, BatchStatement> parentBatches = new HashMap<>();
+        private final Map<String, BatchStatement> changeBatches = new HashMap<>();
+        private int pending;
+
+        void logChange(String parentAuthority, String childAuthority, boolean added)
+        {
+            UUID changed = UUIDs.timeBased();
+            long bucket = UUIDs.unixTimestamp(changed) / CHANGE_BUCKET_MS;
+            add(changeBatches, String.valueOf(bucket), insertAuthorityChange.bind(bucket, changed,
+                    parentAuthority, childAuthority, added, changeTtlSecs));
+        }
+
+        void insert(String parentAuthority, int level, String childAuthority)
+        {
+            add(childBatches, parentAuthority,
+                    insertChildAuthority.bind(parentAuthority, level, childAuthority));
+            add(parentBatches, childAuthority,
+                    insertParentAuthority.bind(childAuthority, level, parentAuthority));
+        }
+
+        void delete(String parentAuthority, int level, String childAuthority)
+        {
+            add(childBatches, parentAuthority,
+                    removeChildAuthority.bind(parentAuthority, level, childAuthority));
+            add(parentBatches, childAuthority,
+                    removeParentAuthority.bind(childAuthority, level, parentAuthority));
+        }
+
+        private void add(Map<String, BatchStatement> batches, String partition, Statement statement)
+        {
+            BatchStatement batch = batches.computeIfAbsent(partition,
+                    p -> new BatchStatement(BatchStatement.Type.UNLOGGED));
+            batch.add(statement);
+            pending++;
+            if (batch.size() >= batchSize)
+            {
+                batches.remove(partition);
+                execute(batch);
+            }
+            if (pending >= maxPendingStatements)
+            {
+                executeAll();
+            }
+        }
+
+        private void executeAll()
+        {
+            childBatches.values().forEach(batch -> execute(batch));
+            childBatches.clear();
+            parentBatches.values().forEach(batch -> execute(batch));
+            parentBatches.clear();
+            changeBatches.values().forEach(batch -> execute(batch));
+            changeBatches.clear();
+        }
+
+        private void execute(BatchStatement batch)
+        {
+            checkFailure();
+            inFlight.acquireUninterruptibly();
+            pending -= batch.size();
+            // the batch's statements are all for one partition, so the token aware policy sends it
+            // to a replica
+            ResultSetFuture future = session.executeAsync(batch);
+            Futures.addCallback(future, new FutureCallback<ResultSet>()
+            {
+                @Override
+                public void onSuccess(ResultSet result)
+                {
+                    inFlight.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t)
+                {
+                    failure.compareAndSet(null, t);
+                    inFlight.release();
+                }
+            });
+        }
+
+        private void checkFailure()
+        {
+            Throwable t = failure.get();
+            if (t != null)
+            {
+                throw new RuntimeException("Failed to write authority memberships", t);
+            }
+        }
+
+        /**
+         * Waits for the batches being written.
+         */
+        void awaitInFlight()
+        {
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+        }
+
+        /**
+         * Writes the partially filled batches and waits for all the batches to be written.
+         */
+        void flush()
+        {
+            executeAll();
+            awaitInFlight();
+            checkFailure();
+        }
+
+        /**
+         * Flushes the writer, logging rather than throwing a failure, for undoing the changes of a
+         * failed write.
+         */
+        void flushQuietly()
+        {
+            try
+            {
+                flush();
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Failed to undo authority memberships, the authority tables may differ "
+                        + "from the index until it is reloaded", e);
+            }
+        }
     }
 
     @Override
     public void addAssoc(final String sourceNodeId, final int parentNodeVersion,
             final String assocType, final String targetNodeId, final int childNodeVersion)
     {
-//        final List<String> permissions = new LinkedList<>();
-//        permissions.add(permission);
-//        permissions.addAll(getChildPermissions(permission));
-//
-//        Stream<String> authoritiesStream = Stream.concat(Stream.of(authority),
-//                getContainedAuthoritiesAsStream(authority, 0, Integer.MAX_VALUE));
-//        authoritiesStream.forEach(childAuthority -> {
-//            permissions.stream().forEach(p -> {
-//                setSinglePermission(sourceNodeId, parentNodeVersion, assocType, p, childAuthority,
-//                        targetNodeId, childNodeVersion);
-//            });
-//        });
-    }
-
-    public void setSinglePermission(String parentNodeId, int parentNodeVersion, String assocType,
-            String permission, String authority, String childNodeId, int childNodeVersion)
-    {
-        BoundStatement insert = insertNodeAssoc.bind(parentNodeId, parentNodeVersion, assocType,
-                permission, authority, childNodeId, childNodeVersion);
-        session.execute(insert);
+        Row target = session.execute(getNode.bind(targetNodeId, childNodeVersion)).one();
+        if (target == null)
+        {
+            return;
+        }
+
+        String name = target.getString("name");
+        String readAuthority = target.getMap("auths", String.class, String.class).get("Read");
+        if (readAuthority == null)
+        {
+            // no one can read the child, so it isn't listed
+            return;
+        }
+
+        session.execute(insertNodeAssoc.bind(sourceNodeId, parentNodeVersion, assocType, name,
+                targetNodeId, childNodeVersion, readAuthority));
+        session.execute(insertNodeAssocByAclGroup.bind(sourceNodeId, parentNodeVersion, assocType,
+                readAuthority, name, targetNodeId, childNodeVersion));
+        session.execute(insertNodeAclGroup.bind(sourceNodeId, parentNodeVersion, assocType,
+                readAuthority));
+
+        // a load that raced with the insert may still cache the ACL groups without this one, which
+        // getChildren allows for
+        aclGroupsByParent.invalidate(aclGroupsKey(sourceNodeId, parentNodeVersion, assocType));
     }
 
-    @Override
-    // TODO skip
-    public List<Node> getChildren(String parentNodeId, int parentNodeVersion, String authority,
-            int skip, int limit)
+    private static String aclGroupsKey(String nodeId, int nodeVersion, String assocType)
     {
-        List<Node> children = new LinkedList<>();
+        return nodeId + "." + nodeVersion + "/" + assocType;
+    }
 
-        BoundStatement boundStatement = getNodeAssocs.bind(parentNodeId, parentNodeVersion,
-                "Children", limit);
-        Row row = session.execute(boundStatement).one();
-        ByteBuffer aclBB = row.getBytes("bitset");
-        BitSet aclBS = BitSet.valueOf(aclBB);
+    private RoaringBitmap getAclGroups(String nodeId, int nodeVersion, String assocType)
+    {
+        try
+        {
+            return aclGroupsByParent.get(aclGroupsKey(nodeId, nodeVersion, assocType), () -> {
+                RoaringBitmap aclGroups = new RoaringBitmap();
+                ResultSet resultSet = session.execute(getNodeAclGroups.bind(nodeId, nodeVersion,
+                        assocType));
+                for (Row row : resultSet)
+                {
+                    aclGroups.add(authorityIndex.getAuthorityId(row.getString("read_authority")));
+                }
+                return aclGroups;
+            });
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException("Failed to load the ACL groups of " + nodeId, e.getCause());
+        }
+    }
 
-        boundStatement = getNodeAssocs.bind(parentNodeId, parentNodeVersion, "Children", limit);
-        row = session.execute(boundStatement).one();
-        ByteBuffer authBB = row.getBytes("bitset");
-        BitSet authBS = BitSet.valueOf(authBB);
+    /**
+     * A child's position in name order, which is what continuation tokens encode.
+     */
+    private static class ChildKey implements Comparable<ChildKey>
+    {
+        private final String name;
+        private final String nodeId;
+        private final int nodeVersion;
 
-        authBS.intersects(aclBS);
+        ChildKey(String name, String nodeId, int nodeVersion)
+        {
+            this.name = name;
+            this.nodeId = nodeId;
+            this.nodeVersion = nodeVersion;
+        }
 
-        // String childNodeId = row.getString("target_node_id");
-        // String childNodeVersion = row.getString("target_node_version");
-        // Node node = new Node(childNodeId, childNodeVersion);
-        // children.add(node);
-        // }
+        static ChildKey fromRow(Row row)
+        {
+            return new ChildKey(row.getString("name"), row.getString("target_node_id"),
+                    row.getInt("target_node_version"));
+        }
+
+        static ChildKey fromToken(String continuationToken)
+        {
+            ChildKey key = null;
+            if (continuationToken != null)
+            {
+                String decoded = new String(Base64.getUrlDecoder().decode(continuationToken),
+                        StandardCharsets.UTF_8);
+                String[] parts = decoded.split("\u0000", -1);
+                if (parts.length != 3)
+                {
+                    throw new IllegalArgumentException("Invalid continuation token " + continuationToken);
+                }
+                key = new ChildKey(parts[0], parts[1], Integer.parseInt(parts[2]));
+            }
+            return key;
+        }
 
-        return children;
+        String toToken()
+        {
+            String token = name + '\u0000' + nodeId + '\u0000' + nodeVersion;
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(token.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Node toNode()
+        {
+            return new Node(nodeId, nodeVersion, Optional.empty());
+        }
+
+        @Override
+        public int compareTo(ChildKey other)
+        {
+            int i = name.compareTo(other.name);
+            if (i == 0)
+            {
+                i = nodeId.compareTo(other.nodeId);
+            }
+            if (i == 0)
+            {
+                i = Integer.compare(nodeVersion, other.nodeVersion);
+            }
+            return i;
+        }
+    }
+
+    private BoundStatement bindNodeAssocs(String parentNodeId, int parentNodeVersion,
+            ChildKey after, int limit)
+    {
+        return (after == null
+                ? getNodeAssocs.bind(parentNodeId, parentNodeVersion, CHILDREN_ASSOC_TYPE, limit)
+                : getNodeAssocsAfter.bind(parentNodeId, parentNodeVersion, CHILDREN_ASSOC_TYPE,
+                        after.name, after.nodeId, after.nodeVersion, limit));
+    }
+
+    private BoundStatement bindNodeAssocsByAclGroup(String parentNodeId, int parentNodeVersion,
+            String aclGroup, ChildKey after, int limit)
+    {
+        return (after == null
+                ? getNodeAssocsByAclGroup.bind(parentNodeId, parentNodeVersion,
+                        CHILDREN_ASSOC_TYPE, aclGroup, limit)
+                : getNodeAssocsByAclGroupAfter.bind(parentNodeId, parentNodeVersion,
+                        CHILDREN_ASSOC_TYPE, aclGroup, after.name, after.nodeId, after.nodeVersion,
+                        limit));
+    }
+
+    /**
+     * @return true if the authority holds ReadChildren, or a permission that contains it, on the
+     * node
+     */
+    private boolean canReadChildren(String nodeId, int nodeVersion, RoaringBitmap held)
+    {
+        Row node = session.execute(getNode.bind(nodeId, nodeVersion)).one();
+        if (node == null)
+        {
+            return false;
+        }
+
+        return node.getMap("auths", String.class, String.class).entrySet().stream()
+                .filter(e -> e.getKey().equals("ReadChildren")
+                        || getChildPermissions(e.getKey()).contains("ReadChildren"))
+                .anyMatch(e -> held.contains(authorityIndex.getAuthorityId(e.getValue())));
+    }
+
+    /**
+     * Gets a page of the children that the authority can read, in name order. The children's ACL
+     * groups that the authority holds decide how they are read: if it holds only a few, a page is
+     * read from each of their partitions and merged; if it holds many or all of them, e.g. because
+     * it's an administrator, the children are scanned in name order and filtered, which for an
+     * administrator reads little more than the page. If it holds none, nothing is read.
+     * 
+     * @param continuationToken
+     *            the previous page's token, or null for the first page
+     */
+    public ChildrenPage getChildren(String parentNodeId, int parentNodeVersion, String authority,
+            String continuationToken, int limit)
+    {
+        List<ChildKey> page = Collections.emptyList();
+
+        ensureAuthorityIndexSynced();
+        RoaringBitmap held = authorityIndex.getHeldAuthorities(authority);
+        if (canReadChildren(parentNodeId, parentNodeVersion, held))
+        {
+            ChildKey after = ChildKey.fromToken(continuationToken);
+            RoaringBitmap aclGroups = getAclGroups(parentNodeId, parentNodeVersion,
+                    CHILDREN_ASSOC_TYPE);
+            RoaringBitmap readable = RoaringBitmap.and(aclGroups, held);
+            if (RoaringBitmap.andNot(aclGroups, held).isEmpty()
+                    || readable.getCardinality() > maxAclGroupReads)
+            {
+                // still filtered if the authority holds all the cached ACL groups, there may be
+                // children with ACL groups that aren't cached yet
+                page = scanChildren(parentNodeId, parentNodeVersion, held, after, limit);
+            }
+            else if (!readable.isEmpty())
+            {
+                page = getChildrenByAclGroup(parentNodeId, parentNodeVersion,
+                        authorityIndex.getAuthorities(readable), after, limit);
+            }
+        }
+
+        String nextToken = null;
+        if (page.size() > limit)
+        {
+            page = page.subList(0, limit);
+            nextToken = page.get(limit - 1).toToken();
+        }
+        List<Node> children = new ArrayList<>(page.size());
+        page.forEach(key -> children.add(key.toNode()));
+        return new ChildrenPage(children, nextToken);
+    }
+
+    /**
+     * @return up to limit + 1 children from the ACL groups' partitions, in name order
+     */
+    private List<ChildKey> getChildrenByAclGroup(String parentNodeId, int parentNodeVersion,
+            List<String> aclGroups, ChildKey after, int limit)
+    {
+        List<ResultSetFuture> futures = new ArrayList<>(aclGroups.size());
+        for (String aclGroup : aclGroups)
+        {
+            futures.add(session.executeAsync(bindNodeAssocsByAclGroup(parentNodeId,
+                    parentNodeVersion, aclGroup, after, limit + 1)));
+        }
+
+        List<ChildKey> page = new ArrayList<>();
+        for (ResultSetFuture future : futures)
+        {
+            for (Row row : future.getUninterruptibly())
+            {
+                page.add(ChildKey.fromRow(row));
+            }
+        }
+        Collections.sort(page);
+        return (page.size() > limit + 1 ? page.subList(0, limit + 1) : page);
+    }
+
+    /**
+     * @return up to limit + 1 children whose ACL group is one of the held authorities, in name order
+     */
+    private List<ChildKey> scanChildren(String parentNodeId, int parentNodeVersion,
+            RoaringBitmap held, ChildKey after, int limit)
+    {
+        List<ChildKey> page = new ArrayList<>(limit + 1);
+        BoundStatement statement = bindNodeAssocs(parentNodeId, parentNodeVersion, after,
+                Integer.MAX_VALUE);
+        statement.setFetchSize(Math.max(limit * 4, 100));
+        for (Row row : session.execute(statement))
+        {
+            if (held.contains(authorityIndex.getAuthorityId(row.getString("read_authority"))))
+            {
+                page.add(ChildKey.fromRow(row));
+                if (page.size() > limit)
+                {
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public List<Node> getChildren(String parentNodeId, int parentNodeVersion, String authority,
+            int skip, int limit)
+    {
+        // skipped children are still read, page with continuation tokens to avoid that
+        List<Node> children = getChildren(parentNodeId, parentNodeVersion, authority, null,
+                skip + limit).getChildren();
+        return (skip < children.size() ? children.subList(skip, children.size())
+                : Collections.emptyList());
     }
 
     @Override
@@ -376,8 +1112,8 @@ public class BitSetCassandraPermissionsDAO implements PermissionsDAO
     @Override
     public boolean hasAuthority(String parentAuthority, String childAuthority)
     {
-        // TODO Auto-generated method stub
-        return false;
+        ensureAuthorityIndexSynced();
+        return authorityIndex.hasAuthority(parentAuthority, childAuthority);
     }
 
     @Override
@@ -390,15 +1126,16 @@ public class BitSetCassandraPermissionsDAO implements PermissionsDAO
     @Override
     public void addNode(String nodeId, int nodeVersion, Auths auths, Properties properties)
     {
-        // TODO Auto-generated method stub
-        
+        Object name = properties.getProperties().get("name");
+        BoundStatement insert = insertNode.bind(nodeId, nodeVersion,
+                (name instanceof String ? (String) name : nodeId), auths.getAuths());
+        session.execute(insert);
     }
 
     @Override
     public void addAuthority(String authority)
     {
-        // TODO Auto-generated method stub
-        
+        authorityIndex.addAuthority(authority);
     }
 
     @Override
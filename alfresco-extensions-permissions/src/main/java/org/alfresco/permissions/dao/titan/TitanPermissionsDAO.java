@@ -499,8 +499,21 @@ public class TitanPermissionsDAO implements PermissionsDAO
     @Override
     public void removeChildAuthority(String parentAuthority, String childAuthority)
     {
-        // TODO Auto-generated method stub
+        graph.tx().submit(new Function<Graph, Void>() {
+            public Void apply(Graph g)
+            {
+                g.traversal().V()
+                        .hasLabel("AUTHORITY")
+                        .has("authName", parentAuthority)
+                        .outE("child")
+                        .toStream()
+                        .filter(e -> childAuthority.equals(e.inVertex().property("authName").orElse(null)))
+                        .forEach(e -> e.remove());
 
+                return null;
+            }
+        })
+        .exponentialBackoff(5);
     }
 
     @Override
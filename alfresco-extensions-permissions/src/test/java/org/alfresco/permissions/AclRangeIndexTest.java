@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.permissions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class AclRangeIndexTest
+{
+    private AclRangeIndex index;
+
+    @Before
+    public void before() throws Exception
+    {
+        this.index = new AclRangeIndex();
+    }
+
+    private static Range range(long start, long end)
+    {
+        return Range.start(start).end(end);
+    }
+
+    private static Map<String, List<Range>> ranges(String permission, Range... ranges)
+    {
+        Map<String, List<Range>> rangesByPermission = new HashMap<>();
+        rangesByPermission.put(permission, Arrays.asList(ranges));
+        return rangesByPermission;
+    }
+
+    private static Set<String> set(String... aclIds)
+    {
+        return new HashSet<>(Arrays.asList(aclIds));
+    }
+
+    @Test
+    public void testOverlappingRanges() throws Exception
+    {
+        index.putAcl("acl1", ranges("Read", range(0, 999)));
+        index.putAcl("acl2", ranges("Read", range(5, 5)));
+        index.putAcl("acl3", ranges("Read", range(500, 1500)));
+
+        assertEquals(set("acl1"), index.getAcls("Read", 0));
+        assertEquals(set("acl1"), index.getAcls("Read", 4));
+        assertEquals(set("acl1", "acl2"), index.getAcls("Read", 5));
+        assertEquals(set("acl1"), index.getAcls("Read", 6));
+        assertEquals(set("acl1", "acl3"), index.getAcls("Read", 999));
+        assertEquals(set("acl3"), index.getAcls("Read", 1000));
+        assertEquals(set("acl3"), index.getAcls("Read", 1500));
+        assertEquals(set(), index.getAcls("Read", 1501));
+        assertEquals(set(), index.getAcls("Read", -1));
+        assertEquals(set(), index.getAcls("Write", 5));
+        assertEquals(set("acl1", "acl2", "acl3"), index.getAcls("Read", Arrays.asList(5l, 1200l)));
+
+        // 0, 5, 6, 500, 1000 and the end at 1501
+        assertEquals(6, index.getNumSegments("Read"));
+    }
+
+    @Test
+    public void testRangesOfOneAclOverlap() throws Exception
+    {
+        index.putAcl("acl1", ranges("Read", range(0, 10), range(5, 20)));
+
+        // removing the ACL removes both ranges, although they share segments
+        assertEquals(set("acl1"), index.getAcls("Read", 7));
+        assertEquals(set("acl1"), index.getAcls("Read", 15));
+        index.removeAcl("acl1");
+        assertEquals(set(), index.getAcls("Read", 7));
+        assertEquals(0, index.getNumSegments("Read"));
+    }
+
+    @Test
+    public void testReplaceAndRemove() throws Exception
+    {
+        Map<String, List<Range>> rangesByPermission = ranges("Read", range(0, 999));
+        rangesByPermission.put("Write", Arrays.asList(range(1, 1)));
+        index.putAcl("acl1", rangesByPermission);
+        index.putAcl("acl2", ranges("Read", range(2000, 2999)));
+
+        // the old ranges are dropped, for every permission
+        index.putAcl("acl1", ranges("Read", range(2000, 2000)));
+        assertEquals(set(), index.getAcls("Read", 0));
+        assertEquals(set(), index.getAcls("Write", 1));
+        assertEquals(0, index.getNumSegments("Write"));
+        assertEquals(set("acl1", "acl2"), index.getAcls("Read", 2000));
+
+        index.removeAcl("acl2");
+        assertEquals(set("acl1"), index.getAcls("Read", 2000));
+        assertEquals(set(), index.getAcls("Read", 2001));
+        assertEquals(2, index.getNumSegments("Read"));
+
+        index.removeAcl("acl1");
+        index.removeAcl("unknown");
+        assertEquals(0, index.getNumSegments("Read"));
+    }
+
+    @Test
+    public void testAdjacentRangesMerge() throws Exception
+    {
+        index.putAcl("acl1", ranges("Read", range(0, 9), range(10, 19)));
+
+        // the same ACLs either side of 10, so there is no segment there
+        assertEquals(2, index.getNumSegments("Read"));
+        assertEquals(set("acl1"), index.getAcls("Read", 10));
+        assertEquals(set(), index.getAcls("Read", 20));
+    }
+
+    @Test
+    public void testOpenAndEmptyRanges() throws Exception
+    {
+        index.putAcl("acl1", ranges("Read", range(100, Long.MAX_VALUE)));
+        index.putAcl("acl2", ranges("Read", range(0, -1)));
+
+        assertEquals(set("acl1"), index.getAcls("Read", Long.MAX_VALUE));
+        assertEquals(set(), index.getAcls("Read", 99));
+        assertEquals(set(), index.getAcls("Read", Collections.singleton(0l)));
+        assertEquals(1, index.getNumSegments("Read"));
+
+        index.removeAcl("acl2");
+        index.removeAcl("acl1");
+        assertEquals(0, index.getNumSegments("Read"));
+    }
+}
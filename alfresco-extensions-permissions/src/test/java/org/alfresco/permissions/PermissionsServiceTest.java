@@ -8,8 +8,12 @@
 package org.alfresco.permissions;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import org.junit.Before;
@@ -53,4 +57,144 @@ public class PermissionsServiceTest
 						.setPermission("Read")));
 		assertEquals(expectedRanges, ranges);
 	}
+
+	@Test
+	public void test2() throws Exception
+	{
+		permissionsService.addGroup("Group_site1");
+		permissionsService.addGroup("Group_site1", "Group_site1_manager");
+		permissionsService.addGroup("Group_site2");
+
+		permissionsService.setAcl("acl1", Acl
+				.acl()
+				.addAce(Ace
+						.setGroup("Group_site1")
+						.setPermission("Read")));
+		permissionsService.setAcl("acl2", Acl
+				.acl()
+				.addAce(Ace
+						.setGroup("Group_site1_manager")
+						.setPermission("Read"))
+				.addAce(Ace
+						.setGroup("Group_site2")
+						.setPermission("Write")));
+
+		assertEquals(new HashSet<>(Arrays.asList("acl1", "acl2")),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site1_manager")));
+		assertEquals(Collections.singleton("acl1"),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site1")));
+		assertEquals(Collections.emptySet(),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site2")));
+		assertEquals(Collections.singleton("acl2"),
+				permissionsService.getAcls("Write", Arrays.asList("Group_site1", "Group_site2")));
+
+		// replacing an ACL drops its old ranges
+		permissionsService.setAcl("acl1", Acl
+				.acl()
+				.addAce(Ace
+						.setGroup("Group_site2")
+						.setPermission("Read")));
+		assertEquals(Collections.singleton("acl2"),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site1_manager")));
+		assertEquals(Collections.singleton("acl1"),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site2")));
+
+		permissionsService.removeAcl("acl1");
+		permissionsService.removeAcl("acl2");
+		assertEquals(Collections.emptySet(),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site1_manager", "Group_site2")));
+	}
+
+	@Test
+	public void testChildGroupRanges() throws Exception
+	{
+		long site1GroupId = permissionsService.addGroup("Group_site1");
+		long managerGroupId = permissionsService.addGroup("Group_site1", "Group_site1_manager");
+		long collaboratorGroupId = permissionsService.addGroup("Group_site1", "Group_site1_collaborator");
+
+		assertEquals(Range.start(site1GroupId).end(site1GroupId + 999),
+				permissionsService.getGroupRange("Group_site1"));
+		assertEquals(Range.start(managerGroupId).end(managerGroupId),
+				permissionsService.getGroupRange("Group_site1_manager"));
+
+		// an ace for a child group doesn't cover its siblings
+		permissionsService.setAcl("acl1", Acl
+				.acl()
+				.addAce(Ace
+						.setGroup("Group_site1_manager")
+						.setPermission("Read")));
+		assertEquals(Collections.singleton("acl1"),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site1_manager")));
+		assertEquals(Collections.emptySet(),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site1_collaborator")));
+		assertEquals(Collections.emptySet(),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site1")));
+		assertEquals(collaboratorGroupId, managerGroupId + 1);
+	}
+
+	@Test
+	public void testUnknownGroup() throws Exception
+	{
+		permissionsService.addGroup("Group_site1");
+
+		assertTrue(permissionsService.getGroupRange("Group_unknown").isEmpty());
+		List<Range> ranges = permissionsService.calculateNodeAclGroupRanges(Acl
+				.acl()
+				.addAce(Ace
+						.setGroup("Group_unknown")
+						.setPermission("Read")));
+		assertEquals(1, ranges.size());
+		assertTrue(ranges.get(0).isEmpty());
+
+		permissionsService.setAcl("acl1", Acl
+				.acl()
+				.addAce(Ace
+						.setGroup("Group_unknown")
+						.setPermission("Read")));
+		assertEquals(Collections.emptySet(),
+				permissionsService.getReadableAcls(Arrays.asList("Group_site1", "Group_unknown")));
+
+		try
+		{
+			permissionsService.getGroupId("Group_unknown");
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testFullBlock() throws Exception
+	{
+		permissionsService.addGroup("Group_site1");
+		for(int i = 1; i < PermissionsServiceImpl.GROUP_BLOCK_SIZE; i++)
+		{
+			permissionsService.addGroup("Group_site1", "Group_site1_" + i);
+		}
+		try
+		{
+			permissionsService.addGroup("Group_site1", "Group_site1_full");
+			fail();
+		}
+		catch(IllegalStateException e)
+		{
+			// expected
+		}
+
+		// the next top level group's block is untouched
+		long site2GroupId = permissionsService.addGroup("Group_site2");
+		assertEquals(site2GroupId + 1, permissionsService.addGroup("Group_site2", "Group_site2_1"));
+
+		try
+		{
+			permissionsService.addGroup("Group_site1_1", "Group_site1_1_1");
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
 }
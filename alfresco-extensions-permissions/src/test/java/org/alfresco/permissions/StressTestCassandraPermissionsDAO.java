@@ -10,12 +10,17 @@ package org.alfresco.permissions;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.alfresco.permissions.dao.Node;
 import org.alfresco.permissions.dao.PermissionsDAO;
+import org.alfresco.permissions.dao.cassandra.BitSetCassandraPermissionsDAO;
 import org.alfresco.permissions.dao.cassandra.CassandraPermissionsDAO;
 import org.junit.Before;
 import org.junit.Test;
@@ -217,4 +222,68 @@ public class StressTestCassandraPermissionsDAO
         long end = System.nanoTime();
         System.out.println((end - start) / 1000000000.0f + ", " + authStream.count());
     }
+
+    /**
+     * A directory sync: a tree of 50,000 groups, 10 to a group, and 200,000 users each in 5 random
+     * groups, so 1M memberships. The first 10,000 are added one at a time and the rest in bulk.
+     */
+    // @Test
+    public void test3() throws Exception
+    {
+        BitSetCassandraPermissionsDAO bitSetPermissionsDAO = new BitSetCassandraPermissionsDAO(
+                "127.0.0.1", "permissionsbulkload", true);
+
+        int numGroups = 50000;
+        int numUsers = 200000;
+        int groupsPerUser = 5;
+        Random random = new Random(42);
+
+        Map<String, List<String>> childAuthorities = new HashMap<>();
+        for (int i = 1; i < numGroups; i++)
+        {
+            childAuthorities.computeIfAbsent("GROUP_" + ((i - 1) / 10), g -> new ArrayList<>())
+                    .add("GROUP_" + i);
+        }
+        for (int i = 0; i < numUsers; i++)
+        {
+            for (int j = 0; j < groupsPerUser; j++)
+            {
+                childAuthorities
+                        .computeIfAbsent("GROUP_" + random.nextInt(numGroups), g -> new ArrayList<>())
+                        .add("user" + i);
+            }
+        }
+
+        Map<String, List<String>> bulk = new HashMap<>();
+        int numSingle = 0;
+        long start = System.nanoTime();
+        for (Map.Entry<String, List<String>> entry : childAuthorities.entrySet())
+        {
+            for (String childAuthority : entry.getValue())
+            {
+                if (numSingle < 10000)
+                {
+                    bitSetPermissionsDAO.addChildAuthority(entry.getKey(), childAuthority);
+                    numSingle++;
+                }
+                else
+                {
+                    bulk.computeIfAbsent(entry.getKey(), g -> new ArrayList<>()).add(childAuthority);
+                }
+            }
+        }
+        long end = System.nanoTime();
+        System.out.println("avg single membership write (ms) "
+                + ((end - start) / numSingle / 1000000.0f));
+
+        int numBulk = bulk.values().stream().mapToInt(List::size).sum();
+        start = System.nanoTime();
+        bitSetPermissionsDAO.addChildAuthorities(bulk);
+        end = System.nanoTime();
+        System.out.println(numBulk + " bulk membership writes in time (ms) "
+                + ((end - start) / 1000000.0f) + ", memberships/s "
+                + (numBulk * 1000000000.0f / (end - start)));
+
+        assertTrue(bitSetPermissionsDAO.hasAuthority("GROUP_0", "user0"));
+    }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Alfresco Software, Ltd.  All rights reserved.
+ *
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.alfresco.permissions.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ *
+ * @author sglover
+ *
+ */
+public class AuthorityClosureIndexTest
+{
+    private AuthorityClosureIndex index;
+
+    @Before
+    public void before() throws Exception
+    {
+        this.index = new AuthorityClosureIndex();
+    }
+
+    private Set<String> set(String... authorities)
+    {
+        return new HashSet<>(Arrays.asList(authorities));
+    }
+
+    private Set<String> contained(String authority)
+    {
+        return new HashSet<>(index.getContainedAuthorities(authority));
+    }
+
+    private Set<String> containing(String authority)
+    {
+        return new HashSet<>(index.getContainingAuthorities(authority));
+    }
+
+    private static Map.Entry<String, String> pair(String ancestor, String descendant)
+    {
+        return new AbstractMap.SimpleImmutableEntry<>(ancestor, descendant);
+    }
+
+    @Test
+    public void testClosure() throws Exception
+    {
+        index.addChildAuthority("Root", "GROUP_1");
+        index.addChildAuthority("GROUP_1", "GROUP_2");
+        index.addChildAuthority("GROUP_2", "user1");
+        index.addChildAuthority("GROUP_3", "user2");
+
+        assertTrue(index.hasAuthority("Root", "user1"));
+        assertTrue(index.hasAuthority("GROUP_1", "user1"));
+        assertTrue(index.hasAuthority("GROUP_2", "user1"));
+        assertFalse(index.hasAuthority("GROUP_3", "user1"));
+        assertFalse(index.hasAuthority("user1", "GROUP_2"));
+        assertFalse(index.hasAuthority("Root", "unknown"));
+        assertFalse(index.hasAuthority("unknown", "user1"));
+
+        assertEquals(set("GROUP_1", "GROUP_2", "user1"), contained("Root"));
+        assertEquals(set("Root", "GROUP_1", "GROUP_2"), containing("user1"));
+        assertEquals(set(), contained("user1"));
+        assertEquals(set(), contained("unknown"));
+    }
+
+    @Test
+    public void testAddReportsClosure() throws Exception
+    {
+        index.addChildAuthority("Root", "GROUP_1");
+        index.addChildAuthority("GROUP_2", "user1");
+
+        // joining GROUP_2 to GROUP_1 puts GROUP_2 and user1 in GROUP_1 and Root
+        List<Map.Entry<String, String>> added = new ArrayList<>();
+        assertTrue(index.addChildAuthority("GROUP_1", "GROUP_2", (a, d) -> added.add(pair(a, d))));
+        assertEquals(new HashSet<>(Arrays.asList(pair("GROUP_1", "GROUP_2"), pair("Root", "GROUP_2"),
+                pair("GROUP_1", "user1"), pair("Root", "user1"))), new HashSet<>(added));
+
+        // user1 is already in Root through GROUP_2, so only the new direct membership is added
+        added.clear();
+        assertTrue(index.addChildAuthority("Root", "user1", (a, d) -> added.add(pair(a, d))));
+        assertEquals(Collections.emptyList(), added);
+
+        assertFalse(index.addChildAuthority("Root", "user1", (a, d) -> added.add(pair(a, d))));
+    }
+
+    @Test
+    public void testRemoveKeepsOtherPaths() throws Exception
+    {
+        index.addChildAuthority("Root", "GROUP_1");
+        index.addChildAuthority("Root", "GROUP_2");
+        index.addChildAuthority("GROUP_1", "user1");
+        index.addChildAuthority("GROUP_2", "user1");
+        index.addChildAuthority("GROUP_1", "user2");
+
+        // user1 is still in Root through GROUP_2, user2 isn't
+        List<Map.Entry<String, String>> removed = new ArrayList<>();
+        assertTrue(index.removeChildAuthority("Root", "GROUP_1", (a, d) -> removed.add(pair(a, d))));
+        assertEquals(new HashSet<>(Arrays.asList(pair("Root", "GROUP_1"), pair("Root", "user2"))),
+                new HashSet<>(removed));
+
+        assertTrue(index.hasAuthority("Root", "user1"));
+        assertFalse(index.hasAuthority("Root", "user2"));
+        assertTrue(index.hasAuthority("GROUP_1", "user2"));
+        assertEquals(set("GROUP_2", "user1"), contained("Root"));
+        assertEquals(set("GROUP_1", "GROUP_2", "Root"), containing("user1"));
+
+        assertFalse(index.removeChildAuthority("Root", "GROUP_1", null));
+        assertFalse(index.removeChildAuthority("Root", "unknown", null));
+    }
+
+    @Test
+    public void testCycle() throws Exception
+    {
+        index.addChildAuthority("GROUP_1", "GROUP_2");
+        index.addChildAuthority("GROUP_2", "GROUP_1");
+        index.addChildAuthority("GROUP_2", "user1");
+
+        assertTrue(index.hasAuthority("GROUP_1", "user1"));
+        assertTrue(index.hasAuthority("GROUP_1", "GROUP_1"));
+
+        index.removeChildAuthority("GROUP_2", "GROUP_1");
+        assertTrue(index.hasAuthority("GROUP_1", "user1"));
+        assertFalse(index.hasAuthority("GROUP_2", "GROUP_1"));
+        assertFalse(index.hasAuthority("GROUP_1", "GROUP_1"));
+    }
+
+    @Test
+    public void testForEachContainedAuthority() throws Exception
+    {
+        index.addChildAuthority("Root", "GROUP_1");
+        index.addChildAuthority("GROUP_1", "user1");
+        index.addChildAuthority("GROUP_2", "user1");
+
+        Set<Map.Entry<String, String>> closure = new HashSet<>();
+        index.forEachContainedAuthority((a, d) -> assertTrue(closure.add(pair(a, d))));
+        assertEquals(new HashSet<>(Arrays.asList(pair("Root", "GROUP_1"), pair("Root", "user1"),
+                pair("GROUP_1", "user1"), pair("GROUP_2", "user1"))), closure);
+    }
+
+    @Test
+    public void testHeldAuthorities() throws Exception
+    {
+        index.addChildAuthority("Root", "GROUP_1");
+        index.addChildAuthority("GROUP_1", "user1");
+        index.addAuthority("user2");
+
+        RoaringBitmap held = index.getHeldAuthorities("user1");
+        assertEquals(set("user1", "GROUP_1", "Root"), new HashSet<>(index.getAuthorities(held)));
+        assertEquals(set("user2"), new HashSet<>(index.getAuthorities(index.getHeldAuthorities("user2"))));
+        assertEquals(set("unknown"), new HashSet<>(index.getAuthorities(index.getHeldAuthorities("unknown"))));
+    }
+
+    @Test
+    public void testPaging() throws Exception
+    {
+        List<String> users = new ArrayList<>();
+        for(int i = 0; i < 25; i++)
+        {
+            users.add("user" + i);
+            index.addChildAuthority("GROUP_" + (i % 3), "user" + i);
+        }
+        index.addChildAuthority("Root", "GROUP_0");
+        index.addChildAuthority("Root", "GROUP_1");
+        index.addChildAuthority("Root", "GROUP_2");
+
+        // pages are in the order the authorities were first seen
+        List<String> all = new ArrayList<>();
+        for(int skip = 0; skip < 40; skip += 10)
+        {
+            all.addAll(index.getContainedAuthorities("Root", skip, 10));
+        }
+        List<String> expected = new ArrayList<>();
+        expected.add("GROUP_0");
+        for(int i = 0; i < 25; i++)
+        {
+            expected.add("user" + i);
+            if(i < 2)
+            {
+                expected.add("GROUP_" + (i + 1));
+            }
+        }
+        assertEquals(expected, all);
+
+        assertEquals(Arrays.asList("GROUP_0"), index.getContainedAuthorities("Root", 0, 1));
+        assertEquals(Collections.emptyList(), index.getContainedAuthorities("Root", 28, 10));
+        assertEquals(Collections.emptyList(), index.getContainedAuthorities("Root", 0, 0));
+        assertEquals(Collections.emptyList(), index.getContainedAuthorities("unknown", 0, 10));
+        assertEquals(Arrays.asList("user1", "user4", "user7"),
+                index.getContainedAuthorities("GROUP_1", 0, 3));
+    }
+
+    @Test
+    public void testReset() throws Exception
+    {
+        index.addChildAuthority("Root", "GROUP_1");
+        index.addChildAuthority("GROUP_1", "user1");
+
+        Map<String, List<String>> childAuthorities = new HashMap<>();
+        childAuthorities.put("Root", Arrays.asList("GROUP_2"));
+        childAuthorities.put("GROUP_2", Arrays.asList("user1"));
+        index.reset(childAuthorities);
+
+        assertFalse(index.hasAuthority("GROUP_1", "user1"));
+        assertTrue(index.hasAuthority("GROUP_2", "user1"));
+        assertTrue(index.hasAuthority("Root", "user1"));
+        assertEquals(set("GROUP_2", "user1"), contained("Root"));
+        assertEquals(set(), contained("GROUP_1"));
+
+        // ids are kept, so user1 is still before GROUP_2
+        assertEquals(Arrays.asList("user1", "GROUP_2"), index.getContainedAuthorities("Root", 0, 10));
+    }
+}